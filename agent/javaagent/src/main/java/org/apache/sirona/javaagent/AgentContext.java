@@ -17,8 +17,10 @@
 package org.apache.sirona.javaagent;
 
 import org.apache.sirona.Role;
+import org.apache.sirona.configuration.Configuration;
 import org.apache.sirona.configuration.ioc.IoCs;
 import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.KeyRegistry;
 import org.apache.sirona.javaagent.spi.InvocationListener;
 import org.apache.sirona.javaagent.spi.InvocationListenerFactory;
 import org.apache.sirona.spi.Order;
@@ -30,6 +32,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -39,12 +42,33 @@ import java.util.concurrent.ConcurrentMap;
 // just a helper to ease ASM work and reuse AbstractPerformanceInterceptor logic
 public class AgentContext {
 
+    private static final Object[] EMPTY_ARRAY = new Object[0];
+
+    private static final InvocationListener[] EMPTY_LISTENERS_ARRAY = new InvocationListener[0];
+
+    private static final int[] EMPTY_SLOTS = new int[0];
+
+    // configuration key of the listeners created by an InvocationListenerFactory, used to reconfigure them
+    private static final Map<InvocationListener, String> LISTENER_KEYS = new IdentityHashMap<InvocationListener, String>();
+
     private static final InvocationListener[] EXISTING_LISTENERS = loadAllListeners();
 
-    private static final ConcurrentMap<String, InvocationListener[]> LISTENERS_BY_KEY = new ConcurrentHashMap<String, InvocationListener[]>();
+    // replaced (and never mutated for existing keys) on reconfiguration so a thread sees all or none of the new rules
+    private static volatile ConcurrentMap<String, MethodListeners> listenersByKey = new ConcurrentHashMap<String, MethodListeners>();
+    private static final Object LISTENERS_LOCK = new Object();
     private static final ConcurrentMap<String, Counter.Key> KEYS_CACHE = new ConcurrentHashMap<String, Counter.Key>();
+    private static final ConcurrentMap<String, Integer> KEY_IDS_CACHE = new ConcurrentHashMap<String, Integer>();
 	private static final AgentContext FAKE_CONTEXT = new AgentContext("init", null, new InvocationListener[0],new Object[0]);
 
+    // contexts are reused by depth so a thread only allocates them for its deepest nesting, deeper ones are not pooled
+    private static final int MAX_POOLED_DEPTH = Math.max(0, Configuration.getInteger(Configuration.CONFIG_PROPERTY_PREFIX + "javaagent.context.pool-depth", 64));
+    private static final ThreadLocal<ContextStack> CONTEXTS = new ThreadLocal<ContextStack>() {
+        @Override
+        protected ContextStack initialValue() {
+            return new ContextStack();
+        }
+    };
+
 	private static final Map<String, String> AGENT_PARAMETERS = new ConcurrentHashMap<String, String>();
     private static final Map<String, Class<?>> PRIMITIVES = new HashMap<String, Class<?>>();
     static {
@@ -58,10 +82,6 @@ public class AgentContext {
         PRIMITIVES.put("boolean", boolean.class);
     }
 
-    private static final Object[] EMPTY_ARRAY = new Object[0];
-
-    private static final InvocationListener[] EMPTY_LISTENERS_ARRAY = new InvocationListener[0];
-
     public static void addAgentParameter( String key, String value){
         AGENT_PARAMETERS.put(key, value);
     }
@@ -83,10 +103,85 @@ public class AgentContext {
      * @return
      */
     public static AgentContext startOn(final Object that, final String key, final Object[] methodParameters) {
+        final long begin = AgentOverhead.isActive() ? System.nanoTime() : 0;
+        final AgentContext context = acquire(that, key, methodParameters);
+        return context == FAKE_CONTEXT ? context : start(context, begin);
+    }
+
+    /**
+     * called by agent when a single argument is captured, see {@link ArgumentCapture}.
+     * <b>It's not part of the public api!!</b>
+     * @since 0.4
+     */
+    public static AgentContext startOnCapture(final Object that, final String key, final Object argument) {
+        final long begin = AgentOverhead.isActive() ? System.nanoTime() : 0;
+        final AgentContext context = acquire(that, key, null);
+        if (context == FAKE_CONTEXT) {
+            return context;
+        }
+        if (context.captures != null) {
+            context.counterName = context.captures.counterName(key, argument);
+        }
+        return start(context, begin);
+    }
+
+    /**
+     * called by agent when several arguments are captured, see {@link ArgumentCapture}.
+     * <b>It's not part of the public api!!</b>
+     * @since 0.4
+     */
+    public static AgentContext startOnCaptures(final Object that, final String key, final Object[] arguments) {
+        final long begin = AgentOverhead.isActive() ? System.nanoTime() : 0;
+        final AgentContext context = acquire(that, key, null);
+        if (context == FAKE_CONTEXT) {
+            return context;
+        }
+        if (context.captures != null) {
+            context.counterName = context.captures.counterName(key, arguments);
+        }
+        return start(context, begin);
+    }
+
+    private static AgentContext acquire(final Object that, final String key, final Object[] methodParameters) {
         if (key == null) { // possible in static inits, the best would be to ignore it in instrumentation
 			return FAKE_CONTEXT;
 		}
-        return new AgentContext(key, that, listeners(key, null),methodParameters);
+
+        final MethodListeners methodListeners = listenersByKey.get(key);
+        int samplingRate = 1;
+        if (methodListeners != null && methodListeners.sampler != null) { // skip the listener chain
+            if (!methodListeners.sampler.sample()) {
+                return FAKE_CONTEXT;
+            }
+            samplingRate = methodListeners.sampler.getRate();
+        }
+
+        final AgentContext context = CONTEXTS.get().acquire();
+        if (methodListeners == null) {
+            context.init(key, that, EMPTY_LISTENERS_ARRAY, EMPTY_SLOTS, methodParameters);
+        } else {
+            context.init(key, that, methodListeners.listeners, methodListeners.slots, methodParameters);
+            context.captures = methodListeners.captures;
+        }
+        context.samplingRate = samplingRate;
+        return context;
+    }
+
+    // begin is the time the agent got the invocation when the overhead is measured, see AgentOverhead
+    private static AgentContext start(final AgentContext context, final long begin) {
+        try {
+            context.startListeners();
+            if (AgentOverhead.isActive()) {
+                context.startOverhead = System.nanoTime() - begin;
+            }
+        } catch (final RuntimeException re) { // stop() will not be called
+            context.release();
+            throw re;
+        } catch (final Error e) {
+            context.release();
+            throw e;
+        }
+        return context;
     }
 
     // helper to init keys in javaagent
@@ -99,6 +194,24 @@ public class AgentContext {
         return key;
     }
 
+    // helper to resolve counters by id in javaagent, the id is refreshed if the counter was evicted
+    public static int keyId(final String name) {
+        final Integer id = KEY_IDS_CACHE.get(name);
+        if (id != null && KeyRegistry.INSTANCE.isRegistered(id, Role.PERFORMANCES, name)) { // the slot can be reused
+            return id;
+        }
+
+        final int newId = KeyRegistry.INSTANCE.register(key(name));
+        KEY_IDS_CACHE.put(name, newId);
+        return newId;
+    }
+
+    // called while weaving a deinstrumented method, its key is cached again if it is instrumented again
+    public static void deinstrumented(final String name) {
+        KEYS_CACHE.remove(name);
+        KEY_IDS_CACHE.remove(name);
+    }
+
     private static InvocationListener[] loadAllListeners() {
         final List<InvocationListener> listeners = new LinkedList<InvocationListener>();
 
@@ -130,56 +243,188 @@ public class AgentContext {
             autoset = listener;
         }
         listeners.add(autoset);
+        LISTENER_KEYS.put(autoset, key);
     }
 
     public static InvocationListener[] listeners(final String key, final byte[] buffer) {
         if (key == null){
             return EMPTY_LISTENERS_ARRAY;
         }
-        InvocationListener[] listeners = LISTENERS_BY_KEY.get(key);
+        MethodListeners listeners = listenersByKey.get(key);
         if (listeners == null && buffer != null) {
             listeners = findListeners(key, buffer);
-            if (listeners.length == 0) {
+            if (listeners.listeners.length == 0) {
                 return null;
             }
 
-            final InvocationListener[] old = LISTENERS_BY_KEY.putIfAbsent(key, listeners);
-			if (old != null) {
-				listeners = old;
+            synchronized (LISTENERS_LOCK) { // weaving only, don't register it in a map being replaced
+                final MethodListeners old = listenersByKey.putIfAbsent(key, listeners);
+                if (old != null) {
+                    listeners = old;
+                }
             }
         }
-        return listeners;
+        return listeners == null ? null : listeners.listeners;
     }
 
-    private static InvocationListener[] findListeners(final String key, final byte[] buffer) {
-        final List<InvocationListener> listeners = new LinkedList<InvocationListener>();
+    // reconfiguration support, see Reconfiguration
+
+    // listeners read the configuration again, setters of keys which are no more set are not called
+    static void reconfigureListeners() {
         for (final InvocationListener listener : EXISTING_LISTENERS) {
+            try {
+                IoCs.autoSet(LISTENER_KEYS.get(listener), listener);
+            } catch (final Exception e) {
+                // same as addListener: keep the listener as it is
+            }
+        }
+    }
+
+    // current listener slots of a method, null if it has no listener
+    static int[] currentSlots(final String key) {
+        final MethodListeners listeners = listenersByKey.get(key);
+        return listeners == null ? null : listeners.slots;
+    }
+
+    // slots of the listeners accepting the method with the current configuration, null if it has no listener.
+    // The class bytes are not available so listeners get a null buffer, if one fails the method is considered updated.
+    static int[] acceptingSlots(final String key) {
+        final int[] slots = findListeners(key, null).slots;
+        return slots.length == 0 ? null : slots;
+    }
+
+    // all threads see the new listeners of these methods at once,
+    // contexts already started keep their listeners until they are stopped
+    static void updateListeners(final Collection<String> keys) {
+        synchronized (LISTENERS_LOCK) {
+            final ConcurrentMap<String, MethodListeners> updated = new ConcurrentHashMap<String, MethodListeners>(listenersByKey);
+            for (final String key : keys) {
+                MethodListeners listeners;
+                try {
+                    listeners = findListeners(key, null);
+                } catch (final RuntimeException e) { // the weaving will decide with the class bytes
+                    listeners = null;
+                }
+                if (listeners == null || listeners.listeners.length == 0) {
+                    updated.remove(key);
+                } else {
+                    updated.put(key, listeners);
+                }
+            }
+            listenersByKey = updated;
+        }
+    }
+
+    // the woven bytecode depends on the available listeners
+    static String[] listenerTypes() {
+        final String[] types = new String[EXISTING_LISTENERS.length];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = EXISTING_LISTENERS[i].getClass().getName();
+        }
+        return types;
+    }
+
+    private static MethodListeners findListeners(final String key, final byte[] buffer) {
+        final List<InvocationListener> listeners = new LinkedList<InvocationListener>();
+        final List<Integer> slots = new LinkedList<Integer>();
+        for (int i = 0; i < EXISTING_LISTENERS.length; i++) { // the slot of a listener is its registration index
+            final InvocationListener listener = EXISTING_LISTENERS[i];
             if (listener.accept(key, buffer)) {
                 listeners.add(listener);
+                slots.add(i);
             }
         }
-        return listeners.toArray(new InvocationListener[listeners.size()]);
+
+        final int[] slotArray = new int[slots.size()];
+        int i = 0;
+        for (final Integer slot : slots) {
+            slotArray[i++] = slot;
+        }
+        return new MethodListeners(listeners.toArray(new InvocationListener[listeners.size()]), slotArray,
+            SamplingPolicy.getInstance().sampler(key), ArgumentCapture.getInstance().captures(key));
     }
 
-    private final String key;
-    private final Object reference;
-    private final InvocationListener[] listeners;
+    private String key;
+    private Object reference;
+    private InvocationListener[] listeners;
+    private int[] slots;
 
     /**
      * @since 0.3
      */
-    private final Object[] methodParameters;
-    private final Map<Integer, Object> context = new HashMap<Integer, Object>();
+    private Object[] methodParameters;
     private Method method = null;
+    private int samplingRate = 1;
+    private long startOverhead = 0;
+    private String counterName;
+    private ArgumentCapture.Captures captures;
+
+    // listener state, states are indexed by listener slot, put/get keys are stored in a tiny array map
+    private final Object[] states;
+    private final long[] longStates;
+    private int currentSlot = -1;
+    private int[] contextKeys = EMPTY_SLOTS;
+    private Object[] contextValues = EMPTY_ARRAY;
+    private int contextSize = 0;
+
+    private final ContextStack stack;
+    private final int depth;
 
     public AgentContext(final String key, final Object that, final InvocationListener[] listeners,final Object[] methodParameters) {
+        final int[] localSlots = new int[listeners.length];
+        for (int i = 0; i < localSlots.length; i++) {
+            localSlots[i] = i;
+        }
+
+        this.stack = null;
+        this.depth = -1;
+        this.states = new Object[listeners.length];
+        this.longStates = new long[listeners.length];
+        init(key, that, listeners, localSlots, methodParameters);
+        startListeners();
+    }
+
+    private AgentContext(final ContextStack stack, final int depth) {
+        this.stack = stack;
+        this.depth = depth;
+        this.states = new Object[EXISTING_LISTENERS.length];
+        this.longStates = new long[EXISTING_LISTENERS.length];
+    }
+
+    private void init(final String key, final Object that, final InvocationListener[] listeners, final int[] slots, final Object[] methodParameters) {
         this.key = key;
         this.reference = that;
         this.listeners = listeners;
+        this.slots = slots;
         this.methodParameters = methodParameters;
+        this.method = null;
+        this.samplingRate = 1;
+        this.startOverhead = 0;
+        this.counterName = key;
+        this.captures = null;
+
+        for (final int slot : slots) {
+            states[slot] = null;
+            longStates[slot] = 0;
+        }
+        for (int i = 0; i < contextSize; i++) {
+            contextValues[i] = null;
+        }
+        contextSize = 0;
+    }
 
-        for (final InvocationListener listener : this.listeners) {
-            listener.before(this);
+    private void startListeners() {
+        for (int i = 0; i < listeners.length; i++) {
+            currentSlot = slots[i];
+            listeners[i].before(this);
+        }
+        currentSlot = -1;
+    }
+
+    // the context stays readable (key, reference, parameters) until the thread reuses it for another invocation
+    private void release() {
+        if (stack != null) {
+            stack.depth = depth;
         }
     }
 
@@ -202,6 +447,24 @@ public class AgentContext {
         return methodParameters == null ? EMPTY_ARRAY : methodParameters;
     }
 
+    /**
+     * @return number of invocations this one stands for, 1 if the method is not sampled.
+     * @see SamplingPolicy
+     * @since 0.4
+     */
+    public int getSamplingRate() {
+        return samplingRate;
+    }
+
+    /**
+     * @return the name of the counter of this invocation: the key suffixed by the captured arguments
+     * (see {@link ArgumentCapture}) or the key if no argument is captured.
+     * @since 0.4
+     */
+    public String getCounterName() {
+        return counterName;
+    }
+
     public Class<?> keyAsClass() {
         final int length = key.length();
         final int parenthesis = key.lastIndexOf('(');
@@ -265,11 +528,58 @@ public class AgentContext {
     }
 
     public <T> T get(final Integer key, final Class<T> clazz) {
-        return clazz.cast(context.get(key));
+        final int k = key;
+        for (int i = 0; i < contextSize; i++) {
+            if (contextKeys[i] == k) {
+                return clazz.cast(contextValues[i]);
+            }
+        }
+        return null;
     }
 
     public void put(final int key, Object data) {
-        context.put(key, data);
+        for (int i = 0; i < contextSize; i++) {
+            if (contextKeys[i] == key) {
+                contextValues[i] = data;
+                return;
+            }
+        }
+
+        if (contextSize == contextKeys.length) { // grows once per pooled context, then it is reused
+            final int capacity = Math.max(4, contextSize * 2);
+            final int[] keys = new int[capacity];
+            final Object[] values = new Object[capacity];
+            System.arraycopy(contextKeys, 0, keys, 0, contextSize);
+            System.arraycopy(contextValues, 0, values, 0, contextSize);
+            contextKeys = keys;
+            contextValues = values;
+        }
+        contextKeys[contextSize] = key;
+        contextValues[contextSize] = data;
+        contextSize++;
+    }
+
+    /**
+     * State of the listener being called: only usable from {@link InvocationListener#before(AgentContext)}
+     * and {@link InvocationListener#after(AgentContext, Object, Throwable)}. It avoids to box keys
+     * and to share a key space between listeners.
+     *
+     * @since 0.4
+     */
+    public Object getState() {
+        return states[currentSlot];
+    }
+
+    public void setState(final Object state) {
+        states[currentSlot] = state;
+    }
+
+    public long getLongState() {
+        return longStates[currentSlot];
+    }
+
+    public void setLongState(final long state) {
+        longStates[currentSlot] = state;
     }
 
     public void stop(final Object result) {
@@ -281,8 +591,53 @@ public class AgentContext {
     }
 
     private void stopListeners(final Object result, final Throwable error) {
-        for (final InvocationListener listener : listeners) {
-            listener.after(this, result, error);
+        final long begin = AgentOverhead.isActive() ? System.nanoTime() : 0;
+        try {
+            for (int i = 0; i < listeners.length; i++) {
+                currentSlot = slots[i];
+                listeners[i].after(this, result, error);
+            }
+        } finally {
+            currentSlot = -1;
+            if (AgentOverhead.isActive() && stack != null) { // contexts created by the agent, not by the calibration
+                AgentOverhead.record(key, startOverhead + System.nanoTime() - begin);
+            }
+            release();
+        }
+    }
+
+    private static class MethodListeners {
+        private final InvocationListener[] listeners;
+        private final int[] slots;
+        private final Sampler sampler;
+        private final ArgumentCapture.Captures captures;
+
+        private MethodListeners(final InvocationListener[] listeners, final int[] slots, final Sampler sampler,
+                                final ArgumentCapture.Captures captures) {
+            this.listeners = listeners;
+            this.slots = slots;
+            this.sampler = sampler;
+            this.captures = captures;
+        }
+    }
+
+    // per thread contexts, index is the nesting depth so recursion and nested calls get their own context
+    private static class ContextStack {
+        private final AgentContext[] contexts = new AgentContext[MAX_POOLED_DEPTH];
+        private int depth = 0;
+
+        private AgentContext acquire() {
+            final int current = depth++;
+            if (current >= contexts.length) {
+                return new AgentContext(this, current);
+            }
+
+            AgentContext context = contexts[current];
+            if (context == null) {
+                context = new AgentContext(this, current);
+                contexts[current] = context;
+            }
+            return context;
         }
     }
 
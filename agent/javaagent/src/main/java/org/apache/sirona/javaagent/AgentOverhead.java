@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.javaagent;
+
+import org.apache.sirona.Role;
+import org.apache.sirona.configuration.Configuration;
+import org.apache.sirona.counters.Counter;
+import org.apache.sirona.javaagent.spi.InvocationListener;
+import org.apache.sirona.repositories.Repository;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.apache.sirona.counters.Unit.Time.NANOSECOND;
+
+/**
+ * Time spent in the agent itself around the body of the instrumented methods: listener lookup, sampling,
+ * context acquisition and the listeners (counters, path tracking entries and their storage).
+ * <pre>
+ * org.apache.sirona.javaagent.overhead = true
+ * org.apache.sirona.javaagent.overhead.correction = true
+ * </pre>
+ * Each recorded invocation adds its overhead to the counter of its method and to the <code>global</code> one,
+ * both under {@link #ROLE}. Counters are not inlined (see {@link MethodMonitor}) in this mode
+ * so all methods go through {@link AgentContext}, invocations skipped by sampling are not accounted.
+ * <p/>
+ * When activated a calibration loop measures at startup the constant time a counter sees around an empty
+ * method body. With the correction it is removed from the durations measured by
+ * {@link org.apache.sirona.javaagent.listener.CounterListener} (except with adaptive activation).
+ */
+public final class AgentOverhead {
+    public static final String ACTIVATE_KEY = Configuration.CONFIG_PROPERTY_PREFIX + "javaagent.overhead";
+    public static final String CORRECTION_KEY = ACTIVATE_KEY + ".correction";
+    public static final String CALIBRATION_ITERATIONS_KEY = ACTIVATE_KEY + ".calibration.iterations";
+
+    public static final Role ROLE = new Role("agent-overhead", NANOSECOND);
+    public static final String GLOBAL = "global";
+
+    private static final boolean ACTIVE = Configuration.is(ACTIVATE_KEY, false);
+    private static final boolean CORRECTION = ACTIVE && Configuration.is(CORRECTION_KEY, false);
+
+    private static final Counter.Key GLOBAL_KEY = new Counter.Key(ROLE, GLOBAL);
+    private static final ConcurrentMap<String, Counter.Key> KEYS = new ConcurrentHashMap<String, Counter.Key>();
+
+    private static final long CALIBRATION = ACTIVE ? calibrate(Math.max(1, Configuration.getInteger(CALIBRATION_ITERATIONS_KEY, 10000))) : 0;
+
+    private AgentOverhead() {
+        // no-op
+    }
+
+    public static boolean isActive() {
+        return ACTIVE;
+    }
+
+    /**
+     * @return the constant cost measured at startup in nanoseconds, 0 if the mode is not active.
+     */
+    public static long getCalibration() {
+        return CALIBRATION;
+    }
+
+    /**
+     * @return nanoseconds to remove from measured durations, 0 without correction.
+     */
+    public static long correction() {
+        return CORRECTION ? CALIBRATION : 0;
+    }
+
+    // called by AgentContext when an invocation ends, the recording itself is not accounted
+    static void record(final String key, final long overhead) {
+        try {
+            Counter.Key counterKey = KEYS.get(key);
+            if (counterKey == null) {
+                counterKey = new Counter.Key(ROLE, key);
+                KEYS.putIfAbsent(key, counterKey);
+            }
+
+            Repository.INSTANCE.getCounter(counterKey).add(overhead, NANOSECOND);
+            Repository.INSTANCE.getCounter(GLOBAL_KEY).add(overhead, NANOSECOND);
+        } catch (final Exception e) { // same as MethodMonitor, can happen while the agent starts
+            // no-op
+        }
+    }
+
+    // median of the time an empty body takes between the before() and after() of a listener
+    private static long calibrate(final int iterations) {
+        final CalibrationListener listener = new CalibrationListener(iterations);
+        final InvocationListener[] listeners = new InvocationListener[] { listener };
+        for (int i = 0; i < iterations; i++) { // warm up
+            new AgentContext("sirona-calibration", null, listeners, null).stop(null);
+        }
+
+        listener.index = 0;
+        for (int i = 0; i < iterations; i++) {
+            new AgentContext("sirona-calibration", null, listeners, null).stop(null);
+        }
+
+        final long[] samples = listener.samples;
+        Arrays.sort(samples);
+        return samples[samples.length / 2];
+    }
+
+    private static class CalibrationListener implements InvocationListener {
+        private final long[] samples;
+        private int index = 0;
+
+        private CalibrationListener(final int iterations) {
+            this.samples = new long[iterations];
+        }
+
+        @Override
+        public void before(final AgentContext context) {
+            context.setLongState(System.nanoTime());
+        }
+
+        @Override
+        public void after(final AgentContext context, final Object result, final Throwable error) {
+            final long duration = System.nanoTime() - context.getLongState();
+            samples[index++ % samples.length] = duration;
+        }
+
+        @Override
+        public boolean accept(final String key, final byte[] rawClassBuffer) {
+            return false;
+        }
+    }
+}
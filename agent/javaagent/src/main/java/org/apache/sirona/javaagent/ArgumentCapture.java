@@ -0,0 +1,280 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.javaagent;
+
+import org.apache.sirona.Role;
+import org.apache.sirona.configuration.Configuration;
+import org.apache.sirona.configuration.predicate.PredicateEvaluator;
+import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.Unit;
+import org.apache.sirona.repositories.Repository;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per method argument capture, rules use the include/exclude syntax:
+ * <pre>
+ * org.apache.sirona.javaagent.capture = prefix:com.foo.Dao.find=0:suffix, regex:.*Upload\.store.*=1:length
+ * </pre>
+ * <code>N:suffix</code> appends the value of the argument N to the counter name of the method
+ * (<code>com.foo.Dao.findByName(java.lang.String)[alice]</code>), a method gets at most
+ * org.apache.sirona.javaagent.capture.max-values (default 100) distinct values, next ones are counted as <code>[other]</code>.
+ * <code>N:length</code> records the length of the argument N (string, array, collection or map) in a counter
+ * of the <code>arguments</code> role.
+ * <p/>
+ * All matching rules apply. Woven code only loads the captured arguments, there is no argument array.
+ */
+public final class ArgumentCapture {
+    public static final String CAPTURE_KEY = Configuration.CONFIG_PROPERTY_PREFIX + "javaagent.capture";
+    public static final String MAX_VALUES_KEY = Configuration.CONFIG_PROPERTY_PREFIX + "javaagent.capture.max-values";
+
+    public static final Role ARGUMENTS = new Role("arguments", Unit.UNARY);
+
+    private static final String OTHER = "other";
+
+    private static final ArgumentCapture INSTANCE = new ArgumentCapture(
+        Configuration.getProperty(CAPTURE_KEY, null), Configuration.getInteger(MAX_VALUES_KEY, 100));
+    private static final Captures NONE = new Captures(new Capture[0]); // cache marker
+
+    private final List<Rule> rules = new ArrayList<Rule>();
+    private final ConcurrentMap<String, Captures> captures = new ConcurrentHashMap<String, Captures>();
+    private final int maxValues;
+
+    public ArgumentCapture(final String configuration, final int maxValues) {
+        this.maxValues = maxValues;
+        if (configuration == null || configuration.trim().length() == 0) {
+            return;
+        }
+
+        for (final String segment : configuration.split(",")) {
+            final String trim = segment.trim();
+            if (trim.length() == 0) {
+                continue;
+            }
+
+            final int equals = trim.lastIndexOf('=');
+            final int colon = trim.lastIndexOf(':');
+            if (equals <= 0 || colon < equals) {
+                throw new IllegalArgumentException("Capture rules are <predicate>=<index>:<suffix|length>, got: '" + trim + "'");
+            }
+
+            final int index;
+            try {
+                index = Integer.parseInt(trim.substring(equals + 1, colon).trim());
+            } catch (final NumberFormatException nfe) {
+                throw new IllegalArgumentException("Invalid argument index: '" + trim + "'", nfe);
+            }
+            if (index < 0) {
+                throw new IllegalArgumentException("Argument index should be positive: '" + trim + "'");
+            }
+
+            final String mode = trim.substring(colon + 1).trim();
+            final boolean suffix = "suffix".equalsIgnoreCase(mode);
+            if (!suffix && !"length".equalsIgnoreCase(mode)) {
+                throw new IllegalArgumentException("Capture mode should be suffix or length: '" + trim + "'");
+            }
+            rules.add(new Rule(new PredicateEvaluator(trim.substring(0, equals).trim(), ","), index, suffix));
+        }
+    }
+
+    public static ArgumentCapture getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param key method label, the argument count is read from it.
+     * @return the captures of this method or null if none of its arguments is captured.
+     */
+    public Captures captures(final String key) {
+        if (rules.isEmpty() || key == null) {
+            return null;
+        }
+
+        Captures result = captures.get(key);
+        if (result == null) {
+            final int arguments = argumentCount(key);
+            final List<Capture> matching = new ArrayList<Capture>(2);
+            for (final Rule rule : rules) {
+                if (rule.index < arguments && rule.predicate.matches(key)) {
+                    matching.add(rule.suffix ? new Capture(rule.index, key, maxValues) : new Capture(rule.index, key));
+                }
+            }
+            result = matching.isEmpty() ? NONE : new Captures(matching.toArray(new Capture[matching.size()]));
+
+            final Captures existing = captures.putIfAbsent(key, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result == NONE ? null : result;
+    }
+
+    public boolean isActive() {
+        return !rules.isEmpty();
+    }
+
+    // labels are built by SironaClassVisitor: fqn.method(type1,type2)
+    private static int argumentCount(final String key) {
+        final int start = key.lastIndexOf('(');
+        if (start < 0 || start == key.length() - 2) {
+            return 0;
+        }
+
+        int count = 1;
+        for (int i = start + 1; i < key.length(); i++) {
+            if (key.charAt(i) == ',') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Captures of a method. <b>It's not part of the public api!!</b>
+     */
+    public static final class Captures {
+        private final Capture[] captures;
+        private final int[] arguments;
+
+        private Captures(final Capture[] captures) {
+            this.captures = captures;
+            this.arguments = new int[captures.length];
+            for (int i = 0; i < captures.length; i++) {
+                arguments[i] = captures[i].index;
+            }
+        }
+
+        /**
+         * @return indexes of the arguments the woven code passes, the same argument can be captured twice.
+         */
+        public int[] getArguments() {
+            return arguments;
+        }
+
+        /**
+         * @param key    the method label.
+         * @param values the captured arguments, in {@link #getArguments()} order.
+         * @return the counter name of this invocation.
+         */
+        public String counterName(final String key, final Object[] values) {
+            String name = key;
+            for (int i = 0; i < captures.length; i++) {
+                name = captures[i].apply(name, values[i]);
+            }
+            return name;
+        }
+
+        public String counterName(final String key, final Object value) {
+            return captures[0].apply(key, value);
+        }
+    }
+
+    private static final class Capture {
+        private final int index;
+        private final String key;
+
+        // suffix mode: captured value -> counter name when this capture is the first one suffixing the key
+        private final Map<String, String> names;
+        private final AtomicInteger size;
+        private final int maxValues;
+        private final String other;
+
+        // length mode
+        private final Counter.Key lengthKey;
+
+        private Capture(final int index, final String key, final int maxValues) {
+            this.index = index;
+            this.key = key;
+            this.maxValues = maxValues;
+            this.names = new ConcurrentHashMap<String, String>();
+            this.size = new AtomicInteger();
+            this.other = key + '[' + OTHER + ']';
+            this.lengthKey = null;
+        }
+
+        private Capture(final int index, final String key) {
+            this.index = index;
+            this.key = key;
+            this.maxValues = 0;
+            this.names = null;
+            this.size = null;
+            this.other = null;
+            this.lengthKey = new Counter.Key(ARGUMENTS, key + "[arg" + index + ".length]");
+        }
+
+        private String apply(final String name, final Object value) {
+            if (lengthKey != null) {
+                final int length = length(value);
+                if (length >= 0) {
+                    Repository.INSTANCE.getCounter(lengthKey).add(length);
+                }
+                return name;
+            }
+
+            final String stringValue = String.valueOf(value);
+            String suffixed = names.get(stringValue);
+            if (suffixed == null) {
+                if (size.get() >= maxValues) { // bounded cardinality
+                    return name == key ? other : name + '[' + OTHER + ']';
+                }
+                suffixed = key + '[' + stringValue + ']';
+                if (names.put(stringValue, suffixed) == null) {
+                    size.incrementAndGet();
+                }
+            }
+            return name == key ? suffixed : name + suffixed.substring(key.length());
+        }
+
+        private static int length(final Object value) {
+            if (value == null) {
+                return -1;
+            }
+            if (CharSequence.class.isInstance(value)) {
+                return CharSequence.class.cast(value).length();
+            }
+            if (Collection.class.isInstance(value)) {
+                return Collection.class.cast(value).size();
+            }
+            if (Map.class.isInstance(value)) {
+                return Map.class.cast(value).size();
+            }
+            if (value.getClass().isArray()) {
+                return Array.getLength(value);
+            }
+            return -1;
+        }
+    }
+
+    private static class Rule {
+        private final PredicateEvaluator predicate;
+        private final int index;
+        private final boolean suffix;
+
+        private Rule(final PredicateEvaluator predicate, final int index, final boolean suffix) {
+            this.predicate = predicate;
+            this.index = index;
+            this.suffix = suffix;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.javaagent;
+
+import org.apache.sirona.configuration.Configuration;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Resolves the class hierarchy needed to compute frames reading class file headers
+ * (super class and interfaces) from the class loader resources: no class is loaded or initialized.
+ * <p/>
+ * Headers are cached per class loader (weakly referenced) in a LRU map bounded by
+ * org.apache.sirona.javaagent.hierarchy.cache-size (default 5000) entries.
+ */
+public class ClassHierarchy {
+    public static final String CACHE_SIZE_KEY = Configuration.CONFIG_PROPERTY_PREFIX + "javaagent.hierarchy.cache-size";
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final ClassHierarchy INSTANCE = new ClassHierarchy(Configuration.getInteger(CACHE_SIZE_KEY, 5000));
+
+    private final int maxSize;
+    private final Map<ClassLoader, Map<String, Header>> headers = new WeakHashMap<ClassLoader, Map<String, Header>>();
+    private final Map<String, Header> bootHeaders;
+
+    public ClassHierarchy(final int maxSize) {
+        this.maxSize = maxSize;
+        this.bootHeaders = newCache();
+    }
+
+    public static ClassHierarchy getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Same contract as ClassWriter.getCommonSuperClass().
+     *
+     * @param loader  loader of the class being woven.
+     * @param current the class being woven (not yet defined so its header is read from its bytes), can be null.
+     * @return the common super class or null if a class file is not available.
+     */
+    public String getCommonSuperClass(final ClassLoader loader, final ClassReader current, final String type1, final String type2) {
+        if (type1.equals(type2)) {
+            return type1;
+        }
+
+        final Header header1 = header(loader, current, type1);
+        final Header header2 = header(loader, current, type2);
+        if (header1 == null || header2 == null) {
+            return null;
+        }
+
+        final Boolean firstIsParent = isAssignableFrom(loader, current, type1, header2);
+        if (firstIsParent == null) {
+            return null;
+        }
+        if (firstIsParent) {
+            return type1;
+        }
+        final Boolean secondIsParent = isAssignableFrom(loader, current, type2, header1);
+        if (secondIsParent == null) {
+            return null;
+        }
+        if (secondIsParent) {
+            return type2;
+        }
+        if (header1.isInterface || header2.isInterface) {
+            return OBJECT;
+        }
+
+        // both are classes: first super class of type1 which is a super class of type2
+        final Set<String> superClasses2 = new HashSet<String>();
+        for (Header header = header2; header.superName != null; ) {
+            superClasses2.add(header.superName);
+            header = header(loader, current, header.superName);
+            if (header == null) {
+                return null;
+            }
+        }
+        for (Header header = header1; header.superName != null; ) {
+            if (superClasses2.contains(header.superName)) {
+                return header.superName;
+            }
+            header = header(loader, current, header.superName);
+            if (header == null) {
+                return null;
+            }
+        }
+        return OBJECT;
+    }
+
+    // null if the hierarchy can't be read
+    private Boolean isAssignableFrom(final ClassLoader loader, final ClassReader current, final String type, final Header from) {
+        if (OBJECT.equals(type)) {
+            return Boolean.TRUE;
+        }
+
+        final Set<String> visited = new HashSet<String>();
+        final List<Header> toVisit = new ArrayList<Header>();
+        toVisit.add(from);
+        while (!toVisit.isEmpty()) {
+            final Header header = toVisit.remove(toVisit.size() - 1);
+            if (header.name.equals(type)) {
+                return Boolean.TRUE;
+            }
+            if (!visited.add(header.name)) {
+                continue;
+            }
+
+            for (final String parent : header.parents()) {
+                if (parent.equals(type)) {
+                    return Boolean.TRUE;
+                }
+                if (!visited.contains(parent)) {
+                    final Header parentHeader = header(loader, current, parent);
+                    if (parentHeader == null) {
+                        return null;
+                    }
+                    toVisit.add(parentHeader);
+                }
+            }
+        }
+        return Boolean.FALSE;
+    }
+
+    private Header header(final ClassLoader loader, final ClassReader current, final String type) {
+        if (current != null && type.equals(current.getClassName())) {
+            return new Header(current);
+        }
+
+        final Map<String, Header> cache = cache(loader);
+        synchronized (cache) {
+            final Header header = cache.get(type);
+            if (header != null) {
+                return header;
+            }
+        }
+
+        final Header header = read(loader, type);
+        if (header != null) {
+            synchronized (cache) {
+                cache.put(type, header);
+            }
+        }
+        return header;
+    }
+
+    private Map<String, Header> cache(final ClassLoader loader) {
+        if (loader == null) {
+            return bootHeaders;
+        }
+
+        synchronized (headers) {
+            Map<String, Header> cache = headers.get(loader);
+            if (cache == null) {
+                cache = newCache();
+                headers.put(loader, cache);
+            }
+            return cache;
+        }
+    }
+
+    private Map<String, Header> newCache() {
+        return new LinkedHashMap<String, Header>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Header> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    private static Header read(final ClassLoader loader, final String type) {
+        final String resource = type + ".class";
+        InputStream stream = loader == null ? ClassLoader.getSystemResourceAsStream(resource) : loader.getResourceAsStream(resource);
+        if (stream == null) {
+            final ClassLoader agentLoader = ClassHierarchy.class.getClassLoader();
+            stream = agentLoader == null ? ClassLoader.getSystemResourceAsStream(resource) : agentLoader.getResourceAsStream(resource);
+        }
+        if (stream == null) {
+            return null;
+        }
+
+        try {
+            return new Header(new ClassReader(stream));
+        } catch (final IOException e) {
+            return null;
+        } catch (final RuntimeException e) { // unsupported class file version
+            return null;
+        } finally {
+            try {
+                stream.close();
+            } catch (final IOException e) {
+                // no-op
+            }
+        }
+    }
+
+    private static class Header {
+        private static final String[] NO_PARENT = new String[0];
+
+        private final String name;
+        private final String superName;
+        private final String[] interfaces;
+        private final boolean isInterface;
+
+        private Header(final ClassReader reader) {
+            this.name = reader.getClassName();
+            this.superName = reader.getSuperName();
+            this.interfaces = reader.getInterfaces();
+            this.isInterface = (reader.getAccess() & Opcodes.ACC_INTERFACE) != 0;
+        }
+
+        private String[] parents() {
+            if (superName == null) {
+                return interfaces.length == 0 ? NO_PARENT : interfaces;
+            }
+
+            final String[] parents = new String[interfaces.length + 1];
+            parents[0] = superName;
+            System.arraycopy(interfaces, 0, parents, 1, interfaces.length);
+            return parents;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.javaagent;
+
+import org.apache.sirona.Role;
+import org.apache.sirona.configuration.Configuration;
+import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.Unit;
+import org.apache.sirona.javaagent.logging.SironaAgentLogging;
+import org.apache.sirona.repositories.Repository;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes the advice of methods which are very hot and negligibly slow: the counter of these methods
+ * costs more than the method itself. The advice is physically removed retransforming the class
+ * (<code>ActivationContext</code> only stops recording).
+ * <p/>
+ * Every period the hits and the mean duration of woven methods since the previous probe are checked.
+ * Removed methods are reinstated after the re-probe delay to check they are still hot and fast,
+ * an operator can reinstate them (then they are not removed automatically anymore) or remove one through JMX.
+ * <p/>
+ * Configuration (prefixed by org.apache.sirona.javaagent.deinstrumentation.): activate (false), period (60s),
+ * min-hits-per-second (100000), max-mean-nanos (200), reprobe-delay (600s).
+ */
+public class Deinstrumentation implements DeinstrumentationMBean {
+    private static final String CONFIG_PREFIX = Configuration.CONFIG_PROPERTY_PREFIX + "javaagent.deinstrumentation.";
+    public static final String ACTIVATE_KEY = CONFIG_PREFIX + "activate";
+    public static final String OBJECT_NAME = Configuration.CONFIG_PROPERTY_PREFIX + "javaagent:type=deinstrumentation";
+
+    private static final boolean ACTIVE = Configuration.is(ACTIVATE_KEY, false);
+    private static final String OPERATOR_REASON = "operator request";
+
+    // woven method -> class name, only filled when active
+    private static final ConcurrentMap<String, String> WOVEN_METHODS = new ConcurrentHashMap<String, String>();
+
+    private static volatile Deinstrumentation instance = null;
+
+    private final Instrumentation instrumentation;
+    private final double minHitsPerSecond;
+    private final double maxMeanNanos;
+    private final long reprobeDelay;
+    private final ConcurrentMap<String, Removal> removed = new ConcurrentHashMap<String, Removal>();
+    private final Set<String> pinned = new CopyOnWriteArraySet<String>(); // reinstated by an operator
+    private final Map<String, double[]> lastValues = new HashMap<String, double[]>(); // hits, sum
+    private long lastProbe = System.nanoTime();
+    private Timer timer = null;
+
+    public Deinstrumentation(final Instrumentation instrumentation, final double minHitsPerSecond,
+                             final double maxMeanNanos, final long reprobeDelayMs) {
+        this.instrumentation = instrumentation;
+        this.minHitsPerSecond = minHitsPerSecond;
+        this.maxMeanNanos = maxMeanNanos;
+        this.reprobeDelay = reprobeDelayMs;
+    }
+
+    public static boolean isActive() {
+        return ACTIVE;
+    }
+
+    // called when the agent starts
+    public static synchronized Deinstrumentation start(final Instrumentation instrumentation) {
+        if (instance != null) {
+            return instance;
+        }
+
+        final Deinstrumentation deinstrumentation = new Deinstrumentation(instrumentation,
+                Double.parseDouble(Configuration.getProperty(CONFIG_PREFIX + "min-hits-per-second", "100000")),
+                Double.parseDouble(Configuration.getProperty(CONFIG_PREFIX + "max-mean-nanos", "200")),
+                TimeUnit.SECONDS.toMillis(Configuration.getInteger(CONFIG_PREFIX + "reprobe-delay", 600)));
+
+        final long period = TimeUnit.SECONDS.toMillis(Configuration.getInteger(CONFIG_PREFIX + "period", 60));
+        if (period > 0) {
+            deinstrumentation.timer = new Timer("sirona-deinstrumentation", true);
+            deinstrumentation.timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        deinstrumentation.probe();
+                    } catch (final Throwable th) { // never kill the timer
+                        SironaAgentLogging.debug("can't probe woven methods: {0}", th.getMessage());
+                    }
+                }
+            }, period, period);
+        }
+
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(deinstrumentation, name);
+            }
+        } catch (final Exception e) {
+            SironaAgentLogging.debug("can't register deinstrumentation mbean: {0}", e.getMessage());
+        }
+
+        instance = deinstrumentation;
+        return deinstrumentation;
+    }
+
+    public static Deinstrumentation getInstance() {
+        return instance;
+    }
+
+    // called while weaving a method
+    public static void woven(final String method, final String className) {
+        if (ACTIVE) {
+            WOVEN_METHODS.put(method, className.replace('/', '.'));
+        }
+    }
+
+    // called while weaving a method, removed methods keep their (unused) monitor field since retransformation can't change the schema
+    public static boolean isDeinstrumented(final String method) {
+        final Deinstrumentation current = instance;
+        return current != null && current.removed.containsKey(method);
+    }
+
+    // woven bytecode then depends on the runtime state and can't be shared (see WovenClassCache)
+    public static boolean hasDeinstrumentedMethods() {
+        final Deinstrumentation current = instance;
+        return current != null && !current.removed.isEmpty();
+    }
+
+    @Override
+    public synchronized void probe() {
+        final long now = System.nanoTime();
+        final double elapsedSeconds = (double) (now - lastProbe) / TimeUnit.SECONDS.toNanos(1);
+        lastProbe = now;
+
+        // re-probe: reinstate automatic removals, they will be removed again if still hot and fast
+        final Map<String, Removal> reinstated = new HashMap<String, Removal>();
+        final long time = System.currentTimeMillis();
+        for (final Map.Entry<String, Removal> entry : removed.entrySet()) {
+            if (!entry.getValue().manual && entry.getValue().at + reprobeDelay <= time) {
+                reinstated.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        final Map<String, String> toRemove = new HashMap<String, String>();
+        for (final Counter counter : Repository.INSTANCE.counters()) {
+            final Counter.Key key = counter.getKey();
+            final String name = key.getName();
+            if (!Role.PERFORMANCES.equals(key.getRole()) || !WOVEN_METHODS.containsKey(name)
+                    || removed.containsKey(name) || pinned.contains(name)) {
+                continue;
+            }
+
+            final double hits = counter.getHits();
+            final double sum = counter.getSum();
+            final double[] previous = lastValues.put(name, new double[] { hits, sum });
+            if (previous == null || elapsedSeconds <= 0) { // first probe of this method is the baseline
+                continue;
+            }
+
+            final double newHits = hits - previous[0];
+            if (newHits <= 0) { // idle or reset
+                continue;
+            }
+
+            final double hitsPerSecond = newHits / elapsedSeconds;
+            final double meanNanos = Unit.Time.NANOSECOND.convert((sum - previous[1]) / newHits, key.getRole().getUnit());
+            if (shouldDeinstrument(hitsPerSecond, meanNanos)) {
+                toRemove.put(name, Math.round(hitsPerSecond) + " hits/s, mean " + Math.round(meanNanos) + " ns");
+            }
+        }
+
+        // the weaving reads removed so it is updated before the retransformation
+        for (final String method : reinstated.keySet()) {
+            removed.remove(method);
+            lastValues.remove(method);
+        }
+        for (final Map.Entry<String, String> entry : toRemove.entrySet()) {
+            removed.put(entry.getKey(), new Removal(entry.getValue(), false));
+        }
+
+        final Collection<String> changed = new HashSet<String>(reinstated.keySet());
+        changed.addAll(toRemove.keySet());
+        if (!changed.isEmpty() && !retransform(changed)) { // failed, don't keep a state not matching the bytecode
+            for (final String method : toRemove.keySet()) {
+                removed.remove(method);
+            }
+            removed.putAll(reinstated); // still deinstrumented, next probe will retry
+        }
+    }
+
+    public boolean shouldDeinstrument(final double hitsPerSecond, final double meanNanos) {
+        return hitsPerSecond >= minHitsPerSecond && meanNanos <= maxMeanNanos;
+    }
+
+    @Override
+    public String[] getDeinstrumentedMethods() {
+        return removed.keySet().toArray(new String[removed.size()]);
+    }
+
+    @Override
+    public String getReason(final String method) {
+        final Removal removal = removed.get(method);
+        return removal == null ? null : removal.reason;
+    }
+
+    @Override
+    public long getDeinstrumentedAt(final String method) {
+        final Removal removal = removed.get(method);
+        return removal == null ? -1 : removal.at;
+    }
+
+    @Override
+    public synchronized boolean reinstate(final String method) {
+        final Removal removal = removed.remove(method);
+        if (removal == null) {
+            return false;
+        }
+
+        final boolean wasPinned = !pinned.add(method);
+        lastValues.remove(method);
+        if (!retransform(Collections.singleton(method))) {
+            removed.put(method, removal);
+            if (!wasPinned) {
+                pinned.remove(method);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void reinstateAll() {
+        final Map<String, Removal> methods = new HashMap<String, Removal>(removed);
+        final Collection<String> newlyPinned = new ArrayList<String>();
+        for (final String method : methods.keySet()) {
+            removed.remove(method);
+            if (pinned.add(method)) {
+                newlyPinned.add(method);
+            }
+            lastValues.remove(method);
+        }
+        if (!methods.isEmpty() && !retransform(methods.keySet())) {
+            removed.putAll(methods);
+            pinned.removeAll(newlyPinned);
+        }
+    }
+
+    @Override
+    public synchronized boolean deinstrument(final String method) {
+        if (!WOVEN_METHODS.containsKey(method) || removed.containsKey(method)) {
+            return false;
+        }
+
+        pinned.remove(method);
+        removed.put(method, new Removal(OPERATOR_REASON, true));
+        if (!retransform(Collections.singleton(method))) {
+            removed.remove(method);
+            return false;
+        }
+        return true;
+    }
+
+    public void stop() {
+        if (timer != null) {
+            timer.cancel();
+        }
+    }
+
+    private boolean retransform(final Collection<String> methods) {
+        final Set<String> classNames = new HashSet<String>();
+        for (final String method : methods) {
+            final String className = WOVEN_METHODS.get(method);
+            if (className != null) {
+                classNames.add(className);
+            }
+        }
+
+        final Collection<Class<?>> classes = new ArrayList<Class<?>>();
+        for (final Class<?> clazz : instrumentation.getAllLoadedClasses()) { // a class can be loaded by several loaders
+            if (classNames.contains(clazz.getName()) && instrumentation.isModifiableClass(clazz)) {
+                classes.add(clazz);
+            }
+        }
+        if (classes.isEmpty()) {
+            return false;
+        }
+
+        try {
+            instrumentation.retransformClasses(classes.toArray(new Class<?>[classes.size()]));
+            return true;
+        } catch (final Throwable th) {
+            SironaAgentLogging.debug("can't retransform {0}: {1}", classNames, th.getMessage());
+            return false;
+        }
+    }
+
+    private static class Removal {
+        private final String reason;
+        private final boolean manual;
+        private final long at = System.currentTimeMillis();
+
+        private Removal(final String reason, final boolean manual) {
+            this.reason = reason;
+            this.manual = manual;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.javaagent;
+
+import org.apache.sirona.Role;
+import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.FailureFingerprint;
+import org.apache.sirona.counters.KeyRegistry;
+import org.apache.sirona.counters.LockableCounter;
+import org.apache.sirona.counters.Unit;
+import org.apache.sirona.repositories.Repository;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.apache.sirona.counters.Unit.Time.NANOSECOND;
+
+/**
+ * Pre-resolved counter handle of a method. When {@link org.apache.sirona.javaagent.listener.CounterListener}
+ * is the only listener of a method the agent stores it in a static field of the woven class and calls it
+ * directly instead of {@link AgentContext#startOn(Object, String, Object[])}: no listener lookup,
+ * no context nor stopwatch allocation, just nanoTime, the counter update and the concurrency.
+ * If the method is sampled (see {@link SamplingPolicy}) invocations which are not sampled are skipped.
+ * Monitors are keyed by method, counters suffixed by captured arguments (see {@link ArgumentCapture}) are resolved
+ * per invocation and not cached here.
+ * <p/>
+ * <b>It's not part of the public api!!</b>
+ */
+public final class MethodMonitor {
+    private static final ConcurrentMap<String, MethodMonitor> MONITORS = new ConcurrentHashMap<String, MethodMonitor>();
+
+    private final String key;
+    private final Sampler sampler;
+    private volatile int keyId = -1;
+    private volatile Sampled sampled = null; // immutable, reused while the counter and the rate don't change
+
+    private MethodMonitor(final String key) {
+        this.key = key;
+        this.sampler = SamplingPolicy.getInstance().sampler(key);
+    }
+
+    /**
+     * called by agent (once per method and class). <b>It's not part of the public api!!</b>
+     */
+    public static MethodMonitor monitor(final String key) {
+        MethodMonitor monitor = MONITORS.get(key);
+        if (monitor == null) {
+            monitor = new MethodMonitor(key);
+            final MethodMonitor existing = MONITORS.putIfAbsent(key, monitor);
+            if (existing != null) {
+                monitor = existing;
+            }
+        }
+        return monitor;
+    }
+
+    /**
+     * called while weaving a deinstrumented method, see {@link Deinstrumentation}.
+     * Its woven class keeps the monitor in its field, the method gets a new one if it is instrumented again.
+     */
+    public static void deinstrumented(final String key) {
+        MONITORS.remove(key);
+    }
+
+    /**
+     * called by agent. <b>It's not part of the public api!!</b>
+     * @return the counter to pass to exit methods, null if it can't be resolved yet (agent startup)
+     * or if this invocation is not sampled.
+     */
+    public Counter enter() {
+        final Sampler s = sampler;
+        if (s == null) {
+            return enter(1);
+        }
+        if (!s.sample()) {
+            return null;
+        }
+        return enter(s.getRate());
+    }
+
+    /**
+     * @param counterName the method key or the key suffixed by captured arguments, see {@link AgentContext#getCounterName()}.
+     * @param samplingRate number of invocations this one stands for.
+     * @return the counter or a view of it recording values with this rate.
+     */
+    public Counter enter(final String counterName, final int samplingRate) {
+        if (key.equals(counterName)) {
+            return enter(samplingRate);
+        }
+
+        try { // the capture bounds the suffixed names but they are not kept in the agent caches
+            final Counter counter = Repository.INSTANCE.getCounter(new Counter.Key(Role.PERFORMANCES, counterName));
+            counter.updateConcurrency(counter.currentConcurrency().incrementAndGet());
+            return samplingRate == 1 ? counter : new Sampled(counter, samplingRate);
+        } catch (final Exception e) { // same as enter(int)
+            return null;
+        }
+    }
+
+    /**
+     * @param samplingRate number of invocations this one stands for, see {@link LockableCounter#add(double, int)}.
+     * @return the counter or, if samplingRate is not 1, a view of it recording values with this rate.
+     */
+    public Counter enter(final int samplingRate) {
+        try {
+            int id = keyId;
+            if (id < 0 || !KeyRegistry.INSTANCE.isRegistered(id, Role.PERFORMANCES, key)) { // evicted counters are removed from the registry
+                id = AgentContext.keyId(key);
+                keyId = id;
+            }
+
+            Counter counter = Repository.INSTANCE.getCounter(id);
+            if (counter == null) { // removed in between
+                counter = Repository.INSTANCE.getCounter(AgentContext.key(key));
+            }
+            counter.updateConcurrency(counter.currentConcurrency().incrementAndGet());
+            if (samplingRate == 1) {
+                return counter;
+            }
+
+            Sampled s = sampled;
+            if (s == null || s.counter != counter || s.rate != samplingRate) { // rate limited samplers adapt their rate
+                s = new Sampled(counter, samplingRate);
+                sampled = s;
+            }
+            return s;
+        } catch (final Exception e) { // same as AbstractPerformanceInterceptor, can happen while the agent starts
+            return null;
+        }
+    }
+
+    /**
+     * called by agent. <b>It's not part of the public api!!</b>
+     */
+    public static void exit(final Counter counter, final long start) {
+        if (counter != null) {
+            counter.add(Math.max(0, System.nanoTime() - start), NANOSECOND); // start can be corrected, see AgentOverhead
+            counter.currentConcurrency().decrementAndGet();
+        }
+    }
+
+    /**
+     * called by agent. <b>It's not part of the public api!!</b>
+     */
+    public static void exitWithException(final Counter counter, final long start, final Throwable error) {
+        if (counter != null) {
+            final long elapsedTime = Math.max(0, System.nanoTime() - start);
+            counter.add(elapsedTime, NANOSECOND);
+            counter.currentConcurrency().decrementAndGet();
+
+            if (error != null) { // same key as AbstractPerformanceInterceptor.Context, sampled as the invocation
+                final int samplingRate = Sampled.class.isInstance(counter) ? Sampled.class.cast(counter).rate : 1;
+                add(Repository.INSTANCE.getCounter(FailureFingerprint.key(Role.FAILURES, error)), elapsedTime, samplingRate);
+            }
+        }
+    }
+
+    private static void add(final Counter counter, final double delta, final int samplingRate) {
+        if (samplingRate != 1 && LockableCounter.class.isInstance(counter)) {
+            LockableCounter.class.cast(counter).add(delta, samplingRate);
+        } else {
+            counter.add(delta);
+        }
+    }
+
+    public Sampler getSampler() {
+        return sampler;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return "MethodMonitor{key='" + key + "'}";
+    }
+
+    // the counter of a sampled invocation, values added through it stand for rate invocations
+    private static final class Sampled implements Counter {
+        private final Counter counter;
+        private final int rate;
+
+        private Sampled(final Counter counter, final int rate) {
+            this.counter = counter;
+            this.rate = rate;
+        }
+
+        public Key getKey() {
+            return counter.getKey();
+        }
+
+        public void reset() {
+            counter.reset();
+        }
+
+        public void add(final double delta) {
+            MethodMonitor.add(counter, delta, rate);
+        }
+
+        public void add(final double delta, final Unit unit) {
+            add(counter.getKey().getRole().getUnit().convert(delta, unit));
+        }
+
+        public AtomicInteger currentConcurrency() {
+            return counter.currentConcurrency();
+        }
+
+        public void updateConcurrency(final int concurrency) {
+            counter.updateConcurrency(concurrency);
+        }
+
+        public int getMaxConcurrency() {
+            return counter.getMaxConcurrency();
+        }
+
+        public double getMax() {
+            return counter.getMax();
+        }
+
+        public double getMin() {
+            return counter.getMin();
+        }
+
+        public long getHits() {
+            return counter.getHits();
+        }
+
+        public double getSum() {
+            return counter.getSum();
+        }
+
+        public double getStandardDeviation() {
+            return counter.getStandardDeviation();
+        }
+
+        public double getVariance() {
+            return counter.getVariance();
+        }
+
+        public double getMean() {
+            return counter.getMean();
+        }
+
+        public double getSecondMoment() {
+            return counter.getSecondMoment();
+        }
+
+        public double getPercentile(final double percentile) {
+            return counter.getPercentile(percentile);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.javaagent;
+
+import org.apache.sirona.javaagent.tracking.PathTrackingPropagation;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+import org.objectweb.asm.commons.Method;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Wraps the task passed to the JDK thread pools with PathTrackingPropagation when they are submitted:
+ * ThreadPoolExecutor.execute() (so ExecutorService.submit()/invokeAll()), ScheduledThreadPoolExecutor.schedule()
+ * (periodic tasks are not propagated), ForkJoinPool.execute()/submit() for runnables and callables
+ * (CompletableFuture async stages) and the thread per task executor CompletableFuture uses without parallelism.
+ * <p/>
+ * Only the method bodies change so already loaded classes can be retransformed.
+ */
+public class PropagationClassVisitor extends ClassVisitor implements Opcodes {
+    private static final String RUNNABLE = "Ljava/lang/Runnable;";
+    private static final String CALLABLE = "Ljava/util/concurrent/Callable;";
+
+    private static final Type PROPAGATION_TYPE = Type.getType(PathTrackingPropagation.class);
+    private static final Method WRAP_RUNNABLE = new Method("wrap", "(" + RUNNABLE + ")" + RUNNABLE);
+    private static final Method WRAP_CALLABLE = new Method("wrap", "(" + CALLABLE + ")" + CALLABLE);
+
+    // class -> method name + descriptor, the task is always the first parameter
+    private static final Map<String, String[]> TARGETS = new HashMap<String, String[]>();
+    static {
+        TARGETS.put("java/util/concurrent/ThreadPoolExecutor", new String[] {
+            "execute(" + RUNNABLE + ")V"
+        });
+        TARGETS.put("java/util/concurrent/ScheduledThreadPoolExecutor", new String[] {
+            "schedule(" + RUNNABLE + "JLjava/util/concurrent/TimeUnit;)Ljava/util/concurrent/ScheduledFuture;",
+            "schedule(" + CALLABLE + "JLjava/util/concurrent/TimeUnit;)Ljava/util/concurrent/ScheduledFuture;"
+        });
+        TARGETS.put("java/util/concurrent/ForkJoinPool", new String[] {
+            "execute(" + RUNNABLE + ")V",
+            "submit(" + RUNNABLE + ")Ljava/util/concurrent/ForkJoinTask;",
+            "submit(" + RUNNABLE + "Ljava/lang/Object;)Ljava/util/concurrent/ForkJoinTask;",
+            "submit(" + CALLABLE + ")Ljava/util/concurrent/ForkJoinTask;"
+        });
+        TARGETS.put("java/util/concurrent/CompletableFuture$ThreadPerTaskExecutor", new String[] {
+            "execute(" + RUNNABLE + ")V"
+        });
+    }
+
+    private final String[] methods;
+    private boolean woven = false;
+
+    public PropagationClassVisitor(final ClassVisitor delegate, final String className) {
+        super(ASM5, delegate);
+        this.methods = TARGETS.get(className);
+    }
+
+    /**
+     * @param className internal name of the class.
+     * @return true if propagation is active and the class submits tasks to a thread pool.
+     */
+    public static boolean isTarget(final String className) {
+        return PathTrackingPropagation.isActive() && className != null && TARGETS.containsKey(className);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(final int access, final String name, final String desc, final String signature, final String[] exceptions) {
+        final MethodVisitor visitor = super.visitMethod(access, name, desc, signature, exceptions);
+        if (methods == null || (access & (ACC_ABSTRACT | ACC_NATIVE)) != 0 || !isTargetMethod(name + desc)) {
+            return visitor;
+        }
+
+        woven = true;
+        final Method wrap = desc.startsWith("(" + CALLABLE) ? WRAP_CALLABLE : WRAP_RUNNABLE;
+        return new AdviceAdapter(ASM5, visitor, access, name, desc) {
+            @Override
+            protected void onMethodEnter() {
+                loadArg(0);
+                invokeStatic(PROPAGATION_TYPE, wrap);
+                storeArg(0);
+            }
+        };
+    }
+
+    public boolean wasWoven() {
+        return woven;
+    }
+
+    private boolean isTargetMethod(final String method) {
+        for (final String target : methods) {
+            if (target.equals(method)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.javaagent;
+
+import org.apache.sirona.configuration.Configuration;
+import org.apache.sirona.javaagent.logging.SironaAgentLogging;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Updates the instrumentation rules without restarting: listener includes/excludes
+ * (<code>org.apache.sirona.javaagent.listener.CounterListener.excludes</code> for instance) or
+ * <code>org.apache.sirona.javaagent.path.tracking.activate</code>.
+ * <p/>
+ * Updates come from JMX or from a properties file polled every period. The listeners of each method
+ * of the already woven classes are computed again, only the classes with a method whose listeners changed
+ * are retransformed. New listeners are visible to all threads at once, invocations already started finish
+ * with the listeners they started with.
+ * <p/>
+ * A key removed (from the file or through JMX) gets back the value it had when the agent started, if any.
+ * <p/>
+ * Configuration (prefixed by org.apache.sirona.javaagent.reconfiguration.): activate (false), file (none, activates
+ * the reconfiguration when set), period (5s). While active the woven class cache is not used.
+ */
+public class Reconfiguration implements ReconfigurationMBean {
+    private static final String CONFIG_PREFIX = Configuration.CONFIG_PROPERTY_PREFIX + "javaagent.reconfiguration.";
+    public static final String ACTIVATE_KEY = CONFIG_PREFIX + "activate";
+    public static final String FILE_KEY = CONFIG_PREFIX + "file";
+    public static final String OBJECT_NAME = Configuration.CONFIG_PROPERTY_PREFIX + "javaagent:type=reconfiguration";
+
+    private static final String FILE = Configuration.getProperty(FILE_KEY, null);
+    private static final boolean ACTIVE = FILE != null || Configuration.is(ACTIVATE_KEY, false);
+
+    // class name -> methods of the class which can be woven, only filled when active.
+    // Deinstrumented methods leave it until they are reinstated, unloaded classes are pruned by reconfigure()
+    private static final ConcurrentMap<String, Set<String>> METHODS = new ConcurrentHashMap<String, Set<String>>();
+
+    private static volatile Reconfiguration instance = null;
+
+    private final Instrumentation instrumentation;
+    private final File file;
+    private final Properties fileProperties = new Properties();
+    private final Properties initialProperties = new Properties(); // restored when a key is removed
+    private Set<String> missingClasses = Collections.emptySet(); // not loaded anymore at the previous reconfiguration
+    private long fileLastModified = Long.MIN_VALUE;
+    private volatile long lastReconfiguration = -1;
+    private volatile int lastRetransformedClasses = 0;
+    private Timer timer = null;
+
+    public Reconfiguration(final Instrumentation instrumentation, final File file) {
+        this.instrumentation = instrumentation;
+        this.file = file;
+        this.initialProperties.putAll(Configuration.properties());
+    }
+
+    public static boolean isActive() {
+        return ACTIVE;
+    }
+
+    // called when the agent starts
+    public static synchronized Reconfiguration start(final Instrumentation instrumentation) {
+        if (instance != null) {
+            return instance;
+        }
+
+        final Reconfiguration reconfiguration = new Reconfiguration(instrumentation, FILE == null ? null : new File(FILE));
+        if (reconfiguration.file != null) {
+            reconfiguration.poll();
+
+            final long period = TimeUnit.SECONDS.toMillis(Configuration.getInteger(CONFIG_PREFIX + "period", 5));
+            if (period > 0) {
+                reconfiguration.timer = new Timer("sirona-reconfiguration", true);
+                reconfiguration.timer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        try {
+                            reconfiguration.poll();
+                        } catch (final Throwable th) { // never kill the timer
+                            SironaAgentLogging.debug("can't reload {0}: {1}", reconfiguration.file, th.getMessage());
+                        }
+                    }
+                }, period, period);
+            }
+        }
+
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(reconfiguration, name);
+            }
+        } catch (final Exception e) {
+            SironaAgentLogging.debug("can't register reconfiguration mbean: {0}", e.getMessage());
+        }
+
+        instance = reconfiguration;
+        return reconfiguration;
+    }
+
+    public static Reconfiguration getInstance() {
+        return instance;
+    }
+
+    // called while weaving a method, before its listeners are looked up
+    public static void visited(final String className, final String method) {
+        if (!ACTIVE) {
+            return;
+        }
+
+        final String name = className.replace('/', '.');
+        Set<String> methods = METHODS.get(name);
+        if (methods == null) {
+            methods = Collections.synchronizedSet(new HashSet<String>());
+            final Set<String> existing = METHODS.putIfAbsent(name, methods);
+            if (existing != null) {
+                methods = existing;
+            }
+        }
+        methods.add(method);
+    }
+
+    // called while weaving a deinstrumented method, its listeners don't matter until it is reinstated (then visited again)
+    public static void deinstrumented(final String className, final String method) {
+        if (!ACTIVE) {
+            return;
+        }
+
+        final Set<String> methods = METHODS.get(className.replace('/', '.'));
+        if (methods != null) {
+            methods.remove(method);
+        }
+    }
+
+    @Override
+    public String getProperty(final String key) {
+        return Configuration.getProperty(key, null);
+    }
+
+    @Override
+    public int update(final String key, final String value) {
+        if (value == null) {
+            return remove(key);
+        }
+        return reconfigure(Collections.singletonMap(key, value), Collections.<String>emptyList());
+    }
+
+    @Override
+    public int remove(final String key) {
+        return reconfigure(Collections.<String, String>emptyMap(), Collections.singletonList(key));
+    }
+
+    @Override
+    public synchronized int reloadFile() {
+        if (file == null) {
+            return -1;
+        }
+        fileLastModified = Long.MIN_VALUE;
+        return poll();
+    }
+
+    /**
+     * @return the number of retransformed classes, 0 if the file didn't change.
+     */
+    public synchronized int poll() {
+        if (file == null) {
+            return 0;
+        }
+
+        final long lastModified = file.exists() ? file.lastModified() : -1;
+        if (lastModified == fileLastModified) {
+            return 0;
+        }
+        fileLastModified = lastModified;
+
+        final Properties properties = new Properties();
+        if (lastModified >= 0) {
+            InputStream is = null;
+            try {
+                is = new FileInputStream(file);
+                properties.load(is);
+            } catch (final IOException e) {
+                SironaAgentLogging.debug("can't read {0}: {1}", file, e.getMessage());
+                return 0;
+            } finally {
+                if (is != null) {
+                    try {
+                        is.close();
+                    } catch (final IOException e) {
+                        // no-op
+                    }
+                }
+            }
+        }
+
+        final Map<String, String> updates = new HashMap<String, String>();
+        for (final Object key : properties.keySet()) {
+            updates.put(String.valueOf(key), properties.getProperty(String.valueOf(key)));
+        }
+        final Collection<String> removals = new ArrayList<String>();
+        for (final Object key : fileProperties.keySet()) {
+            if (!updates.containsKey(String.valueOf(key))) {
+                removals.add(String.valueOf(key));
+            }
+        }
+
+        fileProperties.clear();
+        fileProperties.putAll(properties);
+        return reconfigure(updates, removals);
+    }
+
+    /**
+     * @return the number of retransformed classes.
+     */
+    public synchronized int reconfigure(final Map<String, String> updates, final Collection<String> removals) {
+        pruneUnloadedClasses();
+
+        final Map<String, String[]> methods = new HashMap<String, String[]>();
+        final Map<String, int[]> before = new HashMap<String, int[]>();
+        for (final Map.Entry<String, Set<String>> entry : METHODS.entrySet()) {
+            final String[] classMethods;
+            synchronized (entry.getValue()) {
+                classMethods = entry.getValue().toArray(new String[entry.getValue().size()]);
+            }
+            methods.put(entry.getKey(), classMethods);
+            for (final String method : classMethods) {
+                before.put(method, AgentContext.currentSlots(method));
+            }
+        }
+
+        final Properties configuration = Configuration.properties();
+        for (final String key : removals) {
+            final String initialValue = initialProperties.getProperty(key);
+            if (initialValue == null) {
+                configuration.remove(key);
+            } else {
+                configuration.setProperty(key, initialValue);
+            }
+        }
+        configuration.putAll(updates);
+        AgentContext.reconfigureListeners();
+
+        final Set<String> classNames = new HashSet<String>();
+        final Collection<String> changed = new ArrayList<String>();
+        for (final Map.Entry<String, String[]> entry : methods.entrySet()) {
+            for (final String method : entry.getValue()) {
+                boolean updated;
+                try {
+                    updated = !Arrays.equals(before.get(method), AgentContext.acceptingSlots(method));
+                } catch (final RuntimeException e) { // listener needing the class bytes
+                    updated = true;
+                }
+                if (updated) {
+                    changed.add(method);
+                    classNames.add(entry.getKey());
+                }
+            }
+        }
+
+        AgentContext.updateListeners(changed);
+        final int retransformed = retransform(classNames);
+
+        lastReconfiguration = System.currentTimeMillis();
+        lastRetransformedClasses = retransformed;
+        return retransformed;
+    }
+
+    @Override
+    public long getLastReconfiguration() {
+        return lastReconfiguration;
+    }
+
+    @Override
+    public int getLastRetransformedClasses() {
+        return lastRetransformedClasses;
+    }
+
+    public void stop() {
+        if (timer != null) {
+            timer.cancel();
+        }
+    }
+
+    // a class is forgotten when it is missing twice in a row: the first time it can be being defined (visited but not loaded yet)
+    private void pruneUnloadedClasses() {
+        if (instrumentation == null || METHODS.isEmpty()) {
+            return;
+        }
+
+        final Set<String> loaded = new HashSet<String>();
+        for (final Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+            loaded.add(clazz.getName());
+        }
+
+        final Set<String> missing = new HashSet<String>();
+        for (final String className : METHODS.keySet()) {
+            if (loaded.contains(className)) {
+                continue;
+            }
+            if (missingClasses.contains(className)) {
+                METHODS.remove(className);
+            } else {
+                missing.add(className);
+            }
+        }
+        missingClasses = missing;
+    }
+
+    // one by one: a class failing doesn't prevent the others to get their new listeners
+    private int retransform(final Set<String> classNames) {
+        if (classNames.isEmpty() || instrumentation == null) {
+            return 0;
+        }
+
+        int retransformed = 0;
+        for (final Class<?> clazz : instrumentation.getAllLoadedClasses()) { // a class can be loaded by several loaders
+            if (classNames.contains(clazz.getName()) && instrumentation.isModifiableClass(clazz)) {
+                try {
+                    instrumentation.retransformClasses(clazz);
+                    retransformed++;
+                } catch (final Throwable th) {
+                    SironaAgentLogging.debug("can't retransform {0}: {1}", clazz.getName(), th.getMessage());
+                }
+            }
+        }
+        return retransformed;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.javaagent;
+
+public interface ReconfigurationMBean {
+    String getProperty(String key);
+
+    /**
+     * @return the number of retransformed classes.
+     */
+    int update(String key, String value);
+
+    /**
+     * Listener setters are not called for removed keys, set the value explicitly to restore a default.
+     *
+     * @return the number of retransformed classes.
+     */
+    int remove(String key);
+
+    /**
+     * @return the number of retransformed classes, -1 if there is no file.
+     */
+    int reloadFile();
+
+    long getLastReconfiguration();
+
+    int getLastRetransformedClasses();
+}
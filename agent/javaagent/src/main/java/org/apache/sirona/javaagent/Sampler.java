@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.javaagent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides if an invocation of a method is recorded. Each thread counts down its own invocations
+ * so the decision is a thread local read and decrement, no shared write.
+ * <p/>
+ * A fixed sampler records 1 invocation out of N. A rate limited sampler starts recording everything
+ * and adapts N every second to record about the configured number of samples per second.
+ * Its countdowns expire with the window they were drawn in: when the traffic drops a thread doesn't wait
+ * for the N invocations of the previous rate, the rate is re-evaluated (the clock is only read every
+ * {@link #CLOCK_CHECK} skipped invocations).
+ */
+public final class Sampler {
+    private static final long WINDOW = TimeUnit.SECONDS.toNanos(1);
+    private static final int CLOCK_CHECK = 16; // power of 2
+
+    private final int maxPerSecond; // <= 0 means fixed rate
+    private final ThreadLocal<Countdown> countdown = new ThreadLocal<Countdown>() {
+        @Override
+        protected Countdown initialValue() {
+            return new Countdown(); // first invocation is recorded
+        }
+    };
+
+    private volatile int rate;
+
+    // rate limited only
+    private final AtomicInteger samples = new AtomicInteger(0);
+    private volatile long windowStart = System.nanoTime();
+
+    private Sampler(final int rate, final int maxPerSecond) {
+        this.rate = rate;
+        this.maxPerSecond = maxPerSecond;
+    }
+
+    public static Sampler oneOf(final int rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate should be > 0: " + rate);
+        }
+        return new Sampler(rate, 0);
+    }
+
+    public static Sampler perSecond(final int maxPerSecond) {
+        if (maxPerSecond <= 0) {
+            throw new IllegalArgumentException("samples per second should be > 0: " + maxPerSecond);
+        }
+        return new Sampler(1, maxPerSecond);
+    }
+
+    /**
+     * @return true if this invocation should be recorded, it then stands for {@link #getRate()} invocations.
+     */
+    public boolean sample() {
+        final Countdown current = countdown.get();
+        if (--current.remaining > 0) {
+            if (maxPerSecond > 0 && (current.remaining & (CLOCK_CHECK - 1)) == 0 && System.nanoTime() - current.deadline >= 0) {
+                expire(current);
+            }
+            return false;
+        }
+        current.remaining = rate;
+
+        if (maxPerSecond > 0) {
+            adapt(samples.incrementAndGet());
+            current.deadline = windowStart + WINDOW;
+        }
+        return true;
+    }
+
+    public int getRate() {
+        return rate;
+    }
+
+    public int getMaxPerSecond() {
+        return maxPerSecond;
+    }
+
+    // the countdown was drawn with the rate of an elapsed window which can be far too high if the traffic dropped
+    private void expire(final Countdown current) {
+        adapt(samples.get());
+        current.remaining = Math.min(current.remaining, rate);
+        current.deadline = windowStart + WINDOW;
+    }
+
+    // called for recorded invocations and expired countdowns so the overhead is bounded
+    private void adapt(final int count) {
+        final long now = System.nanoTime();
+        final long elapsed = now - windowStart;
+        if (elapsed < WINDOW && count <= maxPerSecond) {
+            return;
+        }
+
+        synchronized (this) {
+            if (windowStart != now - elapsed) { // already done by another thread
+                return;
+            }
+
+            final double invocationsPerSecond = (double) samples.get() * rate * WINDOW / Math.max(1, elapsed);
+            rate = (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.round(invocationsPerSecond / maxPerSecond)));
+            samples.set(0);
+            windowStart = now;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Sampler{rate=" + rate + (maxPerSecond > 0 ? ", maxPerSecond=" + maxPerSecond : "") + '}';
+    }
+
+    private static class Countdown {
+        private int remaining = 1;
+        private long deadline; // end of the window the countdown was drawn in, rate limited samplers only
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.javaagent;
+
+import org.apache.sirona.configuration.Configuration;
+import org.apache.sirona.configuration.predicate.PredicateEvaluator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Per method sampling configuration, rules use the include/exclude syntax:
+ * <pre>
+ * org.apache.sirona.javaagent.sampling = prefix:com.company.cache.=1/100, regex:.*Dao\.find.*=500/s
+ * </pre>
+ * <code>1/N</code> (or <code>N</code>) records 1 invocation out of N and <code>N/s</code> records about N invocations
+ * per second. The first matching rule wins and each method gets its own {@link Sampler}.
+ */
+public final class SamplingPolicy {
+    public static final String SAMPLING_KEY = Configuration.CONFIG_PROPERTY_PREFIX + "javaagent.sampling";
+
+    private static final SamplingPolicy INSTANCE = new SamplingPolicy(Configuration.getProperty(SAMPLING_KEY, null));
+    private static final Sampler NONE = Sampler.oneOf(1); // cache marker
+
+    private final List<Rule> rules = new ArrayList<Rule>();
+    private final ConcurrentMap<String, Sampler> samplers = new ConcurrentHashMap<String, Sampler>();
+
+    public SamplingPolicy(final String configuration) {
+        if (configuration == null || configuration.trim().length() == 0) {
+            return;
+        }
+
+        for (final String segment : configuration.split(",")) {
+            final String trim = segment.trim();
+            if (trim.length() == 0) {
+                continue;
+            }
+
+            final int equals = trim.lastIndexOf('=');
+            if (equals <= 0 || equals == trim.length() - 1) {
+                throw new IllegalArgumentException("Sampling rules are <predicate>=<1/N or N/s>, got: '" + trim + "'");
+            }
+            rules.add(new Rule(new PredicateEvaluator(trim.substring(0, equals).trim(), ","), trim.substring(equals + 1).trim()));
+        }
+    }
+
+    public static SamplingPolicy getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the sampler of this method or null if all its invocations are recorded.
+     */
+    public Sampler sampler(final String key) {
+        if (rules.isEmpty() || key == null) {
+            return null;
+        }
+
+        Sampler sampler = samplers.get(key);
+        if (sampler == null) {
+            sampler = NONE;
+            for (final Rule rule : rules) {
+                if (rule.predicate.matches(key)) {
+                    sampler = rule.newSampler();
+                    break;
+                }
+            }
+
+            final Sampler existing = samplers.putIfAbsent(key, sampler);
+            if (existing != null) {
+                sampler = existing;
+            }
+        }
+        return sampler == NONE ? null : sampler;
+    }
+
+    public boolean isActive() {
+        return !rules.isEmpty();
+    }
+
+    private static class Rule {
+        private final PredicateEvaluator predicate;
+        private final int rate;
+        private final boolean perSecond;
+
+        private Rule(final PredicateEvaluator predicate, final String policy) {
+            this.predicate = predicate;
+
+            final String value;
+            if (policy.endsWith("/s")) {
+                perSecond = true;
+                value = policy.substring(0, policy.length() - "/s".length());
+            } else if (policy.startsWith("1/")) {
+                perSecond = false;
+                value = policy.substring("1/".length());
+            } else {
+                perSecond = false;
+                value = policy;
+            }
+
+            try {
+                rate = Integer.parseInt(value.trim());
+            } catch (final NumberFormatException nfe) {
+                throw new IllegalArgumentException("Invalid sampling policy: '" + policy + "'", nfe);
+            }
+            if (rate <= 0) {
+                throw new IllegalArgumentException("Sampling policy should be positive: '" + policy + "'");
+            }
+        }
+
+        private Sampler newSampler() {
+            return perSecond ? Sampler.perSecond(rate) : Sampler.oneOf(rate);
+        }
+    }
+}
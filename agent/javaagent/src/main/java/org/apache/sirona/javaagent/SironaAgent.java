@@ -16,6 +16,7 @@
  */
 package org.apache.sirona.javaagent;
 
+import org.apache.sirona.javaagent.tracking.PathTrackingPropagation;
 import org.codehaus.mojo.animal_sniffer.IgnoreJRERequirement;
 
 import java.io.ByteArrayOutputStream;
@@ -24,6 +25,8 @@ import java.lang.instrument.Instrumentation;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -98,6 +101,7 @@ public class SironaAgent {
         try { // eager init of static blocks
             Class.forName("org.apache.sirona.configuration.Configuration", true, loader);
             Class.forName("org.apache.sirona.javaagent.AgentContext", true, loader);
+            Class.forName("org.apache.sirona.javaagent.AgentOverhead", true, loader); // calibration if activated
         } catch (final Exception e) {
             e.printStackTrace();
         }
@@ -145,7 +149,31 @@ public class SironaAgent {
                 evictThread.setDaemon(true);
             }
             final boolean reloadable = instrumentation.isRetransformClassesSupported() && FORCE_RELOAD;
-            instrumentation.addTransformer(transformer, reloadable);
+            final boolean deinstrumentation = instrumentation.isRetransformClassesSupported() && Deinstrumentation.isActive();
+            final boolean reconfiguration = instrumentation.isRetransformClassesSupported() && Reconfiguration.isActive();
+            final boolean propagation = instrumentation.isRetransformClassesSupported() && PathTrackingPropagation.isActive();
+            final Collection<Class<?>> loadedThreadPools = new ArrayList<Class<?>>();
+            if (propagation && !reloadable) { // thread pools can be loaded before the agent, look for them before adding the transformer
+                for (final Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+                    if (PropagationClassVisitor.isTarget(clazz.getName().replace('.', '/')) && instrumentation.isModifiableClass(clazz)) {
+                        loadedThreadPools.add(clazz);
+                    }
+                }
+            }
+            instrumentation.addTransformer(transformer, reloadable || deinstrumentation || reconfiguration || propagation);
+            if (deinstrumentation) {
+                Deinstrumentation.start(instrumentation);
+            }
+            if (reconfiguration) {
+                Reconfiguration.start(instrumentation);
+            }
+            for (final Class<?> clazz : loadedThreadPools) {
+                try {
+                    instrumentation.retransformClasses(clazz);
+                } catch (final Exception e) {
+                    System.err.println("Can't propagate path tracking in: " + clazz.getName() + "[" + e.getMessage() + "]");
+                }
+            }
 
             final Class<?> listener = loader.loadClass("org.apache.sirona.javaagent.spi.InvocationListener");
 
@@ -17,6 +17,10 @@
 package org.apache.sirona.javaagent;
 
 import org.apache.sirona.configuration.Configuration;
+import org.apache.sirona.counters.Counter;
+import org.apache.sirona.javaagent.listener.CounterListener;
+import org.apache.sirona.javaagent.spi.InvocationListener;
+import org.apache.sirona.javaagent.spi.MethodParametersAware;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Label;
@@ -27,6 +31,9 @@ import org.objectweb.asm.commons.AdviceAdapter;
 import org.objectweb.asm.commons.Method;
 
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 
 import static java.lang.Integer.MIN_VALUE;
 
@@ -40,6 +47,14 @@ public class SironaClassVisitor
 
     private static final Boolean TRACE_METHOD_PARAMETERS = Configuration.is( TRACE_METHOD_PARAMETERS_KEY, false );
 
+    public static final String INLINE_COUNTERS_KEY = Configuration.CONFIG_PROPERTY_PREFIX + "javaagent.counter.inline";
+
+    private static final boolean INLINE_COUNTERS = Configuration.is( INLINE_COUNTERS_KEY, true );
+
+    // static field of woven classes holding the MethodMonitor of a method, suffixed by the method name and descriptor hash
+    // (not by an index) so a retransformation keeps the field of each method whatever the others become
+    public static final String MONITOR_FIELD_PREFIX = "__sironaMonitor";
+
     private static final String STATIC_INIT = "<clinit>";
 
     private static final String CONSTRUCTOR = "<init>";
@@ -54,6 +69,12 @@ public class SironaClassVisitor
 
     private static final Type THROWABLE_TYPE = Type.getType( Throwable.class );
 
+    private static final Type METHOD_MONITOR = Type.getType( MethodMonitor.class );
+
+    private static final Type COUNTER_TYPE = Type.getType( Counter.class );
+
+    private static final Type SYSTEM_TYPE = Type.getType( System.class );
+
     private static final Type[] STOP_WITH_OBJECT_ARGS_TYPES = new Type[]{ OBJECT_TYPE };
 
     private static final Type[] STOP_WITH_THROWABLE_ARGS_TYPES = new Type[]{ THROWABLE_TYPE };
@@ -63,27 +84,73 @@ public class SironaClassVisitor
     // methods
     public static final Method START_METHOD = new Method( "startOn", AGENT_CONTEXT, START_ARGS_TYPES );
 
+    private static final Method START_CAPTURE_METHOD =
+        new Method( "startOnCapture", AGENT_CONTEXT, new Type[]{ OBJECT_TYPE, STRING_TYPE, OBJECT_TYPE } );
+
+    private static final Method START_CAPTURES_METHOD = new Method( "startOnCaptures", AGENT_CONTEXT, START_ARGS_TYPES );
+
     private static final Method STOP_METHOD = new Method( "stop", Type.VOID_TYPE, STOP_WITH_OBJECT_ARGS_TYPES );
 
     private static final Method STOP_WITH_EXCEPTION_METHOD =
         new Method( "stopWithException", Type.VOID_TYPE, STOP_WITH_THROWABLE_ARGS_TYPES );
 
+    private static final Method MONITOR_METHOD = new Method( "monitor", METHOD_MONITOR, new Type[]{ STRING_TYPE } );
+
+    private static final Method ENTER_METHOD = new Method( "enter", COUNTER_TYPE, new Type[0] );
+
+    private static final Method NANO_TIME_METHOD = new Method( "nanoTime", Type.LONG_TYPE, new Type[0] );
+
+    private static final Method EXIT_METHOD =
+        new Method( "exit", Type.VOID_TYPE, new Type[]{ COUNTER_TYPE, Type.LONG_TYPE } );
+
+    private static final Method EXIT_WITH_EXCEPTION_METHOD =
+        new Method( "exitWithException", Type.VOID_TYPE, new Type[]{ COUNTER_TYPE, Type.LONG_TYPE, THROWABLE_TYPE } );
+
     private final String javaName;
 
     private final byte[] classfileBuffer;
 
     private int count = 0;
 
+    private final Collection<String> monitorFields = new LinkedHashSet<String>();
+
+    // fields of the class being retransformed, a retransformation can't add nor remove fields
+    private final Collection<String> retainedMonitorFields;
+
+    private final Collection<String> wovenMethods = new ArrayList<String>( 4 );
+
+    private boolean isInterface = false;
+
     /**
      * @param writer
      * @param javaName
      * @param buffer   original class byte
      */
     public SironaClassVisitor( final ClassWriter writer, final String javaName, final byte[] buffer )
+    {
+        this( writer, javaName, buffer, null );
+    }
+
+    /**
+     * @param retainedMonitorFields monitor fields of the class being retransformed, null for a class being defined.
+     * @since 0.4
+     */
+    public SironaClassVisitor( final ClassWriter writer, final String javaName, final byte[] buffer,
+                               final Collection<String> retainedMonitorFields )
     {
         super( ASM5, writer );
         this.javaName = javaName;
         this.classfileBuffer = buffer;
+        this.retainedMonitorFields = retainedMonitorFields;
+    }
+
+    @Override
+    public void visit( final int version, final int access, final String name, final String signature,
+                       final String superName, final String[] interfaces )
+    {
+        // interface fields are final so they can't hold a lazily resolved monitor
+        this.isInterface = ( access & ACC_INTERFACE ) != 0;
+        super.visit( version, access, name, signature, superName, interfaces );
     }
 
     @Override
@@ -106,14 +173,95 @@ public class SironaClassVisitor
 
         final String label = javaName.replace( "/", "." ) + "." //
             + name + "(" + typesToString( Type.getArgumentTypes( desc ) ) + ")";
-        if ( AgentContext.listeners( label, classfileBuffer ) != null )
+        final boolean deinstrumented = Deinstrumentation.isDeinstrumented( label );
+        if ( deinstrumented )
+        {
+            Reconfiguration.deinstrumented( javaName, label );
+            MethodMonitor.deinstrumented( label );
+            AgentContext.deinstrumented( label );
+        }
+        else
+        {
+            Reconfiguration.visited( javaName, label );
+        }
+        final InvocationListener[] listeners = AgentContext.listeners( label, classfileBuffer );
+        if ( listeners != null )
         {
             count++;
-            return new SironaAdviceAdapter( visitor, access, name, desc, label );
+            wovenMethods.add( label );
+            Deinstrumentation.woven( label, javaName );
+            if ( deinstrumented )
+            {
+                return visitor;
+            }
+            final ArgumentCapture.Captures captures = ArgumentCapture.getInstance().captures( label );
+            if ( captures == null && isInlinable( listeners ) )
+            {
+                final String field = monitorField( name, desc );
+                if ( field != null )
+                {
+                    return new InlinedCounterAdviceAdapter( visitor, access, name, desc, label, field );
+                }
+            }
+            return new SironaAdviceAdapter( visitor, access, name, desc, label,
+                                            needsMethodParameters( label, listeners ),
+                                            captures == null ? null : captures.getArguments() );
         }
         return visitor;
     }
 
+    @Override
+    public void visitEnd()
+    {
+        for ( final String field : retainedMonitorFields != null ? retainedMonitorFields : monitorFields )
+        {
+            super.visitField( ACC_PRIVATE | ACC_STATIC | ACC_TRANSIENT | ACC_SYNTHETIC, field,
+                              METHOD_MONITOR.getDescriptor(), null, null ).visitEnd();
+        }
+        super.visitEnd();
+    }
+
+    // null if the method can't get its own field (retransformation or, unlikely, a name/hash collision)
+    private String monitorField( final String name, final String desc )
+    {
+        final String field = MONITOR_FIELD_PREFIX + "$" + name + "$" + Integer.toHexString( desc.hashCode() );
+        if ( retainedMonitorFields != null && !retainedMonitorFields.contains( field ) )
+        {
+            return null;
+        }
+        return monitorFields.add( field ) ? field : null;
+    }
+
+    // the counter listener alone doesn't need the AgentContext, it can be replaced by a MethodMonitor
+    // (but then the agent overhead would not be measured)
+    private boolean isInlinable( final InvocationListener[] listeners )
+    {
+        return INLINE_COUNTERS //
+            && !AgentOverhead.isActive() //
+            && !isInterface //
+            && listeners.length == 1 //
+            && CounterListener.class == listeners[0].getClass() //
+            && CounterListener.class.cast( listeners[0] ).isInlinable();
+    }
+
+    // without the global flag the parameter array is only built for listeners reading it
+    private static boolean needsMethodParameters( final String label, final InvocationListener[] listeners )
+    {
+        if ( TRACE_METHOD_PARAMETERS )
+        {
+            return true;
+        }
+        for ( final InvocationListener listener : listeners )
+        {
+            if ( MethodParametersAware.class.isInstance( listener ) //
+                && MethodParametersAware.class.cast( listener ).needsMethodParameters( label ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private String typesToString( final Type[] argumentTypes )
     {
         final StringBuilder b = new StringBuilder();
@@ -138,7 +286,16 @@ public class SironaClassVisitor
 
     public boolean wasAdviced()
     {
-        return count > 0;
+        // a retransformed class keeps its monitor fields even if no method is woven anymore
+        return count > 0 || ( retainedMonitorFields != null && !retainedMonitorFields.isEmpty() );
+    }
+
+    /**
+     * @return labels of the methods having listeners, used to restore the agent state from a cached class.
+     */
+    public Collection<String> getWovenMethods()
+    {
+        return wovenMethods;
     }
 
     private class SironaAdviceAdapter
@@ -150,13 +307,20 @@ public class SironaClassVisitor
 
         private final String desc;
 
+        private final boolean parameters;
+
+        private final int[] capturedArguments;
+
         public SironaAdviceAdapter( final MethodVisitor visitor, final int access, final String name, //
-                                    final String desc, final String label )
+                                    final String desc, final String label, final boolean parameters, //
+                                    final int[] capturedArguments )
         {
             super( ASM5, visitor, access, name, desc );
             this.isStatic = Modifier.isStatic( access );
             this.label = label;
             this.desc = desc;
+            this.parameters = parameters;
+            this.capturedArguments = capturedArguments;
         }
 
         private int ctxLocal;
@@ -185,17 +349,39 @@ public class SironaClassVisitor
 
             push( label );
 
-            if ( TRACE_METHOD_PARAMETERS )
+            final Method start;
+            if ( parameters )
             {
                 loadArgArray();
+                start = START_METHOD;
+            }
+            else if ( capturedArguments != null && capturedArguments.length == 1 )
+            {
+                // only the captured argument is loaded (and boxed if primitive)
+                loadCapturedArgument( capturedArguments[0] );
+                start = START_CAPTURE_METHOD;
+            }
+            else if ( capturedArguments != null )
+            {
+                push( capturedArguments.length );
+                newArray( OBJECT_TYPE );
+                for ( int i = 0; i < capturedArguments.length; i++ )
+                {
+                    dup();
+                    push( i );
+                    loadCapturedArgument( capturedArguments[i] );
+                    arrayStore( OBJECT_TYPE );
+                }
+                start = START_CAPTURES_METHOD;
             }
             else
             {
                 visitInsn( ACONST_NULL );
+                start = START_METHOD;
             }
             ctxLocal = newLocal( AGENT_CONTEXT );
 
-            invokeStatic( AGENT_CONTEXT, START_METHOD );
+            invokeStatic( AGENT_CONTEXT, start );
 
             storeLocal( ctxLocal );
 
@@ -205,6 +391,12 @@ public class SironaClassVisitor
 
 
 
+        private void loadCapturedArgument( final int index )
+        {
+            loadArg( index );
+            valueOf( Type.getArgumentTypes( desc )[index] );
+        }
+
         @Override
         public void onMethodExit( final int opCode )
         {
@@ -270,4 +462,92 @@ public class SironaClassVisitor
 
 
     }
+
+    private class InlinedCounterAdviceAdapter
+        extends AdviceAdapter
+    {
+        private final String label;
+
+        private final String field;
+
+        private final Type owner = Type.getObjectType( javaName );
+
+        private int counterLocal;
+
+        private int startLocal;
+
+        private final Label tryStart = new Label();
+
+        private final Label endLabel = new Label();
+
+        public InlinedCounterAdviceAdapter( final MethodVisitor visitor, final int access, final String name, //
+                                            final String desc, final String label, final String field )
+        {
+            super( ASM5, visitor, access, name, desc );
+            this.label = label;
+            this.field = field;
+        }
+
+        @Override
+        public void onMethodEnter()
+        {
+            // if (field == null) field = MethodMonitor.monitor(label), racy but monitor() always returns the same instance
+            final Label resolved = new Label();
+            getStatic( owner, field, METHOD_MONITOR );
+            dup();
+            ifNonNull( resolved );
+            pop();
+            push( label );
+            invokeStatic( METHOD_MONITOR, MONITOR_METHOD );
+            dup();
+            putStatic( owner, field, METHOD_MONITOR );
+            mark( resolved );
+
+            // final Counter counter = field.enter(); final long start = System.nanoTime();
+            invokeVirtual( METHOD_MONITOR, ENTER_METHOD );
+            counterLocal = newLocal( COUNTER_TYPE );
+            storeLocal( counterLocal );
+            invokeStatic( SYSTEM_TYPE, NANO_TIME_METHOD );
+            startLocal = newLocal( Type.LONG_TYPE );
+            storeLocal( startLocal );
+
+            visitLabel( tryStart );
+        }
+
+        @Override
+        public void onMethodExit( final int opCode )
+        {
+            if ( opCode == ATHROW )
+            {
+                return;
+            }
+
+            if ( opCode == MIN_VALUE )
+            {
+                final int errorLocal = newLocal( THROWABLE_TYPE );
+                storeLocal( errorLocal );
+                loadLocal( counterLocal );
+                loadLocal( startLocal );
+                loadLocal( errorLocal );
+                invokeStatic( METHOD_MONITOR, EXIT_WITH_EXCEPTION_METHOD );
+                loadLocal( errorLocal );
+            }
+            else
+            { // returned value (if any) stays on the stack, no need to box it
+                loadLocal( counterLocal );
+                loadLocal( startLocal );
+                invokeStatic( METHOD_MONITOR, EXIT_METHOD );
+            }
+        }
+
+        @Override
+        public void visitMaxs( final int maxStack, final int maxLocals )
+        {
+            visitLabel( endLabel );
+            catchException( tryStart, endLabel, THROWABLE_TYPE );
+            onMethodExit( MIN_VALUE );
+            throwException();
+            super.visitMaxs( 0, 0 );
+        }
+    }
 }
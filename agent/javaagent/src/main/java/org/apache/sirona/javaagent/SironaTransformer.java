@@ -18,6 +18,7 @@ package org.apache.sirona.javaagent;
 
 import org.apache.sirona.javaagent.classloader.LoadFirstClassLoader;
 import org.apache.sirona.javaagent.logging.SironaAgentLogging;
+import org.apache.sirona.javaagent.tracking.PathTrackingPropagation;
 import org.apache.sirona.util.ClassLoaders;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
@@ -26,7 +27,10 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
+import java.lang.reflect.Field;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -39,8 +43,18 @@ public class SironaTransformer implements ClassFileTransformer {
     private final boolean debug;
     private final String[] autoClassLoaderExcludes;
     private final boolean skipTempLoader;
+    private final WovenClassCache cache;
 
     public SironaTransformer(final boolean debug, final boolean skipTempLoader, final String tempClassLoaders) {
+        this(debug, skipTempLoader, tempClassLoaders, WovenClassCache.fromConfiguration());
+    }
+
+    /**
+     * @param cache woven classes cache, can be null.
+     * @since 0.4
+     */
+    public SironaTransformer(final boolean debug, final boolean skipTempLoader, final String tempClassLoaders,
+                             final WovenClassCache cache) {
         this.debug = debug || Boolean.getBoolean("sirona.javaagent.debug");
         this.skipTempLoader = skipTempLoader || Boolean.getBoolean("sirona.javaagent.skipTempLoader");
 
@@ -50,6 +64,7 @@ public class SironaTransformer implements ClassFileTransformer {
                         tempClassLoaders :
                         "org.apache.openjpa.lib.util.TemporaryClassLoader,org.apache.openejb.core.TempClassLoader");
         this.autoClassLoaderExcludes = excludes.split(" *, *");
+        this.cache = cache;
     }
 
     public void evictClassLoaders() { // we will recreate them if needed
@@ -60,7 +75,13 @@ public class SironaTransformer implements ClassFileTransformer {
     public byte[] transform(final ClassLoader loader, final String className, final Class<?> classBeingRedefined,
                             final ProtectionDomain protectionDomain, final byte[] classfileBuffer) throws IllegalClassFormatException {
         if (shouldTransform(className, loader) && !isExcludedLoader(loader)) {
-            return doTransform(className, classfileBuffer);
+            // retransformations and de-instrumented methods depend on the runtime state,
+            // reconfiguration needs all the methods of the classes and not only the woven ones
+            if (cache != null && classBeingRedefined == null && !Deinstrumentation.hasDeinstrumentedMethods()
+                    && !Reconfiguration.isActive() && !isPropagationTarget(className)) {
+                return cachedTransform(loader, className, classfileBuffer);
+            }
+            return doTransform(loader, className, classfileBuffer, null, classBeingRedefined);
         }
         return classfileBuffer;
     }
@@ -79,16 +100,41 @@ public class SironaTransformer implements ClassFileTransformer {
         return LoadFirstClassLoader.class.getName().equals(name); // of course we exclude our internal loader
     }
 
+    private byte[] cachedTransform(final ClassLoader loader, final String className, final byte[] classfileBuffer) {
+        final String key = cache.key(classfileBuffer);
+        final WovenClassCache.Entry entry = cache.get(key);
+        if (entry == null) {
+            return doTransform(loader, className, classfileBuffer, key, null);
+        }
+
+        for (final String method : entry.getMethods()) { // what weaving would have registered
+            AgentContext.listeners(method, classfileBuffer);
+            Deinstrumentation.woven(method, className);
+        }
+        return entry.getBytecode() == null ? classfileBuffer : entry.getBytecode();
+    }
+
     protected byte[] doTransform(final String className, final byte[] classfileBuffer) {
+        return doTransform(ClassLoaders.current(), className, classfileBuffer, null, null);
+    }
+
+    private byte[] doTransform(final ClassLoader loader, final String className, final byte[] classfileBuffer,
+                               final String cacheKey, final Class<?> classBeingRedefined) {
         try {
             final ClassReader reader = new ClassReader(classfileBuffer);
             final ClassWriter writer = new SironaClassWriter(className == null ? null : className.replace('/', '.'),
-                    skipTempLoader ? null : tempClassLoaders, reader, ClassWriter.COMPUTE_FRAMES);
-            final SironaClassVisitor advisor = new SironaClassVisitor(writer, className, classfileBuffer);
-            reader.accept(advisor, ClassReader.SKIP_FRAMES);
+                    skipTempLoader ? null : tempClassLoaders, reader, ClassWriter.COMPUTE_FRAMES, loader);
+            final SironaClassVisitor advisor = new SironaClassVisitor(writer, className, classfileBuffer,
+                    classBeingRedefined == null ? null : monitorFields(classBeingRedefined));
+            final PropagationClassVisitor propagation = isPropagationTarget(className) ?
+                    new PropagationClassVisitor(advisor, className) : null;
+            reader.accept(propagation == null ? advisor : propagation, ClassReader.SKIP_FRAMES);
 
-            if (advisor.wasAdviced()) {
+            if (advisor.wasAdviced() || (propagation != null && propagation.wasWoven())) {
                 final byte[] bytes = writer.toByteArray();
+                if (cacheKey != null) {
+                    cache.put(cacheKey, advisor.getWovenMethods(), bytes);
+                }
                 if (debug) {
                     final File dump = new File(System.getProperty("java.io.tmpdir"), "sirona-dump/" + className + ".class");
                     dump.getParentFile().mkdirs();
@@ -105,6 +151,9 @@ public class SironaTransformer implements ClassFileTransformer {
                 }
                 return bytes;
             }
+            if (cacheKey != null) {
+                cache.put(cacheKey, advisor.getWovenMethods(), null);
+            }
             return classfileBuffer;
         } catch (final Throwable e) {
             if (SironaAgentLogging.AGENT_DEBUG) {
@@ -118,16 +167,60 @@ public class SironaTransformer implements ClassFileTransformer {
         }
     }
 
+    // don't load the visitor (and asm) for any class: it would be transformed while being loaded
+    private static boolean isPropagationTarget(final String className) {
+        return PathTrackingPropagation.isActive() && className != null && className.startsWith("java/util/concurrent/")
+                && PropagationClassVisitor.isTarget(className);
+    }
+
+    // declaration order, a retransformation can't change the fields
+    private static Collection<String> monitorFields(final Class<?> clazz) {
+        final Collection<String> fields = new ArrayList<String>();
+        for (final Field field : clazz.getDeclaredFields()) {
+            if (field.isSynthetic() && field.getName().startsWith(SironaClassVisitor.MONITOR_FIELD_PREFIX)) {
+                fields.add(field.getName());
+            }
+        }
+        return fields;
+    }
+
     public static class SironaClassWriter extends ClassWriter {
         private final ConcurrentMap<ClassLoader, ClassLoader> tempClassLoaders;
         private final String currentClass;
+        private final ClassReader classReader;
+        private final ClassLoader loader;
 
         public SironaClassWriter(final String currentClass,
                                  final ConcurrentMap<ClassLoader, ClassLoader> tempClassLoaders,
                                  final ClassReader classReader, final int flags) {
+            this(currentClass, tempClassLoaders, classReader, flags, ClassLoaders.current());
+        }
+
+        /**
+         * @param loader loader defining the class, used to read the class files of its hierarchy.
+         * @since 0.4
+         */
+        public SironaClassWriter(final String currentClass,
+                                 final ConcurrentMap<ClassLoader, ClassLoader> tempClassLoaders,
+                                 final ClassReader classReader, final int flags, final ClassLoader loader) {
             super(classReader, flags);
             this.currentClass = currentClass;
             this.tempClassLoaders = tempClassLoaders;
+            this.classReader = classReader;
+            this.loader = loader;
+        }
+
+        /**
+         * reads the class files of the hierarchy, classes are loaded only if a class file is not available
+         * (generated classes for instance).
+         */
+        @Override
+        protected String getCommonSuperClass(final String type1, final String type2) {
+            final String common = ClassHierarchy.getInstance().getCommonSuperClass(loader, classReader, type1, type2);
+            if (common != null) {
+                return common;
+            }
+            return getCommonSuperClassFromClasses(type1, type2);
         }
 
         /**
@@ -137,8 +230,7 @@ public class SironaTransformer implements ClassFileTransformer {
          * @param type2
          * @return
          */
-        @Override
-        protected String getCommonSuperClass(final String type1, final String type2) {
+        protected String getCommonSuperClassFromClasses(final String type1, final String type2) {
             final ClassLoader loader = createTempLoader();
             Class<?> c, d;
             try {
@@ -0,0 +1,435 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.javaagent;
+
+import org.apache.sirona.configuration.Configuration;
+import org.apache.sirona.javaagent.logging.SironaAgentLogging;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * On disk cache of woven classes to avoid to weave again unchanged classes at startup.
+ * <p/>
+ * Entries are keyed by a SHA-1 of the agent version, the agent configuration (sirona properties and
+ * available listeners) and the original class bytes. Classes without any woven method are cached too
+ * since reading them is what costs at startup. An entry also stores the woven method names to restore
+ * the listeners of the methods without weaving again.
+ * <p/>
+ * Each entry is checked (magic, key and CRC32) when read, a corrupted entry is deleted and the class is woven again.
+ * When the cache exceeds its maximum size, the oldest entries are deleted.
+ * <p/>
+ * Note: frames depend on the hierarchy of the classes used by the woven class, if a library changes
+ * this hierarchy without changing the woven class the cache directory should be cleared.
+ * <p/>
+ * Configuration: org.apache.sirona.javaagent.cache.directory (no cache if not set)
+ * and org.apache.sirona.javaagent.cache.max-size in MB (256).
+ */
+public class WovenClassCache {
+    public static final String DIRECTORY_KEY = Configuration.CONFIG_PROPERTY_PREFIX + "javaagent.cache.directory";
+    public static final String MAX_SIZE_KEY = Configuration.CONFIG_PROPERTY_PREFIX + "javaagent.cache.max-size";
+
+    private static final int MAGIC = 0x5349524f; // SIRO
+    private static final int FORMAT_VERSION = 1;
+    private static final String EXTENSION = ".woven";
+    private static final String AGENT_POM = "META-INF/maven/org.apache.sirona/sirona-javaagent/pom.properties";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+    private final long maxSize;
+    private final MessageDigest prefix; // digest of the agent and configuration, cloned for each class
+    private final AtomicLong size = new AtomicLong(0);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    public WovenClassCache(final File directory, final long maxSize, final String fingerprint) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.prefix = sha1();
+        this.prefix.update(bytes(fingerprint));
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Can't create " + directory.getAbsolutePath());
+        }
+        for (final File entry : entries()) {
+            size.addAndGet(entry.length());
+        }
+    }
+
+    /**
+     * @return the cache configured for this agent or null if not activated.
+     */
+    public static WovenClassCache fromConfiguration() {
+        final String directory = Configuration.getProperty(DIRECTORY_KEY, null);
+        if (directory == null || directory.trim().length() == 0) {
+            return null;
+        }
+
+        try {
+            return new WovenClassCache(new File(directory.trim()),
+                    Configuration.getInteger(MAX_SIZE_KEY, 256) * 1024L * 1024L, agentFingerprint());
+        } catch (final RuntimeException e) { // never prevent the agent to start
+            SironaAgentLogging.debug("can't use woven class cache {0}: {1}", directory, e.getMessage());
+            return null;
+        }
+    }
+
+    // everything changing the woven bytecode but the class itself
+    private static String agentFingerprint() {
+        final StringBuilder builder = new StringBuilder(agentVersion());
+
+        final Map<String, String> sorted = new TreeMap<String, String>();
+        final Properties properties = Configuration.properties();
+        for (final Object key : properties.keySet()) {
+            if (String.class.isInstance(key) && String.class.cast(key).startsWith(Configuration.CONFIG_PROPERTY_PREFIX)) {
+                sorted.put(String.class.cast(key), properties.getProperty(String.class.cast(key)));
+            }
+        }
+        sorted.putAll(prefixed("agent.", AgentContext.getAgentParameters()));
+        for (final Map.Entry<String, String> entry : sorted.entrySet()) {
+            builder.append('\n').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+
+        for (final String listener : AgentContext.listenerTypes()) {
+            builder.append('\n').append(listener);
+        }
+        return builder.toString();
+    }
+
+    private static Map<String, String> prefixed(final String prefix, final Map<String, String> values) {
+        final Map<String, String> out = new TreeMap<String, String>();
+        for (final Map.Entry<String, String> entry : values.entrySet()) {
+            out.put(prefix + entry.getKey(), entry.getValue());
+        }
+        return out;
+    }
+
+    // snapshots keep the same version so the weaver bytecode is part of the version
+    private static String agentVersion() {
+        String version = "unknown";
+        final InputStream pom = resource(AGENT_POM);
+        if (pom != null) {
+            try {
+                final Properties properties = new Properties();
+                properties.load(pom);
+                version = properties.getProperty("version", version);
+            } catch (final IOException e) {
+                // no-op
+            } finally {
+                close(pom);
+            }
+        }
+
+        final InputStream weaver = resource(SironaClassVisitor.class.getName().replace('.', '/') + ".class");
+        if (weaver != null) {
+            try {
+                version += '-' + hex(sha1().digest(read(weaver)));
+            } catch (final IOException e) {
+                // no-op
+            } finally {
+                close(weaver);
+            }
+        }
+        return version;
+    }
+
+    private static InputStream resource(final String name) {
+        final ClassLoader loader = WovenClassCache.class.getClassLoader();
+        return loader == null ? ClassLoader.getSystemResourceAsStream(name) : loader.getResourceAsStream(name);
+    }
+
+    public String key(final byte[] classfileBuffer) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.class.cast(prefix.clone());
+        } catch (final CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+        return hex(digest.digest(classfileBuffer));
+    }
+
+    /**
+     * @return the cached entry or null if missing or invalid.
+     */
+    public Entry get(final String key) {
+        final File file = file(key);
+        if (!file.isFile()) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || !key.equals(in.readUTF())) {
+                throw new IOException("not a woven class entry");
+            }
+
+            final CRC32 crc = new CRC32();
+            final long fileLength = file.length();
+            final int methodCount = in.readInt();
+            if (methodCount < 0 || methodCount > fileLength) {
+                throw new IOException("corrupted entry");
+            }
+
+            final String[] methods = new String[methodCount];
+            for (int i = 0; i < methods.length; i++) {
+                methods[i] = in.readUTF();
+                crc.update(bytes(methods[i]));
+            }
+
+            final int length = in.readInt();
+            byte[] bytecode = null;
+            if (length > fileLength) {
+                throw new IOException("corrupted entry");
+            } else if (length >= 0) {
+                bytecode = new byte[length];
+                in.readFully(bytecode);
+                crc.update(bytecode);
+            }
+            if (in.readLong() != crc.getValue()) {
+                throw new IOException("corrupted entry");
+            }
+
+            hits.incrementAndGet();
+            return new Entry(methods, bytecode);
+        } catch (final IOException e) { // including EOFException for truncated entries
+            SironaAgentLogging.debug("invalid woven class entry {0}: {1}", file, e.getMessage());
+            close(in);
+            in = null;
+            delete(file);
+            misses.incrementAndGet();
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * @param methods  woven method names.
+     * @param bytecode woven bytecode, null if the class was not woven.
+     */
+    public void put(final String key, final Collection<String> methods, final byte[] bytecode) {
+        final File file = file(key);
+        final File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            return;
+        }
+
+        // written in a temp file then renamed: readers (other JVMs too) never see a partial entry
+        final File tmp = new File(parent, key + '.' + Thread.currentThread().getId() + '.' + System.nanoTime() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(key);
+
+            final CRC32 crc = new CRC32();
+            out.writeInt(methods.size());
+            for (final String method : methods) {
+                out.writeUTF(method);
+                crc.update(bytes(method));
+            }
+            if (bytecode == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(bytecode.length);
+                out.write(bytecode);
+                crc.update(bytecode);
+            }
+            out.writeLong(crc.getValue());
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file))) {
+                delete(tmp);
+                return;
+            }
+        } catch (final IOException e) {
+            SironaAgentLogging.debug("can't cache woven class {0}: {1}", file, e.getMessage());
+            close(out);
+            delete(tmp);
+            return;
+        }
+
+        if (size.addAndGet(file.length()) > maxSize) {
+            evict();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getSize() {
+        return size.get();
+    }
+
+    // deletes the oldest entries until the cache is under 90% of its max size
+    private synchronized void evict() {
+        if (size.get() <= maxSize) { // already done
+            return;
+        }
+
+        final List<File> files = entries();
+        final File[] sorted = files.toArray(new File[files.size()]);
+        long total = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            total += sorted[i].length();
+        }
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(final File o1, final File o2) {
+                final long l1 = o1.lastModified();
+                final long l2 = o2.lastModified();
+                return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+            }
+        });
+
+        final long target = maxSize / 10 * 9;
+        for (int i = 0; i < sorted.length && total > target; i++) {
+            final long length = sorted[i].length();
+            if (sorted[i].delete()) {
+                total -= length;
+            }
+        }
+        size.set(total);
+    }
+
+    private List<File> entries() {
+        final List<File> out = new ArrayList<File>();
+        final File[] buckets = directory.listFiles();
+        if (buckets == null) {
+            return out;
+        }
+        for (final File bucket : buckets) {
+            final File[] files = bucket.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (final File file : files) {
+                if (file.getName().endsWith(EXTENSION)) {
+                    out.add(file);
+                }
+            }
+        }
+        return out;
+    }
+
+    private File file(final String key) {
+        return new File(new File(directory, key.substring(0, 2)), key + EXTENSION);
+    }
+
+    private void delete(final File file) {
+        final long length = file.length();
+        if (file.delete() && file.getName().endsWith(EXTENSION)) {
+            size.addAndGet(-length);
+        }
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] bytes(final String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (final IOException e) { // UTF-8 is always there
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] read(final InputStream stream) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = stream.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static String hex(final byte[] bytes) {
+        final char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            out[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(out);
+    }
+
+    private static void close(final Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (final IOException e) {
+                // no-op
+            }
+        }
+    }
+
+    public static class Entry {
+        private final String[] methods;
+        private final byte[] bytecode;
+
+        private Entry(final String[] methods, final byte[] bytecode) {
+            this.methods = methods;
+            this.bytecode = bytecode;
+        }
+
+        public String[] getMethods() {
+            return methods;
+        }
+
+        /**
+         * @return the woven bytecode or null if the class is not woven.
+         */
+        public byte[] getBytecode() {
+            return bytecode;
+        }
+    }
+}
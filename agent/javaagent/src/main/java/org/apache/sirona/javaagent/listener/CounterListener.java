@@ -21,6 +21,8 @@ import org.apache.sirona.configuration.ioc.AutoSet;
 import org.apache.sirona.configuration.predicate.PredicateEvaluator;
 import org.apache.sirona.counters.Counter;
 import org.apache.sirona.javaagent.AgentContext;
+import org.apache.sirona.javaagent.AgentOverhead;
+import org.apache.sirona.javaagent.MethodMonitor;
 import org.apache.sirona.javaagent.spi.InvocationListener;
 import org.apache.sirona.spi.Order;
 
@@ -30,8 +32,6 @@ public class CounterListener extends AbstractPerformanceInterceptor<String> impl
 
     public static final String DISABLE_PARAMETER_KEY = "disable-counter-listener";
 
-    private static final int KEY = -1;
-
     private PredicateEvaluator includes = ConfigurableListener.DEFAULT_INCLUDES;
     private PredicateEvaluator excludes = ConfigurableListener.DEFAULT_EXCLUDES;
 
@@ -55,25 +55,48 @@ public class CounterListener extends AbstractPerformanceInterceptor<String> impl
         this.excludes = new PredicateEvaluator(excludes, ",");
     }
 
+    // adaptive activation needs the whole interceptor logic so the agent can't use a MethodMonitor
+    public boolean isInlinable() {
+        return !isAdaptive();
+    }
+
     @Override
     public void before(final AgentContext ctx) {
-        final String key = ctx.getKey();
-        ctx.put(KEY, new CounterListener().before(key, key));
+        final String name = ctx.getCounterName(); // the key or the key suffixed by captured arguments
+        if (isInlinable()) { // same as the woven MethodMonitor: no context nor stopwatch allocation
+            ctx.setState(MethodMonitor.monitor(ctx.getKey()).enter(name, ctx.getSamplingRate())); // already sampled by AgentContext
+            ctx.setLongState(System.nanoTime() + AgentOverhead.correction()); // correction is 0 if not activated
+        } else {
+            ctx.setState(before(ctx.getKey(), name));
+        }
     }
 
     @Override
     public void after(final AgentContext context, final Object result, final Throwable error) {
-        final Context perfCtx = context.get(KEY, Context.class);
-        if (error == null) {
-            perfCtx.stop();
+        final Object state = context.getState();
+        if (Context.class.isInstance(state)) {
+            final Context perfCtx = Context.class.cast(state);
+            if (error == null) {
+                perfCtx.stop();
+            } else {
+                perfCtx.stopWithException(error);
+            }
+        } else if (error == null) {
+            MethodMonitor.exit(Counter.class.cast(state), context.getLongState());
         } else {
-            perfCtx.stopWithException(error);
+            MethodMonitor.exitWithException(Counter.class.cast(state), context.getLongState(), error);
         }
     }
 
+    // only method keys are cached, names suffixed by captured arguments are not
     @Override
     protected Counter.Key getKey(final String key, final String name) {
-        return AgentContext.key(key);
+        return key.equals(name) ? AgentContext.key(key) : super.getKey(key, name);
+    }
+
+    @Override
+    protected int getKeyId(final String key, final String name) {
+        return key.equals(name) ? AgentContext.keyId(key) : super.getKeyId(key, name);
     }
 
     @Override
@@ -33,8 +33,7 @@ import org.apache.sirona.spi.Order;
 
     private static final Integer PATH_TRACKER_KEY = -2;// "Sirona-path-tracker-key".hashCode();
 
-    private static final boolean TRACKING_ACTIVATED =
-        Configuration.is( Configuration.CONFIG_PROPERTY_PREFIX + "javaagent.path.tracking.activate", false );
+    public static final String ACTIVATE_KEY = Configuration.CONFIG_PROPERTY_PREFIX + "javaagent.path.tracking.activate";
 
 
     @Override
@@ -46,7 +45,8 @@ import org.apache.sirona.spi.Order;
             return false;
         }
 
-        return TRACKING_ACTIVATED;
+        // only called while weaving so read each time, it can be switched at runtime (see Reconfiguration)
+        return Configuration.is( ACTIVATE_KEY, false );
     }
 
     /**
@@ -0,0 +1,34 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.javaagent.spi;
+
+/**
+ * Optional contract of an {@link InvocationListener} reading
+ * {@link org.apache.sirona.javaagent.AgentContext#getMethodParameters()}: the woven code only builds
+ * the (boxed) parameter array of the methods where one of their listeners needs it.
+ * <p/>
+ * org.apache.sirona.javaagent.method.parameters.trace=true still builds it for all methods.
+ *
+ * @since 0.4
+ */
+public interface MethodParametersAware {
+    /**
+     * @param key the method, same format as {@link InvocationListener#accept(String, byte[])}.
+     * @return true if {@link org.apache.sirona.javaagent.AgentContext#getMethodParameters()} is used for this method.
+     */
+    boolean needsMethodParameters(String key);
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.javaagent.tracking;
+
+import org.apache.sirona.pathtracking.Context;
+import org.apache.sirona.pathtracking.PathTrackingEntry;
+import org.apache.sirona.pathtracking.PathTrackingEntryCodec;
+import org.apache.sirona.pathtracking.PathTrackingInformation;
+
+import java.util.List;
+
+/**
+ * Context recording the invocations of the path in a {@link PathTrackingBuffer},
+ * entries are encoded for the store or created when they are read.
+ */
+class BufferedContext
+    extends Context
+{
+    private final String node;
+
+    private PathTrackingBuffer buffer;
+
+    BufferedContext( final String uuid, final String node )
+    {
+        super( uuid );
+        this.node = node;
+        this.buffer = PathTrackingBuffer.acquire();
+    }
+
+    void setBase( final PathTrackingInformation root )
+    {
+        if ( buffer != null )
+        {
+            buffer.setBase( root.getStartDateNs() );
+        }
+    }
+
+    void record( final PathTrackingInformation information, final long duration )
+    {
+        if ( buffer != null )
+        {
+            buffer.record( information.getClassName(), information.getMethodName(), //
+                           information.getStartDateNs(), duration, information.getLevel() );
+        }
+    }
+
+    @Override
+    public List<PathTrackingEntry> getEntries()
+    {
+        final List<PathTrackingEntry> entries = super.getEntries();
+        if ( buffer != null && ( buffer.size() > 0 || buffer.getDropped() > 0 ) )
+        {
+            buffer.drainTo( getUuid(), node, entries );
+        }
+        return entries;
+    }
+
+    /**
+     * Encodes the entries of the path with {@link PathTrackingEntryCodec} without creating them,
+     * they are not returned by {@link #getEntries()} anymore.
+     *
+     * @return the encoded entries or null if there is none.
+     */
+    byte[] encodeEntries()
+    {
+        final List<PathTrackingEntry> entries = super.getEntries();
+        final int count = entries.size() + ( buffer == null ? 0 : buffer.entries() );
+        if ( count == 0 )
+        {
+            return null;
+        }
+
+        final PathTrackingEntryCodec.Encoder encoder = new PathTrackingEntryCodec.Encoder( count );
+        for ( final PathTrackingEntry entry : entries )
+        {
+            encoder.add( entry.getTrackingId(), entry.getNodeId(), entry.getClassName(), entry.getMethodName(), //
+                         entry.getStartTime(), entry.getExecutionTime(), entry.getLevel() );
+        }
+        entries.clear();
+        if ( buffer != null )
+        {
+            buffer.drainTo( getUuid(), node, encoder );
+        }
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Gives the buffer back to the pool once the entries are created, next invocations are not recorded.
+     */
+    void release()
+    {
+        if ( buffer != null )
+        {
+            getEntries();
+            PathTrackingBuffer.release( buffer );
+            buffer = null;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.sirona.javaagent.tracking;
+
+import org.apache.sirona.pathtracking.Context;
+
+/**
+ * Holds the context of the path tracked by the current thread, set when a path starts
+ * and removed when it ends so threads not tracking a path don't keep anything.
+ * <p/>
+ * On Java 21 VirtualThreadContextCarrier (src/main/java21, built with the java21 profile) is used.
+ * It is selected at runtime and not through a multi-release jar because the agent jar
+ * is appended to the bootstrap class path which ignores versioned entries.
+ */
+class ContextCarrier
+{
+    static final ContextCarrier INSTANCE = newInstance();
+
+    private final ThreadLocal<Context> context = new ThreadLocal<Context>();
+
+    Context get()
+    {
+        return context.get();
+    }
+
+    void set( final Context context )
+    {
+        this.context.set( context );
+    }
+
+    void remove()
+    {
+        context.remove();
+    }
+
+    private static ContextCarrier newInstance()
+    {
+        try
+        {
+            return ContextCarrier.class.cast(
+                Class.forName( "org.apache.sirona.javaagent.tracking.VirtualThreadContextCarrier", true,
+                               ContextCarrier.class.getClassLoader() ).newInstance() );
+        }
+        catch ( final Throwable e ) // not built with java 21 or running an older version
+        {
+            return new ContextCarrier();
+        }
+    }
+}
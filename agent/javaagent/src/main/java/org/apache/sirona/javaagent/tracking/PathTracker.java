@@ -28,6 +28,7 @@ import org.apache.sirona.pathtracking.UniqueIdGenerator;
 import org.apache.sirona.spi.Order;
 import org.apache.sirona.spi.SPI;
 import org.apache.sirona.store.DataStoreFactory;
+import org.apache.sirona.store.tracking.EncodedPathTrackingDataStore;
 import org.apache.sirona.store.tracking.PathTrackingDataStore;
 
 import java.util.ArrayList;
@@ -50,19 +51,18 @@ public class PathTracker
     private static final PathTrackingDataStore PATH_TRACKING_DATA_STORE =
         IoCs.findOrCreateInstance( DataStoreFactory.class ).getPathTrackingDataStore();
 
+    // buffered paths are given to this store encoded, entries are only created when the path is read
+    private static final EncodedPathTrackingDataStore ENCODED_DATA_STORE =
+        EncodedPathTrackingDataStore.class.isInstance( PATH_TRACKING_DATA_STORE )
+            ? EncodedPathTrackingDataStore.class.cast( PATH_TRACKING_DATA_STORE )
+            : null;
 
     private static final UniqueIdGenerator ID_GENERATOR =
         IoCs.findOrCreateInstance( UniqueIdGenerator.class );
 
 
-    private static final ThreadLocal<Context> THREAD_LOCAL = new ThreadLocal<Context>()
-    {
-        @Override
-        protected Context initialValue()
-        {
-            return new Context(ID_GENERATOR.next());
-        }
-    };
+    // start information of the contexts propagated to a task, the path doesn't start nor end in the task
+    private static final PathTrackingInformation PROPAGATED = new PathTrackingInformation( null, null );
 
     private final PathTrackingInformation currentPathTrackingInformation;
 
@@ -75,6 +75,9 @@ public class PathTracker
     private static boolean USE_STORE = Boolean.parseBoolean(
         Configuration.getProperty( Configuration.CONFIG_PROPERTY_PREFIX + "pathtracking.store", "true" ) );
 
+    // invocations are recorded in a PathTrackingBuffer until the path ends
+    private static final boolean BUFFERED = USE_STORE && !USE_SINGLE_STORE;
+
     protected static ExecutorService EXECUTORSERVICE;
 
     static
@@ -132,9 +135,87 @@ public class PathTracker
     }
 
 
-    private static void cleanUp()
+    // created for the root of a path only, see stop()
+    private static Context context()
+    {
+        Context context = ContextCarrier.INSTANCE.get();
+        if ( context == null )
+        {
+            context = newContext( ID_GENERATOR.next() );
+            ContextCarrier.INSTANCE.set( context );
+        }
+        return context;
+    }
+
+    private static Context newContext( final String uuid )
+    {
+        return BUFFERED ? new BufferedContext( uuid, NODE ) : new Context( uuid );
+    }
+
+    // gives the buffer of the path back to the current thread, the entries stay readable
+    private static void release( final Context context )
+    {
+        if ( BufferedContext.class.isInstance( context ) )
+        {
+            BufferedContext.class.cast( context ).release();
+        }
+    }
+
+    /**
+     * @return the context of the path tracked by the current thread or null.
+     */
+    static Context current()
     {
-        THREAD_LOCAL.remove();
+        final Context context = ContextCarrier.INSTANCE.get();
+        return context == null || context.getStartPathTrackingInformation() == null ? null : context;
+    }
+
+    /**
+     * Runs next invocations of the current thread as children of a path tracked by another thread.
+     *
+     * @return the context to restore calling {@link #suspend(Context)}.
+     */
+    static Context resume( final String uuid, final int level )
+    {
+        final Context previous = ContextCarrier.INSTANCE.get();
+        final Context child = newContext( uuid );
+        child.getLevel().set( level );
+        child.setStartPathTrackingInformation( PROPAGATED );
+        ContextCarrier.INSTANCE.set( child );
+        return previous;
+    }
+
+    /**
+     * Stores the entries of the child path (they belong to the parent path) and restores the previous context.
+     */
+    static void suspend( final Context previous )
+    {
+        final Context child = ContextCarrier.INSTANCE.get();
+        if ( previous == null )
+        {
+            ContextCarrier.INSTANCE.remove();
+        }
+        else
+        {
+            ContextCarrier.INSTANCE.set( previous );
+        }
+
+        if ( child != null && USE_STORE && !USE_SINGLE_STORE )
+        {
+            try
+            {
+                final Runnable task = storeTask( child );
+                if ( task != null )
+                {
+                    task.run();
+                }
+            }
+            catch ( Throwable e )
+            {
+                // as implementations can generate exception we simply ignore all exception happening here!!
+            }
+        }
+        release( child );
     }
 
     // An other solution could be using Thread.currentThread().getStackTrace() <- very slow
@@ -142,7 +223,7 @@ public class PathTracker
     public static PathTracker start( PathTrackingInformation currentPathTrackingInformation, final Object reference )
     {
 
-        final Context context = THREAD_LOCAL.get();
+        final Context context = context();
 
         int level = 0;
         final PathTrackingInformation startPathTrackingInformation = context.getStartPathTrackingInformation();
@@ -152,6 +233,10 @@ public class PathTracker
             level = context.getLevel().incrementAndGet();
             currentPathTrackingInformation.setLevel( level );
             context.setStartPathTrackingInformation( currentPathTrackingInformation );
+            if ( BufferedContext.class.isInstance( context ) )
+            {
+                BufferedContext.class.cast( context ).setBase( currentPathTrackingInformation );
+            }
         }
         else
         {
@@ -167,13 +252,26 @@ public class PathTracker
         {
             context.setStartPathObject( reference );
         }
-        for ( PathTrackingInvocationListener listener : LISTENERS )
+        boolean started = false;
+        try
         {
-            if ( level == 1 )
+            for ( PathTrackingInvocationListener listener : LISTENERS )
             {
-                listener.startPath( context );
+                if ( level == 1 )
+                {
+                    listener.startPath( context );
+                }
+                listener.enterMethod( currentPathTrackingInformation );
+            }
+            started = true;
+        }
+        finally
+        {
+            if ( !started && level == 1 ) // stop() will not be called, the next invocation of this thread starts a new path
+            {
+                ContextCarrier.INSTANCE.remove();
+                release( context );
             }
-            listener.enterMethod( currentPathTrackingInformation );
         }
 
         return new PathTracker( currentPathTrackingInformation );
@@ -183,14 +281,25 @@ public class PathTracker
     public void stop( final Object reference )
     {
         final long end = System.nanoTime();
-        final Context context = THREAD_LOCAL.get();
+        final Context context = ContextCarrier.INSTANCE.get();
+        if ( context == null ) // started before a reconfiguration for instance
+        {
+            return;
+        }
 
         final String uuid = context.getUuid();
 
         final PathTrackingInformation startPathTrackingInformation = context.getStartPathTrackingInformation();
 
-        // same invocation so no inc, class can do recursion so don't use classname/methodname
-        if ( startPathTrackingInformation != this.currentPathTrackingInformation )
+        // end of the root invocation: the information instance is created per invocation so it works
+        // for static methods and recursion too
+        final boolean root = startPathTrackingInformation == this.currentPathTrackingInformation;
+        if ( root )
+        {
+            // first so listeners can't prevent it, the next invocation of this thread starts a new path
+            ContextCarrier.INSTANCE.remove();
+        }
+        else // same invocation so no inc, class can do recursion so don't use classname/methodname
         {
             context.getLevel().decrementAndGet();
         }
@@ -204,45 +313,35 @@ public class PathTracker
             }
         }
 
-        final PathTrackingEntry pathTrackingEntry =
-            new PathTrackingEntry( uuid, NODE, this.currentPathTrackingInformation.getClassName(), //
-                                   this.currentPathTrackingInformation.getMethodName(), //
-                                   currentPathTrackingInformation.getStartDateNs(), //
-                                   ( end - currentPathTrackingInformation.getStart() ), //
-                                   this.currentPathTrackingInformation.getLevel() );
-
+        final long duration = end - currentPathTrackingInformation.getStart();
         if ( USE_STORE )
         {
             if ( USE_SINGLE_STORE )
             {
-                PATH_TRACKING_DATA_STORE.store( pathTrackingEntry );
+                PATH_TRACKING_DATA_STORE.store(
+                    new PathTrackingEntry( uuid, NODE, this.currentPathTrackingInformation.getClassName(), //
+                                           this.currentPathTrackingInformation.getMethodName(), //
+                                           currentPathTrackingInformation.getStartDateNs(), //
+                                           duration, //
+                                           this.currentPathTrackingInformation.getLevel() ) );
             }
-            else
+            else if ( BufferedContext.class.isInstance( context ) ) // no entry until the path is read
             {
-                context.getEntries().add( pathTrackingEntry );
+                BufferedContext.class.cast( context ).record( this.currentPathTrackingInformation, duration );
             }
         }
-        if ( this.currentPathTrackingInformation.getLevel() == 1 && //
-            ( context.getStartPathObject() != null && context.getStartPathObject() == reference ) )
-        { // 0 is never reached so 1 is first
+        if ( root )
+        {
             if ( USE_STORE && !USE_SINGLE_STORE )
             {
                 try
                 {
-                    Runnable runnable = new Runnable()
-                    {
-                        @Override
-                        public void run()
-                        {
-                            PATH_TRACKING_DATA_STORE.store( context.getEntries() );
-                            PathTracker.cleanUp();
-                        }
-                    };
-                    if ( USE_EXECUTORS )
+                    final Runnable runnable = storeTask( context );
+                    if ( runnable != null && USE_EXECUTORS )
                     {
                         EXECUTORSERVICE.submit( runnable );
                     }
-                    else
+                    else if ( runnable != null )
                     {
                         runnable.run();
                     }
@@ -264,10 +363,44 @@ public class PathTracker
                     // as listener implementations can generate exception we simply ignore all exception happening here!!
                 }
             }
+            release( context );
+        }
+    }
 
-            THREAD_LOCAL.remove();
+    // entries are encoded or created here, not in the executor: the buffer of the context is released after
+    private static Runnable storeTask( final Context context )
+    {
+        if ( ENCODED_DATA_STORE != null && BufferedContext.class.isInstance( context ) )
+        {
+            final String uuid = context.getUuid();
+            final byte[] entries = BufferedContext.class.cast( context ).encodeEntries();
+            if ( entries == null )
+            {
+                return null;
+            }
+            return new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    ENCODED_DATA_STORE.store( uuid, entries );
+                }
+            };
+        }
 
+        final List<PathTrackingEntry> entries = context.getEntries();
+        if ( entries.isEmpty() )
+        {
+            return null;
         }
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                PATH_TRACKING_DATA_STORE.store( entries );
+            }
+        };
     }
 
     @Destroying
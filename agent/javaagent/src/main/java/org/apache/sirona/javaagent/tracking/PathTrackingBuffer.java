@@ -0,0 +1,402 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.javaagent.tracking;
+
+import org.apache.sirona.configuration.Configuration;
+import org.apache.sirona.pathtracking.PathTrackingEntry;
+import org.apache.sirona.pathtracking.PathTrackingEntryCodec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Invocations of a path recorded as primitives: 3 longs per invocation (interned class/method id and level,
+ * start offset from the path start, duration). They are encoded with {@link PathTrackingEntryCodec} when the path
+ * ends (see {@link BufferedContext#encodeEntries()}), {@link PathTrackingEntry} instances are only created
+ * when the path is read or if the store doesn't accept encoded entries (see {@link BufferedContext#getEntries()}).
+ * <p/>
+ * A buffer grows up to org.apache.sirona.pathtracking.buffer.max-entries invocations, next ones are dropped
+ * and reported by a {@link #TRUNCATED} entry when the entries are created.
+ * Once the path ended it is reset and put back in a small shared pool if it didn't grow too much.
+ * <p/>
+ * Class and method names are interned in a table shared by all the buffers, up to
+ * org.apache.sirona.pathtracking.buffer.max-methods methods. Next ones are kept by the buffer for its current path.
+ */
+class PathTrackingBuffer
+{
+    /**
+     * Class name of the entry marking a truncated path, its method name gives the number of dropped invocations.
+     */
+    static final String TRUNCATED = "org.apache.sirona.pathtracking.Truncated";
+
+    private static final int MAX_ENTRIES =
+        Math.max( 1, Configuration.getInteger( Configuration.CONFIG_PROPERTY_PREFIX + "pathtracking.buffer.max-entries", 10000 ) );
+
+    private static final int INITIAL_ENTRIES = Math.min( 64, MAX_ENTRIES );
+
+    // bigger buffers are not pooled, the pool would hold them forever
+    private static final int RETAINED_ENTRIES = Math.min( 256, MAX_ENTRIES );
+
+    private static final int STRIDE = 3;
+
+    // no thread local: a lookup per path is not free with virtual threads and pooled threads would keep a buffer each
+    private static final AtomicReferenceArray<PathTrackingBuffer> POOL =
+        new AtomicReferenceArray<PathTrackingBuffer>( Integer.highestOneBit( Runtime.getRuntime().availableProcessors() ) * 2 );
+
+    private static final int POOL_PROBES = Math.min( 4, POOL.length() );
+
+    private static final Names NAMES = new Names(
+        Math.max( 0, Configuration.getInteger( Configuration.CONFIG_PROPERTY_PREFIX + "pathtracking.buffer.max-methods", 65536 ) ) );
+
+    private final Names names;
+
+    private long[] events = new long[INITIAL_ENTRIES * STRIDE];
+
+    private int size = 0;
+
+    private int dropped = 0;
+
+    private long droppedAt = 0; // offset of the first dropped invocation
+
+    private long base = 0;
+
+    private boolean hasBase = false;
+
+    private List<String> localNames; // class and method names which didn't fit in the shared table, id is -(index + 1)
+
+    PathTrackingBuffer()
+    {
+        this( NAMES );
+    }
+
+    PathTrackingBuffer( final Names names )
+    {
+        this.names = names;
+    }
+
+    static PathTrackingBuffer acquire()
+    {
+        final int start = poolIndex();
+        for ( int i = 0; i < POOL_PROBES; i++ )
+        {
+            final int index = ( start + i ) & ( POOL.length() - 1 );
+            final PathTrackingBuffer pooled = POOL.get( index );
+            if ( pooled != null && POOL.compareAndSet( index, pooled, null ) )
+            {
+                return pooled;
+            }
+        }
+        return new PathTrackingBuffer();
+    }
+
+    static void release( final PathTrackingBuffer buffer )
+    {
+        if ( buffer.events.length > RETAINED_ENTRIES * STRIDE || buffer.names != NAMES )
+        {
+            return;
+        }
+
+        buffer.reset();
+        final int start = poolIndex();
+        for ( int i = 0; i < POOL_PROBES; i++ )
+        {
+            final int index = ( start + i ) & ( POOL.length() - 1 );
+            if ( POOL.get( index ) == null && POOL.compareAndSet( index, null, buffer ) )
+            {
+                return;
+            }
+        }
+    }
+
+    // threads tend to use their own slot so they don't compete for the same buffers
+    private static int poolIndex()
+    {
+        final long id = Thread.currentThread().getId();
+        return (int) ( id ^ ( id >>> 16 ) ) & ( POOL.length() - 1 );
+    }
+
+    /**
+     * @return the id of the method in the shared table or -1 if it is full.
+     */
+    static int id( final String className, final String methodName )
+    {
+        return NAMES.id( className, methodName );
+    }
+
+    /**
+     * @param startDateNs start of the path, offsets are relative to it.
+     */
+    void setBase( final long startDateNs )
+    {
+        base = startDateNs;
+        hasBase = true;
+    }
+
+    void record( final String className, final String methodName, final long startDateNs, final long duration,
+                 final int level )
+    {
+        int id = names.id( className, methodName );
+        if ( id < 0 )
+        {
+            id = localId( className, methodName );
+        }
+        record( id, startDateNs, duration, level );
+    }
+
+    void record( final int id, final long startDateNs, final long duration, final int level )
+    {
+        if ( !hasBase ) // propagated paths, their first invocation
+        {
+            setBase( startDateNs );
+        }
+
+        final int index = size * STRIDE;
+        if ( index == events.length )
+        {
+            if ( size >= MAX_ENTRIES )
+            {
+                if ( dropped++ == 0 )
+                {
+                    droppedAt = startDateNs - base;
+                }
+                return;
+            }
+
+            final long[] bigger = new long[Math.min( size * 2, MAX_ENTRIES ) * STRIDE];
+            System.arraycopy( events, 0, bigger, 0, events.length );
+            events = bigger;
+        }
+
+        events[index] = ( (long) id << 32 ) | ( level & 0xFFFFFFFFL );
+        events[index + 1] = startDateNs - base;
+        events[index + 2] = duration;
+        size++;
+    }
+
+    /**
+     * Creates the entries of the recorded invocations, followed by a {@link #TRUNCATED} one if some were dropped,
+     * and forgets them.
+     */
+    void drainTo( final String uuid, final String node, final List<PathTrackingEntry> entries )
+    {
+        for ( int i = 0; i < size; i++ )
+        {
+            final int index = i * STRIDE;
+            final int id = (int) ( events[index] >>> 32 );
+            entries.add( new PathTrackingEntry( uuid, node, className( id ), methodName( id ), //
+                                                base + events[index + 1], events[index + 2], (int) events[index] ) );
+        }
+        if ( dropped > 0 )
+        {
+            entries.add( new PathTrackingEntry( uuid, node, TRUNCATED, truncatedMethodName(), base + droppedAt, 0, 1 ) );
+        }
+        clear();
+    }
+
+    /**
+     * Same as {@link #drainTo(String, String, List)} but writes the entries in an encoder
+     * expecting at least {@link #entries()} entries.
+     */
+    void drainTo( final String uuid, final String node, final PathTrackingEntryCodec.Encoder encoder )
+    {
+        for ( int i = 0; i < size; i++ )
+        {
+            final int index = i * STRIDE;
+            final int id = (int) ( events[index] >>> 32 );
+            encoder.add( uuid, node, className( id ), methodName( id ), //
+                         base + events[index + 1], events[index + 2], (int) events[index] );
+        }
+        if ( dropped > 0 )
+        {
+            encoder.add( uuid, node, TRUNCATED, truncatedMethodName(), base + droppedAt, 0, 1 );
+        }
+        clear();
+    }
+
+    /**
+     * @return the number of entries the buffer gives when drained.
+     */
+    int entries()
+    {
+        return size + ( dropped > 0 ? 1 : 0 );
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    int getDropped()
+    {
+        return dropped;
+    }
+
+    private int localId( final String className, final String methodName )
+    {
+        if ( localNames == null )
+        {
+            localNames = new ArrayList<String>();
+        }
+        for ( int i = 0; i < localNames.size(); i += 2 )
+        {
+            if ( localNames.get( i ).equals( className ) && localNames.get( i + 1 ).equals( methodName ) )
+            {
+                return -( i / 2 + 1 );
+            }
+        }
+        localNames.add( className );
+        localNames.add( methodName );
+        return -( localNames.size() / 2 );
+    }
+
+    private String className( final int id )
+    {
+        return id >= 0 ? names.className( id ) : localNames.get( 2 * ( -id - 1 ) );
+    }
+
+    private String methodName( final int id )
+    {
+        return id >= 0 ? names.methodName( id ) : localNames.get( 2 * ( -id - 1 ) + 1 );
+    }
+
+    private String truncatedMethodName()
+    {
+        return "dropped(" + dropped + ")";
+    }
+
+    private void clear()
+    {
+        size = 0;
+        dropped = 0;
+    }
+
+    private void reset()
+    {
+        clear();
+        droppedAt = 0;
+        base = 0;
+        hasBase = false;
+        localNames = null;
+    }
+
+    /**
+     * Interned class and method names: ids are allocated without lock and names are stored in chunks
+     * created on demand, up to a maximum number of methods.
+     */
+    static class Names
+    {
+        private static final int CHUNK_BITS = 10;
+
+        private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+        private final ConcurrentMap<String, ConcurrentMap<String, Integer>> ids =
+            new ConcurrentHashMap<String, ConcurrentMap<String, Integer>>();
+
+        private final AtomicInteger nextId = new AtomicInteger();
+
+        private final AtomicReferenceArray<String[]> chunks; // class name then method name
+
+        private final int capacity;
+
+        Names( final int capacity )
+        {
+            this.capacity = capacity;
+            this.chunks = new AtomicReferenceArray<String[]>( ( capacity + CHUNK_SIZE - 1 ) >>> CHUNK_BITS );
+        }
+
+        /**
+         * @return the id of the method or -1 if the table is full.
+         */
+        int id( final String className, final String methodName )
+        {
+            final ConcurrentMap<String, Integer> methods = ids.get( className );
+            if ( methods != null )
+            {
+                final Integer id = methods.get( methodName );
+                if ( id != null )
+                {
+                    return id;
+                }
+            }
+            return register( className, methodName );
+        }
+
+        private int register( final String className, final String methodName )
+        {
+            if ( nextId.get() >= capacity )
+            {
+                return -1;
+            }
+
+            ConcurrentMap<String, Integer> methods = ids.get( className );
+            if ( methods == null )
+            {
+                methods = new ConcurrentHashMap<String, Integer>();
+                final ConcurrentMap<String, Integer> existing = ids.putIfAbsent( className, methods );
+                if ( existing != null )
+                {
+                    methods = existing;
+                }
+            }
+
+            final int id = nextId.getAndIncrement();
+            if ( id >= capacity )
+            {
+                return -1;
+            }
+
+            final String[] chunk = chunk( id >>> CHUNK_BITS );
+            final int index = 2 * ( id & ( CHUNK_SIZE - 1 ) );
+            chunk[index] = className;
+            chunk[index + 1] = methodName;
+
+            // publishes the names, if another thread registered the method first this id stays unused
+            final Integer existing = methods.putIfAbsent( methodName, id );
+            return existing == null ? id : existing;
+        }
+
+        String className( final int id )
+        {
+            return chunks.get( id >>> CHUNK_BITS )[2 * ( id & ( CHUNK_SIZE - 1 ) )];
+        }
+
+        String methodName( final int id )
+        {
+            return chunks.get( id >>> CHUNK_BITS )[2 * ( id & ( CHUNK_SIZE - 1 ) ) + 1];
+        }
+
+        int size()
+        {
+            return Math.min( nextId.get(), capacity );
+        }
+
+        private String[] chunk( final int index )
+        {
+            final String[] chunk = chunks.get( index );
+            if ( chunk != null )
+            {
+                return chunk;
+            }
+            chunks.compareAndSet( index, null, new String[2 * CHUNK_SIZE] );
+            return chunks.get( index );
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.sirona.javaagent.tracking;
+
+import org.apache.sirona.configuration.Configuration;
+import org.apache.sirona.pathtracking.Context;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Propagates the tracked path of a thread to the tasks it submits to a thread pool:
+ * the task captures the path id and the current level when submitted and its invocations
+ * are recorded in the same path, one level under the submitting method.
+ * <p/>
+ * Activated with org.apache.sirona.javaagent.path.tracking.propagation=true (default false),
+ * the agent then wraps the tasks submitted through the JDK executors (see PropagationClassVisitor).
+ * When the submitting thread doesn't track a path the task is not wrapped.
+ * <p/>
+ * <b>It's not part of the public api!!</b> Woven JDK code calls it.
+ */
+public final class PathTrackingPropagation
+{
+    public static final String ACTIVATE_KEY =
+        Configuration.CONFIG_PROPERTY_PREFIX + "javaagent.path.tracking.propagation";
+
+    private static final boolean ACTIVE = Configuration.is( ACTIVATE_KEY, false );
+
+    private PathTrackingPropagation()
+    {
+        // no-op
+    }
+
+    public static boolean isActive()
+    {
+        return ACTIVE;
+    }
+
+    public static Runnable wrap( final Runnable task )
+    {
+        if ( task == null || PropagatingRunnable.class.isInstance( task ) )
+        {
+            return task;
+        }
+
+        final Context context = current();
+        if ( context == null )
+        {
+            return task;
+        }
+        return new PropagatingRunnable( task, context.getUuid(), context.getLevel().get() );
+    }
+
+    public static <T> Callable<T> wrap( final Callable<T> task )
+    {
+        if ( task == null || PropagatingCallable.class.isInstance( task ) )
+        {
+            return task;
+        }
+
+        final Context context = current();
+        if ( context == null )
+        {
+            return task;
+        }
+        return new PropagatingCallable<T>( task, context.getUuid(), context.getLevel().get() );
+    }
+
+    private static Context current()
+    {
+        try
+        {
+            return PathTracker.current();
+        }
+        catch ( final Throwable e ) // PathTracker being initialized, it can use an executor
+        {
+            return null;
+        }
+    }
+
+    private static class PropagatingRunnable
+        implements Runnable
+    {
+        private final Runnable delegate;
+
+        private final String uuid;
+
+        private final int level;
+
+        private PropagatingRunnable( final Runnable delegate, final String uuid, final int level )
+        {
+            this.delegate = delegate;
+            this.uuid = uuid;
+            this.level = level;
+        }
+
+        @Override
+        public void run()
+        {
+            final Context previous = PathTracker.resume( uuid, level );
+            try
+            {
+                delegate.run();
+            }
+            finally
+            {
+                PathTracker.suspend( previous );
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return delegate.toString();
+        }
+    }
+
+    private static class PropagatingCallable<T>
+        implements Callable<T>
+    {
+        private final Callable<T> delegate;
+
+        private final String uuid;
+
+        private final int level;
+
+        private PropagatingCallable( final Callable<T> delegate, final String uuid, final int level )
+        {
+            this.delegate = delegate;
+            this.uuid = uuid;
+            this.level = level;
+        }
+
+        @Override
+        public T call()
+            throws Exception
+        {
+            final Context previous = PathTracker.resume( uuid, level );
+            try
+            {
+                return delegate.call();
+            }
+            finally
+            {
+                PathTracker.suspend( previous );
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return delegate.toString();
+        }
+    }
+}
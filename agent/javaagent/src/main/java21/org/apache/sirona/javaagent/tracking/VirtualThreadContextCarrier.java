@@ -0,0 +1,107 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.sirona.javaagent.tracking;
+
+import org.apache.sirona.pathtracking.Context;
+import org.codehaus.mojo.animal_sniffer.IgnoreJRERequirement;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A thread local read by a virtual thread allocates the thread local map of this thread even
+ * when it doesn't track a path, and there can be millions of them. Virtual threads use a map
+ * keyed by the thread instead, an entry only exists between the start and the end of a path.
+ * A path can still miss its end (tracking deactivated during the path for instance), so entries of
+ * terminated threads are removed each time the map doubled since the previous sweep.
+ * Platform threads keep the thread local.
+ */
+@IgnoreJRERequirement
+class VirtualThreadContextCarrier
+    extends ContextCarrier
+{
+    private static final int MIN_SWEEP_SIZE = 1024;
+
+    private final Map<Thread, Context> virtualThreads = new ConcurrentHashMap<Thread, Context>();
+
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    private volatile int sweepAt = MIN_SWEEP_SIZE;
+
+    @Override
+    Context get()
+    {
+        final Thread thread = Thread.currentThread();
+        return thread.isVirtual() ? virtualThreads.get( thread ) : super.get();
+    }
+
+    @Override
+    void set( final Context context )
+    {
+        final Thread thread = Thread.currentThread();
+        if ( thread.isVirtual() )
+        {
+            if ( virtualThreads.put( thread, context ) == null && virtualThreads.size() >= sweepAt )
+            {
+                sweep();
+            }
+        }
+        else
+        {
+            super.set( context );
+        }
+    }
+
+    @Override
+    void remove()
+    {
+        final Thread thread = Thread.currentThread();
+        if ( thread.isVirtual() )
+        {
+            virtualThreads.remove( thread );
+        }
+        else
+        {
+            super.remove();
+        }
+    }
+
+    private void sweep()
+    {
+        if ( !sweeping.compareAndSet( false, true ) )
+        {
+            return;
+        }
+        try
+        {
+            for ( final Iterator<Thread> threads = virtualThreads.keySet().iterator(); threads.hasNext(); )
+            {
+                if ( !threads.next().isAlive() )
+                {
+                    threads.remove();
+                }
+            }
+            sweepAt = Math.max( MIN_SWEEP_SIZE, 2 * virtualThreads.size() );
+        }
+        finally
+        {
+            sweeping.set( false );
+        }
+    }
+}
@@ -180,11 +180,11 @@ public class JavaAgentRunner extends BlockJUnit4ClassRunner {
         if (sysProps.length() > 0) {
             String[] splittedProps = StringUtils.split(sysProps, "|");
             for (String props : splittedProps) {
-                String[] prop = StringUtils.split(props, "=");
-                String key = prop[0];
+                int equals = props.indexOf('='); // values can contain '=' (agent rules)
+                String key = equals < 0 ? props : props.substring(0, equals);
                 String value = "";
-                if (prop.length > 1) {
-                    value = prop[1];
+                if (equals >= 0) {
+                    value = props.substring(equals + 1);
                 }
                 args.add("-D" + key + "=" + StrSubstitutor.replace(value, System.getProperties()));
             }
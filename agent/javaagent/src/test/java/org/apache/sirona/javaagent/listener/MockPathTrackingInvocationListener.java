@@ -53,12 +53,18 @@ public class MockPathTrackingInvocationListener
 
     Map<String, AgentContext> contextPerKey = new HashMap<String, AgentContext>();
 
+    RuntimeException startPathFailure = null; // thrown by startPath() when set
+
 
     @Override
     public void startPath( Context context )
     {
         START_PATH_CALLED = true;
         startPathCallCount++;
+        if ( startPathFailure != null )
+        {
+            throw startPathFailure;
+        }
     }
 
     @Override
@@ -0,0 +1,256 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.javaagent.listener;
+
+import org.apache.sirona.javaagent.AgentArgs;
+import org.apache.sirona.javaagent.JavaAgentRunner;
+import org.apache.sirona.javaagent.tracking.PathTracker;
+import org.apache.sirona.pathtracking.PathTrackingInformation;
+import org.apache.sirona.pathtracking.PathTrackingInvocationListener;
+import org.apache.test.sirona.javaagent.ShortTask;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * paths of short lived threads (or pooled threads) shouldn't leave anything behind them
+ */
+@RunWith( JavaAgentRunner.class )
+public class PathTrackingRetainedHeapTest
+{
+    private static final int THREADS = 100000;
+
+    private static final long MAX_GROWTH = 4 * 1024 * 1024;
+
+    @Test
+    @AgentArgs( value = "",
+                sysProps = "org.apache.sirona.javaagent.path.tracking.activate=true|org.apache.sirona.pathtracking.store=false" )
+    public void shortLivedThreads()
+        throws Exception
+    {
+        final MockPathTrackingInvocationListener mock = mock();
+
+        startThreads( 10000, false ); // warm up
+        final long before = usedHeap( mock );
+
+        startThreads( THREADS, false );
+        assertLevels( mock, THREADS );
+        final long after = usedHeap( mock );
+
+        Assert.assertTrue( "heap grew of " + ( after - before ) + " bytes", after - before < MAX_GROWTH );
+
+        if ( startVirtualThread() != null ) // java 21, uses VirtualThreadContextCarrier
+        {
+            startThreads( 10000, true );
+            final long beforeVirtual = usedHeap( mock );
+
+            startThreads( THREADS, true );
+            assertLevels( mock, THREADS );
+            final long afterVirtual = usedHeap( mock );
+
+            Assert.assertTrue( "heap grew of " + ( afterVirtual - beforeVirtual ) + " bytes",
+                               afterVirtual - beforeVirtual < MAX_GROWTH );
+        }
+    }
+
+    @Test
+    @AgentArgs( value = "",
+                sysProps = "org.apache.sirona.javaagent.path.tracking.activate=true|org.apache.sirona.pathtracking.store=false" )
+    public void staticRootsInAPool()
+        throws Exception
+    {
+        final MockPathTrackingInvocationListener mock = mock();
+        final ExecutorService pool = Executors.newSingleThreadExecutor();
+        try
+        {
+            final Runnable task = new Runnable() // not woven, the root is the static method
+            {
+                public void run()
+                {
+                    ShortTask.staticRoot();
+                }
+            };
+
+            for ( int i = 0; i < 10000; i++ )
+            {
+                pool.submit( task ).get();
+            }
+            final long before = usedHeap( mock );
+
+            for ( int i = 0; i < THREADS; i++ )
+            {
+                pool.submit( task ).get();
+            }
+            assertLevels( mock, THREADS ); // each task is a new path
+            final long after = usedHeap( mock );
+
+            Assert.assertTrue( "heap grew of " + ( after - before ) + " bytes", after - before < MAX_GROWTH );
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    @AgentArgs( value = "",
+                sysProps = "org.apache.sirona.javaagent.path.tracking.activate=true|org.apache.sirona.pathtracking.store=false" )
+    public void failedStarts()
+        throws Exception
+    {
+        final MockPathTrackingInvocationListener mock = mock();
+        final ExecutorService pool = Executors.newSingleThreadExecutor();
+        try
+        {
+            final Runnable task = new Runnable()
+            {
+                public void run()
+                {
+                    ShortTask.staticRoot();
+                }
+            };
+
+            mock.startPathFailure = new IllegalStateException( "failed start" );
+            try
+            {
+                pool.submit( task ).get();
+                Assert.fail();
+            }
+            catch ( final ExecutionException ee )
+            {
+                Assert.assertSame( mock.startPathFailure, ee.getCause() );
+            }
+            mock.startPathFailure = null;
+
+            mock();
+            pool.submit( task ).get();
+            assertLevels( mock, 1 ); // a new path, not a child of the failed one
+
+            if ( startVirtualThread() != null ) // the context of a virtual thread is not dropped with the thread
+            {
+                final Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+                Thread.setDefaultUncaughtExceptionHandler( new Thread.UncaughtExceptionHandler()
+                {
+                    public void uncaughtException( final Thread t, final Throwable e )
+                    {
+                        // expected, the root fails
+                    }
+                } );
+                try
+                {
+                    mock.startPathFailure = new IllegalStateException( "failed start" );
+                    startThreads( 10000, true );
+                    final long before = usedHeap( mock );
+
+                    startThreads( THREADS, true );
+                    final long after = usedHeap( mock );
+
+                    Assert.assertTrue( "heap grew of " + ( after - before ) + " bytes", after - before < MAX_GROWTH );
+                }
+                finally
+                {
+                    Thread.setDefaultUncaughtExceptionHandler( handler );
+                }
+            }
+        }
+        finally
+        {
+            mock.startPathFailure = null;
+            pool.shutdownNow();
+        }
+    }
+
+    private static void startThreads( final int count, final boolean virtual )
+        throws Exception
+    {
+        final Method startVirtualThread = virtual ? startVirtualThread() : null;
+        for ( int i = 0; i < count; i++ ) // one at a time, the mock is not thread safe
+        {
+            final Thread thread;
+            if ( virtual )
+            {
+                thread = (Thread) startVirtualThread.invoke( null, new ShortTask() );
+            }
+            else
+            {
+                thread = new Thread( new ShortTask() );
+                thread.start();
+            }
+            thread.join();
+        }
+    }
+
+    private static Method startVirtualThread()
+    {
+        try
+        {
+            return Thread.class.getMethod( "startVirtualThread", Runnable.class );
+        }
+        catch ( final NoSuchMethodException e )
+        {
+            return null;
+        }
+    }
+
+    // roots have the level 1 and their leaf the level 2
+    private static void assertLevels( final MockPathTrackingInvocationListener mock, final int paths )
+    {
+        Assert.assertEquals( 2 * paths, mock.entered.size() );
+        for ( final PathTrackingInformation information : mock.entered )
+        {
+            final int expected = "leaf()".equals( information.getMethodName() ) ? 2 : 1;
+            Assert.assertEquals( information.toString(), expected, information.getLevel() );
+        }
+    }
+
+    private static long usedHeap( final MockPathTrackingInvocationListener mock )
+        throws InterruptedException
+    {
+        // the mock keeps all the invocations
+        mock.entered = new ArrayList<PathTrackingInformation>();
+        mock.exit = new ArrayList<PathTrackingInformation>();
+
+        final Runtime runtime = Runtime.getRuntime();
+        for ( int i = 0; i < 3; i++ )
+        {
+            System.gc();
+            Thread.sleep( 100 );
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static MockPathTrackingInvocationListener mock()
+    {
+        for ( final PathTrackingInvocationListener listener : PathTracker.getPathTrackingInvocationListeners() )
+        {
+            if ( MockPathTrackingInvocationListener.class.isInstance( listener ) )
+            {
+                final MockPathTrackingInvocationListener mock = MockPathTrackingInvocationListener.class.cast( listener );
+                mock.entered = new ArrayList<PathTrackingInformation>();
+                mock.exit = new ArrayList<PathTrackingInformation>();
+                return mock;
+            }
+        }
+        throw new IllegalStateException( "MockPathTrackingInvocationListener not registered" );
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.javaagent.tracking;
+
+import org.apache.sirona.pathtracking.Context;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ContextCarrierTest
+{
+    @Test
+    public void setGetRemove()
+    {
+        final ContextCarrier carrier = new ContextCarrier();
+        assertNull( carrier.get() );
+
+        final Context context = new Context( "path" );
+        carrier.set( context );
+        assertSame( context, carrier.get() );
+
+        carrier.remove();
+        assertNull( carrier.get() );
+    }
+
+    // paths which never reached their end (a listener failed for instance) in terminated virtual threads
+    @Test
+    public void terminatedVirtualThreadsAreSwept()
+        throws Exception
+    {
+        final Method startVirtualThread = startVirtualThread();
+        if ( startVirtualThread == null ) // before java 21
+        {
+            return;
+        }
+
+        final ContextCarrier carrier = ContextCarrier.class.cast(
+            Class.forName( "org.apache.sirona.javaagent.tracking.VirtualThreadContextCarrier" ).newInstance() );
+
+        final Context alive = new Context( "alive" );
+        final AtomicReference<Context> seen = new AtomicReference<Context>();
+        final CountDownLatch started = new CountDownLatch( 1 );
+        final CountDownLatch end = new CountDownLatch( 1 );
+        final Thread running = (Thread) startVirtualThread.invoke( null, new Runnable()
+        {
+            public void run()
+            {
+                carrier.set( alive );
+                started.countDown();
+                try
+                {
+                    end.await();
+                }
+                catch ( final InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                }
+                seen.set( carrier.get() );
+                carrier.remove();
+            }
+        } );
+        started.await();
+
+        for ( int i = 0; i < 10000; i++ )
+        {
+            final Context context = new Context( "path" + i );
+            ( (Thread) startVirtualThread.invoke( null, new Runnable()
+            {
+                public void run()
+                {
+                    carrier.set( context ); // never removed
+                }
+            } ) ).join();
+        }
+
+        assertTrue( String.valueOf( contexts( carrier ).size() ), contexts( carrier ).size() < 1024 );
+
+        end.countDown();
+        running.join();
+        assertSame( alive, seen.get() ); // the context of a running thread is kept by the sweeps
+        assertEquals( 0, countAlive( contexts( carrier ) ) );
+    }
+
+    private static int countAlive( final Map<?, ?> contexts )
+    {
+        int alive = 0;
+        for ( final Object thread : contexts.keySet() )
+        {
+            if ( Thread.class.cast( thread ).isAlive() )
+            {
+                alive++;
+            }
+        }
+        return alive;
+    }
+
+    private static Map<?, ?> contexts( final ContextCarrier carrier )
+        throws Exception
+    {
+        final Field field = carrier.getClass().getDeclaredField( "virtualThreads" );
+        field.setAccessible( true );
+        return Map.class.cast( field.get( carrier ) );
+    }
+
+    private static Method startVirtualThread()
+    {
+        try
+        {
+            return Thread.class.getMethod( "startVirtualThread", Runnable.class );
+        }
+        catch ( final NoSuchMethodException e )
+        {
+            return null;
+        }
+    }
+}
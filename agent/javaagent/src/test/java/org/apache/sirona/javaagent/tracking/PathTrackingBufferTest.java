@@ -0,0 +1,232 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.javaagent.tracking;
+
+import org.apache.sirona.pathtracking.PathTrackingEntry;
+import org.apache.sirona.pathtracking.PathTrackingEntryCodec;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PathTrackingBufferTest
+{
+    @Test
+    public void entriesAreCreatedOnRead()
+    {
+        final PathTrackingBuffer buffer = PathTrackingBuffer.acquire();
+        buffer.setBase( 1000000L );
+        buffer.record( PathTrackingBuffer.id( "org.foo.Service", "leaf()" ), 1000200L, 50, 2 );
+        buffer.record( PathTrackingBuffer.id( "org.foo.Service", "root()" ), 1000000L, 400, 1 );
+        assertEquals( 2, buffer.size() );
+
+        final List<PathTrackingEntry> entries = new ArrayList<PathTrackingEntry>();
+        buffer.drainTo( "uuid", "node", entries );
+        assertEquals( 0, buffer.size() );
+        assertEquals( 2, entries.size() );
+
+        final PathTrackingEntry leaf = entries.get( 0 );
+        assertEquals( "uuid", leaf.getTrackingId() );
+        assertEquals( "node", leaf.getNodeId() );
+        assertEquals( "org.foo.Service", leaf.getClassName() );
+        assertEquals( "leaf()", leaf.getMethodName() );
+        assertEquals( 1000200L, leaf.getStartTime() );
+        assertEquals( 50, leaf.getExecutionTime() );
+        assertEquals( 2, leaf.getLevel() );
+
+        final PathTrackingEntry root = entries.get( 1 );
+        assertEquals( "root()", root.getMethodName() );
+        assertEquals( 1000000L, root.getStartTime() );
+        assertEquals( 1, root.getLevel() );
+
+        PathTrackingBuffer.release( buffer );
+    }
+
+    @Test
+    public void internedIds()
+    {
+        final int id = PathTrackingBuffer.id( "org.foo.Interned", "a()" );
+        assertEquals( id, PathTrackingBuffer.id( new String( "org.foo.Interned" ), new String( "a()" ) ) );
+        assertTrue( id != PathTrackingBuffer.id( "org.foo.Interned", "b()" ) );
+        assertTrue( id != PathTrackingBuffer.id( "org.foo.Other", "a()" ) );
+
+        for ( int i = 0; i < 1000; i++ ) // the name table grows
+        {
+            PathTrackingBuffer.id( "org.foo.Generated" + i, "run()" );
+        }
+
+        final PathTrackingBuffer buffer = PathTrackingBuffer.acquire();
+        buffer.record( id, 10, 1, 1 );
+        final List<PathTrackingEntry> entries = new ArrayList<PathTrackingEntry>();
+        buffer.drainTo( "uuid", "node", entries );
+        assertEquals( "org.foo.Interned", entries.get( 0 ).getClassName() );
+        assertEquals( "a()", entries.get( 0 ).getMethodName() );
+        assertEquals( 10, entries.get( 0 ).getStartTime() ); // no base, the first invocation is the base
+        PathTrackingBuffer.release( buffer );
+    }
+
+    @Test
+    public void capAndRecycling()
+    {
+        final int id = PathTrackingBuffer.id( "org.foo.Loop", "loop()" );
+
+        final PathTrackingBuffer small = PathTrackingBuffer.acquire();
+        small.record( id, 0, 1, 1 );
+        PathTrackingBuffer.release( small );
+        final PathTrackingBuffer recycled = PathTrackingBuffer.acquire();
+        assertSame( small, recycled );
+        assertEquals( 0, recycled.size() );
+
+        for ( int i = 0; i < 10100; i++ ) // default cap is 10000 entries
+        {
+            recycled.record( id, i, 1, 2 );
+        }
+        assertEquals( 10000, recycled.size() );
+        assertEquals( 100, recycled.getDropped() );
+
+        final List<PathTrackingEntry> entries = new ArrayList<PathTrackingEntry>();
+        recycled.drainTo( "uuid", "node", entries );
+        assertEquals( 10001, entries.size() );
+        assertEquals( 9999, entries.get( 9999 ).getStartTime() );
+
+        final PathTrackingEntry truncated = entries.get( 10000 ); // the path is incomplete, it has to be visible
+        assertEquals( PathTrackingBuffer.TRUNCATED, truncated.getClassName() );
+        assertEquals( "dropped(100)", truncated.getMethodName() );
+        assertEquals( 10000, truncated.getStartTime() );
+        assertEquals( 1, truncated.getLevel() );
+        assertEquals( 0, recycled.getDropped() );
+
+        PathTrackingBuffer.release( recycled ); // too big to be kept
+        assertNotSame( recycled, PathTrackingBuffer.acquire() );
+    }
+
+    @Test
+    public void encodedEntriesAreTheDrainedOnes()
+    {
+        final PathTrackingBuffer buffer = new PathTrackingBuffer();
+        final PathTrackingBuffer copy = new PathTrackingBuffer();
+        for ( final PathTrackingBuffer b : new PathTrackingBuffer[]{ buffer, copy } )
+        {
+            b.setBase( 5000L );
+            b.record( "org.foo.Service", "leaf()", 5100L, 30, 2 );
+            b.record( "org.foo.Dao", "find()", 5150L, 10, 3 );
+            b.record( "org.foo.Service", "root()", 5000L, 200, 1 );
+        }
+        assertEquals( 3, buffer.entries() );
+
+        final PathTrackingEntryCodec.Encoder encoder = new PathTrackingEntryCodec.Encoder( buffer.entries() );
+        buffer.drainTo( "uuid", "node", encoder );
+        assertEquals( 0, buffer.entries() );
+
+        final List<PathTrackingEntry> expected = new ArrayList<PathTrackingEntry>();
+        copy.drainTo( "uuid", "node", expected );
+        final List<PathTrackingEntry> decoded = PathTrackingEntryCodec.decode( encoder.toByteArray() );
+        assertEquals( expected.size(), decoded.size() );
+        for ( int i = 0; i < expected.size(); i++ )
+        {
+            assertEquals( expected.get( i ).toString(), decoded.get( i ).toString() );
+        }
+    }
+
+    @Test
+    public void namesBeyondTheTableStayInTheBuffer()
+    {
+        final PathTrackingBuffer.Names names = new PathTrackingBuffer.Names( 2 );
+        assertEquals( 0, names.id( "org.foo.A", "a()" ) );
+        assertEquals( 1, names.id( "org.foo.A", "b()" ) );
+        assertEquals( -1, names.id( "org.foo.B", "a()" ) );
+        assertEquals( 2, names.size() );
+
+        final PathTrackingBuffer buffer = new PathTrackingBuffer( names );
+        buffer.setBase( 0 );
+        buffer.record( "org.foo.A", "a()", 1, 1, 1 );
+        buffer.record( "org.foo.B", "a()", 2, 1, 2 );
+        buffer.record( "org.foo.C", "c()", 3, 1, 2 );
+        buffer.record( "org.foo.B", "a()", 4, 1, 2 );
+
+        final List<PathTrackingEntry> entries = new ArrayList<PathTrackingEntry>();
+        buffer.drainTo( "uuid", "node", entries );
+        assertEquals( "org.foo.A", entries.get( 0 ).getClassName() );
+        assertEquals( "org.foo.B", entries.get( 1 ).getClassName() );
+        assertEquals( "org.foo.C", entries.get( 2 ).getClassName() );
+        assertEquals( "c()", entries.get( 2 ).getMethodName() );
+        assertEquals( "org.foo.B", entries.get( 3 ).getClassName() );
+        assertEquals( "a()", entries.get( 3 ).getMethodName() );
+        assertEquals( 2, names.size() ); // the table didn't grow
+    }
+
+    @Test
+    public void concurrentRegistrations()
+        throws InterruptedException
+    {
+        final PathTrackingBuffer.Names names = new PathTrackingBuffer.Names( 5000 );
+        final int threads = 8;
+        final int[][] ids = new int[threads][2000];
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch( threads );
+        final ExecutorService pool = Executors.newFixedThreadPool( threads );
+        for ( int t = 0; t < threads; t++ )
+        {
+            final int thread = t;
+            pool.submit( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for ( int i = 0; i < 2000; i++ ) // all the threads register the same methods
+                        {
+                            ids[thread][i] = names.id( "org.foo.Class" + ( i % 100 ), "m" + i + "()" );
+                        }
+                    }
+                    catch ( final RuntimeException e )
+                    {
+                        errors.incrementAndGet();
+                    }
+                    finally
+                    {
+                        latch.countDown();
+                    }
+                }
+            } );
+        }
+        assertTrue( latch.await( 1, TimeUnit.MINUTES ) );
+        pool.shutdown();
+
+        assertEquals( 0, errors.get() );
+        for ( int i = 0; i < 2000; i++ )
+        {
+            for ( int t = 1; t < threads; t++ )
+            {
+                assertEquals( ids[0][i], ids[t][i] );
+            }
+            assertEquals( "org.foo.Class" + ( i % 100 ), names.className( ids[0][i] ) );
+            assertEquals( "m" + i + "()", names.methodName( ids[0][i] ) );
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.test.sirona.javaagent;
+
+import org.apache.sirona.counters.Counter;
+import org.apache.sirona.javaagent.AgentContext;
+import org.apache.sirona.repositories.Repository;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AgentContextReuseTest {
+    private static final int CALLS = 100000;
+
+    @Test
+    public void nestedAndRecursiveCalls() {
+        final String outer = "reuse.outer()";
+        final String inner = "reuse.inner()";
+        AgentContext.listeners(outer, new byte[0]);
+        AgentContext.listeners(inner, new byte[0]);
+
+        final AgentContext first = AgentContext.startOn(null, outer, null);
+        final AgentContext nested = AgentContext.startOn(null, inner, null);
+        final AgentContext recursive = AgentContext.startOn(null, outer, null);
+        assertNotSame(first, nested);
+        assertNotSame(first, recursive);
+        assertNotSame(nested, recursive);
+        assertEquals(2, counter(outer).currentConcurrency().get());
+
+        recursive.stop(null);
+        nested.stopWithException(new IllegalStateException("nested"));
+        assertEquals(outer, first.getKey());
+        first.stop(null);
+
+        assertEquals(2, counter(outer).getHits());
+        assertEquals(1, counter(inner).getHits());
+        assertEquals(0, counter(outer).currentConcurrency().get());
+        assertEquals(0, counter(inner).currentConcurrency().get());
+
+        // released contexts are reused by the next invocation at the same depth
+        final Object reference = new Object();
+        final AgentContext reused = AgentContext.startOn(reference, inner, null);
+        assertSame(first, reused);
+        assertSame(reference, reused.getReference());
+        assertEquals(0, reused.getMethodParameters().length);
+        reused.stop(null);
+        assertEquals(2, counter(inner).getHits());
+    }
+
+    @Test
+    public void deepRecursionIsNotPooled() {
+        final String key = "reuse.deep()";
+        AgentContext.listeners(key, new byte[0]);
+
+        final AgentContext[] contexts = new AgentContext[200];
+        for (int i = 0; i < contexts.length; i++) {
+            contexts[i] = AgentContext.startOn(null, key, null);
+        }
+        for (int i = contexts.length - 1; i >= 0; i--) {
+            contexts[i].stop(null);
+        }
+        assertEquals(contexts.length, counter(key).getHits());
+        assertEquals(0, counter(key).currentConcurrency().get());
+        assertSame(contexts[0], AgentContext.startOn(null, key, null));
+        contexts[0].stop(null);
+    }
+
+    @Test
+    public void zeroAllocationPerInvocation() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!com.sun.management.ThreadMXBean.class.isInstance(bean)) {
+            return; // can't measure on this JVM
+        }
+
+        final com.sun.management.ThreadMXBean threadMXBean = com.sun.management.ThreadMXBean.class.cast(bean);
+        if (!threadMXBean.isThreadAllocatedMemorySupported() || !threadMXBean.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+
+        final String key = "reuse.allocation()";
+        AgentContext.listeners(key, new byte[0]);
+        for (int i = 0; i < CALLS; i++) { // warm up: counter creation, class loading, jit
+            AgentContext.startOn(this, key, null).stop(null);
+        }
+
+        final long threadId = Thread.currentThread().getId();
+        threadMXBean.getThreadAllocatedBytes(threadId);
+        final long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < CALLS; i++) {
+            AgentContext.startOn(this, key, null).stop(null);
+        }
+        final long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(2 * CALLS, counter(key).getHits());
+        assertTrue("allocated " + allocated + " bytes for " + CALLS + " calls", allocated / CALLS == 0);
+    }
+
+    private static Counter counter(final String key) {
+        return Repository.INSTANCE.getCounter(AgentContext.key(key));
+    }
+}
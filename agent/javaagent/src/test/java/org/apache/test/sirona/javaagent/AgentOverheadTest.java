@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.test.sirona.javaagent;
+
+import org.apache.sirona.Role;
+import org.apache.sirona.counters.Counter;
+import org.apache.sirona.javaagent.AgentArgs;
+import org.apache.sirona.javaagent.AgentOverhead;
+import org.apache.sirona.javaagent.JavaAgentRunner;
+import org.apache.sirona.javaagent.SironaClassVisitor;
+import org.apache.sirona.repositories.Repository;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JavaAgentRunner.class)
+public class AgentOverheadTest {
+    private static final String CALL = "org.apache.test.sirona.javaagent.AgentOverheadTest$MeasuredService.call(int)";
+    private static final String OTHER = "org.apache.test.sirona.javaagent.AgentOverheadTest$MeasuredService.other()";
+    private static final int CALLS = 1000;
+
+    @Test
+    @AgentArgs(value = "", sysProps = "org.apache.sirona.javaagent.overhead=true")
+    public void perMethodAndGlobalCounters() {
+        assertTrue(AgentOverhead.isActive());
+        assertTrue(AgentOverhead.getCalibration() > 0);
+        assertEquals(0, AgentOverhead.correction());
+
+        for (final Field field : MeasuredService.class.getDeclaredFields()) { // measured through AgentContext
+            assertFalse(field.getName(), field.getName().startsWith(SironaClassVisitor.MONITOR_FIELD_PREFIX));
+        }
+
+        final MeasuredService service = new MeasuredService();
+        int result = 0;
+        for (int i = 0; i < CALLS; i++) {
+            result += service.call(i);
+        }
+        service.other();
+        assertTrue(result != 0);
+
+        final Counter call = overhead(CALL);
+        assertEquals(CALLS, call.getHits());
+        assertTrue(call.getSum() > 0);
+        assertEquals(1, overhead(OTHER).getHits());
+
+        final Counter global = overhead(AgentOverhead.GLOBAL);
+        assertTrue(global.getHits() >= CALLS + 1); // the test methods can be measured too
+        assertTrue(global.getSum() >= call.getSum());
+
+        // the method counters are still there
+        assertEquals(CALLS, Repository.INSTANCE.getCounter(new Counter.Key(Role.PERFORMANCES, CALL)).getHits());
+    }
+
+    @Test
+    @AgentArgs(value = "", sysProps = "org.apache.sirona.javaagent.overhead=true|org.apache.sirona.javaagent.overhead.correction=true")
+    public void correction() {
+        assertEquals(AgentOverhead.getCalibration(), AgentOverhead.correction());
+
+        final MeasuredService service = new MeasuredService();
+        for (int i = 0; i < CALLS; i++) {
+            service.other();
+        }
+
+        final Counter other = Repository.INSTANCE.getCounter(new Counter.Key(Role.PERFORMANCES, OTHER));
+        assertEquals(CALLS, other.getHits());
+        assertTrue(other.getMin() >= 0); // corrected durations are never negative
+    }
+
+    private static Counter overhead(final String name) {
+        return Repository.INSTANCE.getCounter(new Counter.Key(AgentOverhead.ROLE, name));
+    }
+
+    public static class MeasuredService {
+        public int call(final int i) {
+            return i + 1;
+        }
+
+        public void other() {
+            // no-op
+        }
+    }
+}
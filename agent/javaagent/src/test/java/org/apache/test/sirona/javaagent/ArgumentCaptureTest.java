@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.test.sirona.javaagent;
+
+import org.apache.sirona.Role;
+import org.apache.sirona.counters.Counter;
+import org.apache.sirona.javaagent.AgentArgs;
+import org.apache.sirona.javaagent.AgentContext;
+import org.apache.sirona.javaagent.ArgumentCapture;
+import org.apache.sirona.javaagent.JavaAgentRunner;
+import org.apache.sirona.javaagent.MethodMonitor;
+import org.apache.sirona.javaagent.SironaTransformer;
+import org.apache.sirona.repositories.Repository;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JavaAgentRunner.class)
+public class ArgumentCaptureTest {
+    private static final String CAPTURE =
+        "org.apache.sirona.javaagent.capture=" +
+        "prefix:org.apache.test.sirona.javaagent.ArgumentCaptureTest$Dao.find=0:suffix," +
+        "prefix:org.apache.test.sirona.javaagent.ArgumentCaptureTest$Dao.store=1:length," +
+        "prefix:org.apache.test.sirona.javaagent.ArgumentCaptureTest$Dao.count=0:suffix," +
+        "prefix:org.apache.test.sirona.javaagent.ArgumentCaptureTest$Dao.count=1:length";
+
+    private static final String DAO = "org.apache.test.sirona.javaagent.ArgumentCaptureTest$Dao.";
+
+    @Test
+    @AgentArgs(value = "", sysProps = CAPTURE)
+    public void suffix() {
+        final Dao dao = new Dao();
+        dao.find("alice");
+        dao.find("bob");
+        dao.find("alice");
+
+        assertEquals(2, counter(DAO + "find(java.lang.String)[alice]").getHits());
+        assertEquals(1, counter(DAO + "find(java.lang.String)[bob]").getHits());
+        assertEquals(0, counter(DAO + "find(java.lang.String)").getHits());
+    }
+
+    @Test
+    @AgentArgs(value = "", sysProps = CAPTURE)
+    public void suffixedNamesAreNotCached() throws Exception {
+        final Dao dao = new Dao();
+        for (int i = 0; i < 10; i++) {
+            dao.find("user" + i);
+        }
+
+        assertEquals(1, counter(DAO + "find(java.lang.String)[user3]").getHits());
+        for (final Map<?, ?> cache : new Map<?, ?>[] {
+                cache(AgentContext.class, "KEYS_CACHE"), cache(AgentContext.class, "KEY_IDS_CACHE"), cache(MethodMonitor.class, "MONITORS") }) {
+            for (final Object name : cache.keySet()) {
+                assertTrue(name.toString(), !name.toString().contains("[user"));
+            }
+        }
+    }
+
+    @Test
+    @AgentArgs(value = "", sysProps = CAPTURE)
+    public void length() {
+        final Dao dao = new Dao();
+        dao.store("a", new byte[12]);
+        dao.store("b", new byte[4]);
+
+        assertEquals(2, counter(DAO + "store(java.lang.String,byte[])").getHits());
+        final Counter length = Repository.INSTANCE.getCounter(
+            new Counter.Key(ArgumentCapture.ARGUMENTS, DAO + "store(java.lang.String,byte[])[arg1.length]"));
+        assertEquals(2, length.getHits());
+        assertEquals(12., length.getMax(), 0.);
+        assertEquals(4., length.getMin(), 0.);
+    }
+
+    @Test
+    @AgentArgs(value = "", sysProps = CAPTURE)
+    public void primitiveAndSeveralCaptures() {
+        final Map<String, String> values = new HashMap<String, String>();
+        values.put("a", "b");
+        new Dao().count(42, values);
+
+        assertEquals(1, counter(DAO + "count(int,java.util.Map)[42]").getHits());
+        assertEquals(1., Repository.INSTANCE.getCounter(
+            new Counter.Key(ArgumentCapture.ARGUMENTS, DAO + "count(int,java.util.Map)[arg1.length]")).getMax(), 0.);
+    }
+
+    @Test
+    @AgentArgs(value = "", sysProps = CAPTURE)
+    public void noArgumentArray() throws Exception {
+        final String name = Dao.class.getName().replace('.', '/');
+        final byte[] woven = new SironaTransformer(false, true, null, null).transform(null, name, null, null, bytes(Dao.class));
+
+        final Map<String, Integer> arrays = new HashMap<String, Integer>();
+        new ClassReader(woven).accept(new ClassVisitor(Opcodes.ASM5) {
+            @Override
+            public MethodVisitor visitMethod(final int access, final String method, final String desc,
+                                             final String signature, final String[] exceptions) {
+                arrays.put(method, 0);
+                return new MethodVisitor(Opcodes.ASM5) {
+                    @Override
+                    public void visitTypeInsn(final int opcode, final String type) {
+                        if (opcode == Opcodes.ANEWARRAY) {
+                            arrays.put(method, arrays.get(method) + 1);
+                        }
+                    }
+                };
+            }
+        }, 0);
+
+        assertEquals(0, arrays.get("find").intValue());
+        assertEquals(0, arrays.get("store").intValue());
+        assertEquals(0, arrays.get("other").intValue());
+        assertEquals(1, arrays.get("count").intValue()); // only the two captured values
+    }
+
+    @Test
+    public void cardinalityIsBounded() {
+        final String key = "foo.Bar.find(java.lang.String)";
+        final ArgumentCapture capture = new ArgumentCapture("prefix:foo.Bar=0:suffix", 2);
+        final ArgumentCapture.Captures captures = capture.captures(key);
+        assertEquals(key + "[a]", captures.counterName(key, "a"));
+        assertEquals(key + "[b]", captures.counterName(key, "b"));
+        assertEquals(key + "[other]", captures.counterName(key, "c"));
+        assertEquals(key + "[a]", captures.counterName(key, "a"));
+        assertEquals(key + "[null]", new ArgumentCapture("prefix:foo.Bar=0:suffix", 2).captures(key).counterName(key, (Object) null));
+    }
+
+    @Test
+    public void rules() {
+        final ArgumentCapture capture = new ArgumentCapture("prefix:foo.Bar=1:suffix, regex:.*find.*=0:length", 10);
+        assertNull(capture.captures("foo.Bar.none()")); // no argument 1
+        assertNull(capture.captures("foo.Other.save(int)"));
+        assertEquals("[0]", Arrays.toString(capture.captures("foo.Other.find(int)").getArguments()));
+        assertEquals("[1, 0]", Arrays.toString(capture.captures("foo.Bar.find(int,int)").getArguments()));
+
+        for (final String invalid : new String[] { "prefix:foo", "prefix:foo=a:suffix", "prefix:foo=0:other", "prefix:foo=-1:length" }) {
+            try {
+                new ArgumentCapture(invalid, 10);
+                fail(invalid);
+            } catch (final IllegalArgumentException iae) {
+                // ok
+            }
+        }
+    }
+
+    private static Counter counter(final String name) { // not AgentContext.key() which caches the name
+        return Repository.INSTANCE.getCounter(new Counter.Key(Role.PERFORMANCES, name));
+    }
+
+    private static Map<?, ?> cache(final Class<?> owner, final String name) throws Exception {
+        final Field field = owner.getDeclaredField(name);
+        field.setAccessible(true);
+        return Map.class.cast(field.get(null));
+    }
+
+    private static byte[] bytes(final Class<?> clazz) throws Exception {
+        final InputStream stream = clazz.getClassLoader().getResourceAsStream(clazz.getName().replace('.', '/') + ".class");
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[1024];
+            int read;
+            while ((read = stream.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+
+    public static class Dao {
+        public String find(final String name) {
+            return name;
+        }
+
+        public int store(final String id, final byte[] data) {
+            return data.length;
+        }
+
+        public int count(final int page, final Map<String, String> filters) {
+            return page + filters.size();
+        }
+
+        public String other(final String value) {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.test.sirona.javaagent;
+
+import org.apache.sirona.javaagent.ClassHierarchy;
+import org.apache.sirona.javaagent.SironaClassVisitor;
+import org.apache.sirona.javaagent.SironaTransformer;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ClassHierarchyTest {
+    private static final Class<?>[] CORPUS = {
+        Shape.class, Named.class, Colored.class, Fancy.class,
+        Base.class, Mid.class, Deep1.class, Deep2.class, Deep3.class, Deep4.class,
+        Other.class, OtherLeaf.class, Standalone.class, Usage.class,
+        Object.class, String.class, Integer.class, Number.class, Serializable.class, Comparable.class,
+        ArrayList.class, LinkedList.class, List.class, Collection.class,
+        IllegalStateException.class, IOException.class, RuntimeException.class, Exception.class
+    };
+
+    @Test
+    public void sameCommonSuperClassThanLoadedClasses() throws IOException {
+        final ClassHierarchy hierarchy = new ClassHierarchy(100);
+        final ClassLoader loader = ClassHierarchyTest.class.getClassLoader();
+        final ReflectionWriter reflection = new ReflectionWriter(new ClassReader(bytes(Base.class)));
+        for (final Class<?> c1 : CORPUS) {
+            for (final Class<?> c2 : CORPUS) {
+                final String type1 = internalName(c1);
+                final String type2 = internalName(c2);
+                assertEquals(type1 + " / " + type2,
+                    reflection.getCommonSuperClassFromClasses(type1, type2),
+                    hierarchy.getCommonSuperClass(loader, null, type1, type2));
+            }
+        }
+    }
+
+    @Test
+    public void sameFramesThanLoadedClasses() throws IOException {
+        for (final Class<?> clazz : new Class<?>[] { Usage.class, Deep4.class, OtherLeaf.class }) {
+            final byte[] original = bytes(clazz);
+
+            final AtomicInteger calls = new AtomicInteger();
+            final ClassReader reader = new ClassReader(original);
+            final ClassWriter headers = new SironaTransformer.SironaClassWriter(clazz.getName(), null, reader,
+                ClassWriter.COMPUTE_FRAMES, clazz.getClassLoader()) {
+                @Override
+                protected String getCommonSuperClass(final String type1, final String type2) {
+                    calls.incrementAndGet();
+                    return super.getCommonSuperClass(type1, type2);
+                }
+            };
+            reader.accept(new SironaClassVisitor(headers, internalName(clazz), original), ClassReader.SKIP_FRAMES);
+
+            final ClassReader reflectionReader = new ClassReader(original);
+            final ClassWriter reflection = new ReflectionWriter(reflectionReader);
+            reflectionReader.accept(new SironaClassVisitor(reflection, internalName(clazz), original), ClassReader.SKIP_FRAMES);
+
+            assertTrue(Arrays.equals(reflection.toByteArray(), headers.toByteArray()));
+            if (clazz == Usage.class) {
+                assertTrue(calls.get() > 0);
+            }
+        }
+    }
+
+    @Test
+    public void noClassIsLoaded() {
+        final AtomicInteger loaded = new AtomicInteger();
+        final ClassLoader loader = new ClassLoader(ClassHierarchyTest.class.getClassLoader()) {
+            @Override
+            protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+                loaded.incrementAndGet();
+                return super.loadClass(name, resolve);
+            }
+        };
+
+        final ClassHierarchy hierarchy = new ClassHierarchy(100);
+        assertEquals(internalName(Base.class), hierarchy.getCommonSuperClass(loader, null, internalName(Deep4.class), internalName(OtherLeaf.class)));
+        assertEquals(internalName(Shape.class), hierarchy.getCommonSuperClass(loader, null, internalName(Shape.class), internalName(Deep3.class)));
+        assertEquals(0, loaded.get());
+    }
+
+    @Test
+    public void currentClassIsReadFromItsBytes() throws IOException {
+        final ClassReader current = new ClassReader(bytes(Deep4.class));
+        final ClassLoader noResource = new ClassLoader(ClassHierarchyTest.class.getClassLoader()) {
+            @Override
+            public InputStream getResourceAsStream(final String name) {
+                return name.equals(internalName(Deep4.class) + ".class") ? null : super.getResourceAsStream(name);
+            }
+        };
+        assertEquals(internalName(Mid.class),
+            new ClassHierarchy(100).getCommonSuperClass(noResource, current, internalName(Deep4.class), internalName(Mid.class)));
+    }
+
+    @Test
+    public void missingClassFile() {
+        assertNull(new ClassHierarchy(100).getCommonSuperClass(ClassHierarchyTest.class.getClassLoader(), null,
+            "org/apache/test/sirona/javaagent/DoesNotExist", internalName(Base.class)));
+    }
+
+    private static String internalName(final Class<?> clazz) {
+        return clazz.getName().replace('.', '/');
+    }
+
+    private static byte[] bytes(final Class<?> clazz) throws IOException {
+        final InputStream stream = clazz.getClassLoader().getResourceAsStream(internalName(clazz) + ".class");
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[1024];
+            int read;
+            while ((read = stream.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+
+    // previous implementation, loads the classes
+    private static class ReflectionWriter extends SironaTransformer.SironaClassWriter {
+        private ReflectionWriter(final ClassReader reader) {
+            super("none", null, reader, ClassWriter.COMPUTE_FRAMES, ClassHierarchyTest.class.getClassLoader());
+        }
+
+        @Override
+        protected String getCommonSuperClass(final String type1, final String type2) {
+            return getCommonSuperClassFromClasses(type1, type2);
+        }
+
+        @Override
+        public String getCommonSuperClassFromClasses(final String type1, final String type2) {
+            return super.getCommonSuperClassFromClasses(type1, type2);
+        }
+    }
+
+    public interface Shape {
+    }
+
+    public interface Named extends Shape {
+    }
+
+    public interface Colored {
+    }
+
+    public interface Fancy extends Named, Colored {
+    }
+
+    public static class Base implements Shape {
+    }
+
+    public static class Mid extends Base implements Colored {
+    }
+
+    public static class Deep1 extends Mid {
+    }
+
+    public static class Deep2 extends Deep1 implements Fancy {
+    }
+
+    public static class Deep3 extends Deep2 implements Serializable {
+    }
+
+    public static class Deep4 extends Deep3 {
+        public Mid pick(final boolean first) {
+            return first ? new Deep1() : this;
+        }
+    }
+
+    public static class Other extends Base {
+    }
+
+    public static class OtherLeaf extends Other implements Named {
+        public Base pick(final boolean first) {
+            return first ? new Deep4() : this;
+        }
+    }
+
+    public static class Standalone implements Colored {
+    }
+
+    public static class Usage {
+        public Base base(final boolean first) {
+            final Base base = first ? new Deep4() : new OtherLeaf();
+            return base;
+        }
+
+        public Colored colored(final int i) {
+            Colored colored;
+            if (i == 0) {
+                colored = new Standalone();
+            } else if (i == 1) {
+                colored = new Deep2();
+            } else {
+                colored = new Mid();
+            }
+            return colored;
+        }
+
+        public Shape shape(final int i) {
+            Shape shape = new Deep3();
+            for (int j = 0; j < i; j++) {
+                shape = j % 2 == 0 ? new OtherLeaf() : new Deep1();
+            }
+            return shape;
+        }
+
+        public List<String> list(final boolean first) {
+            final List<String> list = first ? new ArrayList<String>() : new LinkedList<String>();
+            list.add("sirona");
+            return list;
+        }
+
+        public Exception exception(final int i) {
+            Exception error = null;
+            try {
+                if (i == 0) {
+                    throw new IllegalStateException();
+                }
+                throw new IOException();
+            } catch (final IllegalStateException ise) {
+                error = ise;
+            } catch (final IOException ioe) {
+                error = ioe;
+            }
+            return error;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.test.sirona.javaagent;
+
+import org.apache.sirona.counters.Counter;
+import org.apache.sirona.javaagent.AgentArgs;
+import org.apache.sirona.javaagent.AgentContext;
+import org.apache.sirona.javaagent.Deinstrumentation;
+import org.apache.sirona.javaagent.JavaAgentRunner;
+import org.apache.sirona.javaagent.MethodMonitor;
+import org.apache.sirona.repositories.Repository;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import javax.management.ObjectName;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JavaAgentRunner.class)
+public class DeinstrumentationTest {
+    private static final String TRIVIAL = "org.apache.test.sirona.javaagent.DeinstrumentationTest$Trivial.get()";
+
+    @Test
+    @AgentArgs(value = "", sysProps = "org.apache.sirona.javaagent.deinstrumentation.activate=true|org.apache.sirona.javaagent.deinstrumentation.period=0")
+    public void operatorRemovesAndReinstates() throws Exception {
+        final Deinstrumentation deinstrumentation = Deinstrumentation.getInstance();
+        assertNotNull(deinstrumentation);
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(Deinstrumentation.OBJECT_NAME)));
+
+        final Trivial trivial = new Trivial();
+        call(trivial, 10);
+        final long hits = counter().getHits();
+        assertTrue(hits >= 10);
+        assertTrue(monitors().containsKey(TRIVIAL));
+
+        assertTrue(deinstrumentation.deinstrument(TRIVIAL));
+        assertFalse(monitors().containsKey(TRIVIAL));
+        assertTrue(asList(deinstrumentation.getDeinstrumentedMethods()).contains(TRIVIAL));
+        assertEquals("operator request", deinstrumentation.getReason(TRIVIAL));
+        call(trivial, 10);
+        assertEquals(hits, counter().getHits());
+
+        assertTrue(deinstrumentation.reinstate(TRIVIAL));
+        assertFalse(asList(deinstrumentation.getDeinstrumentedMethods()).contains(TRIVIAL));
+        call(trivial, 10);
+        assertEquals(hits + 10, counter().getHits());
+    }
+
+    @Test
+    @AgentArgs(value = "", sysProps = "org.apache.sirona.javaagent.deinstrumentation.activate=true|org.apache.sirona.javaagent.deinstrumentation.period=0|org.apache.sirona.javaagent.deinstrumentation.min-hits-per-second=1|org.apache.sirona.javaagent.deinstrumentation.max-mean-nanos=1000000000")
+    public void probeRemovesHotFastMethods() {
+        final Deinstrumentation deinstrumentation = Deinstrumentation.getInstance();
+        final Trivial trivial = new Trivial();
+        call(trivial, 100);
+        deinstrumentation.probe(); // baseline
+        call(trivial, 100);
+        deinstrumentation.probe();
+
+        assertTrue(asList(deinstrumentation.getDeinstrumentedMethods()).contains(TRIVIAL));
+        assertTrue(deinstrumentation.getReason(TRIVIAL), deinstrumentation.getReason(TRIVIAL).contains("hits/s"));
+        final long hits = counter().getHits();
+        call(trivial, 100);
+        assertEquals(hits, counter().getHits());
+
+        deinstrumentation.reinstateAll();
+        deinstrumentation.probe();
+        call(trivial, 100);
+        deinstrumentation.probe();
+        assertFalse(asList(deinstrumentation.getDeinstrumentedMethods()).contains(TRIVIAL)); // pinned by the operator
+    }
+
+    @Test
+    @AgentArgs(value = "", sysProps = "org.apache.sirona.javaagent.deinstrumentation.activate=true|org.apache.sirona.javaagent.deinstrumentation.period=0")
+    public void failedRetransformationKeepsState() {
+        final AtomicBoolean fail = new AtomicBoolean(false);
+        final Deinstrumentation deinstrumentation = new Deinstrumentation(instrumentation(fail), 1, 1000000000, 0); // reprobe at each probe
+        final Trivial trivial = new Trivial();
+        call(trivial, 100);
+        deinstrumentation.probe(); // baseline
+        call(trivial, 100);
+        deinstrumentation.probe();
+        assertTrue(asList(deinstrumentation.getDeinstrumentedMethods()).contains(TRIVIAL));
+
+        fail.set(true);
+        deinstrumentation.probe(); // tries to reinstate it
+        assertTrue(asList(deinstrumentation.getDeinstrumentedMethods()).contains(TRIVIAL));
+        assertFalse(deinstrumentation.reinstate(TRIVIAL));
+        deinstrumentation.reinstateAll();
+        assertTrue(asList(deinstrumentation.getDeinstrumentedMethods()).contains(TRIVIAL));
+
+        fail.set(false);
+        assertTrue(deinstrumentation.reinstate(TRIVIAL));
+        assertFalse(asList(deinstrumentation.getDeinstrumentedMethods()).contains(TRIVIAL));
+    }
+
+    @Test
+    public void thresholds() {
+        final Deinstrumentation deinstrumentation = new Deinstrumentation(null, 1000, 100, 0);
+        assertTrue(deinstrumentation.shouldDeinstrument(5000, 20));
+        assertFalse(deinstrumentation.shouldDeinstrument(500, 20));
+        assertFalse(deinstrumentation.shouldDeinstrument(5000, 200));
+    }
+
+    private static void call(final Trivial trivial, final int times) {
+        for (int i = 0; i < times; i++) {
+            trivial.get();
+        }
+    }
+
+    // doesn't change any bytecode, only checks the state of Deinstrumentation
+    private static Instrumentation instrumentation(final AtomicBoolean fail) {
+        return Instrumentation.class.cast(Proxy.newProxyInstance(DeinstrumentationTest.class.getClassLoader(), new Class<?>[] { Instrumentation.class }, new InvocationHandler() {
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                if ("getAllLoadedClasses".equals(method.getName())) {
+                    return new Class<?>[] { Trivial.class };
+                }
+                if ("isModifiableClass".equals(method.getName())) {
+                    return true;
+                }
+                if ("retransformClasses".equals(method.getName())) {
+                    if (fail.get()) {
+                        throw new UnmodifiableClassException("test");
+                    }
+                    return null;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        }));
+    }
+
+    private static Map<?, ?> monitors() throws Exception {
+        final Field field = MethodMonitor.class.getDeclaredField("MONITORS");
+        field.setAccessible(true);
+        return Map.class.cast(field.get(null));
+    }
+
+    private static Counter counter() {
+        return Repository.INSTANCE.getCounter(AgentContext.key(TRIVIAL));
+    }
+
+    public static class Trivial {
+        private int value = 0;
+
+        public int get() {
+            return value++;
+        }
+    }
+}
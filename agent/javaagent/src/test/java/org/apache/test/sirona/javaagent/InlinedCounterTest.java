@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.test.sirona.javaagent;
+
+import org.apache.sirona.Role;
+import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.FailureFingerprint;
+import org.apache.sirona.javaagent.JavaAgentRunner;
+import org.apache.sirona.javaagent.MethodMonitor;
+import org.apache.sirona.javaagent.SironaClassVisitor;
+import org.apache.sirona.repositories.Repository;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JavaAgentRunner.class)
+public class InlinedCounterTest {
+    private static final String CALL = "org.apache.test.sirona.javaagent.InlinedCounterTest$InlinedService.call(int)";
+    private static final int CALLS = 100000;
+
+    @Test
+    public void monitorFieldIsWoven() {
+        int monitors = 0;
+        for (final Field field : InlinedService.class.getDeclaredFields()) {
+            if (field.getName().startsWith(SironaClassVisitor.MONITOR_FIELD_PREFIX)) {
+                assertEquals(MethodMonitor.class, field.getType());
+                assertTrue(field.isSynthetic());
+                monitors++;
+            }
+        }
+        assertEquals(3, monitors);
+    }
+
+    @Test
+    public void hits() {
+        final InlinedService service = new InlinedService();
+        assertEquals(2, service.call(1));
+        assertEquals(6L, InlinedService.twice(3));
+        assertHits(CALL, 1);
+        assertHits("org.apache.test.sirona.javaagent.InlinedCounterTest$InlinedService.twice(long)", 1);
+
+        Counter.Key failure = null;
+        try {
+            service.fail();
+            fail();
+        } catch (final IllegalStateException ise) {
+            failure = FailureFingerprint.key(Role.FAILURES, ise);
+        }
+        assertHits("org.apache.test.sirona.javaagent.InlinedCounterTest$InlinedService.fail()", 1);
+        assertTrue(failure.getName().startsWith(IllegalStateException.class.getName() + ":"));
+        assertEquals("inlined", FailureFingerprint.sampleMessage(failure));
+        assertEquals(1, Repository.INSTANCE.getCounter(failure).getHits());
+        assertEquals(0, Repository.INSTANCE.getCounter(new Counter.Key(Role.PERFORMANCES, CALL)).currentConcurrency().get());
+    }
+
+    @Test
+    public void zeroAllocationPerCall() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!com.sun.management.ThreadMXBean.class.isInstance(bean)) {
+            return; // can't measure on this JVM
+        }
+
+        final com.sun.management.ThreadMXBean threadMXBean = com.sun.management.ThreadMXBean.class.cast(bean);
+        if (!threadMXBean.isThreadAllocatedMemorySupported() || !threadMXBean.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+
+        final Counter counter = Repository.INSTANCE.getCounter(new Counter.Key(Role.PERFORMANCES, CALL));
+        final long hits = counter.getHits();
+
+        final InlinedService service = new InlinedService();
+        int result = 0;
+        for (int i = 0; i < CALLS; i++) { // warm up: counter creation, class loading, jit
+            result += service.call(i);
+        }
+
+        final long threadId = Thread.currentThread().getId();
+        threadMXBean.getThreadAllocatedBytes(threadId);
+        final long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < CALLS; i++) {
+            result += service.call(i);
+        }
+        final long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(result != 0);
+        assertEquals(hits + 2 * CALLS, counter.getHits());
+        assertEquals("allocated " + allocated + " bytes for " + CALLS + " calls", 0, allocated / CALLS);
+    }
+
+    private static void assertHits(final String name, final int expected) {
+        assertHits(Role.PERFORMANCES, name, expected);
+    }
+
+    private static void assertHits(final Role role, final String name, final int expected) {
+        assertEquals(expected, Repository.INSTANCE.getCounter(new Counter.Key(role, name)).getHits());
+    }
+
+    public static class InlinedService {
+        public int call(final int i) {
+            return i + 1;
+        }
+
+        public static long twice(final long value) {
+            return value * 2;
+        }
+
+        public void fail() {
+            throw new IllegalStateException("inlined");
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.test.sirona.javaagent;
+
+import org.apache.sirona.configuration.ioc.IoCs;
+import org.apache.sirona.javaagent.AgentArgs;
+import org.apache.sirona.javaagent.JavaAgentRunner;
+import org.apache.sirona.javaagent.tracking.PathTrackingPropagation;
+import org.apache.sirona.pathtracking.PathTrackingEntry;
+import org.apache.sirona.pathtracking.test.ExtendedInMemoryPathTrackingDataStore;
+import org.apache.sirona.store.DataStoreFactory;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JavaAgentRunner.class)
+public class PathTrackingPropagationTest {
+    @Test
+    @AgentArgs(value = "",
+        sysProps = "project.build.directory=${project.build.directory}|org.apache.sirona.configuration.sirona.properties=${project.build.directory}/test-classes/pathtracking/sirona.properties|org.apache.sirona.javaagent.path.tracking.propagation=true")
+    public void childrenBelongToTheParentPath() throws Exception {
+        final Runnable notTracked = new Runnable() {
+            @Override
+            public void run() {
+                // no-op
+            }
+        };
+        assertSame(notTracked, PathTrackingPropagation.wrap(notTracked)); // no path, no wrapper
+
+        final ExecutorService pool = Executors.newSingleThreadExecutor();
+        final ScheduledExecutorService scheduled = Executors.newSingleThreadScheduledExecutor();
+        try {
+            assertEquals("leaf", new Service().parent(pool, scheduled));
+        } finally {
+            pool.shutdownNow();
+            scheduled.shutdownNow();
+        }
+
+        final ExtendedInMemoryPathTrackingDataStore store = ExtendedInMemoryPathTrackingDataStore.class.cast(
+            IoCs.findOrCreateInstance(DataStoreFactory.class).getPathTrackingDataStore());
+
+        // children are stored when the tasks end, the parent can be notified before
+        final long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        Map<String, Set<PathTrackingEntry>> all = store.retrieveAll();
+        while (count(all) < 13 && System.currentTimeMillis() < end) {
+            Thread.sleep(50);
+            all = store.retrieveAll();
+        }
+
+        assertEquals(all.toString(), 1, all.size()); // a single path
+        final Set<PathTrackingEntry> entries = all.values().iterator().next();
+        assertEquals(entries.toString(), 13, entries.size());
+
+        int tasks = 0;
+        int leaves = 0;
+        for (final PathTrackingEntry entry : entries) {
+            final String method = entry.getMethodName();
+            if ("parent(java.util.concurrent.ExecutorService,java.util.concurrent.ScheduledExecutorService)".equals(method)) {
+                assertEquals(1, entry.getLevel());
+            } else if ("leaf()".equals(method)) {
+                assertEquals(entry.toString(), 3, entry.getLevel());
+                leaves++;
+            } else {
+                assertTrue(entry.toString(), "call()".equals(method) || "get()".equals(method));
+                assertEquals(entry.toString(), 2, entry.getLevel());
+                tasks++;
+            }
+        }
+        assertEquals(4, tasks);
+        assertEquals(8, leaves);
+    }
+
+    private static int count(final Map<String, Set<PathTrackingEntry>> all) {
+        int count = 0;
+        for (final Set<PathTrackingEntry> entries : all.values()) {
+            count += entries.size();
+        }
+        return count;
+    }
+
+    public static class Service {
+        public Object parent(final ExecutorService pool, final ScheduledExecutorService scheduled) throws Exception {
+            pool.submit(new Task()).get();
+            scheduled.schedule(new Task(), 1, TimeUnit.MILLISECONDS).get();
+            ForkJoinPool.commonPool().submit(new Task()).get();
+            return CompletableFuture.supplyAsync(new Task()).get();
+        }
+    }
+
+    // Object avoids bridge methods, they would be tracked too
+    public static class Task implements Callable<Object>, Supplier<Object> {
+        @Override
+        public Object call() throws Exception {
+            Thread.sleep(1); // distinct start dates, the store sorts on it
+            leaf(); // siblings have the same level
+            return leaf();
+        }
+
+        @Override
+        public Object get() {
+            try {
+                Thread.sleep(1);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            leaf();
+            return leaf();
+        }
+
+        public String leaf() {
+            try {
+                Thread.sleep(1);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "leaf";
+        }
+    }
+}
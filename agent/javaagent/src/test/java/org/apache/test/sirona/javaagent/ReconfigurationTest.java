@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.test.sirona.javaagent;
+
+import org.apache.sirona.javaagent.AgentArgs;
+import org.apache.sirona.javaagent.AgentContext;
+import org.apache.sirona.javaagent.JavaAgentRunner;
+import org.apache.sirona.javaagent.Reconfiguration;
+import org.apache.sirona.javaagent.listener.PathTrackingListener;
+import org.apache.sirona.javaagent.spi.InvocationListener;
+import org.apache.sirona.repositories.Repository;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JavaAgentRunner.class)
+public class ReconfigurationTest {
+    private static final String SERVICE = "org.apache.test.sirona.javaagent.ReconfigurationTest$Service";
+    private static final String A = SERVICE + ".a()";
+    private static final String B = SERVICE + ".b()";
+
+    private static final String EXCLUDES_KEY = "org.apache.sirona.javaagent.listener.CounterListener.excludes";
+    private static final String BASE_EXCLUDES = "container:jvm,prefix:org.apache.sirona,prefix:org.junit,";
+
+    @Test
+    @AgentArgs(value = "",
+        sysProps = "org.apache.sirona.javaagent.reconfiguration.file=${java.io.tmpdir}/sirona-reconfiguration-test.properties"
+            + "|org.apache.sirona.javaagent.reconfiguration.period=0"
+            + "|" + EXCLUDES_KEY + "=" + BASE_EXCLUDES + "prefix:" + B)
+    public void flipRules() throws Exception {
+        final Reconfiguration reconfiguration = Reconfiguration.getInstance();
+        assertNotNull(reconfiguration);
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(Reconfiguration.OBJECT_NAME);
+        assertTrue(server.isRegistered(name));
+
+        final Service service = new Service();
+        service.a();
+        service.b();
+        assertHits(1, 0);
+
+        // started before the update, it stops with the listeners it started with
+        final AgentContext inFlight = AgentContext.startOn(service, A, null);
+
+        assertEquals(1, reconfiguration.update(EXCLUDES_KEY, BASE_EXCLUDES + "prefix:" + A));
+        inFlight.stop(null);
+        assertHits(2, 0);
+
+        service.a();
+        service.b();
+        assertHits(2, 1);
+
+        // file
+        final File file = new File(System.getProperty("java.io.tmpdir"), "sirona-reconfiguration-test.properties");
+        write(file, EXCLUDES_KEY + "=" + BASE_EXCLUDES);
+        try {
+            assertEquals(1, reconfiguration.reloadFile());
+            service.a();
+            service.b();
+            assertHits(3, 2);
+            assertEquals(0, reconfiguration.poll()); // unchanged
+        } finally {
+            file.delete();
+        }
+
+        // jmx
+        assertEquals(1, server.invoke(name, "update", new Object[] { EXCLUDES_KEY, BASE_EXCLUDES + "prefix:" + SERVICE },
+            new String[] { String.class.getName(), String.class.getName() }));
+        service.a();
+        service.b();
+        assertHits(3, 2);
+        assertEquals(0, reconfiguration.update(EXCLUDES_KEY, BASE_EXCLUDES + "prefix:" + SERVICE)); // no change
+
+        // path tracking
+        assertFalse(hasPathTracking(A));
+        assertTrue(reconfiguration.update(PathTrackingListener.ACTIVATE_KEY, "true") > 0);
+        assertTrue(hasPathTracking(A));
+        assertTrue(reconfiguration.update(PathTrackingListener.ACTIVATE_KEY, "false") > 0);
+        assertFalse(hasPathTracking(A));
+        assertTrue(reconfiguration.getLastReconfiguration() > 0);
+    }
+
+    @Test
+    @AgentArgs(value = "",
+        sysProps = "org.apache.sirona.javaagent.reconfiguration.file=${java.io.tmpdir}/sirona-reconfiguration-restore-test.properties"
+            + "|org.apache.sirona.javaagent.reconfiguration.period=0"
+            + "|" + EXCLUDES_KEY + "=" + BASE_EXCLUDES + "prefix:" + B)
+    public void removedKeysGetTheirInitialValue() throws Exception {
+        final Reconfiguration reconfiguration = Reconfiguration.getInstance();
+        final Service service = new Service();
+
+        // jmx
+        assertEquals(1, reconfiguration.update(EXCLUDES_KEY, BASE_EXCLUDES + "prefix:" + A));
+        assertEquals(BASE_EXCLUDES + "prefix:" + A, reconfiguration.getProperty(EXCLUDES_KEY));
+        reconfiguration.remove(EXCLUDES_KEY);
+        assertEquals(BASE_EXCLUDES + "prefix:" + B, reconfiguration.getProperty(EXCLUDES_KEY));
+        service.a();
+        service.b();
+        assertHits(1, 0);
+
+        // file
+        final File file = new File(System.getProperty("java.io.tmpdir"), "sirona-reconfiguration-restore-test.properties");
+        write(file, EXCLUDES_KEY + "=" + BASE_EXCLUDES);
+        try {
+            assertEquals(1, reconfiguration.reloadFile());
+            service.b();
+            assertHits(1, 1);
+        } finally {
+            file.delete();
+        }
+        assertEquals(1, reconfiguration.poll()); // the key left the file
+        assertEquals(BASE_EXCLUDES + "prefix:" + B, reconfiguration.getProperty(EXCLUDES_KEY));
+        service.a();
+        service.b();
+        assertHits(2, 1);
+    }
+
+    private static boolean hasPathTracking(final String method) {
+        final InvocationListener[] listeners = AgentContext.listeners(method, null);
+        if (listeners != null) {
+            for (final InvocationListener listener : listeners) {
+                if (PathTrackingListener.class.isInstance(listener)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void assertHits(final long a, final long b) {
+        assertEquals(a, Repository.INSTANCE.getCounter(AgentContext.key(A)).getHits());
+        assertEquals(b, Repository.INSTANCE.getCounter(AgentContext.key(B)).getHits());
+    }
+
+    private static void write(final File file, final String content) throws IOException {
+        final FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    public static class Service {
+        public void a() {
+            // no-op
+        }
+
+        public void b() {
+            // no-op
+        }
+    }
+}
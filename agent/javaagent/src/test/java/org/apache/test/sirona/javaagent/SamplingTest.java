@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.test.sirona.javaagent;
+
+import org.apache.sirona.Role;
+import org.apache.sirona.counters.Counter;
+import org.apache.sirona.javaagent.AgentContext;
+import org.apache.sirona.javaagent.JavaAgentRunner;
+import org.apache.sirona.javaagent.Sampler;
+import org.apache.sirona.javaagent.SamplingPolicy;
+import org.apache.sirona.repositories.Repository;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+// sampling rule is in sirona.properties
+@RunWith(JavaAgentRunner.class)
+public class SamplingTest {
+    private static final String HOT = "org.apache.test.sirona.javaagent.SamplingTest$Hot";
+
+    @Test
+    public void wovenHitsAreScaled() {
+        final Hot hot = new Hot();
+        for (int i = 0; i < 1000; i++) {
+            hot.call(i);
+        }
+
+        final Counter counter = counter(HOT + ".call(int)");
+        assertEquals(1000, counter.getHits());
+        assertTrue(counter.getMean() >= 0);
+        assertEquals(0, counter.currentConcurrency().get());
+    }
+
+    @Test
+    public void failuresAreScaled() {
+        final Hot hot = new Hot();
+        for (int i = 0; i < 1000; i++) {
+            try {
+                hot.fail(i);
+            } catch (final HotFailure hf) {
+                // expected
+            }
+        }
+
+        assertEquals(1000, counter(HOT + ".fail(int)").getHits());
+
+        long failures = 0;
+        for (final Counter counter : Repository.INSTANCE.counters()) {
+            if (Role.FAILURES.equals(counter.getKey().getRole()) && counter.getKey().getName().startsWith(HotFailure.class.getName() + ':')) {
+                failures += counter.getHits();
+            }
+        }
+        assertEquals(1000, failures);
+    }
+
+    @Test
+    public void listenerChainIsSkipped() {
+        final String key = HOT + ".direct()";
+        AgentContext.listeners(key, new byte[0]);
+
+        int recorded = 0;
+        for (int i = 0; i < 100; i++) {
+            final AgentContext context = AgentContext.startOn(null, key, null);
+            if (context.getSamplingRate() == 10) {
+                recorded++;
+            }
+            context.stop(null);
+        }
+        assertEquals(10, recorded);
+        assertEquals(100, counter(key).getHits());
+    }
+
+    @Test
+    public void policy() {
+        final SamplingPolicy policy = new SamplingPolicy("prefix:com.hot.=1/100, regex:.*Dao\\.find.*=500/s, prefix:com.=7");
+        assertNull(policy.sampler("org.Foo.bar()"));
+        assertEquals(100, policy.sampler("com.hot.Cache.get()").getRate());
+        assertSame(policy.sampler("com.hot.Cache.get()"), policy.sampler("com.hot.Cache.get()"));
+        assertEquals(500, policy.sampler("org.UserDao.findAll()").getMaxPerSecond());
+        assertEquals(7, policy.sampler("com.other.Service.run()").getRate());
+        assertTrue(!new SamplingPolicy(null).isActive());
+    }
+
+    @Test
+    public void fixedRate() {
+        final Sampler sampler = Sampler.oneOf(4);
+        int sampled = 0;
+        for (int i = 0; i < 400; i++) {
+            if (sampler.sample()) {
+                sampled++;
+            }
+        }
+        assertEquals(100, sampled);
+    }
+
+    @Test
+    public void rateLimited() {
+        final Sampler sampler = Sampler.perSecond(100);
+        final long end = System.currentTimeMillis() + 1500;
+        long sampled = 0;
+        long invocations = 0;
+        long estimated = 0;
+        while (System.currentTimeMillis() < end) {
+            invocations++;
+            if (sampler.sample()) {
+                sampled++;
+                estimated += sampler.getRate();
+            }
+        }
+        assertTrue(sampler.getRate() > 1);
+        assertTrue(sampled + " samples for " + invocations + " invocations", sampled < invocations / 10);
+        assertTrue(estimated + " for " + invocations, Math.abs(estimated - invocations) < invocations * 0.5);
+    }
+
+    @Test
+    public void rateLimitedFollowsTrafficDrops() throws InterruptedException {
+        final Sampler sampler = Sampler.perSecond(100);
+        final long busy = System.currentTimeMillis() + 1200;
+        while (System.currentTimeMillis() < busy) {
+            sampler.sample();
+        }
+        assertTrue(sampler.getRate() > 100);
+
+        int sampled = 0;
+        for (int i = 0; i < 150; i++) { // ~50 invocations per second, under the limit
+            Thread.sleep(20);
+            if (sampler.sample()) {
+                sampled++;
+            }
+        }
+        assertTrue(sampler.toString(), sampler.getRate() < 10);
+        assertTrue(sampled + " samples", sampled > 10);
+    }
+
+    private static Counter counter(final String key) {
+        return Repository.INSTANCE.getCounter(AgentContext.key(key));
+    }
+
+    public static class Hot {
+        public int call(final int i) {
+            return i + 1;
+        }
+
+        public int fail(final int i) {
+            throw new HotFailure("failure " + i);
+        }
+    }
+
+    public static class HotFailure extends RuntimeException {
+        public HotFailure(final String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.test.sirona.javaagent;
+
+import org.apache.sirona.javaagent.AgentContext;
+import org.apache.sirona.javaagent.SironaTransformer;
+import org.apache.sirona.javaagent.WovenClassCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WovenClassCacheTest {
+    private File directory;
+
+    @Before
+    public void createDirectory() {
+        directory = new File(System.getProperty("java.io.tmpdir"), "sirona-woven-cache-" + System.nanoTime());
+    }
+
+    @After
+    public void deleteDirectory() {
+        delete(directory);
+    }
+
+    @Test
+    public void missThenHit() throws Exception {
+        final byte[] original = bytes(App.class);
+        final String name = App.class.getName().replace('.', '/');
+
+        final WovenClassCache cache = new WovenClassCache(directory, 1024 * 1024, "test");
+        final SironaTransformer transformer = new SironaTransformer(false, true, null, cache);
+        final byte[] woven = transformer.transform(null, name, null, null, original);
+        assertFalse(Arrays.equals(original, woven));
+        assertEquals(1, cache.getMisses());
+        assertEquals(0, cache.getHits());
+        assertTrue(cache.getSize() > woven.length);
+
+        assertArrayEquals(woven, transformer.transform(null, name, null, null, original));
+        assertEquals(1, cache.getHits());
+
+        // next boot
+        final WovenClassCache restarted = new WovenClassCache(directory, 1024 * 1024, "test");
+        assertEquals(cache.getSize(), restarted.getSize());
+        assertArrayEquals(woven, new SironaTransformer(false, true, null, restarted).transform(null, name, null, null, original));
+        assertEquals(1, restarted.getHits());
+        assertEquals(0, restarted.getMisses());
+        assertNotNull(AgentContext.listeners(App.class.getName() + ".foo()", null));
+    }
+
+    @Test
+    public void retransformationIsNotCached() throws Exception {
+        final byte[] original = bytes(App.class);
+        final WovenClassCache cache = new WovenClassCache(directory, 1024 * 1024, "test");
+        new SironaTransformer(false, true, null, cache).transform(null, App.class.getName().replace('.', '/'), App.class, null, original);
+        assertEquals(0, cache.getMisses() + cache.getHits());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void notWovenClasses() {
+        final WovenClassCache cache = new WovenClassCache(directory, 1024 * 1024, "test");
+        final String key = cache.key(new byte[] { 1, 2, 3 });
+        cache.put(key, Collections.<String>emptyList(), null);
+
+        final WovenClassCache.Entry entry = cache.get(key);
+        assertNotNull(entry);
+        assertNull(entry.getBytecode());
+        assertEquals(0, entry.getMethods().length);
+    }
+
+    @Test
+    public void keyDependsOnClassAndConfiguration() {
+        final byte[] bytes = { 1, 2, 3 };
+        final WovenClassCache cache = new WovenClassCache(directory, 1024 * 1024, "test");
+        assertEquals(cache.key(bytes), cache.key(bytes.clone()));
+        assertFalse(cache.key(bytes).equals(cache.key(new byte[] { 1, 2, 4 })));
+        assertFalse(cache.key(bytes).equals(new WovenClassCache(directory, 1024 * 1024, "other").key(bytes)));
+    }
+
+    @Test
+    public void corruptedEntryIsAMiss() throws Exception {
+        final WovenClassCache cache = new WovenClassCache(directory, 1024 * 1024, "test");
+        final String key = cache.key(new byte[] { 1 });
+        cache.put(key, Collections.singletonList("foo.Bar.baz()"), new byte[] { 4, 5, 6, 7 });
+        assertNotNull(cache.get(key));
+
+        final File file = new File(new File(directory, key.substring(0, 2)), key + ".woven");
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length() - 10); // in the bytecode
+            raf.write(42);
+        } finally {
+            raf.close();
+        }
+
+        assertNull(cache.get(key));
+        assertFalse(file.exists());
+        assertEquals(0, cache.getSize());
+
+        // truncated
+        cache.put(key, Collections.singletonList("foo.Bar.baz()"), new byte[] { 4, 5, 6, 7 });
+        final RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+        try {
+            truncated.setLength(truncated.length() / 2);
+        } finally {
+            truncated.close();
+        }
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    public void sizeIsLimited() throws Exception {
+        final WovenClassCache cache = new WovenClassCache(directory, 10 * 1024, "test");
+        for (int i = 0; i < 50; i++) {
+            cache.put(cache.key(new byte[] { (byte) i }), Collections.<String>emptyList(), new byte[1024]);
+            assertTrue(cache.getSize() <= 10 * 1024);
+        }
+
+        assertNotNull(cache.get(cache.key(new byte[] { 49 })));
+        assertEquals(cache.getSize(), new WovenClassCache(directory, 10 * 1024, "test").getSize());
+    }
+
+    private static byte[] bytes(final Class<?> clazz) throws Exception {
+        final InputStream stream = clazz.getClassLoader().getResourceAsStream(clazz.getName().replace('.', '/') + ".class");
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[1024];
+            int read;
+            while ((read = stream.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -21,6 +21,8 @@ import org.apache.sirona.Role;
 import org.apache.sirona.SironaException;
 import org.apache.sirona.configuration.Configuration;
 import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.FailureFingerprint;
+import org.apache.sirona.counters.KeyRegistry;
 import org.apache.sirona.repositories.Repository;
 import org.apache.sirona.stopwatches.StopWatch;
 
@@ -103,7 +105,7 @@ public abstract class AbstractPerformanceInterceptor<T> implements Serializable
                 if (repository==null){
                     System.out.println("repository is null");
                 }
-                final Counter monitor = repository.getCounter(getKey(invocation, name));
+                final Counter monitor = getCounter(repository, invocation, name);
                 if ( monitor == null){
                     System.out.println("monitor is null");
                 }
@@ -144,6 +146,20 @@ public abstract class AbstractPerformanceInterceptor<T> implements Serializable
         return new Counter.Key(getRole(), name);
     }
 
+    // no key hashing in the store, only a (role, name) lookup in the registry
+    protected int getKeyId(final T invocation, final String name) {
+        return KeyRegistry.INSTANCE.register(getKey(invocation, name));
+    }
+
+    // the key can be removed from the registry (evicted or folded counter) between getKeyId() and the lookup
+    private Counter getCounter(final Repository repository, final T invocation, final String name) {
+        final Counter counter = repository.getCounter(getKeyId(invocation, name));
+        if (counter != null) {
+            return counter;
+        }
+        return repository.getCounter(getKey(invocation, name));
+    }
+
     protected boolean isAdaptive() {
         return ADAPTIVE;
     }
@@ -213,8 +229,6 @@ public abstract class AbstractPerformanceInterceptor<T> implements Serializable
      * The handler for cases where interception is not possible and you need to pass the "before"object to be able to monitor.
      */
     public static class Context {
-        private static final int MAX_LENGTH = Configuration.getInteger(Configuration.CONFIG_PROPERTY_PREFIX + "performance.exception.max-length", 100);
-
         protected final ActivationContext activationContext;
         protected final StopWatch stopWatch;
 
@@ -237,13 +251,7 @@ public abstract class AbstractPerformanceInterceptor<T> implements Serializable
                 final long elapsedTime = stopWatch.getElapsedTime();
 
                 if (error != null) {
-                    /*
-                    final ByteArrayOutputStream writer = new ByteArrayOutputStream();
-                    error.printStackTrace(new PrintStream(writer));
-                    final String toString = writer.toString();
-                    */
-                    Repository.INSTANCE.getCounter(
-                            new Counter.Key(Role.FAILURES, error.getClass().getName() + ":" + (error.getMessage() != null ? error.getMessage() : ""))).add(elapsedTime);
+                    Repository.INSTANCE.getCounter(FailureFingerprint.key(Role.FAILURES, error)).add(elapsedTime);
                 }
 
                 activationContext.elapsedTime(elapsedTime);
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.aop;
+
+import org.apache.sirona.Role;
+import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.KeyRegistry;
+import org.apache.sirona.counters.Unit;
+import org.apache.sirona.repositories.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class KeyResolutionTest {
+    private static final Role ROLE = new Role("key-resolution", Unit.Time.NANOSECOND);
+
+    @Before
+    @After
+    public void reset() {
+        Repository.INSTANCE.clearCounters();
+    }
+
+    @Test
+    public void customKey() throws Throwable {
+        new Interceptor().invoke("custom");
+        assertEquals(1, Repository.INSTANCE.getCounter(new Counter.Key(ROLE, "custom")).getHits());
+    }
+
+    @Test
+    public void removedBeforeLookup() throws Throwable { // evicted between getKeyId() and getCounter(int)
+        final Interceptor interceptor = new Interceptor() {
+            @Override
+            protected int getKeyId(final String invocation, final String name) {
+                final Counter.Key key = getKey(invocation, name);
+                final int id = KeyRegistry.INSTANCE.register(key);
+                KeyRegistry.INSTANCE.remove(key);
+                return id;
+            }
+        };
+        interceptor.invoke("removed");
+        interceptor.invoke("removed");
+        assertEquals(2, Repository.INSTANCE.getCounter(new Counter.Key(ROLE, "removed")).getHits());
+    }
+
+    private static class Interceptor extends AbstractPerformanceInterceptor<String> {
+        public void invoke(final String name) throws Throwable {
+            doInvoke(name);
+        }
+
+        @Override
+        protected Counter.Key getKey(final String invocation, final String name) {
+            return new Counter.Key(ROLE, name);
+        }
+
+        @Override
+        protected Object proceed(final String invocation) throws Throwable {
+            return null;
+        }
+
+        @Override
+        protected String getCounterName(final String invocation) {
+            return invocation;
+        }
+    }
+}
@@ -17,7 +17,7 @@
 package org.apache.sirona.jdbc;
 
 import org.apache.sirona.Role;
-import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.KeyRegistry;
 import org.apache.sirona.repositories.Repository;
 import org.apache.sirona.stopwatches.StopWatch;
 
@@ -31,18 +31,23 @@ import java.sql.PreparedStatement;
 public class MonitoredPreparedStatement extends MonitoredStatement {
     private final PreparedStatement statement;
     private final String sql;
+    private int keyId;
 
     public MonitoredPreparedStatement(final PreparedStatement statement, final String sql) {
         super(statement);
         this.statement = statement;
         this.sql = sql;
+        this.keyId = KeyRegistry.INSTANCE.register(Role.JDBC, sql); // resolved once per statement
     }
 
     @Override
     public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
         final String name = method.getName();
         if ((args == null || args.length == 0) && name.startsWith("execute")) {
-            final StopWatch stopWatch = Repository.INSTANCE.start(Repository.INSTANCE.getCounter(new Counter.Key(Role.JDBC, sql)));
+            if (!KeyRegistry.INSTANCE.isRegistered(keyId, Role.JDBC, sql)) { // evicted
+                keyId = KeyRegistry.INSTANCE.register(Role.JDBC, sql);
+            }
+            final StopWatch stopWatch = Repository.INSTANCE.start(counter(keyId, sql));
             try {
                 return method.invoke(statement, args);
             } catch (final InvocationTargetException e) {
@@ -19,6 +19,7 @@ package org.apache.sirona.jdbc;
 
 import org.apache.sirona.Role;
 import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.KeyRegistry;
 import org.apache.sirona.repositories.Repository;
 import org.apache.sirona.stopwatches.StopWatch;
 
@@ -41,15 +42,25 @@ public class MonitoredStatement implements InvocationHandler {
         return sqle;
     }
 
+    // the id can be removed (evicted counter) between its registration and the lookup
+    protected static Counter counter(final int keyId, final String sql) {
+        final Counter counter = Repository.INSTANCE.getCounter(keyId);
+        if (counter != null) {
+            return counter;
+        }
+        return Repository.INSTANCE.getCounter(new Counter.Key(Role.JDBC, sql));
+    }
+
     @Override
     public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
         final String name = method.getName();
         if (name.startsWith("execute")) {
             final StopWatch stopWatch;
             if (name.endsWith("Batch") && (args == null || args.length == 0)) {
-                stopWatch = Repository.INSTANCE.start(Repository.INSTANCE.getCounter(new Counter.Key(Role.JDBC, "batch")));
+                stopWatch = Repository.INSTANCE.start(counter(KeyRegistry.INSTANCE.register(Role.JDBC, "batch"), "batch"));
             } else {
-                stopWatch = Repository.INSTANCE.start(Repository.INSTANCE.getCounter(new Counter.Key(Role.JDBC, (String) args[0])));
+                final String sql = (String) args[0];
+                stopWatch = Repository.INSTANCE.start(counter(KeyRegistry.INSTANCE.register(Role.JDBC, sql), sql));
             }
 
             try {
@@ -19,6 +19,7 @@ package org.apache.sirona.web.jsp;
 
 import org.apache.sirona.Role;
 import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.KeyRegistry;
 import org.apache.sirona.repositories.Repository;
 import org.apache.sirona.stopwatches.StopWatch;
 
@@ -43,7 +44,11 @@ public class StartTag extends TagSupport {
 
     @Override
     public int doStartTag() throws JspException {
-        final StopWatch stopWatch = Repository.INSTANCE.start(Repository.INSTANCE.getCounter(new Counter.Key(Role.JSP, name)));
+        Counter counter = Repository.INSTANCE.getCounter(KeyRegistry.INSTANCE.register(Role.JSP, name));
+        if (counter == null) { // evicted in between
+            counter = Repository.INSTANCE.getCounter(new Counter.Key(Role.JSP, name));
+        }
+        final StopWatch stopWatch = Repository.INSTANCE.start(counter);
         if (scope != null) {
             pageContext.setAttribute(id, stopWatch, getScope(scope));
         } else {
@@ -28,6 +28,7 @@ import org.apache.sirona.repositories.Repository;
 import org.apache.sirona.status.NodeStatus;
 import org.apache.sirona.status.NodeStatusReporter;
 import org.apache.sirona.store.memory.counter.InMemoryCounterDataStore;
+import org.apache.sirona.store.memory.counter.SnapshotCounter;
 import org.apache.sirona.store.memory.tracking.InMemoryPathTrackingDataStore;
 import org.apache.sirona.store.status.EmptyStatuses;
 
@@ -62,7 +63,11 @@ public class PullRepository extends DefaultRepository {
         final StringBuilder answer = cube.newEventStream();
 
         // counters
-        answer.append(cube.counterSnapshot(Repository.INSTANCE.counters()));
+        if (clearAfterCollect) { // atomic reset, hits recorded while building the payload go to the next pull
+            answer.append(cube.counterSnapshot(SnapshotCounter.snapshotAndReset(Repository.INSTANCE.counters())));
+        } else {
+            answer.append(cube.counterSnapshot(Repository.INSTANCE.counters()));
+        }
 
         // gauges
         for (final Gauge g : getGauges()) {
@@ -77,10 +82,6 @@ public class PullRepository extends DefaultRepository {
         final NodeStatus status = new NodeStatusReporter().computeStatus();
         answer.append(cube.statusSnapshot(time, status));
 
-        if (clearAfterCollect) {
-            clearCounters();
-        }
-
         // remove last ','
         if (answer.length() == 0) {
             return null;
@@ -70,7 +70,7 @@ public class AsyncHttpClientCube
         {
             this.asyncHttpClient.preparePost( getConfig().getCollector() ) //
                 .setBody( bytes ) //
-                .addHeader( CONTENT_TYPE, APPLICATION_JAVA_OBJECT ) //
+                .addHeader( CONTENT_TYPE, bytesContentType( bytes ) ) //
                 .addHeader( X_SIRONA_CLASSNAME, className )//
                 .execute( new AsyncHandler<String>()
                 {
@@ -18,9 +18,13 @@ package org.apache.sirona.cube;
 
 import org.apache.sirona.Role;
 import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.Histogram;
+import org.apache.sirona.counters.LockableCounter;
 import org.apache.sirona.pathtracking.PathTrackingEntry;
+import org.apache.sirona.pathtracking.PathTrackingEntryCodec;
 import org.apache.sirona.status.NodeStatus;
 import org.apache.sirona.status.ValidationResult;
+import org.apache.sirona.util.Base64Utils;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
@@ -66,6 +70,7 @@ public class Cube {
     private static final String MIN = "min";
     private static final String SUM = "sum";
     private static final String M_2 = "m2";
+    private static final String HISTOGRAM = "histogram";
 
     private static final String TRACKING_D = "trackingId";
     private static final String NODE_ID = "nodeId";
@@ -132,6 +137,11 @@ public class Cube {
         }
     }
 
+    // path tracking entries are encoded with PathTrackingEntryCodec, collectors still accept java serialization
+    protected static String bytesContentType(final byte[] bytes) {
+        return PathTrackingEntryCodec.isEncoded(bytes) ? PathTrackingEntryCodec.CONTENT_TYPE : APPLICATION_JAVA_OBJECT;
+    }
+
     public void doPostBytes( byte[] bytes, String className )
     {
         try {
@@ -150,7 +160,7 @@ public class Cube {
             }
 
             connection.setRequestMethod(POST);
-            connection.setRequestProperty(CONTENT_TYPE, APPLICATION_JAVA_OBJECT);
+            connection.setRequestProperty(CONTENT_TYPE, bytesContentType(bytes));
             connection.setRequestProperty( X_SIRONA_CLASSNAME, className );
             connection.setRequestProperty(CONTENT_LENGTH, Long.toString(bytes.length));
             connection.setUseCaches(false);
@@ -319,7 +329,7 @@ public class Cube {
         final long ts = System.currentTimeMillis();
         final StringBuilder events = newEventStream();
         for (final Counter counter : instances) {
-            buildEvent(events, COUNTER_TYPE, ts, new MapBuilder()
+            final MapBuilder data = new MapBuilder()
                 .add(NAME, counter.getKey().getName())
                 .add(ROLE, counter.getKey().getRole().getName())
                 .add(UNIT, counter.getKey().getRole().getUnit().getName())
@@ -331,12 +341,27 @@ public class Cube {
                 .add(MAX, counter.getMax())
                 .add(MIN, counter.getMin())
                 .add(SUM, counter.getSum())
-                .add(M_2, counter.getSecondMoment())
-                .map());
+                .add(M_2, counter.getSecondMoment());
+
+            final String histogram = encodedHistogram(counter);
+            if (histogram != null) { // mergeable percentiles for the collector
+                data.add(HISTOGRAM, histogram);
+            }
+            buildEvent(events, COUNTER_TYPE, ts, data.map());
         }
         return events;
     }
 
+    private static String encodedHistogram(final Counter counter) {
+        if (LockableCounter.class.isInstance(counter)) {
+            final Histogram histogram = LockableCounter.class.cast(counter).getStatistics().getHistogram();
+            if (histogram != null && histogram.getTotalCount() > 0) {
+                return Base64Utils.encode(histogram.toBytes());
+            }
+        }
+        return null;
+    }
+
     public StringBuilder pathTrackingSnapshot( Collection<PathTrackingEntry> pathTrackingEntries ) {
         final StringBuilder events = newEventStream();
         final long ts = System.currentTimeMillis();
@@ -21,9 +21,9 @@ import org.apache.sirona.configuration.Configuration;
 import org.apache.sirona.configuration.ioc.Destroying;
 import org.apache.sirona.configuration.ioc.IoCs;
 import org.apache.sirona.pathtracking.PathTrackingEntry;
+import org.apache.sirona.pathtracking.PathTrackingEntryCodec;
 import org.apache.sirona.store.tracking.BatchPathTrackingDataStore;
 import org.apache.sirona.store.tracking.CollectorPathTrackingDataStore;
-import org.apache.sirona.util.SerializeUtils;
 
 import java.util.List;
 import java.util.Map;
@@ -65,7 +65,7 @@ public class CubePathTrackingDataStore
     @Override
     public void store( final PathTrackingEntry pathTrackingEntry )
     {
-        CUBE.doPostBytes( SerializeUtils.serialize( pathTrackingEntry ), PathTrackingEntry.class.getName() );
+        CUBE.doPostBytes( PathTrackingEntryCodec.encode( pathTrackingEntry ), PathTrackingEntry.class.getName() );
     }
 
     @Override
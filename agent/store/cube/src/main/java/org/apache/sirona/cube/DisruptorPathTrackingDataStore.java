@@ -30,9 +30,9 @@ import org.apache.sirona.configuration.ioc.Created;
 import org.apache.sirona.configuration.ioc.Destroying;
 import org.apache.sirona.configuration.ioc.IoCs;
 import org.apache.sirona.pathtracking.PathTrackingEntry;
+import org.apache.sirona.pathtracking.PathTrackingEntryCodec;
 import org.apache.sirona.store.tracking.BatchPathTrackingDataStore;
 import org.apache.sirona.store.tracking.CollectorPathTrackingDataStore;
-import org.apache.sirona.util.SerializeUtils;
 
 import java.util.List;
 import java.util.Map;
@@ -104,7 +104,7 @@ public class DisruptorPathTrackingDataStore
         {
             if ( ( sequence % numberOfConsumers ) == ordinal )
             {
-                CUBE.doPostBytes( SerializeUtils.serialize( entry ), PathTrackingEntry.class.getName() );
+                CUBE.doPostBytes( PathTrackingEntryCodec.encode( entry ), PathTrackingEntry.class.getName() );
             }
         }
 
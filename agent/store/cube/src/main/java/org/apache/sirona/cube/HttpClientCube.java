@@ -117,7 +117,7 @@ public class HttpClientCube
 
             HttpPost httpPost = new HttpPost( uri );
             httpPost.setEntity( new ByteArrayEntity( bytes ) );
-            httpPost.setHeader( CONTENT_TYPE, APPLICATION_JAVA_OBJECT );
+            httpPost.setHeader( CONTENT_TYPE, bytesContentType( bytes ) );
             httpPost.setHeader( X_SIRONA_CLASSNAME, className );
 
             httpPost.setConfig( requestConfig );
@@ -17,6 +17,9 @@
 package org.apache.sirona.websocket.client.domain;
 
 import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.Histogram;
+import org.apache.sirona.counters.LockableCounter;
+import org.apache.sirona.util.Base64Utils;
 
 // just to define the payload API explicitly
 // and not rely on our Counter which can evolve
@@ -32,6 +35,7 @@ public class WSCounter extends WSDomain {
     private double min;
     private double max;
     private double mean;
+    private String histogram; // base64 of Histogram#toBytes(), optional
 
     public WSCounter() {
         // no-op
@@ -50,6 +54,12 @@ public class WSCounter extends WSDomain {
         max = counter.getMax();
         mean = counter.getMean();
         concurrency = counter.currentConcurrency().get();
+        if (LockableCounter.class.isInstance(counter)) {
+            final Histogram h = LockableCounter.class.cast(counter).getStatistics().getHistogram();
+            if (h != null && h.getTotalCount() > 0) {
+                histogram = Base64Utils.encode(h.toBytes());
+            }
+        }
     }
 
     public String getName() {
@@ -139,4 +149,12 @@ public class WSCounter extends WSDomain {
     public void setMax(final double max) {
         this.max = max;
     }
+
+    public String getHistogram() {
+        return histogram;
+    }
+
+    public void setHistogram(final String histogram) {
+        this.histogram = histogram;
+    }
 }
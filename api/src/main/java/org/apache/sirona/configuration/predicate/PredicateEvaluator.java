@@ -18,21 +18,38 @@ package org.apache.sirona.configuration.predicate;
 
 import org.apache.sirona.spi.SPI;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
+/**
+ * Evaluates a list of predicates (prefix:, suffix:, regex:, container:, true: or a SPI one).
+ * <p/>
+ * Built-in predicates are compiled: prefixes, suffixes and containers are stored in tries
+ * (the longest matching prefix/suffix wins when negated values are used) and regexes are merged
+ * in a single alternation. Results are cached per value since the same keys are evaluated again and again.
+ */
 public final class PredicateEvaluator {
     private static final String NOT = "!";
     private static final char SEPARATOR = ':';
+    private static final int MAX_CACHE_SIZE = 10000;
 
     private final Map<String, Predicate> predicates = new HashMap<String, Predicate>();
+    private final Predicate[] compiled;
     private final boolean truePredicate;
     private final boolean trueValue;
+    private final ConcurrentMap<String, Boolean> cache = new ConcurrentHashMap<String, Boolean>();
+    private final AtomicInteger cacheSize = new AtomicInteger(0);
 
     public PredicateEvaluator(final String configuration, final String sep) {
+        final Collection<Predicate> configured = new ArrayList<Predicate>();
         if (configuration != null && configuration.length()>0) {
             final PrefixPredicate prefixPredicate = new PrefixPredicate();
             final SuffixPredicate suffixPredicate = new SuffixPredicate();
@@ -50,6 +67,7 @@ public final class PredicateEvaluator {
             // SPI
             for (final Predicate predicate : SPI.INSTANCE.find(Predicate.class, PredicateEvaluator.class.getClassLoader())) {
                 predicates.put(predicate.prefix(), predicate);
+                configured.add(predicate); // we don't know how it behaves without configuration
             }
 
             final String[] segments = configuration.split(sep);
@@ -73,6 +91,7 @@ public final class PredicateEvaluator {
                     predicates.clear(); // no need to keep it in mem since we'll always return true
                     trueValue = Boolean.parseBoolean(trim.substring(separator + 1));
                     truePredicate = true;
+                    compiled = new Predicate[0];
                     return;
                 }
 
@@ -82,7 +101,11 @@ public final class PredicateEvaluator {
                 } else {
                     predicate.addConfiguration(value.substring(1), false);
                 }
+                if (!configured.contains(predicate)) {
+                    configured.add(predicate);
+                }
             }
+            regexPredicate.compile();
             trueValue = false;
             truePredicate = false;
         } else {
@@ -93,26 +116,63 @@ public final class PredicateEvaluator {
         // no need to keep it in mem
         predicates.remove(TruePredicate.INSTANCE.prefix());
         predicates.remove("boolean");
+
+        // only evaluate configured predicates, cheapest first
+        final List<Predicate> ordered = new ArrayList<Predicate>(configured.size());
+        for (final Class<?> type : new Class<?>[] { PrefixPredicate.class, ContainersPredicate.class, SuffixPredicate.class, RegexPredicate.class }) {
+            for (final Predicate predicate : configured) {
+                if (type.isInstance(predicate)) {
+                    ordered.add(predicate);
+                }
+            }
+        }
+        for (final Predicate predicate : configured) {
+            if (!ordered.contains(predicate)) {
+                ordered.add(predicate);
+            }
+        }
+        compiled = ordered.toArray(new Predicate[ordered.size()]);
     }
 
     public boolean matches(final String value) {
         if (truePredicate) {
             return trueValue;
         }
+        if (compiled.length == 0) {
+            return false;
+        }
+
+        final Boolean cached = cache.get(value);
+        if (cached != null) {
+            return cached;
+        }
 
-        for (final Predicate predicate : predicates.values()) {
+        boolean result = false;
+        for (final Predicate predicate : compiled) {
             if (predicate.matches(value)) {
-                return true;
+                result = true;
+                break;
             }
         }
-        return false;
+
+        if (cacheSize.incrementAndGet() > MAX_CACHE_SIZE) { // keys are not bounded, keep the memory bounded
+            cache.clear();
+            cacheSize.set(1);
+        }
+        cache.put(value, result);
+        return result;
     }
 
     // exclude only filter, just an optimized version of N prefixes
-    // a lot of prefixes uses the same prefix
-    // so chaining them using substring is really faster when intrumenting a lot of classes
+    // a lot of prefixes uses the same prefix so they are stored in a trie
     private static class ContainersPredicate implements Predicate {
-        private final Collection<String> containers = new CopyOnWriteArraySet<String>();
+        private static final String[] TOMCAT = { "juli.", "catalina.", "tomcat.", "jasper.", "coyote.", "naming.", "el." };
+        private static final String[] TOMEE = {
+            "tomee", "openejb", "xbean", "bval", "openjpa", "geronimo", "webbeans",
+            "myfaces", "cxf", "neethi", "activemq", "commons"
+        };
+
+        private final Trie containers = new Trie(false);
 
         @Override
         public String prefix() {
@@ -121,75 +181,29 @@ public final class PredicateEvaluator {
 
         @Override
         public boolean matches(final String value) {
-            for (final String container : containers) {
-                if ("tomee".equalsIgnoreCase(container) || "openejb".equalsIgnoreCase(container)) {
-                    if (value.startsWith("org.")) {
-                        final String org = value.substring("org.".length());
-                        if (org.startsWith("apache.")) {
-                            final String apache = org.substring("apache.".length());
-                            if (isTomcat(apache)
-                                    || apache.startsWith("tomee") || apache.startsWith("openejb")
-                                    || apache.startsWith("xbean") || apache.startsWith("bval")
-                                    || apache.startsWith("openjpa") || apache.startsWith("geronimo")
-                                    || apache.startsWith("webbeans") || apache.startsWith("myfaces")
-                                    || apache.startsWith("cxf") || apache.startsWith("neethi")
-                                    || apache.startsWith("activemq") || apache.startsWith("commons")) {
-                                return true;
-                            }
-                        } else if (org.startsWith("slf4j.") || org.startsWith("metatype") || org.startsWith("hsqldb") || org.startsWith("eclipse.jdt")) {
-                            return true;
-                        }
-                    } else if (value.startsWith("serp")) {
-                        return true;
-                    }
-                } else if ("tomcat".equalsIgnoreCase(container)) {
-                    if (value.startsWith("org.")) {
-                        final String org = value.substring("org.".length());
-                        if (org.startsWith("apache.")) {
-                            final String sub = value.substring("org.apache.".length());
-                            if (isTomcat(sub)) {
-                                return true;
-                            }
-                        } else if (org.startsWith("eclipse.jdt")) {
-                            return true;
-                        }
-                    }
-                } else if ("jvm".equalsIgnoreCase(container)) {
-                    if (value.startsWith("java")
-                            || value.startsWith("sun") || value.startsWith("com.sun")
-                            || value.startsWith("jdk.")) {
-                        return true;
-                    }
-                    if (value.startsWith("org.")) {
-                        final String sub = value.substring("org.".length());
-                        if (sub.startsWith("omg") || sub.startsWith("xml.sax.")
-                                || sub.startsWith("ietf") || sub.startsWith("jcp")
-                                || sub.startsWith("apache.xerces")) {
-                            return true;
-                        }
-                    }
-                    final int length = "org.apache.".length();
-                    if (value.length() >= length) {
-                        final String sub = value.substring("org.apache.".length());
-                        if (sub.startsWith("xerces")) {
-                            return true;
-                        }
-                    }
-                }
-            }
-            return false;
-        }
-
-        private static boolean isTomcat(final String sub) {
-            return sub.startsWith("juli.") || sub.startsWith("catalina.")
-                    || sub.startsWith("tomcat.") || sub.startsWith("jasper.")
-                    || sub.startsWith("coyote.") || sub.startsWith("naming.")
-                    || sub.startsWith("el.");
+            return containers.match(value) != null;
         }
 
         @Override
         public void addConfiguration(final String value, final boolean negative) {
-            containers.add(value);
+            if ("tomee".equalsIgnoreCase(value) || "openejb".equalsIgnoreCase(value)) {
+                addAll("org.apache.", TOMCAT);
+                addAll("org.apache.", TOMEE);
+                addAll("org.", new String[] { "slf4j.", "metatype", "hsqldb", "eclipse.jdt" });
+                containers.add("serp", Boolean.TRUE);
+            } else if ("tomcat".equalsIgnoreCase(value)) {
+                addAll("org.apache.", TOMCAT);
+                containers.add("org.eclipse.jdt", Boolean.TRUE);
+            } else if ("jvm".equalsIgnoreCase(value)) {
+                addAll("", new String[] { "java", "sun", "com.sun", "jdk." });
+                addAll("org.", new String[] { "omg", "xml.sax.", "ietf", "jcp", "apache.xerces" });
+            }
+        }
+
+        private void addAll(final String base, final String[] prefixes) {
+            for (final String prefix : prefixes) {
+                containers.add(base + prefix, Boolean.TRUE);
+            }
         }
     }
 
@@ -217,7 +231,7 @@ public final class PredicateEvaluator {
     }
 
     private static class SuffixPredicate implements Predicate {
-        private final Map<String, Boolean> suffixes = new HashMap<String, Boolean>();
+        private final Trie suffixes = new Trie(true);
 
         @Override
         public String prefix() {
@@ -226,22 +240,18 @@ public final class PredicateEvaluator {
 
         @Override
         public boolean matches(final String value) {
-            for (final Map.Entry<String, Boolean> p : suffixes.entrySet()) {
-                if (value.endsWith(p.getKey())) {
-                    return p.getValue();
-                }
-            }
-            return false;
+            final Boolean match = suffixes.match(value);
+            return match != null && match;
         }
 
         @Override
         public void addConfiguration(final String value, final boolean negative) {
-            suffixes.put(value, negative);
+            suffixes.add(value, negative);
         }
     }
 
     private static class PrefixPredicate implements Predicate {
-        private final Map<String, Boolean> prefixes = new HashMap<String, Boolean>();
+        private final Trie prefixes = new Trie(false);
 
         @Override
         public String prefix() {
@@ -250,22 +260,25 @@ public final class PredicateEvaluator {
 
         @Override
         public boolean matches(final String value) {
-            for (final Map.Entry<String, Boolean> p : prefixes.entrySet()) {
-                if (value.startsWith(p.getKey())) {
-                    return p.getValue();
-                }
-            }
-            return false;
+            final Boolean match = prefixes.match(value);
+            return match != null && match;
         }
 
         @Override
         public void addConfiguration(final String value, final boolean negative) {
-            prefixes.put(value, negative);
+            prefixes.add(value, negative);
         }
     }
 
+    // merges the regexes in one alternation per value, patterns with back references can't be merged
     private static class RegexPredicate implements Predicate {
-        private final Map<Pattern, Boolean> patterns = new HashMap<Pattern, Boolean>();
+        private static final Pattern BACK_REFERENCE = Pattern.compile(".*(\\\\[1-9]|\\\\k<|\\(\\?<[a-zA-Z]).*");
+
+        private final Map<String, Boolean> patterns = new LinkedHashMap<String, Boolean>();
+        private Pattern excluded = null;
+        private Pattern included = null;
+        private Pattern[] standalone = new Pattern[0];
+        private boolean[] standaloneValues = new boolean[0];
 
         @Override
         public String prefix() {
@@ -274,17 +287,120 @@ public final class PredicateEvaluator {
 
         @Override
         public boolean matches(final String value) {
-            for (final Map.Entry<Pattern, Boolean> p : patterns.entrySet()) {
-                if (p.getKey().matcher(value).matches()) {
-                    return p.getValue();
+            if (excluded != null && excluded.matcher(value).matches()) {
+                return false;
+            }
+            for (int i = 0; i < standalone.length; i++) {
+                if (standalone[i].matcher(value).matches()) {
+                    return standaloneValues[i];
                 }
             }
-            return false;
+            return included != null && included.matcher(value).matches();
         }
 
         @Override
         public void addConfiguration(final String value, final boolean negative) {
-            patterns.put(Pattern.compile(value), negative);
+            Pattern.compile(value); // fail fast on invalid regexes
+            patterns.put(value, negative);
+        }
+
+        private void compile() {
+            final StringBuilder includes = new StringBuilder();
+            final StringBuilder excludes = new StringBuilder();
+            final List<Pattern> others = new ArrayList<Pattern>();
+            final List<Boolean> otherValues = new ArrayList<Boolean>();
+            for (final Map.Entry<String, Boolean> pattern : patterns.entrySet()) {
+                if (BACK_REFERENCE.matcher(pattern.getKey()).matches()) {
+                    others.add(Pattern.compile(pattern.getKey()));
+                    otherValues.add(pattern.getValue());
+                    continue;
+                }
+
+                final StringBuilder builder = pattern.getValue() ? includes : excludes;
+                if (builder.length() > 0) {
+                    builder.append('|');
+                }
+                builder.append("(?:").append(pattern.getKey()).append(')');
+            }
+
+            included = includes.length() == 0 ? null : Pattern.compile(includes.toString());
+            excluded = excludes.length() == 0 ? null : Pattern.compile(excludes.toString());
+            standalone = others.toArray(new Pattern[others.size()]);
+            standaloneValues = new boolean[otherValues.size()];
+            for (int i = 0; i < standaloneValues.length; i++) {
+                standaloneValues[i] = otherValues.get(i);
+            }
+        }
+    }
+
+    // char trie, the value of the longest matching key is returned
+    private static class Trie {
+        private final boolean reversed;
+        private final Node root = new Node();
+
+        private Trie(final boolean reversed) {
+            this.reversed = reversed;
+        }
+
+        private void add(final String key, final Boolean value) {
+            Node node = root;
+            final int length = key.length();
+            for (int i = 0; i < length; i++) {
+                node = node.child(key.charAt(reversed ? length - 1 - i : i), true);
+            }
+            node.value = value;
+        }
+
+        private Boolean match(final String value) {
+            Node node = root;
+            Boolean match = node.value;
+            final int length = value.length();
+            for (int i = 0; i < length && node != null; i++) {
+                node = node.child(value.charAt(reversed ? length - 1 - i : i), false);
+                if (node != null && node.value != null) {
+                    match = node.value;
+                }
+            }
+            return match;
+        }
+    }
+
+    private static class Node {
+        private char[] chars = new char[0];
+        private Node[] children = new Node[0];
+        private Boolean value = null;
+
+        private Node child(final char c, final boolean create) {
+            int low = 0;
+            int high = chars.length - 1;
+            while (low <= high) {
+                final int middle = (low + high) >>> 1;
+                final char current = chars[middle];
+                if (current < c) {
+                    low = middle + 1;
+                } else if (current > c) {
+                    high = middle - 1;
+                } else {
+                    return children[middle];
+                }
+            }
+            if (!create) {
+                return null;
+            }
+
+            // low is the insertion point
+            final Node child = new Node();
+            final char[] newChars = new char[chars.length + 1];
+            final Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(chars, 0, newChars, 0, low);
+            System.arraycopy(children, 0, newChildren, 0, low);
+            newChars[low] = c;
+            newChildren[low] = child;
+            System.arraycopy(chars, low, newChars, low + 1, chars.length - low);
+            System.arraycopy(children, low, newChildren, low + 1, children.length - low);
+            chars = newChars;
+            children = newChildren;
+            return child;
         }
     }
 }
@@ -60,6 +60,8 @@ public interface Counter {
 
     double getSecondMoment(); // here for aggregation etc but not (yet?) a human metric so not in MetricData
 
+    double getPercentile(double percentile); // percentile in [0, 100], NaN if the counter doesn't track them
+
     public static class Key implements Serializable {
         private final String name;
         private final Role role;
@@ -31,11 +31,11 @@ public class DefaultCounter extends LockableCounter {
         this.statistics = statistics;
     }
 
-    public void addInternal(final double delta) {
+    public void addInternal(final double delta, final int samplingRate) {
         final Lock lock = getLock().writeLock();
         lock.lock();
         try {
-            statistics.addValue(delta);
+            statistics.addValue(delta, samplingRate);
         } finally {
             lock.unlock();
         }
@@ -43,10 +43,15 @@ public class DefaultCounter extends LockableCounter {
 
     @Override
     public void reset() {
-        statistics.clear();
+        clearStatistics();
         super.reset();
     }
 
+    @Override
+    protected void clearStatistics() {
+        statistics.clear();
+    }
+
     @Override
     public double getMax() {
         final Lock rl = getLock().readLock();
@@ -124,6 +129,17 @@ public class DefaultCounter extends LockableCounter {
         }
     }
 
+    @Override
+    public double getPercentile(final double percentile) {
+        final Lock rl = getLock().readLock();
+        rl.lock();
+        try {
+            return statistics.getPercentile(percentile);
+        } finally {
+            rl.unlock();
+        }
+    }
+
     @Override
     public long getHits() {
         final Lock rl = getLock().readLock();
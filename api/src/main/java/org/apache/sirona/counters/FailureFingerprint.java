@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.counters;
+
+import org.apache.sirona.Role;
+import org.apache.sirona.configuration.Configuration;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counter keys of the failures: the exception type and a hash of the top frames of its stack,
+ * for instance <code>java.lang.IllegalStateException:1a2b3c4d</code>. Messages often contain ids or dates
+ * so they are not part of the key, the first one of each fingerprint is kept as a sample (see {@link #sampleMessage(Counter.Key)}).
+ * <p/>
+ * The key is cached per exception type and top frames, the ones of the hash: failures thrown by a shared helper
+ * (validation, DAO base class...) get a fingerprint per caller as long as the caller is in these frames.
+ * Once a role has <code>org.apache.sirona.performance.exception.max-counters</code> fingerprints
+ * the new ones share the <code>overflow</code> counter of the role.
+ */
+public final class FailureFingerprint {
+    public static final String OVERFLOW = "overflow";
+
+    private static final int FRAMES = Math.max(0, Configuration.getInteger(Configuration.CONFIG_PROPERTY_PREFIX + "performance.exception.frames", 5));
+    private static final int MAX_COUNTERS = Configuration.getInteger(Configuration.CONFIG_PROPERTY_PREFIX + "performance.exception.max-counters", 1000);
+    private static final int MAX_MESSAGE_LENGTH = Configuration.getInteger(Configuration.CONFIG_PROPERTY_PREFIX + "performance.exception.max-length", 100);
+
+    private static final ConcurrentMap<Site, Counter.Key> KEYS = new ConcurrentHashMap<Site, Counter.Key>();
+    private static final ConcurrentMap<Counter.Key, String> SAMPLES = new ConcurrentHashMap<Counter.Key, String>();
+    private static final ConcurrentMap<Role, AtomicInteger> COUNTERS_BY_ROLE = new ConcurrentHashMap<Role, AtomicInteger>();
+
+    private FailureFingerprint() {
+        // no-op
+    }
+
+    /**
+     * @param role role of the counter, generally {@link Role#FAILURES}.
+     * @param error the failure.
+     * @return the key of the counter of this failure.
+     */
+    public static Counter.Key key(final Role role, final Throwable error) {
+        final StackTraceElement[] stackTrace = error.getStackTrace();
+        final Site site = new Site(role, error.getClass().getName(), stackTrace, Math.min(FRAMES, stackTrace.length));
+
+        final Counter.Key existing = KEYS.get(site);
+        if (existing != null) {
+            return existing;
+        }
+
+        Counter.Key key = new Counter.Key(role, site.type + ':' + Integer.toHexString(site.fingerprint));
+        if (!SAMPLES.containsKey(key)) { // new fingerprint, another site can have the same one
+            if (counters(role).incrementAndGet() > MAX_COUNTERS) {
+                counters(role).decrementAndGet();
+                return new Counter.Key(role, OVERFLOW); // not cached, another site can still create the fingerprint
+            }
+            if (SAMPLES.putIfAbsent(key, sample(error.getMessage())) != null) {
+                counters(role).decrementAndGet();
+            }
+        }
+
+        final Counter.Key old = KEYS.putIfAbsent(site.copy(), key); // don't retain the whole stack
+        if (old != null) {
+            key = old;
+        }
+        return key;
+    }
+
+    /**
+     * @return the message of the first failure of this fingerprint, null if the key is not a fingerprint.
+     */
+    public static String sampleMessage(final Counter.Key key) {
+        return SAMPLES.get(key);
+    }
+
+    private static String sample(final String message) {
+        if (message == null) {
+            return "";
+        }
+        return message.length() > MAX_MESSAGE_LENGTH ? message.substring(0, MAX_MESSAGE_LENGTH) : message;
+    }
+
+    private static AtomicInteger counters(final Role role) {
+        AtomicInteger counter = COUNTERS_BY_ROLE.get(role);
+        if (counter == null) {
+            counter = new AtomicInteger();
+            final AtomicInteger existing = COUNTERS_BY_ROLE.putIfAbsent(role, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        return counter;
+    }
+
+    private static class Site {
+        private final Role role;
+        private final String type;
+        private final StackTraceElement[] frames; // only the first length ones are part of the site
+        private final int length;
+        private final int fingerprint; // type and frames
+        private final int hash;
+
+        private Site(final Role role, final String type, final StackTraceElement[] frames, final int length) {
+            this.role = role;
+            this.type = type;
+            this.frames = frames;
+            this.length = length;
+
+            int h = type.hashCode();
+            for (int i = 0; i < length; i++) {
+                final StackTraceElement frame = frames[i];
+                h = 31 * h + frame.getClassName().hashCode();
+                h = 31 * h + frame.getMethodName().hashCode();
+                h = 31 * h + frame.getLineNumber();
+            }
+            this.fingerprint = h;
+            this.hash = 31 * role.hashCode() + h;
+        }
+
+        private Site copy() {
+            if (frames.length == length) {
+                return this;
+            }
+            final StackTraceElement[] copy = new StackTraceElement[length];
+            System.arraycopy(frames, 0, copy, 0, length);
+            return new Site(role, type, copy, length);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            final Site site = Site.class.cast(o);
+            if (hash != site.hash || length != site.length || !type.equals(site.type) || !role.equals(site.role)) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (!frames[i].equals(site.frames[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.counters;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+
+/**
+ * Fixed memory log-linear histogram (HdrHistogram like).
+ * <p/>
+ * Each power of two is split in 2^precision linear buckets so the relative error
+ * of a bucket is bounded by 2^-precision whatever the magnitude of the value.
+ * Values are recorded in the unit of the counter, rounded to a long and clamped
+ * in [0, 2^maxBits[. Counts are stored in a long[] allocated once so recording never allocates.
+ * <p/>
+ * Memory is (maxBits - precision + 1) * 2^precision longs, ie ~4.7KB with default settings.
+ * <p/>
+ * Histograms are mergeable (collector aggregation) and have a compact binary form
+ * (see {@link #toBytes()}) only storing non empty buckets.
+ * <p/>
+ * This class is not thread safe, callers are expected to guard it like OptimizedStatistics.
+ */
+public class Histogram implements Serializable {
+    private static final byte BINARY_VERSION = 1;
+
+    public static final int DEFAULT_PRECISION = 4;
+    public static final int DEFAULT_MAX_BITS = 40; // ~18mn in nanoseconds
+
+    private final int precision;
+    private final int maxBits;
+    private final long maxValue;
+    private final long[] counts;
+    private long totalCount = 0;
+
+    public Histogram() {
+        this(DEFAULT_PRECISION, DEFAULT_MAX_BITS);
+    }
+
+    public Histogram(final int precision, final int maxBits) {
+        if (precision < 1 || precision > 16) {
+            throw new IllegalArgumentException("precision should be in [1, 16]: " + precision);
+        }
+        if (maxBits <= precision || maxBits > 62) {
+            throw new IllegalArgumentException("maxBits should be in ]precision, 62]: " + maxBits);
+        }
+
+        this.precision = precision;
+        this.maxBits = maxBits;
+        this.maxValue = (1L << maxBits) - 1;
+        this.counts = new long[(maxBits - precision + 1) << precision];
+    }
+
+    private Histogram(final Histogram copied) {
+        this.precision = copied.precision;
+        this.maxBits = copied.maxBits;
+        this.maxValue = copied.maxValue;
+        this.counts = copied.counts.clone();
+        this.totalCount = copied.totalCount;
+    }
+
+    public void record(final double value) {
+        counts[indexOf(value)]++;
+        totalCount++;
+    }
+
+    public void record(final double value, final long count) {
+        counts[indexOf(value)] += count;
+        totalCount += count;
+    }
+
+    public void clear() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        totalCount = 0;
+    }
+
+    public Histogram merge(final Histogram other) {
+        if (sameLayout(other)) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            totalCount += other.totalCount;
+        } else { // agents can be configured differently, fallback on bucket middles (adds other bucket error)
+            for (int i = 0; i < other.counts.length; i++) {
+                if (other.counts[i] != 0) {
+                    record(other.lowerBound(i) + (other.width(i) - 1) / 2., other.counts[i]);
+                }
+            }
+        }
+        return this;
+    }
+
+    public Histogram copy() {
+        return new Histogram(this);
+    }
+
+    public Histogram newEmptyCopy() {
+        return new Histogram(precision, maxBits);
+    }
+
+    public boolean sameLayout(final Histogram other) {
+        return other.precision == precision && other.maxBits == maxBits;
+    }
+
+    /**
+     * @param percentile a value in [0, 100].
+     * @return the middle of the bucket holding the percentile or NaN if nothing was recorded.
+     */
+    public double getValueAtPercentile(final double percentile) {
+        if (totalCount == 0) {
+            return Double.NaN;
+        }
+
+        final double p = Math.min(Math.max(percentile, 0.), 100.);
+        final long target = Math.max(1, (long) Math.ceil(p * totalCount / 100.));
+
+        long cumulated = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulated += counts[i];
+            if (cumulated >= target) {
+                return lowerBound(i) + (width(i) - 1) / 2.;
+            }
+        }
+        return maxValue; // unreachable while totalCount is consistent
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    public int getMaxBits() {
+        return maxBits;
+    }
+
+    public int bucketCount() {
+        return counts.length;
+    }
+
+    public long countAt(final int index) {
+        return counts[index];
+    }
+
+    public long lowerBound(final int index) {
+        if (index < (2 << precision)) {
+            return index;
+        }
+        final int shift = (index >>> precision) - 1;
+        return ((long) (index - (shift << precision))) << shift;
+    }
+
+    public long width(final int index) {
+        if (index < (2 << precision)) {
+            return 1;
+        }
+        return 1L << ((index >>> precision) - 1);
+    }
+
+    int indexOf(final double value) {
+        final long v;
+        if (!(value > 0)) { // negative or NaN
+            v = 0;
+        } else if (value >= maxValue) {
+            v = maxValue;
+        } else {
+            v = Math.round(value);
+        }
+
+        if (v < (2 << precision)) {
+            return (int) v;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(v) - precision;
+        return (shift << precision) + (int) (v >>> shift);
+    }
+
+    /**
+     * Format: version, precision, maxBits then the number of non empty buckets
+     * followed by (index delta, count) pairs, all numbers being unsigned varints.
+     *
+     * @return a compact binary representation of this histogram.
+     */
+    public byte[] toBytes() {
+        int nonEmpty = 0;
+        for (final long count : counts) {
+            if (count != 0) {
+                nonEmpty++;
+            }
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(4 + nonEmpty * 3);
+        out.write(BINARY_VERSION);
+        out.write(precision);
+        out.write(maxBits);
+        writeVarLong(out, nonEmpty);
+        int previous = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                writeVarLong(out, i - previous);
+                writeVarLong(out, counts[i]);
+                previous = i;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    public static Histogram fromBytes(final byte[] bytes) {
+        if (bytes == null || bytes.length < 4 || bytes[0] != BINARY_VERSION) {
+            throw new IllegalArgumentException("Unsupported histogram format");
+        }
+
+        final Histogram histogram = new Histogram(bytes[1], bytes[2]);
+        final int[] position = new int[] { 3 };
+        final long nonEmpty = readVarLong(bytes, position);
+        long index = 0;
+        for (long i = 0; i < nonEmpty; i++) {
+            index += readVarLong(bytes, position);
+            final long count = readVarLong(bytes, position);
+            if (index >= histogram.counts.length || count < 0) {
+                throw new IllegalArgumentException("Corrupted histogram");
+            }
+            histogram.counts[(int) index] = count;
+            histogram.totalCount += count;
+        }
+        return histogram;
+    }
+
+    private static void writeVarLong(final ByteArrayOutputStream out, final long value) {
+        long v = value;
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarLong(final byte[] bytes, final int[] position) {
+        long value = 0;
+        int shift = 0;
+        while (shift < 64) {
+            if (position[0] >= bytes.length) {
+                throw new IllegalArgumentException("Truncated histogram");
+            }
+            final byte b = bytes[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    @Override
+    public String toString() {
+        return "Histogram{" +
+            "precision=" + precision +
+            ", maxBits=" + maxBits +
+            ", totalCount=" + totalCount +
+            '}';
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.counters;
+
+import org.apache.sirona.Role;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Global registry giving an int id to each (role, name) pair so instrumentation can resolve
+ * a counter name once and then record by id (array index) instead of hashing the name each time.
+ * <p/>
+ * An id is a slot and the generation of this slot: once a key is removed (evicted counter) its id resolves to null
+ * and the name has to be registered again. Freed slots are reused with the next generation so the registry
+ * only grows with the number of live keys. Generations wrap after 512 reuses of a slot,
+ * callers keeping an id for a long time check it with {@link #isRegistered(int, Role, String)}.
+ */
+public class KeyRegistry {
+    public static final KeyRegistry INSTANCE = new KeyRegistry();
+
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final int SLOT_BITS = 22;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    private static final int MAX_GENERATION = (1 << (31 - SLOT_BITS)) - 1; // ids stay positive
+
+    private final ConcurrentMap<Role, ConcurrentMap<String, Integer>> ids = new ConcurrentHashMap<Role, ConcurrentMap<String, Integer>>();
+    private volatile Object[] pages = new Object[0]; // AtomicReferenceArray<Entry>
+    private int nextSlot = 0; // guarded by this
+    private int[] freeIds = new int[16]; // next id of the freed slots, guarded by this
+    private int freeCount = 0; // guarded by this
+
+    /**
+     * @return the index of this id in arrays indexed by key (see IndexedCounterDataStore), bounded by the number of live keys.
+     */
+    public static int slot(final int id) {
+        return id & SLOT_MASK;
+    }
+
+    public int register(final Counter.Key key) {
+        final Integer id = names(key.getRole()).get(key.getName());
+        if (id != null) {
+            return id;
+        }
+        return doRegister(key.getRole(), key.getName(), key);
+    }
+
+    public int register(final Role role, final String name) {
+        final Integer id = names(role).get(name);
+        if (id != null) {
+            return id;
+        }
+        return doRegister(role, name, null);
+    }
+
+    /**
+     * @return the id of this key or -1 if it is not registered.
+     */
+    public int find(final Role role, final String name) {
+        final ConcurrentMap<String, Integer> names = ids.get(role);
+        if (names == null) {
+            return -1;
+        }
+        final Integer id = names.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @return the key for this id or null if it was removed or never registered.
+     */
+    public Counter.Key get(final int id) {
+        if (id < 0) {
+            return null;
+        }
+        final Object[] current = pages;
+        final int slot = slot(id);
+        final int page = slot >>> PAGE_BITS;
+        if (page >= current.length) {
+            return null;
+        }
+        final Entry entry = page(current, page).get(slot & PAGE_MASK);
+        if (entry == null || entry.id != id) { // freed or reused by another key
+            return null;
+        }
+        return entry.key;
+    }
+
+    public boolean isRegistered(final int id) {
+        return get(id) != null;
+    }
+
+    /**
+     * @return true if this id is still the one of this key.
+     */
+    public boolean isRegistered(final int id, final Role role, final String name) {
+        final Counter.Key key = get(id);
+        return key != null && key.getName().equals(name) && key.getRole().equals(role);
+    }
+
+    public boolean remove(final Counter.Key key) {
+        if (find(key.getRole(), key.getName()) < 0) { // most folded/rejected keys were never registered, no lock
+            return false;
+        }
+        return doRemove(key);
+    }
+
+    public int size() {
+        int size = 0;
+        for (final ConcurrentMap<String, Integer> names : ids.values()) {
+            size += names.size();
+        }
+        return size;
+    }
+
+    private synchronized boolean doRemove(final Counter.Key key) {
+        final ConcurrentMap<String, Integer> names = ids.get(key.getRole());
+        if (names == null) {
+            return false;
+        }
+        final Integer id = names.remove(key.getName());
+        if (id == null) {
+            return false;
+        }
+
+        final int slot = slot(id);
+        page(pages, slot >>> PAGE_BITS).set(slot & PAGE_MASK, null);
+
+        int generation = (id >>> SLOT_BITS) + 1;
+        if (generation > MAX_GENERATION) {
+            generation = 0;
+        }
+        if (freeCount == freeIds.length) {
+            final int[] newFreeIds = new int[freeIds.length * 2];
+            System.arraycopy(freeIds, 0, newFreeIds, 0, freeCount);
+            freeIds = newFreeIds;
+        }
+        freeIds[freeCount++] = (generation << SLOT_BITS) | slot;
+        return true;
+    }
+
+    private synchronized int doRegister(final Role role, final String name, final Counter.Key key) {
+        final ConcurrentMap<String, Integer> names = names(role);
+        final Integer existing = names.get(name);
+        if (existing != null) {
+            return existing;
+        }
+
+        final int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            if (nextSlot > SLOT_MASK) {
+                throw new IllegalStateException("Too many counter keys: " + nextSlot);
+            }
+            id = nextSlot++;
+        }
+
+        final int slot = slot(id);
+        final int page = slot >>> PAGE_BITS;
+        Object[] current = pages;
+        if (page >= current.length) {
+            final Object[] newPages = new Object[page + 1];
+            System.arraycopy(current, 0, newPages, 0, current.length);
+            newPages[page] = new AtomicReferenceArray<Entry>(PAGE_SIZE);
+            pages = newPages;
+            current = newPages;
+        }
+        page(current, page).set(slot & PAGE_MASK, new Entry(id, key != null ? key : new Counter.Key(role, name)));
+        names.put(name, id); // published after the key
+        return id;
+    }
+
+    private ConcurrentMap<String, Integer> names(final Role role) {
+        ConcurrentMap<String, Integer> names = ids.get(role);
+        if (names == null) {
+            names = new ConcurrentHashMap<String, Integer>();
+            final ConcurrentMap<String, Integer> existing = ids.putIfAbsent(role, names);
+            if (existing != null) {
+                names = existing;
+            }
+        }
+        return names;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static AtomicReferenceArray<Entry> page(final Object[] pages, final int page) {
+        return (AtomicReferenceArray<Entry>) pages[page];
+    }
+
+    private static class Entry {
+        private final int id;
+        private final Counter.Key key;
+
+        private Entry(final int id, final Counter.Key key) {
+            this.id = id;
+            this.key = key;
+        }
+    }
+}
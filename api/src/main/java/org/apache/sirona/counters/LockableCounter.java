@@ -17,9 +17,12 @@
 package org.apache.sirona.counters;
 
 import org.apache.sirona.store.counter.CounterDataStore;
+import org.apache.sirona.store.counter.SampledCounterDataStore;
 
 import javax.management.ObjectName;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -31,20 +34,45 @@ public abstract class LockableCounter implements Counter {
     private final AtomicInteger concurrency = new AtomicInteger(0);
     private volatile int maxConcurrency = 0;
     private ObjectName jmx = null;
+    private volatile SlidingWindow window = null;
 
     protected LockableCounter(final Key key, final CounterDataStore dataStore) {
         this.key = key;
         this.dataStore = dataStore;
     }
 
-    public abstract void addInternal(double delta);
+    public abstract void addInternal(double delta, int samplingRate);
     public abstract OptimizedStatistics getStatistics();
 
+    public void addInternal(final double delta) {
+        addInternal(delta, 1);
+    }
+
     @Override
     public void add(final double delta) {
         dataStore.addToCounter(this, delta);
     }
 
+    /**
+     * Adds a value measured on 1 invocation out of samplingRate: hits and sum are weighted by the rate
+     * to estimate all invocations, mean and percentiles are not impacted.
+     * Stores which can't weight values record it once.
+     */
+    public void add(final double delta, final int samplingRate) {
+        if (samplingRate <= 0) {
+            throw new IllegalArgumentException("sampling rate should be > 0: " + samplingRate);
+        }
+        if (samplingRate != 1 && SampledCounterDataStore.class.isInstance(dataStore)) {
+            SampledCounterDataStore.class.cast(dataStore).addToCounter(this, delta, samplingRate);
+        } else {
+            add(delta);
+        }
+    }
+
+    public void add(final double delta, final Unit deltaUnit, final int samplingRate) {
+        add(getKey().getRole().getUnit().convert(delta, deltaUnit), samplingRate);
+    }
+
     @Override
     public void add(final double delta, final Unit deltaUnit) {
         add(getKey().getRole().getUnit().convert(delta, deltaUnit));
@@ -80,12 +108,65 @@ public abstract class LockableCounter implements Counter {
         return jmx;
     }
 
+    public void setWindow(final SlidingWindow window) {
+        this.window = window;
+    }
+
+    public SlidingWindow getWindow() {
+        return window;
+    }
+
+    /**
+     * @return statistics of the last duration or null if this counter doesn't track a sliding window.
+     */
+    public OptimizedStatistics getWindowStatistics(final long duration, final TimeUnit unit) {
+        final SlidingWindow w = window;
+        if (w == null) {
+            return null;
+        }
+        return w.getStatistics(duration, unit);
+    }
+
     public ReadWriteLock getLock() {
         return lock;
     }
 
+    /**
+     * Atomically reads the statistics and starts a new interval, writers are not lost
+     * and the counter (JMX registration, sliding window) is kept.
+     *
+     * @return the statistics recorded since the previous snapshot (or reset).
+     */
+    public OptimizedStatistics snapshotAndReset() {
+        final Lock lock = getLock().writeLock();
+        lock.lock();
+        try {
+            final OptimizedStatistics statistics = swapStatistics();
+            maxConcurrency = 0;
+            return statistics;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // called under the write lock, implementations not relying on this lock for writes should override it
+    protected OptimizedStatistics swapStatistics() {
+        final OptimizedStatistics statistics = getStatistics();
+        clearStatistics();
+        return statistics;
+    }
+
+    // only clears recorded values, implementations should override it to keep their sliding window
+    protected void clearStatistics() {
+        reset();
+    }
+
     public void reset() {
         maxConcurrency = 0;
+        final SlidingWindow w = window;
+        if (w != null) {
+            w.clear();
+        }
     }
 
     @Override
@@ -128,6 +209,11 @@ public abstract class LockableCounter implements Counter {
         return getStatistics().getSecondMoment();
     }
 
+    @Override
+    public double getPercentile(final double percentile) {
+        return getStatistics().getPercentile(percentile);
+    }
+
     @Override
     public boolean equals(final Object o) {
         if (this == o) {
@@ -141,6 +141,50 @@ public enum MetricData {
         public boolean isTime() {
             return false;
         }
+    },
+    Percentile50 {
+        @Override
+        public double value(final Counter counter) {
+            return counter.getPercentile(50);
+        }
+
+        @Override
+        public boolean isTime() {
+            return true;
+        }
+    },
+    Percentile90 {
+        @Override
+        public double value(final Counter counter) {
+            return counter.getPercentile(90);
+        }
+
+        @Override
+        public boolean isTime() {
+            return true;
+        }
+    },
+    Percentile99 {
+        @Override
+        public double value(final Counter counter) {
+            return counter.getPercentile(99);
+        }
+
+        @Override
+        public boolean isTime() {
+            return true;
+        }
+    },
+    Percentile999 {
+        @Override
+        public double value(final Counter counter) {
+            return counter.getPercentile(99.9);
+        }
+
+        @Override
+        public boolean isTime() {
+            return true;
+        }
     };
 
     public abstract double value(Counter counter);
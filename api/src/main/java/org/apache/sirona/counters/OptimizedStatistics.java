@@ -28,18 +28,32 @@ public class OptimizedStatistics {
     // second moment
     protected double m2 = Double.NaN;
 
+    // optional, used for percentiles
+    protected Histogram histogram;
+
     public OptimizedStatistics() {
         // no-op
     }
 
+    public OptimizedStatistics(final Histogram histogram) {
+        this.histogram = histogram;
+    }
+
     public OptimizedStatistics(final long n, final double sum, final double min,
                                final double max, final double m1, final double m2) {
+        this(n, sum, min, max, m1, m2, null);
+    }
+
+    public OptimizedStatistics(final long n, final double sum, final double min,
+                               final double max, final double m1, final double m2,
+                               final Histogram histogram) {
         this.n = n;
         this.sum = sum;
         this.min = min;
         this.max = max;
         this.m1 = m1;
         this.m2 = m2;
+        this.histogram = histogram;
     }
 
     public OptimizedStatistics addValue(double value) {
@@ -69,6 +83,89 @@ public class OptimizedStatistics {
         // second moment
         m2 += dev * nDev * (n - 1);
 
+        if (histogram != null) {
+            histogram.record(value);
+        }
+
+        return this;
+    }
+
+    // value seen weight times (sampled invocations), weighted variant of the Welford algorithm (West)
+    public OptimizedStatistics addValue(final double value, final long weight) {
+        if (weight == 1) {
+            return addValue(value);
+        }
+        if (weight <= 0) {
+            return this;
+        }
+
+        if (n == 0) {
+            m1 = 0.0;
+            m2 = 0.0;
+        }
+
+        final long oldN = n;
+        n += weight;
+        sum += value * weight;
+
+        if (value < min || Double.isNaN(min)) {
+            min = value;
+        }
+        if (value > max || Double.isNaN(max)) {
+            max = value;
+        }
+
+        final double dev = value - m1;
+        final double nDev = dev * weight / n;
+        m1 += nDev;
+        m2 += dev * nDev * oldN;
+
+        if (histogram != null) {
+            histogram.record(value, weight);
+        }
+
+        return this;
+    }
+
+    // parallel variant of the Welford algorithm (Chan et al.), same formula as Aggregators
+    public OptimizedStatistics merge(final OptimizedStatistics other) {
+        if (other.n == 0) {
+            return this;
+        }
+
+        if (other.histogram != null) {
+            if (histogram == null) {
+                histogram = other.histogram.copy();
+            } else {
+                histogram.merge(other.histogram);
+            }
+        }
+
+        if (n == 0) {
+            n = other.n;
+            sum = other.sum;
+            min = other.min;
+            max = other.max;
+            m1 = other.m1;
+            m2 = other.m2;
+            return this;
+        }
+
+        if (other.min < min) {
+            min = other.min;
+        }
+        if (other.max > max) {
+            max = other.max;
+        }
+
+        final double oldN = n;
+        final double otherN = other.n;
+        final double delta = other.m1 - m1;
+
+        n += other.n;
+        sum += other.sum;
+        m1 += delta * otherN / n;
+        m2 += other.m2 + delta * delta * oldN * otherN / n;
         return this;
     }
 
@@ -79,6 +176,9 @@ public class OptimizedStatistics {
         max = Double.NaN;
         m1 = Double.NaN;
         m2 = Double.NaN;
+        if (histogram != null) {
+            histogram.clear();
+        }
     }
 
     public double getMean() {
@@ -123,8 +223,24 @@ public class OptimizedStatistics {
         return m2;
     }
 
+    /**
+     * @param percentile a value in [0, 100].
+     * @return the estimated value for this percentile or NaN if no histogram is available.
+     */
+    public double getPercentile(final double percentile) {
+        if (histogram == null || n == 0) {
+            return Double.NaN;
+        }
+        // bucket middle can be outside observed values, min/max are exact so use them as bounds
+        return Math.min(Math.max(histogram.getValueAtPercentile(percentile), min), max);
+    }
+
+    public Histogram getHistogram() {
+        return histogram;
+    }
+
     public OptimizedStatistics copy() {
-        return new OptimizedStatistics(n, sum, min, max, m1, m2);
+        return new OptimizedStatistics(n, sum, min, max, m1, m2, histogram != null ? histogram.copy() : null);
     }
 
     @Override
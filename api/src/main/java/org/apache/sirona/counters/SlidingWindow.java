@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.counters;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ring of statistics, one per time slot, giving recent behavior of a counter
+ * (last 1, 5, 15 minutes with default settings) without resetting it.
+ * <p/>
+ * There is no rotation thread: a slot is recycled when it is written for a new period
+ * and slots older than the requested duration are ignored when reading.
+ * <p/>
+ * A window of N slots covers the current (partial) slot and the N - 1 previous ones.
+ * <p/>
+ * As StripedCounter each slot is split in cells selected by thread so writers don't share a monitor,
+ * cells are merged when the window is read.
+ */
+public class SlidingWindow {
+    public static final long DEFAULT_SLOT_DURATION = 60 * 1000L;
+    public static final int DEFAULT_SLOTS = 15;
+    public static final int DEFAULT_STRIPES = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private final long slotDuration;
+    private final int slots;
+    private final int stripes;
+    private final int mask;
+    private final OptimizedStatistics[] cells; // slot * stripes + stripe
+    private final long[] periods; // guarded by the cell with the same index
+
+    public SlidingWindow() {
+        this(DEFAULT_SLOT_DURATION, DEFAULT_SLOTS, null);
+    }
+
+    public SlidingWindow(final long slotDuration, final int slots, final Histogram histogram) {
+        this(slotDuration, slots, DEFAULT_STRIPES, histogram);
+    }
+
+    // histogram (nullable) is only used as a layout, each cell gets its own one
+    public SlidingWindow(final long slotDuration, final int slots, final int stripes, final Histogram histogram) {
+        if (slotDuration <= 0 || slots <= 0 || stripes <= 0) {
+            throw new IllegalArgumentException("slot duration, slot and stripe numbers should be positive");
+        }
+
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+
+        this.slotDuration = slotDuration;
+        this.slots = slots;
+        this.stripes = size;
+        this.mask = size - 1;
+        this.cells = new OptimizedStatistics[slots * size];
+        this.periods = new long[cells.length];
+        for (int i = 0; i < cells.length; i++) {
+            this.cells[i] = new OptimizedStatistics(histogram != null ? histogram.newEmptyCopy() : null);
+            this.periods[i] = -1;
+        }
+    }
+
+    public void record(final double value) {
+        record(value, System.currentTimeMillis());
+    }
+
+    public void record(final double value, final long now) {
+        record(value, now, 1);
+    }
+
+    public void record(final double value, final long now, final long weight) {
+        final long period = now / slotDuration;
+        final int idx = (int) (period % slots) * stripes + stripe();
+        final OptimizedStatistics cell = cells[idx];
+        synchronized (cell) { // only contended by threads sharing the stripe
+            if (periods[idx] != period) { // lazy rotation
+                if (periods[idx] > period) { // late value (clock went back), slot already reused
+                    return;
+                }
+                cell.clear();
+                periods[idx] = period;
+            }
+            cell.addValue(value, weight);
+        }
+    }
+
+    public OptimizedStatistics getStatistics(final long duration, final TimeUnit unit) {
+        return getStatistics(duration, unit, System.currentTimeMillis());
+    }
+
+    /**
+     * @return merged statistics of the slots in the duration, the duration is rounded up to a slot
+     * and capped to the window size.
+     */
+    public OptimizedStatistics getStatistics(final long duration, final TimeUnit unit, final long now) {
+        final long current = now / slotDuration;
+        final long count = Math.min(slots, Math.max(1, (unit.toMillis(duration) + slotDuration - 1) / slotDuration));
+        final long oldest = current - count + 1;
+
+        final OptimizedStatistics statistics = new OptimizedStatistics();
+        for (int i = 0; i < cells.length; i++) {
+            final OptimizedStatistics cell = cells[i];
+            final OptimizedStatistics copy;
+            synchronized (cell) {
+                if (periods[i] < oldest || periods[i] > current) {
+                    continue;
+                }
+                copy = cell.copy();
+            }
+            statistics.merge(copy);
+        }
+        return statistics;
+    }
+
+    public void clear() {
+        for (int i = 0; i < cells.length; i++) {
+            synchronized (cells[i]) {
+                cells[i].clear();
+                periods[i] = -1;
+            }
+        }
+    }
+
+    public long getSlotDuration() {
+        return slotDuration;
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    public int getStripes() {
+        return stripes;
+    }
+
+    private int stripe() {
+        // thread ids are sequential so a light mix is enough to spread them
+        final long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 16)) & mask;
+    }
+}
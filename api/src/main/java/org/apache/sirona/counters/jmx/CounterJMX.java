@@ -17,8 +17,15 @@
 package org.apache.sirona.counters.jmx;
 
 import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.FailureFingerprint;
+import org.apache.sirona.counters.LockableCounter;
+import org.apache.sirona.counters.OptimizedStatistics;
+
+import java.util.concurrent.TimeUnit;
 
 public class CounterJMX implements CounterJMXMBean {
+    private static final OptimizedStatistics EMPTY = new OptimizedStatistics();
+
     private final Counter delegate;
 
     public CounterJMX(final Counter counter) {
@@ -55,6 +62,66 @@ public class CounterJMX implements CounterJMXMBean {
         return delegate.getMean();
     }
 
+    @Override
+    public long getHits1m() {
+        return window(1).getN();
+    }
+
+    @Override
+    public long getHits5m() {
+        return window(5).getN();
+    }
+
+    @Override
+    public long getHits15m() {
+        return window(15).getN();
+    }
+
+    @Override
+    public double getMean1m() {
+        return window(1).getMean();
+    }
+
+    @Override
+    public double getMean5m() {
+        return window(5).getMean();
+    }
+
+    @Override
+    public double getMean15m() {
+        return window(15).getMean();
+    }
+
+    @Override
+    public double getMax1m() {
+        return window(1).getMax();
+    }
+
+    @Override
+    public double getMax5m() {
+        return window(5).getMax();
+    }
+
+    @Override
+    public double getMax15m() {
+        return window(15).getMax();
+    }
+
+    @Override
+    public double windowPercentile(final int minutes, final double percentile) {
+        return window(minutes).getPercentile(percentile);
+    }
+
+    private OptimizedStatistics window(final int minutes) {
+        if (LockableCounter.class.isInstance(delegate)) {
+            final OptimizedStatistics statistics = LockableCounter.class.cast(delegate).getWindowStatistics(minutes * 60L, TimeUnit.SECONDS);
+            if (statistics != null) {
+                return statistics;
+            }
+        }
+        return EMPTY;
+    }
+
     @Override
     public String getRole() {
         return delegate.getKey().getRole().getName();
@@ -64,4 +131,9 @@ public class CounterJMX implements CounterJMXMBean {
     public String getName() {
         return delegate.getKey().getName();
     }
+
+    @Override
+    public String getSampleMessage() {
+        return FailureFingerprint.sampleMessage(delegate.getKey());
+    }
 }
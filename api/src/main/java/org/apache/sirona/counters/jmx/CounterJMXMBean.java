@@ -29,7 +29,32 @@ public interface CounterJMXMBean {
 
     double getMean();
 
+    // sliding windows, NaN (or 0 for hits) when the counter doesn't track them
+
+    long getHits1m();
+
+    long getHits5m();
+
+    long getHits15m();
+
+    double getMean1m();
+
+    double getMean5m();
+
+    double getMean15m();
+
+    double getMax1m();
+
+    double getMax5m();
+
+    double getMax15m();
+
+    double windowPercentile(int minutes, double percentile);
+
     String getRole();
 
     String getName();
+
+    // first message of a failure fingerprint (see FailureFingerprint), null for other counters
+    String getSampleMessage();
 }
@@ -16,6 +16,7 @@
  */
 package org.apache.sirona.math;
 
+import org.apache.sirona.counters.Histogram;
 import org.apache.sirona.store.counter.LeafCollectorCounter;
 import org.apache.sirona.math.M2AwareStatisticalSummary;
 
@@ -40,8 +41,17 @@ public class Aggregators {
         double max = current.getMax();
         double m2 = current.getSecondMoment();
         double mean = current.getMean();
+        Histogram histogram = copy(current.getHistogram());
         while (iterator.hasNext()) {
             current = iterator.next();
+            final Histogram currentHistogram = current.getHistogram();
+            if (currentHistogram != null) {
+                if (histogram == null) {
+                    histogram = currentHistogram.copy();
+                } else {
+                    histogram.merge(currentHistogram);
+                }
+            }
             if (current.getMin() < min || Double.isNaN(min)) {
                 min = current.getMin();
             }
@@ -65,7 +75,11 @@ public class Aggregators {
         } else {
             variance = m2 / (n - 1);
         }
-        return new M2AwareStatisticalSummary(mean, variance, n, max, min, sum, m2);
+        return new M2AwareStatisticalSummary(mean, variance, n, max, min, sum, m2, histogram);
+    }
+
+    private static Histogram copy(final Histogram histogram) {
+        return histogram != null ? histogram.copy() : null;
     }
 
     private Aggregators() {
@@ -16,6 +16,9 @@
  */
 package org.apache.sirona.math;
 
+import org.apache.sirona.counters.Histogram;
+import org.apache.sirona.util.Base64Utils;
+
 import java.io.Serializable;
 import java.util.Map;
 
@@ -27,10 +30,17 @@ public class M2AwareStatisticalSummary implements Serializable {
     private final double min;
     private final double sum;
     private final double m2;
+    private final Histogram histogram; // optional, never mutated once set
 
     public M2AwareStatisticalSummary(final double mean, final double variance, final long n,
                                      final double max, final double min, final double sum,
                                      final double m2) {
+        this(mean, variance, n, max, min, sum, m2, null);
+    }
+
+    public M2AwareStatisticalSummary(final double mean, final double variance, final long n,
+                                     final double max, final double min, final double sum,
+                                     final double m2, final Histogram histogram) {
         this.mean = mean;
         this.variance = variance;
         this.n = n;
@@ -38,12 +48,23 @@ public class M2AwareStatisticalSummary implements Serializable {
         this.min = min;
         this.sum = sum;
         this.m2 = m2;
+        this.histogram = histogram;
     }
 
     public M2AwareStatisticalSummary(final Map<String, Object> data) {
         this(toDouble(data.get("mean")), toDouble(data.get("variance")), toLong(data.get("hits")),
             toDouble(data.get("max")), toDouble(data.get("min")), toDouble(data.get("sum")),
-            toDouble(data.get("m2")));
+            toDouble(data.get("m2")), toHistogram(data.get("histogram")));
+    }
+
+    private static Histogram toHistogram(final Object histogram) {
+        if (String.class.isInstance(histogram)) {
+            return Histogram.fromBytes(Base64Utils.decode(String.class.cast(histogram)));
+        }
+        if (byte[].class.isInstance(histogram)) {
+            return Histogram.fromBytes(byte[].class.cast(histogram));
+        }
+        return null; // old agents or histograms disabled
     }
 
     private static double toDouble(final Object mean) {
@@ -96,4 +117,15 @@ public class M2AwareStatisticalSummary implements Serializable {
     public double getSum() {
         return sum;
     }
+
+    public Histogram getHistogram() {
+        return histogram;
+    }
+
+    public double getPercentile(final double percentile) {
+        if (histogram == null || n == 0) {
+            return Double.NaN;
+        }
+        return Math.min(Math.max(histogram.getValueAtPercentile(percentile), min), max);
+    }
 }
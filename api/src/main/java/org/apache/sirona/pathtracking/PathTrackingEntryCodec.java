@@ -0,0 +1,384 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.pathtracking;
+
+import org.apache.sirona.util.SerializeUtils;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary format of path tracking entries, replaces java serialization (see {@link SerializeUtils}):
+ * <pre>
+ * 'S' 'P' version(1) count(varint) entries
+ * entry = trackingId nodeId className methodName (strings) startTime executionTime level (zigzag varints)
+ * string = 0 for null, 1 + length(varint) + UTF-8 bytes the first time, 2 + index in the strings of the payload next times
+ * </pre>
+ * The start time is the difference with the start time of the previous entry, the first one is relative to 0.
+ * <p/>
+ * {@link #decodeAny(byte[])} also reads java serialized entries, sent by agents before 0.4.
+ *
+ * @since 0.4
+ */
+public final class PathTrackingEntryCodec
+{
+    /**
+     * content type of the encoded entries, java serialized ones use application/x-java-serialized-object.
+     */
+    public static final String CONTENT_TYPE = "application/x-sirona-pathtracking";
+
+    public static final byte VERSION = 1;
+
+    private static final byte MAGIC_0 = 'S';
+
+    private static final byte MAGIC_1 = 'P';
+
+    private static final int NULL = 0;
+
+    private static final int NEW_STRING = 1;
+
+    private static final int STRING_INDEX = 2;
+
+    private static final String UTF_8 = "UTF-8";
+
+    private PathTrackingEntryCodec()
+    {
+        // no-op
+    }
+
+    public static byte[] encode( final PathTrackingEntry entry )
+    {
+        return encode( Collections.singletonList( entry ) );
+    }
+
+    public static byte[] encode( final Collection<PathTrackingEntry> entries )
+    {
+        final Encoder encoder = new Encoder( entries.size() );
+        for ( final PathTrackingEntry entry : entries )
+        {
+            encoder.add( entry.getTrackingId(), entry.getNodeId(), entry.getClassName(), entry.getMethodName(), //
+                         entry.getStartTime(), entry.getExecutionTime(), entry.getLevel() );
+        }
+        return encoder.toByteArray();
+    }
+
+    /**
+     * @return true if the bytes start with the header of this codec (whatever the version).
+     */
+    public static boolean isEncoded( final byte[] bytes )
+    {
+        return bytes != null && bytes.length >= 3 && bytes[0] == MAGIC_0 && bytes[1] == MAGIC_1;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bytes are not a valid payload of a supported version.
+     */
+    public static List<PathTrackingEntry> decode( final byte[] bytes )
+    {
+        if ( !isEncoded( bytes ) )
+        {
+            throw new IllegalArgumentException( "Not encoded path tracking entries" );
+        }
+        if ( bytes[2] != VERSION )
+        {
+            throw new IllegalArgumentException( "Unsupported path tracking entries version: " + bytes[2] );
+        }
+
+        final Reader reader = new Reader( bytes, 3 );
+        final long count = reader.readVarLong();
+        if ( count < 0 || count > bytes.length ) // an entry takes several bytes, avoids huge allocations
+        {
+            throw new IllegalArgumentException( "Invalid entry count: " + count );
+        }
+
+        final List<PathTrackingEntry> entries = new ArrayList<PathTrackingEntry>( (int) count );
+        final List<String> strings = new ArrayList<String>();
+        long start = 0;
+        for ( int i = 0; i < count; i++ )
+        {
+            final String trackingId = reader.readString( strings );
+            final String nodeId = reader.readString( strings );
+            final String className = reader.readString( strings );
+            final String methodName = reader.readString( strings );
+            start += reader.readSignedVarLong();
+            final long executionTime = reader.readSignedVarLong();
+            final long level = reader.readSignedVarLong();
+            if ( level < Integer.MIN_VALUE || level > Integer.MAX_VALUE )
+            {
+                throw new IllegalArgumentException( "Invalid level: " + level );
+            }
+            entries.add( new PathTrackingEntry( trackingId, nodeId, className, methodName, start, executionTime, (int) level ) );
+        }
+        if ( reader.position != bytes.length )
+        {
+            throw new IllegalArgumentException( "Unexpected bytes after the entries" );
+        }
+        return entries;
+    }
+
+    /**
+     * Decodes the entries of this codec or a java serialized entry.
+     *
+     * @throws IllegalArgumentException if the bytes can't be read.
+     */
+    public static List<PathTrackingEntry> decodeAny( final byte[] bytes )
+    {
+        if ( isEncoded( bytes ) )
+        {
+            return decode( bytes );
+        }
+
+        final PathTrackingEntry entry = bytes == null ? null : SerializeUtils.deserialize( bytes, PathTrackingEntry.class );
+        if ( entry == null )
+        {
+            throw new IllegalArgumentException( "Can't read path tracking entries" );
+        }
+        return Collections.singletonList( entry );
+    }
+
+    /**
+     * Encodes entries given as their fields so the ones recorded in primitive buffers don't need to be created.
+     */
+    public static final class Encoder
+    {
+        private final Writer writer;
+
+        private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+        private final int count;
+
+        private int added = 0;
+
+        private long previousStart = 0;
+
+        /**
+         * @param count the number of entries which will be added.
+         */
+        public Encoder( final int count )
+        {
+            if ( count < 0 )
+            {
+                throw new IllegalArgumentException( "Invalid entry count: " + count );
+            }
+            this.count = count;
+            this.writer = new Writer( 16 + count * 24 );
+            writer.write( MAGIC_0 );
+            writer.write( MAGIC_1 );
+            writer.write( VERSION );
+            writer.writeVarLong( count );
+        }
+
+        public Encoder add( final String trackingId, final String nodeId, final String className,
+                            final String methodName, final long startTime, final long executionTime, final int level )
+        {
+            if ( added == count )
+            {
+                throw new IllegalStateException( "Already " + count + " entries" );
+            }
+            writer.writeString( strings, trackingId );
+            writer.writeString( strings, nodeId );
+            writer.writeString( strings, className );
+            writer.writeString( strings, methodName );
+            writer.writeSignedVarLong( startTime - previousStart );
+            writer.writeSignedVarLong( executionTime );
+            writer.writeSignedVarLong( level );
+            previousStart = startTime;
+            added++;
+            return this;
+        }
+
+        /**
+         * @throws IllegalStateException if less entries than announced were added.
+         */
+        public byte[] toByteArray()
+        {
+            if ( added != count )
+            {
+                throw new IllegalStateException( added + " entries added instead of " + count );
+            }
+            return writer.toByteArray();
+        }
+    }
+
+    private static class Writer
+    {
+        private byte[] buffer;
+
+        private int size = 0;
+
+        private Writer( final int capacity )
+        {
+            buffer = new byte[capacity];
+        }
+
+        private void write( final int b )
+        {
+            ensureCapacity( 1 );
+            buffer[size++] = (byte) b;
+        }
+
+        private void writeVarLong( final long value )
+        {
+            ensureCapacity( 10 );
+            long v = value;
+            while ( ( v & ~0x7FL ) != 0 )
+            {
+                buffer[size++] = (byte) ( ( v & 0x7F ) | 0x80 );
+                v >>>= 7;
+            }
+            buffer[size++] = (byte) v;
+        }
+
+        private void writeSignedVarLong( final long value )
+        {
+            writeVarLong( ( value << 1 ) ^ ( value >> 63 ) ); // zigzag: small negative values stay small
+        }
+
+        private void writeString( final Map<String, Integer> strings, final String value )
+        {
+            if ( value == null )
+            {
+                writeVarLong( NULL );
+                return;
+            }
+
+            final Integer index = strings.get( value );
+            if ( index != null )
+            {
+                writeVarLong( STRING_INDEX + index );
+                return;
+            }
+
+            strings.put( value, strings.size() );
+            final byte[] bytes = utf8( value );
+            writeVarLong( NEW_STRING );
+            writeVarLong( bytes.length );
+            ensureCapacity( bytes.length );
+            System.arraycopy( bytes, 0, buffer, size, bytes.length );
+            size += bytes.length;
+        }
+
+        private void ensureCapacity( final int length )
+        {
+            if ( size + length > buffer.length )
+            {
+                final byte[] bigger = new byte[Math.max( buffer.length * 2, size + length )];
+                System.arraycopy( buffer, 0, bigger, 0, size );
+                buffer = bigger;
+            }
+        }
+
+        private byte[] toByteArray()
+        {
+            final byte[] bytes = new byte[size];
+            System.arraycopy( buffer, 0, bytes, 0, size );
+            return bytes;
+        }
+
+        private static byte[] utf8( final String value )
+        {
+            try
+            {
+                return value.getBytes( UTF_8 );
+            }
+            catch ( final UnsupportedEncodingException e ) // UTF-8 is always supported
+            {
+                throw new IllegalStateException( e );
+            }
+        }
+    }
+
+    private static class Reader
+    {
+        private final byte[] bytes;
+
+        private int position;
+
+        private Reader( final byte[] bytes, final int position )
+        {
+            this.bytes = bytes;
+            this.position = position;
+        }
+
+        private long readVarLong()
+        {
+            long value = 0;
+            for ( int shift = 0; shift < 64; shift += 7 )
+            {
+                if ( position >= bytes.length )
+                {
+                    throw new IllegalArgumentException( "Truncated path tracking entries" );
+                }
+                final byte b = bytes[position++];
+                value |= (long) ( b & 0x7F ) << shift;
+                if ( ( b & 0x80 ) == 0 )
+                {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException( "Invalid varint at " + position );
+        }
+
+        private long readSignedVarLong()
+        {
+            final long value = readVarLong();
+            return ( value >>> 1 ) ^ -( value & 1 );
+        }
+
+        private String readString( final List<String> strings )
+        {
+            final long tag = readVarLong();
+            if ( tag == NULL )
+            {
+                return null;
+            }
+            if ( tag == NEW_STRING )
+            {
+                final long length = readVarLong();
+                if ( length < 0 || length > bytes.length - position )
+                {
+                    throw new IllegalArgumentException( "Invalid string length: " + length );
+                }
+
+                final String value;
+                try
+                {
+                    value = new String( bytes, position, (int) length, UTF_8 );
+                }
+                catch ( final UnsupportedEncodingException e )
+                {
+                    throw new IllegalStateException( e );
+                }
+                position += (int) length;
+                strings.add( value );
+                return value;
+            }
+
+            final long index = tag - STRING_INDEX;
+            if ( index < 0 || index >= strings.size() )
+            {
+                throw new IllegalArgumentException( "Invalid string index: " + index );
+            }
+            return strings.get( (int) index );
+        }
+    }
+}
@@ -33,6 +33,8 @@ public interface Repository {
 
     Counter getCounter(Counter.Key key);
 
+    Counter getCounter(int keyId); // see KeyRegistry, null if the id was removed
+
     Collection<Counter> counters();
 
     void clearCounters();
@@ -18,6 +18,7 @@ package org.apache.sirona.store.counter;
 
 import org.apache.sirona.math.M2AwareStatisticalSummary;
 import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.Histogram;
 import org.apache.sirona.counters.Unit;
 
 import java.io.Serializable;
@@ -172,6 +173,27 @@ public abstract class CollectorCounter implements Counter, Serializable {
         }
     }
 
+    public double getPercentile(final double percentile) {
+        final Lock workLock = lock.readLock();
+        workLock.lock();
+        try {
+            return statistics.getPercentile(percentile);
+        } finally {
+            workLock.unlock();
+        }
+    }
+
+    // shared instance, callers must not mutate it
+    public Histogram getHistogram() {
+        final Lock workLock = lock.readLock();
+        workLock.lock();
+        try {
+            return statistics.getHistogram();
+        } finally {
+            workLock.unlock();
+        }
+    }
+
     
     public boolean equals(final Object o) {
         if (this == o) {
@@ -0,0 +1,34 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.store.tracking;
+
+/**
+ * A store accepting the entries of a path already encoded with
+ * {@link org.apache.sirona.pathtracking.PathTrackingEntryCodec}: the agent doesn't create
+ * {@link org.apache.sirona.pathtracking.PathTrackingEntry} instances, they are decoded when the path is read.
+ *
+ * @since 0.4
+ */
+public interface EncodedPathTrackingDataStore
+    extends PathTrackingDataStore
+{
+    /**
+     * @param trackingId the tracking id of all the encoded entries.
+     * @param entries    entries encoded with {@link org.apache.sirona.pathtracking.PathTrackingEntryCodec}.
+     */
+    void store( String trackingId, byte[] entries );
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.util;
+
+/**
+ * Plain base64 (RFC 4648 with padding) since the api has to run on java 5.
+ */
+public class Base64Utils
+{
+    private static final char[] ALPHABET =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static final int[] REVERSE = new int[128];
+
+    static
+    {
+        for ( int i = 0; i < REVERSE.length; i++ )
+        {
+            REVERSE[i] = -1;
+        }
+        for ( int i = 0; i < ALPHABET.length; i++ )
+        {
+            REVERSE[ALPHABET[i]] = i;
+        }
+    }
+
+    private Base64Utils()
+    {
+        // no op just an helper class
+    }
+
+    public static String encode( final byte[] bytes )
+    {
+        final StringBuilder builder = new StringBuilder( ( bytes.length + 2 ) / 3 * 4 );
+        for ( int i = 0; i < bytes.length; i += 3 )
+        {
+            final int b0 = bytes[i] & 0xFF;
+            final int b1 = i + 1 < bytes.length ? bytes[i + 1] & 0xFF : 0;
+            final int b2 = i + 2 < bytes.length ? bytes[i + 2] & 0xFF : 0;
+
+            builder.append( ALPHABET[b0 >>> 2] );
+            builder.append( ALPHABET[( ( b0 & 0x03 ) << 4 ) | ( b1 >>> 4 )] );
+            builder.append( i + 1 < bytes.length ? ALPHABET[( ( b1 & 0x0F ) << 2 ) | ( b2 >>> 6 )] : '=' );
+            builder.append( i + 2 < bytes.length ? ALPHABET[b2 & 0x3F] : '=' );
+        }
+        return builder.toString();
+    }
+
+    public static byte[] decode( final String value )
+    {
+        if ( value.length() % 4 != 0 )
+        {
+            throw new IllegalArgumentException( "Invalid base64 length: " + value.length() );
+        }
+
+        int padding = 0;
+        if ( value.endsWith( "==" ) )
+        {
+            padding = 2;
+        }
+        else if ( value.endsWith( "=" ) )
+        {
+            padding = 1;
+        }
+
+        final byte[] out = new byte[value.length() / 4 * 3 - padding];
+        int o = 0;
+        for ( int i = 0; i < value.length(); i += 4 )
+        {
+            final int c0 = valueOf( value.charAt( i ) );
+            final int c1 = valueOf( value.charAt( i + 1 ) );
+            final int c2 = value.charAt( i + 2 ) == '=' ? 0 : valueOf( value.charAt( i + 2 ) );
+            final int c3 = value.charAt( i + 3 ) == '=' ? 0 : valueOf( value.charAt( i + 3 ) );
+            final int triple = ( c0 << 18 ) | ( c1 << 12 ) | ( c2 << 6 ) | c3;
+
+            out[o++] = (byte) ( triple >>> 16 );
+            if ( o < out.length )
+            {
+                out[o++] = (byte) ( triple >>> 8 );
+            }
+            if ( o < out.length )
+            {
+                out[o++] = (byte) triple;
+            }
+        }
+        return out;
+    }
+
+    private static int valueOf( final char c )
+    {
+        if ( c >= REVERSE.length || REVERSE[c] < 0 )
+        {
+            throw new IllegalArgumentException( "Invalid base64 character: " + c );
+        }
+        return REVERSE[c];
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.counters;
+
+import org.apache.sirona.Role;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FailureFingerprintTest {
+    @Test
+    public void messagesAreNotPartOfTheKey() {
+        final Role role = new Role("fingerprint-messages", Unit.UNARY);
+
+        final Set<Counter.Key> keys = new HashSet<Counter.Key>();
+        Counter.Key key = null;
+        for (int i = 0; i < 1000; i++) {
+            final Counter.Key current = FailureFingerprint.key(role, failWith("order " + i + " not found"));
+            if (key != null) {
+                assertSame(key, current); // cached
+            }
+            key = current;
+            keys.add(current);
+        }
+        assertEquals(1, keys.size());
+
+        assertTrue(key.getName(), key.getName().startsWith(IllegalStateException.class.getName() + ":"));
+        assertEquals("order 0 not found", FailureFingerprint.sampleMessage(key)); // the first one
+    }
+
+    @Test
+    public void typesAndSites() {
+        final Role role = new Role("fingerprint-sites", Unit.UNARY);
+
+        final Counter.Key state = FailureFingerprint.key(role, failWith("a"));
+        final Counter.Key argument = FailureFingerprint.key(role, new IllegalArgumentException("a"));
+        final Counter.Key otherSite = FailureFingerprint.key(role, new IllegalStateException("a"));
+        assertFalse(state.equals(argument));
+        assertFalse(state.equals(otherSite));
+        assertEquals(role, state.getRole());
+
+        final IllegalStateException empty = new IllegalStateException(); // -XX:+OmitStackTraceInFastThrow
+        empty.setStackTrace(new StackTraceElement[0]);
+        assertEquals(IllegalStateException.class.getName() + ":" + Integer.toHexString(IllegalStateException.class.getName().hashCode()),
+            FailureFingerprint.key(role, empty).getName());
+        assertEquals("", FailureFingerprint.sampleMessage(FailureFingerprint.key(role, empty)));
+    }
+
+    @Test
+    public void sharedThrowSite() { // same top frame, the callers make the fingerprint
+        final Role role = new Role("fingerprint-helper", Unit.UNARY);
+
+        final Counter.Key[] fromA = new Counter.Key[2];
+        final Counter.Key[] fromB = new Counter.Key[2];
+        for (int i = 0; i < 2; i++) {
+            fromA[i] = FailureFingerprint.key(role, callerA());
+            fromB[i] = FailureFingerprint.key(role, callerB());
+        }
+        assertFalse(fromA[0].equals(fromB[0]));
+        assertSame(fromA[0], fromA[1]);
+        assertSame(fromB[0], fromB[1]);
+        assertTrue(fromB[0].getName().startsWith(IllegalArgumentException.class.getName() + ":"));
+        assertEquals("id is null", FailureFingerprint.sampleMessage(fromB[0]));
+    }
+
+    @Test
+    public void capPerRole() {
+        final Role role = new Role("fingerprint-cap", Unit.UNARY);
+
+        final Set<String> names = new HashSet<String>();
+        for (int i = 0; i < 1100; i++) { // default cap is 1000
+            final IllegalStateException error = new IllegalStateException("#" + i);
+            error.setStackTrace(new StackTraceElement[] { new StackTraceElement("org.foo.Generated" + i, "run", "Generated.java", i) });
+            names.add(FailureFingerprint.key(role, error).getName());
+        }
+        assertEquals(1001, names.size());
+        assertTrue(names.contains(FailureFingerprint.OVERFLOW));
+
+        // other roles are not impacted
+        final Counter.Key other = FailureFingerprint.key(new Role("fingerprint-cap-other", Unit.UNARY), failWith("other"));
+        assertFalse(FailureFingerprint.OVERFLOW.equals(other.getName()));
+    }
+
+    private static IllegalArgumentException callerA() {
+        return requireId();
+    }
+
+    private static IllegalArgumentException callerB() {
+        return requireId();
+    }
+
+    private static IllegalArgumentException requireId() {
+        return new IllegalArgumentException("id is null");
+    }
+
+    private static IllegalStateException failWith(final String message) {
+        return new IllegalStateException(message);
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.pathtracking;
+
+import org.apache.sirona.util.SerializeUtils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PathTrackingEntryCodecTest
+{
+    @Test
+    public void roundTrip()
+    {
+        final List<PathTrackingEntry> entries = Arrays.asList( //
+            new PathTrackingEntry( "uuid", "node", "org.foo.Service", "root()", 1400000000000000000L, 5000, 1 ), //
+            new PathTrackingEntry( "uuid", "node", "org.foo.Service", "leaf()", 1400000000000000100L, 200, 2 ), //
+            new PathTrackingEntry( "uuid", "node", "org.foo.Dao", "leaf()", 1400000000000000050L, 10, 3 ), // not sorted
+            new PathTrackingEntry( null, null, null, null, -1, -20, -1 ), //
+            new PathTrackingEntry( "uuid", "nöde-東京", "", "méthode()", Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE ), //
+            new PathTrackingEntry( "uuid", "node", "org.foo.Service", "root()", Long.MAX_VALUE, 0, Integer.MIN_VALUE ) );
+
+        final byte[] bytes = PathTrackingEntryCodec.encode( entries );
+        assertTrue( PathTrackingEntryCodec.isEncoded( bytes ) );
+        assertEquals( PathTrackingEntryCodec.VERSION, bytes[2] );
+        assertEntries( entries, PathTrackingEntryCodec.decode( bytes ) );
+        assertEntries( entries, PathTrackingEntryCodec.decodeAny( bytes ) );
+
+        assertEntries( new ArrayList<PathTrackingEntry>(), PathTrackingEntryCodec.decode( PathTrackingEntryCodec.encode( new ArrayList<PathTrackingEntry>() ) ) );
+        assertEntries( entries.subList( 0, 1 ), PathTrackingEntryCodec.decode( PathTrackingEntryCodec.encode( entries.get( 0 ) ) ) );
+    }
+
+    @Test
+    public void encoderWritesTheSamePayload()
+    {
+        final List<PathTrackingEntry> entries = trace( new Random( 7 ), 20 );
+        final PathTrackingEntryCodec.Encoder encoder = new PathTrackingEntryCodec.Encoder( entries.size() );
+        for ( final PathTrackingEntry entry : entries )
+        {
+            encoder.add( entry.getTrackingId(), entry.getNodeId(), entry.getClassName(), entry.getMethodName(), //
+                         entry.getStartTime(), entry.getExecutionTime(), entry.getLevel() );
+        }
+        assertTrue( Arrays.equals( PathTrackingEntryCodec.encode( entries ), encoder.toByteArray() ) );
+
+        final PathTrackingEntryCodec.Encoder incomplete = new PathTrackingEntryCodec.Encoder( 2 );
+        incomplete.add( "uuid", "node", "org.foo.Service", "root()", 0, 1, 1 );
+        try
+        {
+            incomplete.toByteArray(); // the count is already written
+            fail();
+        }
+        catch ( final IllegalStateException ise )
+        {
+            // ok
+        }
+    }
+
+    @Test
+    public void javaSerializedEntries()
+    {
+        final PathTrackingEntry entry = new PathTrackingEntry( "uuid", "node", "org.foo.Service", "root()", 1000, 50, 1 );
+        final byte[] bytes = SerializeUtils.serialize( entry );
+        assertFalse( PathTrackingEntryCodec.isEncoded( bytes ) );
+        assertEntries( Arrays.asList( entry ), PathTrackingEntryCodec.decodeAny( bytes ) );
+
+        assertInvalid( bytes ); // decode() only reads its own format
+        try
+        {
+            PathTrackingEntryCodec.decodeAny( new byte[] { 1, 2, 3, 4 } );
+            fail();
+        }
+        catch ( final IllegalArgumentException iae )
+        {
+            // ok
+        }
+    }
+
+    @Test
+    public void invalidPayloads()
+    {
+        final byte[] bytes = PathTrackingEntryCodec.encode( trace( new Random( 1 ), 10 ) );
+
+        final byte[] version = bytes.clone();
+        version[2] = PathTrackingEntryCodec.VERSION + 1;
+        assertInvalid( version );
+
+        final byte[] trailing = copy( bytes, bytes.length + 1 );
+        assertInvalid( trailing );
+
+        assertInvalid( copy( bytes, bytes.length - 1 ) );
+        assertInvalid( new byte[] { 'S', 'P', PathTrackingEntryCodec.VERSION, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F } ); // huge count
+        assertInvalid( new byte[] { 'S', 'P', PathTrackingEntryCodec.VERSION, 1, 5 } ); // unknown string index
+        assertInvalid( new byte[0] );
+        assertInvalid( null );
+    }
+
+    @Test
+    public void fuzz()
+    {
+        final Random random = new Random( 1234 );
+        for ( int i = 0; i < 200; i++ )
+        {
+            final List<PathTrackingEntry> entries = trace( random, random.nextInt( 50 ) );
+            final byte[] bytes = PathTrackingEntryCodec.encode( entries );
+            assertEntries( entries, PathTrackingEntryCodec.decode( bytes ) );
+
+            // corrupted payloads are either read or rejected, never anything else (OOME, AIOOBE...)
+            for ( int j = 0; j < 20; j++ )
+            {
+                final byte[] corrupted = bytes.clone();
+                corrupted[3 + random.nextInt( corrupted.length - 3 )] = (byte) random.nextInt();
+                decodeOrReject( corrupted );
+            }
+            decodeOrReject( copy( bytes, 3 + random.nextInt( bytes.length - 3 ) ) );
+        }
+    }
+
+    // not a real benchmark (no fork, no JMH) but the codec has to stay far ahead of java serialization
+    @Test
+    public void sizeAndThroughput()
+    {
+        final List<PathTrackingEntry> entries = trace( new Random( 42 ), 2000 );
+
+        final byte[] encoded = PathTrackingEntryCodec.encode( entries );
+        int serializedSize = 0;
+        for ( final PathTrackingEntry entry : entries )
+        {
+            serializedSize += SerializeUtils.serialize( entry ).length;
+        }
+        assertTrue( encoded.length + " vs " + serializedSize, encoded.length * 5 < serializedSize );
+
+        final int rounds = 20;
+        long codec = Long.MAX_VALUE;
+        long serialization = Long.MAX_VALUE;
+        for ( int i = 0; i < rounds; i++ )
+        {
+            long start = System.nanoTime();
+            assertEquals( entries.size(), PathTrackingEntryCodec.decode( PathTrackingEntryCodec.encode( entries ) ).size() );
+            codec = Math.min( codec, System.nanoTime() - start );
+
+            start = System.nanoTime();
+            for ( final PathTrackingEntry entry : entries )
+            {
+                SerializeUtils.deserialize( SerializeUtils.serialize( entry ), PathTrackingEntry.class );
+            }
+            serialization = Math.min( serialization, System.nanoTime() - start );
+        }
+        assertTrue( codec + "ns vs " + serialization + "ns", codec * 2 < serialization );
+    }
+
+    private static List<PathTrackingEntry> trace( final Random random, final int size )
+    {
+        final String[] classes = { "org.foo.Service", "org.foo.Dao", "org.foo.web.Controller", null };
+        final String[] methods = { "find(java.lang.String)", "save(org.foo.Entity)", "handle()", "été()" };
+        final String uuid = Long.toHexString( random.nextLong() );
+        final List<PathTrackingEntry> entries = new ArrayList<PathTrackingEntry>( size );
+        long start = System.nanoTime() + random.nextInt();
+        for ( int i = 0; i < size; i++ )
+        {
+            start += random.nextInt( 10000 ) - 1000;
+            entries.add( new PathTrackingEntry( uuid, "node", classes[random.nextInt( classes.length )],
+                                                methods[random.nextInt( methods.length )], start,
+                                                random.nextInt( 1000000 ), 1 + random.nextInt( 20 ) ) );
+        }
+        return entries;
+    }
+
+    private static byte[] copy( final byte[] bytes, final int length )
+    {
+        final byte[] copy = new byte[length];
+        System.arraycopy( bytes, 0, copy, 0, Math.min( length, bytes.length ) );
+        return copy;
+    }
+
+    private static void decodeOrReject( final byte[] bytes )
+    {
+        try
+        {
+            PathTrackingEntryCodec.decode( bytes );
+        }
+        catch ( final IllegalArgumentException iae )
+        {
+            // ok
+        }
+    }
+
+    private static void assertInvalid( final byte[] bytes )
+    {
+        try
+        {
+            PathTrackingEntryCodec.decode( bytes );
+            fail();
+        }
+        catch ( final IllegalArgumentException iae )
+        {
+            // ok
+        }
+    }
+
+    private static void assertEntries( final List<PathTrackingEntry> expected, final List<PathTrackingEntry> actual )
+    {
+        assertEquals( expected.size(), actual.size() );
+        for ( int i = 0; i < expected.size(); i++ )
+        {
+            final PathTrackingEntry e = expected.get( i );
+            final PathTrackingEntry a = actual.get( i );
+            assertEquals( e.getTrackingId(), a.getTrackingId() );
+            assertEquals( e.getNodeId(), a.getNodeId() );
+            assertEquals( e.getClassName(), a.getClassName() );
+            assertEquals( e.getMethodName(), a.getMethodName() );
+            assertEquals( e.getStartTime(), a.getStartTime() );
+            assertEquals( e.getExecutionTime(), a.getExecutionTime() );
+            assertEquals( e.getLevel(), a.getLevel() );
+        }
+    }
+}
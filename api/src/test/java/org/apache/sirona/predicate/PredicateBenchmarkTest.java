@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.predicate;
+
+import org.apache.sirona.configuration.predicate.PredicateEvaluator;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+// not a real benchmark (no fork, no JMH) but gives the order of magnitude of a match with a lot of rules
+public class PredicateBenchmarkTest {
+    private static final int PREFIXES = 200;
+    private static final int SUFFIXES = 150;
+    private static final int REGEXES = 150;
+    private static final int KEYS = 5000;
+    private static final int ROUNDS = 20;
+
+    @Test
+    public void fiveHundredRules() {
+        final StringBuilder configuration = new StringBuilder();
+        final List<String> prefixes = new ArrayList<String>();
+        final List<String> suffixes = new ArrayList<String>();
+        final List<Pattern> regexes = new ArrayList<Pattern>();
+        for (int i = 0; i < PREFIXES; i++) {
+            prefixes.add("com.company.module" + i + ".");
+            configuration.append("prefix:com.company.module").append(i).append(".,");
+        }
+        for (int i = 0; i < SUFFIXES; i++) {
+            suffixes.add("Service" + i + ".run()");
+            configuration.append("suffix:Service").append(i).append(".run(),");
+        }
+        for (int i = 0; i < REGEXES; i++) {
+            regexes.add(Pattern.compile(".*\\.Dao" + i + "\\.find.*"));
+            configuration.append("regex:.*\\.Dao").append(i).append("\\.find.*,");
+        }
+        configuration.setLength(configuration.length() - 1);
+
+        final PredicateEvaluator evaluator = new PredicateEvaluator(configuration.toString(), ",");
+
+        final String[] keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            switch (i % 4) {
+                case 0:
+                    keys[i] = "com.company.module" + (i % (PREFIXES * 2)) + ".Foo.bar()";
+                    break;
+                case 1:
+                    keys[i] = "org.app.Service" + (i % (SUFFIXES * 2)) + ".run()";
+                    break;
+                case 2:
+                    keys[i] = "org.app.Dao" + (i % (REGEXES * 2)) + ".findAll()";
+                    break;
+                default:
+                    keys[i] = "org.other.Type" + i + ".method()";
+            }
+        }
+
+        int expectedMatches = 0;
+        for (final String key : keys) {
+            final boolean expected = naiveMatches(prefixes, suffixes, regexes, key);
+            assertEquals(key, expected, evaluator.matches(key));
+            if (expected) {
+                expectedMatches++;
+            }
+        }
+
+        // compiled evaluation (no cache: new evaluator each round) vs naive loops vs cached evaluation
+        long compiled = 0;
+        long naive = 0;
+        long cached = 0;
+        int matches = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            final PredicateEvaluator fresh = new PredicateEvaluator(configuration.toString(), ",");
+            long start = System.nanoTime();
+            for (final String key : keys) {
+                if (fresh.matches(key)) {
+                    matches++;
+                }
+            }
+            compiled += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (final String key : keys) {
+                if (naiveMatches(prefixes, suffixes, regexes, key)) {
+                    matches++;
+                }
+            }
+            naive += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (final String key : keys) {
+                if (fresh.matches(key)) {
+                    matches++;
+                }
+            }
+            cached += System.nanoTime() - start;
+        }
+        assertEquals(expectedMatches * ROUNDS * 3, matches);
+
+        final long evaluations = (long) KEYS * ROUNDS;
+        System.out.println("500 rules, ns per match: compiled=" + compiled / evaluations
+            + ", naive=" + naive / evaluations + ", cached=" + cached / evaluations);
+    }
+
+    // what PredicateEvaluator did before compiling the rules
+    private static boolean naiveMatches(final List<String> prefixes, final List<String> suffixes,
+                                        final List<Pattern> regexes, final String key) {
+        for (final String prefix : prefixes) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        for (final String suffix : suffixes) {
+            if (key.endsWith(suffix)) {
+                return true;
+            }
+        }
+        for (final Pattern regex : regexes) {
+            if (regex.matcher(key).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -53,6 +53,57 @@ public class PredicateTest
         assertTrue(evaluator.matches("Ends with Cat"));
     }
 
+    @Test
+    public void longestPrefixAndSuffixWin() {
+        final PredicateEvaluator evaluator = new PredicateEvaluator(
+            "prefix:org.apache.,prefix:!org.apache.sirona.,prefix:org.apache.sirona.test.," +
+            "suffix:Service,suffix:!InternalService", ",");
+
+        assertTrue(evaluator.matches("org.apache.Foo"));
+        assertFalse(evaluator.matches("org.apache.sirona.Foo"));
+        assertTrue(evaluator.matches("org.apache.sirona.test.Foo"));
+        assertTrue(evaluator.matches("com.company.UserService"));
+        assertFalse(evaluator.matches("com.company.InternalService"));
+        assertFalse(evaluator.matches("org.apache.sirona.Foo")); // cached
+    }
+
+    @Test
+    public void containers() {
+        final PredicateEvaluator jvm = new PredicateEvaluator("container:jvm", ",");
+        assertTrue(jvm.matches("java.lang.String"));
+        assertTrue(jvm.matches("javax.ejb.EJB"));
+        assertTrue(jvm.matches("com.sun.Foo"));
+        assertTrue(jvm.matches("jdk.internal.Foo"));
+        assertTrue(jvm.matches("org.xml.sax.Parser"));
+        assertTrue(jvm.matches("org.apache.xerces.Parser"));
+        assertFalse(jvm.matches("org.apache.sirona.Foo"));
+        assertFalse(jvm.matches("com.company.Foo"));
+
+        final PredicateEvaluator tomee = new PredicateEvaluator("container:tomee", ",");
+        assertTrue(tomee.matches("org.apache.catalina.Foo"));
+        assertTrue(tomee.matches("org.apache.openejb.Foo"));
+        assertTrue(tomee.matches("org.slf4j.Logger"));
+        assertTrue(tomee.matches("serp.bytecode.Foo"));
+        assertFalse(tomee.matches("org.apache.sirona.Foo"));
+
+        final PredicateEvaluator tomcat = new PredicateEvaluator("container:TOMCAT", ",");
+        assertTrue(tomcat.matches("org.apache.juli.Foo"));
+        assertTrue(tomcat.matches("org.eclipse.jdt.Foo"));
+        assertFalse(tomcat.matches("org.apache.openejb.Foo"));
+    }
+
+    @Test
+    public void mergedRegexes() {
+        final PredicateEvaluator evaluator = new PredicateEvaluator(
+            "regex:.*Dao\\.find.*,regex:(?i)com\\.foo\\..*,regex:!.*Dao\\.findInternal.*,regex:(a)\\1", ",");
+        assertTrue(evaluator.matches("org.UserDao.findAll()"));
+        assertTrue(evaluator.matches("COM.FOO.Bar"));
+        assertFalse(evaluator.matches("org.UserDao.findInternal()"));
+        assertFalse(evaluator.matches("org.UserDao.save()"));
+        assertTrue(evaluator.matches("aa"));
+        assertFalse(evaluator.matches("ab"));
+    }
+
     @Test
     public void allFalse() {
         assertFalse(new PredicateEvaluator("true:!true",",").matches("or"));
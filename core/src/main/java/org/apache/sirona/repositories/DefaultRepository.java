@@ -22,6 +22,7 @@ import org.apache.sirona.alert.AlertListener;
 import org.apache.sirona.configuration.Configuration;
 import org.apache.sirona.configuration.ioc.IoCs;
 import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.KeyRegistry;
 import org.apache.sirona.gauges.Gauge;
 import org.apache.sirona.gauges.GaugeAware;
 import org.apache.sirona.gauges.jvm.ActiveThreadGauge;
@@ -34,6 +35,7 @@ import org.apache.sirona.stopwatches.StopWatch;
 import org.apache.sirona.store.DataStoreFactory;
 import org.apache.sirona.store.counter.CollectorCounterStore;
 import org.apache.sirona.store.counter.CounterDataStore;
+import org.apache.sirona.store.counter.IndexedCounterDataStore;
 import org.apache.sirona.store.gauge.CollectorGaugeDataStore;
 import org.apache.sirona.store.gauge.CommonGaugeDataStore;
 import org.apache.sirona.store.gauge.GaugeDataStore;
@@ -199,6 +201,19 @@ public class DefaultRepository implements Repository
         return counterDataStore.getOrCreateCounter(key);
     }
 
+    @Override
+    public Counter getCounter(final int keyId) {
+        if (IndexedCounterDataStore.class.isInstance(counterDataStore)) {
+            return IndexedCounterDataStore.class.cast(counterDataStore).getOrCreateCounter(keyId);
+        }
+
+        final Counter.Key key = KeyRegistry.INSTANCE.get(keyId);
+        if (key == null) {
+            return null;
+        }
+        return counterDataStore.getOrCreateCounter(key);
+    }
+
     @Override
     public Collection<Counter> counters() {
         return counterDataStore.getCounters();
@@ -21,10 +21,14 @@ import org.apache.sirona.store.counter.CollectorCounterStore;
 import org.apache.sirona.math.M2AwareStatisticalSummary;
 import org.apache.sirona.repositories.Repository;
 import org.apache.sirona.store.memory.counter.InMemoryCollectorCounterStore;
+import org.apache.sirona.util.Base64Utils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -76,5 +80,42 @@ public class AggregatorTest {
         assertEquals(1.12089, aggregate.getStandardDeviation(), 0.001);
         assertEquals(1.2564, aggregate.getVariance(), 0.001);
         assertEquals(15., aggregate.getSum(), 0);
+        assertTrue(Double.isNaN(aggregate.getPercentile(99))); // no histogram pushed
+    }
+
+    @Test
+    public void percentiles() {
+        final Counter.Key key = new Counter.Key(Role.PERFORMANCES, "p");
+        final CollectorCounterStore store = new InMemoryCollectorCounterStore();
+
+        final OptimizedStatistics all = new OptimizedStatistics(new Histogram());
+        for (int node = 0; node < 4; node++) {
+            final OptimizedStatistics local = new OptimizedStatistics(new Histogram());
+            for (int i = 1; i <= 250; i++) {
+                local.addValue(node * 250 + i);
+                all.addValue(node * 250 + i);
+            }
+
+            // same path as the collector: agent pushes the encoded histogram with the other stats
+            final Map<String, Object> data = new HashMap<String, Object>();
+            data.put("mean", local.getMean());
+            data.put("variance", local.getVariance());
+            data.put("hits", local.getN());
+            data.put("max", local.getMax());
+            data.put("min", local.getMin());
+            data.put("sum", local.getSum());
+            data.put("m2", local.getSecondMoment());
+            data.put("histogram", Base64Utils.encode(local.getHistogram().toBytes()));
+            store.update(key, "node" + node, new M2AwareStatisticalSummary(data), 1);
+        }
+
+        final Counter node0 = store.getOrCreateCounter(key, "node0");
+        assertEquals(125., node0.getPercentile(50), 125. / 16);
+
+        final Counter aggregate = store.getOrCreateCounter(key);
+        assertEquals(1000, aggregate.getHits());
+        for (final double p : new double[] { 50, 90, 99, 99.9 }) {
+            assertEquals(all.getPercentile(p), aggregate.getPercentile(p), 0.);
+        }
     }
 }
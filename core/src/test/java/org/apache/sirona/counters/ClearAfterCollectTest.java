@@ -40,6 +40,7 @@ public class ClearAfterCollectTest {
     @Test
     public void clear() throws InterruptedException {
         final LinkedList<Integer> size = new LinkedList<Integer>();
+        final LinkedList<Long> hits = new LinkedList<Long>();
         final AtomicBoolean measure = new AtomicBoolean();
         final BatchCounterDataStore store = new BatchCounterDataStore() {
             protected void pushCountersByBatch(final Collection<Counter> instance) {
@@ -47,6 +48,9 @@ public class ClearAfterCollectTest {
                     return;
                 }
                 size.add(instance.size());
+                for (final Counter counter : instance) {
+                    hits.add(counter.getHits());
+                }
             }
 
             protected int getPeriod(final String prefix) {
@@ -58,7 +62,8 @@ public class ClearAfterCollectTest {
             }
         };
 
-        store.getOrCreateCounter(new Counter.Key(Role.PERFORMANCES, "counter")).add(123);
+        final Counter counter = store.getOrCreateCounter(new Counter.Key(Role.PERFORMANCES, "counter"));
+        counter.add(123);
         measure.set(true);
         Thread.sleep(2200);
         measure.set(false);
@@ -67,5 +72,11 @@ public class ClearAfterCollectTest {
         assertTrue(size.size() >= 2);
         assertEquals(1, size.iterator().next().intValue());
         assertEquals(0, size.get(1).intValue());
+        assertEquals(1, hits.size());
+        assertEquals(1L, hits.iterator().next().longValue());
+
+        // counter was reset but not recreated
+        assertEquals(0, counter.getHits());
+        assertTrue(counter == store.getOrCreateCounter(counter.getKey()));
     }
 }
@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.counters;
+
+import org.apache.sirona.Role;
+import org.apache.sirona.store.counter.CounterDataStore;
+import org.apache.sirona.store.memory.counter.CompactCounterDataStore;
+import org.apache.sirona.store.memory.counter.InMemoryCounterDataStore;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// retained heap of the counter stores, run it with a big heap (-Xmx4g) since 1M default counters are heavy
+public class CounterFootprintBench {
+    @Test
+    public void tenThousands() {
+        compare(10000);
+    }
+
+    @Test
+    public void hundredThousands() {
+        compare(100000);
+    }
+
+    @Test
+    public void oneMillion() {
+        compare(1000000);
+    }
+
+    private static void compare(final int counters) {
+        final long compact = footprint(new CompactCounterDataStore(), counters);
+        final long withoutHistogram = footprint(new InMemoryCounterDataStore() {
+            @Override
+            protected Histogram newHistogram() {
+                return null;
+            }
+        }, counters);
+
+        System.out.printf("%,d counters: compact=%,d bytes (%d/counter), default without histogram=%,d bytes (%d/counter)%n",
+            counters, compact, compact / counters, withoutHistogram, withoutHistogram / counters);
+        if (counters <= 100000) { // 1M default counters with histograms is ~5GB
+            final long withHistogram = footprint(new InMemoryCounterDataStore(), counters);
+            System.out.printf("%,d counters: default with histogram=%,d bytes (%d/counter)%n",
+                counters, withHistogram, withHistogram / counters);
+        }
+        assertTrue(compact < withoutHistogram);
+    }
+
+    private static long footprint(final CounterDataStore store, final int counters) {
+        final Counter.Key[] keys = new Counter.Key[counters];
+        for (int i = 0; i < counters; i++) {
+            keys[i] = new Counter.Key(Role.JDBC, "select * from t" + i);
+        }
+
+        final long before = usedHeap();
+        for (final Counter.Key key : keys) {
+            store.getOrCreateCounter(key).add(1);
+        }
+        final long used = usedHeap() - before;
+
+        assertEquals(counters, store.getCounters().size());
+        store.clearCounters();
+        return used;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
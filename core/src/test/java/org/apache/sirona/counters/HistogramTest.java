@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.counters;
+
+import org.apache.sirona.Role;
+import org.apache.sirona.store.memory.counter.InMemoryCounterDataStore;
+import org.apache.sirona.util.Base64Utils;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+    @Test
+    public void bucketsAreContiguous() {
+        final Histogram histogram = new Histogram(3, 20);
+        long expectedLower = 0;
+        for (int i = 0; i < histogram.bucketCount(); i++) {
+            assertEquals(expectedLower, histogram.lowerBound(i));
+            expectedLower += histogram.width(i);
+        }
+        assertEquals(1L << 20, expectedLower);
+
+        for (long v = 0; v < (1L << 20); v += 7) {
+            final int idx = histogram.indexOf(v);
+            assertTrue(histogram.lowerBound(idx) <= v);
+            assertTrue(v < histogram.lowerBound(idx) + histogram.width(idx));
+        }
+    }
+
+    @Test
+    public void percentilesRelativeError() {
+        final int precision = 5;
+        final Histogram histogram = new Histogram(precision, Histogram.DEFAULT_MAX_BITS);
+        final Random random = new Random(1234);
+        final double[] values = new double[100000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.exp(random.nextGaussian() * 2 + 12); // log normal, like latencies in ns
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (final double p : new double[] { 50, 90, 99, 99.9 }) {
+            final double exact = values[(int) Math.ceil(p * values.length / 100.) - 1];
+            final double estimated = histogram.getValueAtPercentile(p);
+            assertEquals(exact, estimated, exact / (1 << precision));
+        }
+    }
+
+    @Test
+    public void outOfRangeValuesAreClamped() {
+        final Histogram histogram = new Histogram(2, 10);
+        histogram.record(-5);
+        histogram.record(Double.NaN);
+        histogram.record(1e12);
+        assertEquals(3, histogram.getTotalCount());
+        assertEquals(0., histogram.getValueAtPercentile(50), 0.);
+        assertTrue(histogram.getValueAtPercentile(100) > 512);
+    }
+
+    @Test
+    public void merge() {
+        final Histogram h1 = new Histogram();
+        final Histogram h2 = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            (i % 2 == 0 ? h1 : h2).record(i);
+        }
+        h1.merge(h2);
+        assertEquals(100, h1.getTotalCount());
+        assertEquals(50., h1.getValueAtPercentile(50), 50. / 16);
+    }
+
+    @Test
+    public void binaryRoundTrip() {
+        final Histogram histogram = new Histogram();
+        final Random random = new Random(5678);
+        for (int i = 0; i < 10000; i++) {
+            histogram.record(random.nextInt(1000000));
+        }
+
+        final byte[] bytes = histogram.toBytes();
+        assertTrue(bytes.length < histogram.bucketCount() * 8 / 2); // sparse form is way smaller than the raw counts
+
+        final Histogram decoded = Histogram.fromBytes(Base64Utils.decode(Base64Utils.encode(bytes)));
+        assertTrue(histogram.sameLayout(decoded));
+        assertEquals(histogram.getTotalCount(), decoded.getTotalCount());
+        for (int i = 0; i < histogram.bucketCount(); i++) {
+            assertEquals(histogram.countAt(i), decoded.countAt(i));
+        }
+
+        final Histogram empty = Histogram.fromBytes(new Histogram(3, 10).toBytes());
+        assertEquals(0, empty.getTotalCount());
+        assertEquals(3, empty.getPrecision());
+        assertEquals(10, empty.getMaxBits());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void corruptedBytes() {
+        final byte[] bytes = new Histogram().toBytes();
+        bytes[0] = 42;
+        Histogram.fromBytes(bytes);
+    }
+
+    @Test
+    public void mergeErrorBoundAcrossNodes() {
+        final int precision = Histogram.DEFAULT_PRECISION;
+        final int nodes = 200;
+        final Random random = new Random(91011);
+
+        final Histogram merged = new Histogram();
+        final double[] all = new double[nodes * 500];
+        int idx = 0;
+        for (int node = 0; node < nodes; node++) {
+            // each node has its own latency profile, the merge must still be accurate for the whole cluster
+            final double scale = 1 + random.nextInt(50);
+            final Histogram local = new Histogram();
+            for (int i = 0; i < 500; i++) {
+                final double v = scale * Math.exp(random.nextGaussian() + 10);
+                local.record(v);
+                all[idx++] = v;
+            }
+            merged.merge(Histogram.fromBytes(local.toBytes()));
+        }
+        Arrays.sort(all);
+
+        assertEquals(all.length, merged.getTotalCount());
+        for (final double p : new double[] { 50, 90, 99, 99.9 }) {
+            final double exact = all[(int) Math.ceil(p * all.length / 100.) - 1];
+            assertEquals(exact, merged.getValueAtPercentile(p), exact / (1 << precision));
+        }
+    }
+
+    @Test
+    public void mergeDifferentLayouts() {
+        final Histogram fine = new Histogram(6, 30);
+        final Histogram coarse = new Histogram(3, 30);
+        for (int i = 1; i <= 1000; i++) {
+            fine.record(i * 1000);
+        }
+        coarse.merge(fine);
+        assertEquals(1000, coarse.getTotalCount());
+        // error is bounded by both layouts
+        assertEquals(500000., coarse.getValueAtPercentile(50), 500000. * (1. / 8 + 1. / 64));
+    }
+
+    @Test
+    public void counterPercentiles() {
+        final Counter counter = new DefaultCounter(new Counter.Key(Role.PERFORMANCES, "histogram"),
+            new InMemoryCounterDataStore(), new OptimizedStatistics(new Histogram()));
+        for (int i = 1; i <= 1000; i++) {
+            counter.add(i);
+        }
+        assertEquals(500., MetricData.Percentile50.value(counter), 500. / 16);
+        assertEquals(900., MetricData.Percentile90.value(counter), 900. / 16);
+        assertEquals(990., MetricData.Percentile99.value(counter), 990. / 16);
+        assertEquals(999., MetricData.Percentile999.value(counter), 999. / 16);
+        assertTrue(MetricData.Percentile999.value(counter) <= counter.getMax());
+
+        counter.reset();
+        assertTrue(Double.isNaN(MetricData.Percentile50.value(counter)));
+    }
+}
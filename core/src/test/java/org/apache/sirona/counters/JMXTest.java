@@ -55,4 +55,39 @@ public class JMXTest {
             server.unregisterMBean(objectName);
         }
     }
+
+    @Test
+    public void window() throws Exception {
+        final DefaultCounter counter = new DefaultCounter(new Counter.Key(Role.JDBC, "window"), null);
+        counter.setWindow(new SlidingWindow());
+        counter.getWindow().record(4);
+        counter.getWindow().record(8);
+
+        final ObjectName objectName = new ObjectName(Configuration.CONFIG_PROPERTY_PREFIX + "counter:role=jdbc,name=window");
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(new CounterJMX(counter), objectName);
+        try {
+            assertEquals(2L, server.getAttribute(objectName, "Hits5m"));
+            assertEquals(6., server.getAttribute(objectName, "Mean15m"));
+            assertEquals(8., server.getAttribute(objectName, "Max1m"));
+            assertEquals(0L, server.getAttribute(objectName, "Hits")); // the counter itself was not touched
+        } finally {
+            server.unregisterMBean(objectName);
+        }
+    }
+
+    @Test
+    public void failureSample() throws Exception {
+        final Counter.Key key = FailureFingerprint.key(Role.FAILURES, new IllegalStateException("order 12 not found"));
+        final DefaultCounter counter = new DefaultCounter(key, null);
+
+        final ObjectName objectName = new ObjectName(Configuration.CONFIG_PROPERTY_PREFIX + "counter:role=failures,name=jmx-sample");
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(new CounterJMX(counter), objectName);
+        try {
+            assertEquals("order 12 not found", server.getAttribute(objectName, "SampleMessage"));
+        } finally {
+            server.unregisterMBean(objectName);
+        }
+    }
 }
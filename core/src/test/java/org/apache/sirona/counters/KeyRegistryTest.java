@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.counters;
+
+import org.apache.sirona.Role;
+import org.apache.sirona.repositories.Repository;
+import org.apache.sirona.store.memory.counter.InMemoryCounterDataStore;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class KeyRegistryTest {
+    @Test
+    public void register() {
+        final KeyRegistry registry = new KeyRegistry();
+        final int id = registry.register(Role.JDBC, "select 1");
+        assertEquals(id, registry.register(new Counter.Key(Role.JDBC, "select 1")));
+        assertEquals(id, registry.find(Role.JDBC, "select 1"));
+        assertEquals(new Counter.Key(Role.JDBC, "select 1"), registry.get(id));
+        assertEquals(-1, registry.find(Role.PERFORMANCES, "select 1"));
+        assertTrue(id != registry.register(Role.PERFORMANCES, "select 1"));
+        assertNull(registry.get(12345));
+        assertNull(registry.get(-1));
+    }
+
+    @Test
+    public void removal() {
+        final KeyRegistry registry = new KeyRegistry();
+        final Counter.Key key = new Counter.Key(Role.WEB, "/foo");
+        final int id = registry.register(key);
+
+        assertTrue(registry.remove(key));
+        assertFalse(registry.remove(key));
+        assertFalse(registry.isRegistered(id));
+        assertEquals(-1, registry.find(Role.WEB, "/foo"));
+
+        final int newId = registry.register(key);
+        assertTrue(newId != id); // the slot is reused with another generation
+        assertEquals(KeyRegistry.slot(id), KeyRegistry.slot(newId));
+        assertEquals(key, registry.get(newId));
+        assertNull(registry.get(id));
+        assertTrue(registry.isRegistered(newId, Role.WEB, "/foo"));
+        assertFalse(registry.isRegistered(newId, Role.WEB, "/bar"));
+    }
+
+    @Test
+    public void churnDoesNotGrowTheRegistry() {
+        final KeyRegistry registry = new KeyRegistry();
+        final int stable = registry.register(Role.PERFORMANCES, "stable");
+        int maxSlot = 0;
+        for (int i = 0; i < 100000; i++) { // unbounded names (urls, sql...) evicted as they come
+            final Counter.Key key = new Counter.Key(Role.WEB, "/url/" + i);
+            final int id = registry.register(key);
+            maxSlot = Math.max(maxSlot, KeyRegistry.slot(id));
+            assertTrue(id >= 0);
+            registry.remove(key);
+        }
+        assertEquals(1, maxSlot);
+        assertEquals(1, registry.size());
+        assertTrue(registry.isRegistered(stable, Role.PERFORMANCES, "stable"));
+    }
+
+    @Test
+    public void concurrentRegistration() throws InterruptedException {
+        final KeyRegistry registry = new KeyRegistry();
+        final int names = 5000;
+        final int threads = 8;
+        final AtomicIntegerArray[] ids = new AtomicIntegerArray[threads];
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final AtomicIntegerArray threadIds = new AtomicIntegerArray(names);
+            ids[t] = threadIds;
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < names; i++) {
+                        threadIds.set(i, registry.register(Role.PERFORMANCES, "m" + i));
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        start.countDown();
+        for (final Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(names, registry.size());
+        for (int i = 0; i < names; i++) {
+            final int id = ids[0].get(i);
+            for (int t = 1; t < threads; t++) {
+                assertEquals(id, ids[t].get(i));
+            }
+            assertEquals("m" + i, registry.get(id).getName());
+        }
+    }
+
+    @Test
+    public void storeFastPath() {
+        final InMemoryCounterDataStore store = new InMemoryCounterDataStore();
+        final int id = KeyRegistry.INSTANCE.register(Role.PERFORMANCES, "KeyRegistryTest#storeFastPath");
+
+        final Counter counter = store.getOrCreateCounter(id);
+        assertSame(counter, store.getOrCreateCounter(id));
+        assertSame(counter, store.getOrCreateCounter(KeyRegistry.INSTANCE.get(id)));
+        counter.add(1);
+
+        store.clearCounters(); // cached counter is dropped with the others
+        final Counter recreated = store.getOrCreateCounter(id);
+        assertTrue(recreated != counter);
+        assertEquals(0, recreated.getHits());
+    }
+
+    @Test
+    public void reusedSlot() {
+        final InMemoryCounterDataStore store = new InMemoryCounterDataStore();
+        final Counter.Key first = new Counter.Key(Role.WEB, "KeyRegistryTest#reusedSlot-1");
+        final int id = KeyRegistry.INSTANCE.register(first);
+        assertSame(store.getOrCreateCounter(first), store.getOrCreateCounter(id));
+
+        KeyRegistry.INSTANCE.remove(first); // evicted without the store knowing, the slot is reused
+        final Counter.Key second = new Counter.Key(Role.WEB, "KeyRegistryTest#reusedSlot-2");
+        final int newId = KeyRegistry.INSTANCE.register(second);
+        try {
+            assertEquals(KeyRegistry.slot(id), KeyRegistry.slot(newId));
+            assertNull(store.getOrCreateCounter(id)); // stale id
+            assertEquals(second, store.getOrCreateCounter(newId).getKey()); // not the counter cached for the previous key
+        } finally {
+            KeyRegistry.INSTANCE.remove(second);
+        }
+    }
+
+    @Test
+    public void unknownId() {
+        assertNull(new InMemoryCounterDataStore().getOrCreateCounter(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void repository() {
+        final int id = KeyRegistry.INSTANCE.register(Role.PERFORMANCES, "KeyRegistryTest#repository");
+        assertSame(Repository.INSTANCE.getCounter(KeyRegistry.INSTANCE.get(id)), Repository.INSTANCE.getCounter(id));
+    }
+}
@@ -36,6 +36,28 @@ public class OptimizedStatisticsTest {
         }
     }
 
+    @Test
+    public void weightedValues() {
+        final OptimizedStatistics repeated = new OptimizedStatistics(new Histogram());
+        final OptimizedStatistics weighted = new OptimizedStatistics(new Histogram());
+
+        for (int i = 0; i < 100; i++) {
+            final double value = Math.random() * 100;
+            final int weight = 1 + i % 7;
+            for (int w = 0; w < weight; w++) {
+                repeated.addValue(value);
+            }
+            weighted.addValue(value, weight);
+
+            final double delta = Math.pow(10, -8);
+            assertEquals(repeated.getN(), weighted.getN());
+            assertEquals(repeated.getSum(), weighted.getSum(), delta);
+            assertEquals(repeated.getMean(), weighted.getMean(), delta);
+            assertEquals(repeated.getVariance(), weighted.getVariance(), delta);
+            assertEquals(repeated.getPercentile(90), weighted.getPercentile(90), delta);
+        }
+    }
+
     private static void doAssert(final SummaryStatistics normal, OptimizedStatistics optimized) {
         double delta = Math.pow(10, -10);
         assertEquals(normal.getN(), optimized.getN(), delta);
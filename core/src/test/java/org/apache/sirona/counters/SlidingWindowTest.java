@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.counters;
+
+import org.apache.sirona.Role;
+import org.apache.sirona.store.memory.counter.InMemoryCounterDataStore;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SlidingWindowTest {
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    @Test
+    public void lastMinutes() {
+        final SlidingWindow window = new SlidingWindow(MINUTE, 15, new Histogram());
+        final long start = 100 * MINUTE;
+        for (int minute = 0; minute < 20; minute++) { // value = minute index
+            window.record(minute, start + minute * MINUTE);
+            window.record(minute, start + minute * MINUTE + 30000);
+        }
+
+        final long now = start + 19 * MINUTE + 45000;
+        final OptimizedStatistics last = window.getStatistics(1, TimeUnit.MINUTES, now);
+        assertEquals(2, last.getN());
+        assertEquals(19., last.getMean(), 0.);
+
+        final OptimizedStatistics five = window.getStatistics(5, TimeUnit.MINUTES, now);
+        assertEquals(10, five.getN());
+        assertEquals(15., five.getMin(), 0.);
+        assertEquals(19., five.getMax(), 0.);
+        assertEquals(17., five.getMean(), 1e-9);
+
+        final OptimizedStatistics fifteen = window.getStatistics(15, TimeUnit.MINUTES, now);
+        assertEquals(30, fifteen.getN());
+        assertEquals(5., fifteen.getMin(), 0.);
+        assertEquals(12., fifteen.getPercentile(50), 0.);
+
+        // capped to the ring size
+        assertEquals(30, window.getStatistics(1, TimeUnit.HOURS, now).getN());
+    }
+
+    @Test
+    public void idleSlotsAreIgnored() {
+        final SlidingWindow window = new SlidingWindow(MINUTE, 15, null);
+        window.record(5, 10 * MINUTE);
+
+        assertEquals(1, window.getStatistics(5, TimeUnit.MINUTES, 14 * MINUTE).getN());
+        assertEquals(0, window.getStatistics(5, TimeUnit.MINUTES, 15 * MINUTE).getN());
+        // same slot index one round later, previous value must not leak
+        window.record(7, 25 * MINUTE);
+        final OptimizedStatistics statistics = window.getStatistics(15, TimeUnit.MINUTES, 25 * MINUTE);
+        assertEquals(1, statistics.getN());
+        assertEquals(7., statistics.getMax(), 0.);
+        assertTrue(Double.isNaN(statistics.getPercentile(50))); // no histogram
+    }
+
+    @Test
+    public void stripedWriters() throws InterruptedException {
+        final SlidingWindow window = new SlidingWindow(MINUTE, 15, 3, new Histogram());
+        assertEquals(4, window.getStripes());
+
+        final long now = 100 * MINUTE;
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int value = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 12000; i++) {
+                        window.record(value, now + i % 120 * 1000); // current and next slot
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        final OptimizedStatistics statistics = window.getStatistics(2, TimeUnit.MINUTES, now + MINUTE);
+        assertEquals(96000, statistics.getN());
+        assertEquals(0., statistics.getMin(), 0.);
+        assertEquals(7., statistics.getMax(), 0.);
+        assertEquals(3.5, statistics.getMean(), 1e-9);
+        assertEquals(48000, window.getStatistics(1, TimeUnit.MINUTES, now + MINUTE).getN());
+    }
+
+    @Test
+    public void store() {
+        final InMemoryCounterDataStore store = new InMemoryCounterDataStore();
+        final Counter counter = store.getOrCreateCounter(new Counter.Key(Role.PERFORMANCES, "window"));
+        assertNull(store.getWindowStatistics(counter, 1, TimeUnit.MINUTES)); // disabled by default
+
+        LockableCounter.class.cast(counter).setWindow(new SlidingWindow());
+        counter.add(3);
+        counter.add(5);
+        final OptimizedStatistics statistics = store.getWindowStatistics(counter, 1, TimeUnit.MINUTES);
+        assertEquals(2, statistics.getN());
+        assertEquals(4., statistics.getMean(), 0.);
+        assertEquals(2, counter.getHits());
+
+        counter.reset();
+        assertEquals(0, store.getWindowStatistics(counter, 15, TimeUnit.MINUTES).getN());
+    }
+}
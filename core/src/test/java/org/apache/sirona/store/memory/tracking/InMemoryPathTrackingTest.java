@@ -17,10 +17,14 @@
 package org.apache.sirona.store.memory.tracking;
 
 import org.apache.sirona.pathtracking.PathTrackingEntry;
+import org.apache.sirona.pathtracking.PathTrackingEntryCodec;
 import org.apache.sirona.store.memory.tracking.InMemoryPathTrackingDataStore;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -63,4 +67,27 @@ public class InMemoryPathTrackingTest
         Assert.assertEquals( 0, all.size() );
         */
     }
+
+    @Test
+    public void testStoreEncoded()
+    {
+        InMemoryPathTrackingDataStore store = new InMemoryPathTrackingDataStore();
+
+        String uuid = UUID.randomUUID().toString();
+        store.store( uuid, PathTrackingEntryCodec.encode( Arrays.asList( //
+            new PathTrackingEntry( uuid, "nodeId", "className", "root", 1000, 50, 1 ), //
+            new PathTrackingEntry( uuid, "nodeId", "className", "leaf", 1010, 20, 2 ) ) ) );
+        store.store( uuid, PathTrackingEntryCodec.encode( // a propagated part of the path
+            new PathTrackingEntry( uuid, "nodeId", "Task", "run", 1020, 10, 3 ) ) );
+
+        Collection<PathTrackingEntry> entries = store.retrieve( uuid );
+        Assert.assertEquals( 3, entries.size() );
+        Iterator<PathTrackingEntry> iterator = entries.iterator();
+        Assert.assertEquals( "root", iterator.next().getMethodName() );
+        Assert.assertEquals( "leaf", iterator.next().getMethodName() );
+        PathTrackingEntry run = iterator.next();
+        Assert.assertEquals( "Task", run.getClassName() );
+        Assert.assertEquals( 1020, run.getStartTime() );
+        Assert.assertEquals( 3, run.getLevel() );
+    }
 }
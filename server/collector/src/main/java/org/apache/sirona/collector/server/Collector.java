@@ -37,6 +37,7 @@ import org.apache.sirona.counters.Counter;
 import org.apache.sirona.counters.Unit;
 import org.apache.sirona.math.M2AwareStatisticalSummary;
 import org.apache.sirona.pathtracking.PathTrackingEntry;
+import org.apache.sirona.pathtracking.PathTrackingEntryCodec;
 import org.apache.sirona.repositories.Repository;
 import org.apache.sirona.status.NodeStatus;
 import org.apache.sirona.status.Status;
@@ -48,7 +49,6 @@ import org.apache.sirona.store.status.CollectorNodeStatusDataStore;
 import org.apache.sirona.store.status.NodeStatusDataStore;
 import org.apache.sirona.store.tracking.CollectorPathTrackingDataStore;
 import org.apache.sirona.util.DaemonThreadFactory;
-import org.apache.sirona.util.SerializeUtils;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
@@ -72,6 +72,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Queue;
@@ -338,7 +339,8 @@ public class Collector extends HttpServlet {
 
         final ServletInputStream inputStream = req.getInputStream();
         try {
-            if (APPLICATION_JAVA_OBJECT.equals( req.getHeader( CONTENT_TYPE ) )) {
+            final String contentType = req.getHeader( CONTENT_TYPE );
+            if (APPLICATION_JAVA_OBJECT.equals( contentType ) || PathTrackingEntryCodec.CONTENT_TYPE.equals( contentType )) {
                 if (PathTrackingEntry.class.getName().equals( req.getHeader( X_SIRONA_CLASSNAME ) )) {
                     int length = req.getContentLength();
                     updatePathTracking( readBytes( req.getInputStream(), length ) );
@@ -481,33 +483,25 @@ public class Collector extends HttpServlet {
                                     Number.class.cast(data.get("executionTime")).longValue(), //
                                     Number.class.cast(data.get("level") ).intValue() );
 
-        if (this.disableDisruptor) {
-            pathTrackingDataStore.store( pathTrackingEntry );
-        } else {
-            ringBuffer.publishEvent( new EventTranslator<PathTrackingEntry>()
-            {
-                @Override
-                public void translateTo( PathTrackingEntry event, long sequence )
-                {
-                    event.setClassName( pathTrackingEntry.getClassName() );
-                    event.setExecutionTime( pathTrackingEntry.getExecutionTime() );
-                    event.setLevel( pathTrackingEntry.getLevel() );
-                    event.setMethodName( pathTrackingEntry.getMethodName() );
-                    event.setNodeId( pathTrackingEntry.getNodeId() );
-                    event.setStartTime( pathTrackingEntry.getStartTime() );
-                    event.setTrackingId( pathTrackingEntry.getTrackingId() );
-                }
-            } );
-        }
+        storePathTracking( pathTrackingEntry );
     }
 
-
     private void updatePathTracking(final byte[] bytes) {
+        final List<PathTrackingEntry> entries;
+        try {
+            // agents before 0.4 send java serialized entries
+            entries = PathTrackingEntryCodec.decodeAny( bytes );
+        } catch (final IllegalArgumentException iae) {
+            throw new SironaException( iae );
+        }
 
-        final PathTrackingEntry pathTrackingEntry = SerializeUtils.deserialize( bytes, PathTrackingEntry.class );
+        for (final PathTrackingEntry pathTrackingEntry : entries) {
+            storePathTracking( pathTrackingEntry );
+        }
+    }
 
-        if (this.disableDisruptor)
-        {
+    private void storePathTracking(final PathTrackingEntry pathTrackingEntry) {
+        if (this.disableDisruptor) {
             pathTrackingDataStore.store( pathTrackingEntry );
         } else {
             ringBuffer.publishEvent( new EventTranslator<PathTrackingEntry>()
@@ -527,8 +521,6 @@ public class Collector extends HttpServlet {
         }
     }
 
-
-
     private void updateCounter(final Event event) {
         final Map<String, Object> data = event.getData();
 
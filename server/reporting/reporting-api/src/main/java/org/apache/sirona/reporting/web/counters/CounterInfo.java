@@ -30,6 +30,8 @@ public class CounterInfo
 
     private final String unitName;
 
+    private final String sampleMessage;
+
     private final double hits;
 
     private final double max;
@@ -48,12 +50,32 @@ public class CounterInfo
 
     private final double maxConcurrency;
 
+    private final double percentile50;
+
+    private final double percentile90;
+
+    private final double percentile99;
+
+    private final double percentile999;
+
     public CounterInfo( KeyInfo keyInfo, double hits, double max, double mean, double min, double standardDeviation,
                         double sum, double variance, double concurrency, double maxConcurrency )
+    {
+        this( keyInfo, hits, max, mean, min, standardDeviation, sum, variance, concurrency, maxConcurrency, //
+              Double.NaN, Double.NaN, Double.NaN, Double.NaN );
+    }
+
+    /**
+     * @since 0.4
+     */
+    public CounterInfo( KeyInfo keyInfo, double hits, double max, double mean, double min, double standardDeviation,
+                        double sum, double variance, double concurrency, double maxConcurrency, //
+                        double percentile50, double percentile90, double percentile99, double percentile999 )
     {
         this.name = keyInfo.getName();
         this.roleName = keyInfo.getRoleName();
         this.unitName = keyInfo.getUnitName();
+        this.sampleMessage = keyInfo.getSampleMessage();
         this.hits = hits;
         this.max = max;
         this.mean = mean;
@@ -63,6 +85,10 @@ public class CounterInfo
         this.variance = variance;
         this.concurrency = concurrency;
         this.maxConcurrency = maxConcurrency;
+        this.percentile50 = percentile50;
+        this.percentile90 = percentile90;
+        this.percentile99 = percentile99;
+        this.percentile999 = percentile999;
     }
 
     public String getName()
@@ -80,6 +106,14 @@ public class CounterInfo
         return unitName;
     }
 
+    /**
+     * @since 0.4
+     */
+    public String getSampleMessage()
+    {
+        return sampleMessage;
+    }
+
     public double getHits()
     {
         return hits;
@@ -125,6 +159,26 @@ public class CounterInfo
         return maxConcurrency;
     }
 
+    public double getPercentile50()
+    {
+        return percentile50;
+    }
+
+    public double getPercentile90()
+    {
+        return percentile90;
+    }
+
+    public double getPercentile99()
+    {
+        return percentile99;
+    }
+
+    public double getPercentile999()
+    {
+        return percentile999;
+    }
+
     @Override
     public String toString()
     {
@@ -132,6 +186,7 @@ public class CounterInfo
             "name='" + name + '\'' +
             ", roleName='" + roleName + '\'' +
             ", unitName='" + unitName + '\'' +
+            ", sampleMessage='" + sampleMessage + '\'' +
             ", hits=" + hits +
             ", max=" + max +
             ", mean=" + mean +
@@ -141,6 +196,10 @@ public class CounterInfo
             ", variance=" + variance +
             ", concurrency=" + concurrency +
             ", maxConcurrency=" + maxConcurrency +
+            ", percentile50=" + percentile50 +
+            ", percentile90=" + percentile90 +
+            ", percentile99=" + percentile99 +
+            ", percentile999=" + percentile999 +
             '}';
     }
 }
@@ -18,7 +18,9 @@ package org.apache.sirona.reporting.web.counters;
 
 import org.apache.sirona.Role;
 import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.LockableCounter;
 import org.apache.sirona.counters.MetricData;
+import org.apache.sirona.counters.OptimizedStatistics;
 import org.apache.sirona.counters.Unit;
 import org.apache.sirona.repositories.Repository;
 
@@ -31,6 +33,7 @@ import javax.ws.rs.core.MediaType;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @since 0.3
@@ -42,6 +45,24 @@ public class CountersService
     @GET
     @Produces( { MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML } )
     public List<CounterInfo> all( @QueryParam( "unit" ) String unitName )
+    {
+        return all( unitName, null );
+    }
+
+    /**
+     * @param window if not null only the values of the last <code>window</code> minutes are returned
+     *               (counters not tracking a sliding window have no hits).
+     * @since 0.4
+     */
+    @GET
+    @Path( "/window/{window}" )
+    @Produces( { MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML } )
+    public List<CounterInfo> window( @PathParam( "window" ) int window, @QueryParam( "unit" ) String unitName )
+    {
+        return all( unitName, window );
+    }
+
+    private List<CounterInfo> all( String unitName, Integer window )
     {
         Collection<Counter> counters = Repository.INSTANCE.counters();
 
@@ -56,6 +77,12 @@ public class CountersService
 
         for ( Counter counter : counters )
         {
+            if ( window != null )
+            {
+                out.add( windowInfo( counter, window, unit ) );
+                continue;
+            }
+
             Unit currentUnit = counter.getKey().getRole().getUnit();
             if ( unit == null )
             {
@@ -68,7 +95,11 @@ public class CountersService
                                           MetricData.Sum.value( counter ), //
                                           MetricData.Variance.value( counter ), //
                                           MetricData.Concurrency.value( counter ), //
-                                          MetricData.MaxConcurrency.value( counter ) ) ); //
+                                          MetricData.MaxConcurrency.value( counter ), //
+                                          MetricData.Percentile50.value( counter ), //
+                                          MetricData.Percentile90.value( counter ), //
+                                          MetricData.Percentile99.value( counter ), //
+                                          MetricData.Percentile999.value( counter ) ) ); //
             }
             else
             {
@@ -81,7 +112,11 @@ public class CountersService
                                           unit.convert( MetricData.Sum.value( counter ), currentUnit ), //
                                           unit.convert( MetricData.Variance.value( counter ), currentUnit ), //
                                           MetricData.Concurrency.value( counter ), //
-                                          MetricData.MaxConcurrency.value( counter ) ) ); //
+                                          MetricData.MaxConcurrency.value( counter ), //
+                                          unit.convert( MetricData.Percentile50.value( counter ), currentUnit ), //
+                                          unit.convert( MetricData.Percentile90.value( counter ), currentUnit ), //
+                                          unit.convert( MetricData.Percentile99.value( counter ), currentUnit ), //
+                                          unit.convert( MetricData.Percentile999.value( counter ), currentUnit ) ) ); //
             }
         }
 
@@ -90,6 +125,42 @@ public class CountersService
     }
 
 
+    private static CounterInfo windowInfo( Counter counter, int window, Unit unit )
+    {
+        OptimizedStatistics statistics = null;
+        if ( LockableCounter.class.isInstance( counter ) )
+        {
+            statistics = LockableCounter.class.cast( counter ).getWindowStatistics( window, TimeUnit.MINUTES );
+        }
+        if ( statistics == null )
+        {
+            statistics = new OptimizedStatistics();
+        }
+
+        Unit currentUnit = counter.getKey().getRole().getUnit();
+        Unit targetUnit = unit == null ? currentUnit : unit;
+        KeyInfo keyInfo = new KeyInfo( counter.getKey() );
+        if ( unit != null )
+        {
+            keyInfo.unitName( unit.getName() );
+        }
+
+        return new CounterInfo( keyInfo, //
+                                statistics.getN(), //
+                                targetUnit.convert( statistics.getMax(), currentUnit ), //
+                                targetUnit.convert( statistics.getMean(), currentUnit ), //
+                                targetUnit.convert( statistics.getMin(), currentUnit ), //
+                                targetUnit.convert( statistics.getStandardDeviation(), currentUnit ), //
+                                targetUnit.convert( statistics.getSum(), currentUnit ), //
+                                targetUnit.convert( statistics.getVariance(), currentUnit ), //
+                                MetricData.Concurrency.value( counter ), //
+                                MetricData.MaxConcurrency.value( counter ), //
+                                targetUnit.convert( statistics.getPercentile( 50 ), currentUnit ), //
+                                targetUnit.convert( statistics.getPercentile( 90 ), currentUnit ), //
+                                targetUnit.convert( statistics.getPercentile( 99 ), currentUnit ), //
+                                targetUnit.convert( statistics.getPercentile( 99.9 ), currentUnit ) ); //
+    }
+
     @GET
     @Path( "/{name}/{unitName}" )
     @Produces( { MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML } )
@@ -104,7 +175,9 @@ public class CountersService
                                MetricData.Max.value( counter ), MetricData.Mean.value( counter ), //
                                MetricData.Min.value( counter ), MetricData.StandardDeviation.value( counter ), //
                                MetricData.Sum.value( counter ), MetricData.Variance.value( counter ), //
-                               MetricData.Concurrency.value( counter ), MetricData.MaxConcurrency.value( counter ) );
+                               MetricData.Concurrency.value( counter ), MetricData.MaxConcurrency.value( counter ), //
+                               MetricData.Percentile50.value( counter ), MetricData.Percentile90.value( counter ), //
+                               MetricData.Percentile99.value( counter ), MetricData.Percentile999.value( counter ) );
 
     }
 
@@ -18,6 +18,7 @@
 package org.apache.sirona.reporting.web.counters;
 
 import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.FailureFingerprint;
 
 import java.io.Serializable;
 
@@ -34,6 +35,8 @@ public class KeyInfo
 
     private String unitName;
 
+    private final String sampleMessage;
+
     public KeyInfo( Counter.Key key )
     {
         this.name = key.getName();
@@ -41,6 +44,8 @@ public class KeyInfo
         this.roleName = key.getRole().getName();
 
         this.unitName = key.getRole().getUnit().getName();
+
+        this.sampleMessage = FailureFingerprint.sampleMessage( key );
     }
 
     public String getName()
@@ -58,6 +63,15 @@ public class KeyInfo
         return unitName;
     }
 
+    /**
+     * @return the first message of the failures of this fingerprint, null if the counter is not a failure one.
+     * @since 0.4
+     */
+    public String getSampleMessage()
+    {
+        return sampleMessage;
+    }
+
     public void setUnitName( String unitName )
     {
         this.unitName = unitName;
@@ -76,6 +90,7 @@ public class KeyInfo
             "name='" + name + '\'' +
             ", roleName='" + roleName + '\'' +
             ", unitName='" + unitName + '\'' +
+            ", sampleMessage='" + sampleMessage + '\'' +
             '}';
     }
 }
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.reporting.web.instrumentation;
+
+import java.io.Serializable;
+import java.util.Comparator;
+
+/**
+ * @since 0.4
+ */
+public class DeinstrumentedMethodInfo
+    implements Serializable
+{
+
+    private String method;
+
+    private String encodedMethod;
+
+    private String reason;
+
+    private long since;
+
+    public DeinstrumentedMethodInfo()
+    {
+        // no op
+    }
+
+    public DeinstrumentedMethodInfo( String method, String encodedMethod, String reason, long since )
+    {
+        this.method = method;
+        this.encodedMethod = encodedMethod;
+        this.reason = reason;
+        this.since = since;
+    }
+
+    public String getMethod()
+    {
+        return method;
+    }
+
+    public void setMethod( String method )
+    {
+        this.method = method;
+    }
+
+    public String getEncodedMethod()
+    {
+        return encodedMethod;
+    }
+
+    public void setEncodedMethod( String encodedMethod )
+    {
+        this.encodedMethod = encodedMethod;
+    }
+
+    public String getReason()
+    {
+        return reason;
+    }
+
+    public void setReason( String reason )
+    {
+        this.reason = reason;
+    }
+
+    public long getSince()
+    {
+        return since;
+    }
+
+    public void setSince( long since )
+    {
+        this.since = since;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DeinstrumentedMethodInfo{" +
+            "method='" + method + '\'' +
+            ", reason='" + reason + '\'' +
+            ", since=" + since +
+            '}';
+    }
+
+    public static final Comparator<DeinstrumentedMethodInfo> COMPARATOR = new Comparator<DeinstrumentedMethodInfo>()
+    {
+        @Override
+        public int compare( DeinstrumentedMethodInfo info, DeinstrumentedMethodInfo other )
+        {
+            return info.getMethod().compareTo( other.getMethod() );
+        }
+    };
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.reporting.web.instrumentation;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.sirona.SironaException;
+import org.apache.sirona.configuration.Configuration;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Methods the javaagent stopped monitoring because they are too hot and fast to be worth it.
+ * The agent mbean is read through the platform server so the agent doesn't need to be in the webapp.
+ *
+ * @since 0.4
+ */
+@Path( "/instrumentation" )
+public class InstrumentationReports
+{
+    private static final String DEINSTRUMENTATION_MBEAN =
+        Configuration.CONFIG_PROPERTY_PREFIX + "javaagent:type=deinstrumentation";
+
+    private static final boolean METHOD_INVOCATION_ALLOWED =
+        Configuration.is( Configuration.CONFIG_PROPERTY_PREFIX + "jmx.method.allowed", true );
+
+    private final MBeanServerConnection server = ManagementFactory.getPlatformMBeanServer();
+
+    @GET
+    @Produces( { MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML } )
+    public Collection<DeinstrumentedMethodInfo> deinstrumented()
+    {
+        try
+        {
+            final ObjectName name = new ObjectName( DEINSTRUMENTATION_MBEAN );
+            if ( !server.isRegistered( name ) )
+            {
+                return Collections.emptyList();
+            }
+
+            final Set<DeinstrumentedMethodInfo> out =
+                new TreeSet<DeinstrumentedMethodInfo>( DeinstrumentedMethodInfo.COMPARATOR );
+            for ( final String method : String[].class.cast( server.getAttribute( name, "DeinstrumentedMethods" ) ) )
+            {
+                final String[] signature = { String.class.getName() };
+                final Object[] params = { method };
+                out.add( new DeinstrumentedMethodInfo( method, //
+                                                       Base64.encodeBase64URLSafeString( method.getBytes() ), //
+                                                       String.class.cast(
+                                                           server.invoke( name, "getReason", params, signature ) ), //
+                                                       Number.class.cast(
+                                                           server.invoke( name, "getDeinstrumentedAt", params,
+                                                                          signature ) ).longValue() ) );
+            }
+            return out;
+        }
+        catch ( final Exception e )
+        {
+            throw new SironaException( e.getMessage(), e );
+        }
+    }
+
+    @POST
+    @Path( "/reinstate/{encodedMethod}" )
+    @Produces( { MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML } )
+    public Collection<DeinstrumentedMethodInfo> reinstate( @PathParam( "encodedMethod" ) String encodedMethod )
+    {
+        if ( !METHOD_INVOCATION_ALLOWED )
+        {
+            throw new SironaException( "Method invocation not allowed" );
+        }
+
+        try
+        {
+            server.invoke( new ObjectName( DEINSTRUMENTATION_MBEAN ), "reinstate",
+                           new Object[]{ new String( Base64.decodeBase64( encodedMethod ) ) },
+                           new String[]{ String.class.getName() } );
+        }
+        catch ( final Exception e )
+        {
+            throw new SironaException( e.getMessage(), e );
+        }
+        return deinstrumented();
+    }
+}
@@ -28,7 +28,7 @@ define(['jquery','angular','bootstrap','services','ui-bootstrap','nggrid'], func
     function ( $scope,$routeParams,$http,counters){
 
       $scope.colDefs = [
-        {field: 'name', displayName: 'Counter',enableFiltering: true},
+        {field: 'name', displayName: 'Counter',enableFiltering: true, cellTemplate:"<div class='ngCellText'>{{row.getProperty(col.field)}}<span ng-if=\"row.getProperty('sampleMessage')\"> ({{row.getProperty('sampleMessage')}})</span></div>"},
         {field: 'roleName', displayName: 'Role', cellTemplate:"<div class='ngCellText'>{{row.getProperty(col.field)}} ({{row.getProperty('unitName')}})</div>"},
         {field: 'hits', displayName: 'Hits'},
         {field: 'max', displayName: 'Max'},
@@ -39,6 +39,10 @@ define(['jquery','angular','bootstrap','services','ui-bootstrap','nggrid'], func
         {field: 'variance', displayName: 'Variance'},
         {field: 'concurrency', displayName: 'Concurrency'},
         {field: 'maxConcurrency', displayName: 'MaxConcurrency'},
+        {field: 'percentile50', displayName: 'P50'},
+        {field: 'percentile90', displayName: 'P90'},
+        {field: 'percentile99', displayName: 'P99'},
+        {field: 'percentile999', displayName: 'P99.9'},
       ];
 
       var csvOpts = {fileName: "counters.csv"};
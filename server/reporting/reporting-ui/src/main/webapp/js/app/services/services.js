@@ -153,4 +153,15 @@ define(['angular','angular-resource'], function (){
     }
   ]);
 
+  sironaServices.factory('instrumentation', ['$resource',
+    function($resource){
+      return $resource('restServices/sironaServices/instrumentation/:action/:encodedMethod',
+                       {},
+                       {
+                         query: {method:'GET', params:{},isArray:true},
+                         reinstate: {method:'POST', params:{action:'reinstate',encodedMethod:'@encodedMethod'},isArray:true}
+                       });
+    }
+  ]);
+
 });
\ No newline at end of file
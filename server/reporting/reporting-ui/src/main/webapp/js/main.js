@@ -44,6 +44,7 @@ require.config({
     'controllers-jmx': 'app/controllers/controllers-jmx',
     'controllers-jta': 'app/controllers/controllers-jta',
     'controllers-sessions': 'app/controllers/controllers-sessions',
+    'controllers-instrumentation': 'app/controllers/controllers-instrumentation',
     'services': 'app/services/services',
     'sirona': 'sirona',
     'morris': 'plugins/morris/morris-0.5.0.min',
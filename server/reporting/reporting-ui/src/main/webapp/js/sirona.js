@@ -19,7 +19,7 @@
 
 define(['jquery','controllers','controllers-jvm','controllers-threads','controllers-gauges','angular-route',
          'bootstrap','datetimepicker','controllers-report','controllers-status','controllers-jmx','controllers-jta',
-         'controllers-sessions'],
+         'controllers-sessions','controllers-instrumentation'],
        function (jquery,controllers) {
 
   var sirona = angular.module('sirona', [
@@ -32,7 +32,8 @@ define(['jquery','controllers','controllers-jvm','controllers-threads','controll
     'statusControllers',
     'jmxControllers',
     'jtaControllers',
-    'sessionsControllers'
+    'sessionsControllers',
+    'instrumentationControllers'
   ]);
 
   sirona.config(['$routeProvider','$logProvider',
@@ -111,6 +112,12 @@ define(['jquery','controllers','controllers-jvm','controllers-threads','controll
                controller: 'jmxDetailCtrl'
              }
         ).
+        when('/instrumentation',
+             {
+               templateUrl: 'partials/instrumentation.html',
+               controller: 'instrumentationHomeCtrl'
+             }
+        ).
         when('/sessions',
              {
                templateUrl: 'partials/sessions.html',
@@ -60,7 +60,8 @@ public class FormatsTest {
 
         assertEquals("<?xml version=\"1.0\"?> <repository> " +
             "<counter name=\"RendererTest\" role=\"failures\" unit=\"u\" Hits=\"1.0\" Max=\"1.0\" Mean=\"1.0\" Min=\"1.0\" " +
-            "StandardDeviation=\"0.0\" Sum=\"1.0\" Variance=\"0.0\" Value=\"1.0\" Concurrency=\"0.0\" MaxConcurrency=\"1.0\" />" +
+            "StandardDeviation=\"0.0\" Sum=\"1.0\" Variance=\"0.0\" Value=\"1.0\" Concurrency=\"0.0\" MaxConcurrency=\"1.0\" " +
+            "Percentile50=\"1.0\" Percentile90=\"1.0\" Percentile99=\"1.0\" Percentile999=\"1.0\" />" +
             " </repository>", inline(out));
     }
 
@@ -74,7 +75,8 @@ public class FormatsTest {
         assertEquals("{\"counters\":[" +
             " {\"name\":\"RendererTest\", \"role\":\"failures\",\"unit\":\"u\",\"Hits\":\"1.0\",\"Max\":\"1.0\",\"Mean\":\"1.0\",\"Min\":\"1.0\"," +
             "\"StandardDeviation\":\"0.0\",\"Sum\":\"1.0\",\"Variance\":\"0.0\"," +
-            "\"Value\":\"1.0\",\"Concurrency\":\"0.0\",\"MaxConcurrency\":\"1.0\"} ]}", inline(out));
+            "\"Value\":\"1.0\",\"Concurrency\":\"0.0\",\"MaxConcurrency\":\"1.0\"," +
+            "\"Percentile50\":\"1.0\",\"Percentile90\":\"1.0\",\"Percentile99\":\"1.0\",\"Percentile999\":\"1.0\"} ]}", inline(out));
     }
 
     @Test
@@ -85,7 +87,7 @@ public class FormatsTest {
         helper.renderPlain(template.getTemplate(), template.getUserParams());
 
         assertEquals(CSVFormat.HEADER +
-            "RendererTest;failures (u);1.0;1.0;1.0;1.0;0.0;1.0;0.0;1.0;0.0;1.0" + SystemUtils.LINE_SEPARATOR,
+            "RendererTest;failures (u);1.0;1.0;1.0;1.0;0.0;1.0;0.0;1.0;0.0;1.0;1.0;1.0;1.0;1.0" + SystemUtils.LINE_SEPARATOR,
             out.toString());
     }
 
@@ -35,6 +35,7 @@ import org.apache.sirona.configuration.Configuration;
 import org.apache.sirona.configuration.ioc.IoCs;
 import org.apache.sirona.pathtracking.PathCallInformation;
 import org.apache.sirona.pathtracking.PathTrackingEntry;
+import org.apache.sirona.pathtracking.PathTrackingEntryCodec;
 import org.apache.sirona.pathtracking.PathTrackingEntryComparator;
 import org.apache.sirona.store.tracking.BatchPathTrackingDataStore;
 import org.apache.sirona.store.tracking.CollectorPathTrackingDataStore;
@@ -141,6 +142,12 @@ public class CassandraPathTrackingDataStore
 
     }
 
+    @Override
+    public void store( final String trackingId, final byte[] entries )
+    {
+        store( PathTrackingEntryCodec.decode( entries ) ); // one row per entry, nothing to keep encoded
+    }
+
     @Override
     public void store( Collection<PathTrackingEntry> pathTrackingEntries )
     {
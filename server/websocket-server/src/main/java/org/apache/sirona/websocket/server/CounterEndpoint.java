@@ -20,10 +20,12 @@ import org.apache.johnzon.websocket.mapper.JohnzonTextDecoder;
 import org.apache.sirona.Role;
 import org.apache.sirona.configuration.ioc.IoCs;
 import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.Histogram;
 import org.apache.sirona.counters.Unit;
 import org.apache.sirona.math.M2AwareStatisticalSummary;
 import org.apache.sirona.repositories.Repository;
 import org.apache.sirona.store.counter.CollectorCounterStore;
+import org.apache.sirona.util.Base64Utils;
 import org.apache.sirona.websocket.client.domain.WSCounter;
 
 import javax.websocket.OnMessage;
@@ -37,7 +39,8 @@ public class CounterEndpoint {
             new Counter.Key(new Role(counter.getRoleName(), Unit.get(counter.getRoleUnit())), counter.getName()),
             counter.getMarker(),
             new M2AwareStatisticalSummary(
-                counter.getMean(), counter.getVariance(), counter.getHits(), counter.getMax(), counter.getMin(), counter.getSum(), counter.getSecondMoment()),
+                counter.getMean(), counter.getVariance(), counter.getHits(), counter.getMax(), counter.getMin(), counter.getSum(), counter.getSecondMoment(),
+                counter.getHistogram() != null ? Histogram.fromBytes(Base64Utils.decode(counter.getHistogram())) : null),
             counter.getConcurrency()
         );
     }
@@ -61,20 +61,32 @@ public abstract class BatchCounterDataStore extends InMemoryCounterDataStore {
         scheduledTask.done();
     }
 
+    /**
+     * @deprecated counters are now reset atomically when they are collected, see {@link #collectCounters()}.
+     */
+    @Deprecated
     protected void clearCountersIfNeeded() {
         if (clearAfterCollect) {
             clearCounters();
         }
     }
 
+    // with clearOnCollect we push the interval values, taken and reset atomically so no hit is lost
+    // and counters (+ their JMX registration) are kept
+    protected Collection<Counter> collectCounters() {
+        if (clearAfterCollect) {
+            return SnapshotCounter.snapshotAndReset(counters.values());
+        }
+        return counters.values();
+    }
+
     protected abstract void pushCountersByBatch(final Collection<Counter> instance);
 
     private class BatchPushCountersTask implements Runnable {
         @Override
         public void run() {
             try {
-                pushCountersByBatch(counters.values());
-                clearCountersIfNeeded();
+                pushCountersByBatch(collectCounters());
             } catch (final Exception e) {
                 LOGGER.log(Level.SEVERE, e.getMessage(), e);
             }
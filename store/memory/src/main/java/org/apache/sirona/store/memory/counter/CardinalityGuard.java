@@ -0,0 +1,276 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.store.memory.counter;
+
+import org.apache.sirona.Role;
+import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.Unit;
+import org.apache.sirona.gauges.Gauge;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounds the number of counters of a role (raw urls, raw sql, exception messages...).
+ * <p/>
+ * The first capacity keys get their own counter, next ones are folded in a single overflow counter
+ * (named {@link #OVERFLOW_NAME}). Folded keys are tracked with a Space-Saving summary: when the guaranteed
+ * count of a folded key goes over the hits of the lightest exact counter they are swapped so exact counters
+ * converge to the heaviest keys. The number of distinct folded keys is estimated with a HyperLogLog.
+ * <p/>
+ * A folded key is then cached with the overflow counter (see {@link #foldedCounter(Counter.Key)}) so its next
+ * lookups don't lock: it is offered again, with the hits it got meanwhile, once it could outweigh the lightest
+ * exact counter or every {@link #REOFFER_PERIOD} hits.
+ */
+public class CardinalityGuard {
+    public static final String OVERFLOW_NAME = "[other]";
+
+    private static final int REGISTER_BITS = 10; // 1024 registers, ~3% standard error
+    private static final int REOFFER_PERIOD = 64;
+    private static final int MAX_CACHED_KEYS = 1 << 16;
+
+    private final Role role;
+    private final int capacity;
+    private final Counter.Key overflowKey;
+    private final Map<Counter.Key, Long> exact; // key -> weight it had when promoted
+    private final SpaceSavingSummary folded;
+    private final byte[] registers = new byte[1 << REGISTER_BITS];
+    private final AtomicBoolean gaugeRegistered = new AtomicBoolean(false);
+    private final AtomicReferenceArray<FoldedKey> foldedKeys; // direct mapped cache, a key replaces the one in its slot
+
+    private Counter.Key lightest = null;
+    private long lightestWeight = -1;
+    private int foldsSinceRefresh = 0;
+
+    public CardinalityGuard(final Role role, final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity should be > 0: " + capacity);
+        }
+        this.role = role;
+        this.capacity = capacity;
+        this.overflowKey = new Counter.Key(role, OVERFLOW_NAME);
+        this.exact = new HashMap<Counter.Key, Long>(capacity * 2);
+        this.folded = new SpaceSavingSummary(capacity);
+        this.foldedKeys = new AtomicReferenceArray<FoldedKey>(Math.min(MAX_CACHED_KEYS, Integer.highestOneBit(Math.max(8, capacity) * 2 - 1) << 1));
+    }
+
+    /**
+     * Lock free lookup of a folded key.
+     *
+     * @return the overflow counter if the key was folded recently and doesn't need to be offered again, null otherwise.
+     */
+    public Counter foldedCounter(final Counter.Key key) {
+        final FoldedKey cached = foldedKeys.get(slot(key));
+        if (cached == null || cached.hits >= cached.budget || !cached.key.equals(key)) {
+            return null;
+        }
+        cached.hits++;
+        return cached.overflow;
+    }
+
+    // caches the overflow counter for a key fold() just kept folded,
+    // the lookup after the budget offers the cached hits and could be the one promoting the key
+    public synchronized void cacheFold(final Counter.Key key, final Counter overflow) {
+        final long budget = lightest == null ? 0 : Math.min(REOFFER_PERIOD, lightestWeight - folded.guaranteed(key));
+        if (budget > 0) {
+            foldedKeys.set(slot(key), new FoldedKey(key, overflow, (int) budget));
+        }
+    }
+
+    // @return true if the key can get its own counter
+    public synchronized boolean acquire(final Counter.Key key) {
+        if (overflowKey.equals(key) || exact.containsKey(key)) {
+            return true;
+        }
+        if (exact.size() < capacity) {
+            exact.put(key, 0L);
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized void release(final Counter.Key key) {
+        if (exact.remove(key) != null && key.equals(lightest)) {
+            lightest = null;
+            lightestWeight = -1;
+        }
+    }
+
+    /**
+     * @param key a key which was not acquired.
+     * @param counters the store counters, used to weight exact keys by their hits.
+     * @return the key to remove from the store to let this one get its own counter or null if it stays folded.
+     */
+    public synchronized Counter.Key fold(final Counter.Key key, final ConcurrentMap<Counter.Key, Counter> counters) {
+        final long guaranteed = folded.offer(key, 1 + uncache(key));
+        addDistinct(key);
+
+        // refreshing is O(capacity) so only do it every capacity folds or when the key looks heavy enough
+        if (lightestWeight < 0 || ++foldsSinceRefresh >= capacity || guaranteed > lightestWeight) {
+            refreshLightest(counters);
+        }
+        if (lightest == null || guaranteed <= lightestWeight) {
+            return null;
+        }
+
+        final Counter.Key demoted = lightest;
+        exact.remove(demoted);
+        exact.put(key, guaranteed);
+        folded.remove(key);
+        lightest = null;
+        lightestWeight = -1;
+        return demoted;
+    }
+
+    public synchronized void clear() {
+        exact.clear();
+        folded.clear();
+        for (int i = 0; i < registers.length; i++) {
+            registers[i] = 0;
+        }
+        lightest = null;
+        lightestWeight = -1;
+        foldsSinceRefresh = 0;
+        for (int i = 0; i < foldedKeys.length(); i++) {
+            foldedKeys.set(i, null);
+        }
+    }
+
+    // estimation of the number of distinct keys folded in the overflow counter
+    public synchronized long getFoldedKeys() {
+        final double m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (final byte register : registers) {
+            sum += 1. / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+
+        final double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) { // small range correction (linear counting)
+            return Math.round(m * Math.log(m / zeros));
+        }
+        return Math.round(estimate);
+    }
+
+    public synchronized int getExactKeys() {
+        return exact.size();
+    }
+
+    public Role getRole() {
+        return role;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public Counter.Key getOverflowKey() {
+        return overflowKey;
+    }
+
+    // @return the gauge reporting folded keys the first time it is called, null then
+    public Gauge newGaugeOnce() {
+        if (gaugeRegistered.compareAndSet(false, true)) {
+            return new FoldedKeysGauge(this);
+        }
+        return null;
+    }
+
+    private void refreshLightest(final ConcurrentMap<Counter.Key, Counter> counters) {
+        lightest = null;
+        lightestWeight = -1;
+        foldsSinceRefresh = 0;
+        for (final Map.Entry<Counter.Key, Long> entry : exact.entrySet()) {
+            final Counter counter = counters.get(entry.getKey());
+            final long weight = entry.getValue() + (counter != null ? counter.getHits() : 0);
+            if (lightest == null || weight < lightestWeight) {
+                lightest = entry.getKey();
+                lightestWeight = weight;
+            }
+        }
+    }
+
+    // @return the hits the key got while it was cached
+    private int uncache(final Counter.Key key) {
+        final int slot = slot(key);
+        final FoldedKey cached = foldedKeys.get(slot);
+        if (cached == null || !cached.key.equals(key)) {
+            return 0;
+        }
+        foldedKeys.compareAndSet(slot, cached, null);
+        return cached.hits;
+    }
+
+    private int slot(final Counter.Key key) {
+        final int h = key.hashCode() * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & (foldedKeys.length() - 1);
+    }
+
+    private void addDistinct(final Object key) {
+        int h = key.hashCode(); // murmur3 finalizer to spread String like hashes
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+
+        final int index = h >>> (32 - REGISTER_BITS);
+        final int rank = Integer.numberOfLeadingZeros((h << REGISTER_BITS) | (1 << (REGISTER_BITS - 1))) + 1;
+        if (registers[index] < rank) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    private static class FoldedKey {
+        private final Counter.Key key;
+        private final Counter overflow;
+        private final int budget; // hits before the key is offered again
+        private int hits = 0; // not thread safe on purpose, a lost hit only delays the next offer
+
+        private FoldedKey(final Counter.Key key, final Counter overflow, final int budget) {
+            this.key = key;
+            this.overflow = overflow;
+            this.budget = budget;
+        }
+    }
+
+    private static class FoldedKeysGauge implements Gauge {
+        private final CardinalityGuard guard;
+        private final Role role;
+
+        private FoldedKeysGauge(final CardinalityGuard guard) {
+            this.guard = guard;
+            this.role = new Role("folded-counters-" + guard.getRole().getName(), Unit.UNARY);
+        }
+
+        @Override
+        public Role role() {
+            return role;
+        }
+
+        @Override
+        public double value() {
+            return guard.getFoldedKeys();
+        }
+    }
+}
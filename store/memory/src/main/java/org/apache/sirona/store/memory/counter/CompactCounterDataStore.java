@@ -0,0 +1,363 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.store.memory.counter;
+
+import org.apache.sirona.configuration.Configuration;
+import org.apache.sirona.configuration.ioc.Destroying;
+import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.OptimizedStatistics;
+import org.apache.sirona.counters.Unit;
+import org.apache.sirona.store.counter.CounterDataStore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Counter store for applications with a lot of counters (hundred of thousands of SQL or URI counters).
+ * <p/>
+ * Keys are interned to an int id and statistics are kept in pages of primitive arrays (struct of arrays)
+ * instead of one DefaultCounter (statistics, lock, concurrency, JMX name...) per key.
+ * Counter instances returned by this store are light views created on demand.
+ * <p/>
+ * Limitations: no percentiles (histograms would cost more than the counters), no gauge, no JMX, no sliding window.
+ */
+public class CompactCounterDataStore implements CounterDataStore {
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    protected final int lockNumber = Configuration.getInteger(Configuration.CONFIG_PROPERTY_PREFIX + "counter.compact.locks", 64);
+
+    private final ConcurrentMap<Counter.Key, Integer> ids = new ConcurrentHashMap<Counter.Key, Integer>(50);
+    private final Object[] locks;
+    private final int lockMask;
+
+    private volatile Page[] pages = new Page[0];
+    private int size = 0; // guarded by ids
+
+    public CompactCounterDataStore() {
+        int locksSize = 1;
+        while (locksSize < lockNumber) {
+            locksSize <<= 1;
+        }
+        this.lockMask = locksSize - 1;
+        this.locks = new Object[locksSize];
+        for (int i = 0; i < locksSize; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    @Override
+    public Counter getOrCreateCounter(final Counter.Key key) {
+        Integer id = ids.get(key);
+        if (id == null) {
+            synchronized (ids) {
+                id = ids.get(key);
+                if (id == null) {
+                    id = size;
+                    ensureCapacity(size + 1);
+                    size++;
+                    ids.put(key, id); // published after the page
+                }
+            }
+        }
+        final Counter counter = view(key, id);
+        if (counter == null) { // cleared concurrently
+            return getOrCreateCounter(key);
+        }
+        return counter;
+    }
+
+    @Override
+    public void clearCounters() {
+        synchronized (ids) {
+            ids.clear();
+            pages = new Page[0]; // existing views keep their (now detached) page
+            size = 0;
+        }
+    }
+
+    @Destroying
+    public void cleanUp() {
+        clearCounters();
+    }
+
+    @Override
+    public Collection<Counter> getCounters() {
+        final Collection<Counter> counters = new ArrayList<Counter>(ids.size());
+        for (final Map.Entry<Counter.Key, Integer> entry : ids.entrySet()) {
+            final Counter counter = view(entry.getKey(), entry.getValue());
+            if (counter != null) {
+                counters.add(counter);
+            }
+        }
+        return counters;
+    }
+
+    @Override
+    public void addToCounter(final Counter counter, final double delta) {
+        if (!CompactCounter.class.isInstance(counter)) {
+            throw new IllegalArgumentException(getClass().getName() + " only supports " + CompactCounter.class.getName());
+        }
+        CompactCounter.class.cast(counter).addInternal(delta);
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    private CompactCounter view(final Counter.Key key, final int id) {
+        final Page[] current = pages;
+        final int page = id >>> PAGE_BITS;
+        if (page >= current.length) {
+            return null;
+        }
+        return new CompactCounter(this, key, current[page], id & PAGE_MASK, locks[id & lockMask]);
+    }
+
+    private void ensureCapacity(final int capacity) {
+        final Page[] current = pages;
+        final int neededPages = (capacity + PAGE_SIZE - 1) >>> PAGE_BITS;
+        if (neededPages <= current.length) {
+            return;
+        }
+
+        final Page[] newPages = new Page[neededPages];
+        System.arraycopy(current, 0, newPages, 0, current.length);
+        for (int i = current.length; i < neededPages; i++) {
+            newPages[i] = new Page();
+        }
+        pages = newPages;
+    }
+
+    // statistics of PAGE_SIZE counters, an index is guarded by the store lock of the counter id
+    private static final class Page {
+        private final long[] n = new long[PAGE_SIZE];
+        private final double[] sum = new double[PAGE_SIZE];
+        private final double[] min = new double[PAGE_SIZE];
+        private final double[] max = new double[PAGE_SIZE];
+        private final double[] m1 = new double[PAGE_SIZE];
+        private final double[] m2 = new double[PAGE_SIZE];
+        private final int[] maxConcurrency = new int[PAGE_SIZE];
+        private final AtomicReferenceArray<AtomicInteger> concurrency = new AtomicReferenceArray<AtomicInteger>(PAGE_SIZE); // lazy
+
+        private Page() {
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                clear(i);
+            }
+        }
+
+        // same algorithm as OptimizedStatistics
+        private void add(final int i, final double value) {
+            if (n[i] == 0) {
+                m1[i] = 0.0;
+                m2[i] = 0.0;
+            }
+
+            final long count = ++n[i];
+            sum[i] += value;
+
+            if (value < min[i] || Double.isNaN(min[i])) {
+                min[i] = value;
+            }
+            if (value > max[i] || Double.isNaN(max[i])) {
+                max[i] = value;
+            }
+
+            final double dev = value - m1[i];
+            final double nDev = dev / count;
+            m1[i] += nDev;
+            m2[i] += dev * nDev * (count - 1);
+        }
+
+        private void clear(final int i) {
+            n[i] = 0;
+            sum[i] = 0;
+            min[i] = Double.NaN;
+            max[i] = Double.NaN;
+            m1[i] = Double.NaN;
+            m2[i] = Double.NaN;
+            maxConcurrency[i] = 0;
+        }
+
+        private OptimizedStatistics statistics(final int i) {
+            return new OptimizedStatistics(n[i], sum[i], min[i], max[i], m1[i], m2[i]);
+        }
+    }
+
+    public static class CompactCounter implements Counter {
+        private final CounterDataStore store;
+        private final Key key;
+        private final Page page;
+        private final int index;
+        private final Object lock;
+
+        private CompactCounter(final CounterDataStore store, final Key key, final Page page, final int index, final Object lock) {
+            this.store = store;
+            this.key = key;
+            this.page = page;
+            this.index = index;
+            this.lock = lock;
+        }
+
+        public void addInternal(final double delta) {
+            synchronized (lock) {
+                page.add(index, delta);
+            }
+        }
+
+        public OptimizedStatistics getStatistics() {
+            synchronized (lock) {
+                return page.statistics(index);
+            }
+        }
+
+        @Override
+        public Key getKey() {
+            return key;
+        }
+
+        @Override
+        public void reset() {
+            synchronized (lock) {
+                page.clear(index);
+            }
+        }
+
+        @Override
+        public void add(final double delta) {
+            store.addToCounter(this, delta);
+        }
+
+        @Override
+        public void add(final double delta, final Unit deltaUnit) {
+            add(key.getRole().getUnit().convert(delta, deltaUnit));
+        }
+
+        @Override
+        public AtomicInteger currentConcurrency() {
+            final AtomicInteger concurrency = page.concurrency.get(index);
+            if (concurrency != null) {
+                return concurrency;
+            }
+            page.concurrency.compareAndSet(index, null, new AtomicInteger());
+            return page.concurrency.get(index);
+        }
+
+        @Override
+        public void updateConcurrency(final int concurrency) {
+            synchronized (lock) {
+                if (concurrency > page.maxConcurrency[index]) {
+                    page.maxConcurrency[index] = concurrency;
+                }
+            }
+        }
+
+        @Override
+        public int getMaxConcurrency() {
+            synchronized (lock) {
+                return page.maxConcurrency[index];
+            }
+        }
+
+        @Override
+        public double getMax() {
+            synchronized (lock) {
+                return page.max[index];
+            }
+        }
+
+        @Override
+        public double getMin() {
+            synchronized (lock) {
+                return page.min[index];
+            }
+        }
+
+        @Override
+        public long getHits() {
+            synchronized (lock) {
+                return page.n[index];
+            }
+        }
+
+        @Override
+        public double getSum() {
+            synchronized (lock) {
+                return page.sum[index];
+            }
+        }
+
+        @Override
+        public double getStandardDeviation() {
+            return getStatistics().getStandardDeviation();
+        }
+
+        @Override
+        public double getVariance() {
+            return getStatistics().getVariance();
+        }
+
+        @Override
+        public double getMean() {
+            synchronized (lock) {
+                return page.m1[index];
+            }
+        }
+
+        @Override
+        public double getSecondMoment() {
+            synchronized (lock) {
+                return page.m2[index];
+            }
+        }
+
+        @Override
+        public double getPercentile(final double percentile) {
+            return Double.NaN;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!Counter.class.isInstance(o)) {
+                return false;
+            }
+            return key.equals(Counter.class.cast(o).getKey());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "CompactCounter{" +
+                "key=" + key +
+                ", statistics=" + getStatistics() +
+                '}';
+        }
+    }
+}
@@ -20,32 +20,45 @@ import org.apache.sirona.counters.LockableCounter;
 import org.apache.sirona.counters.OptimizedStatistics;
 import org.apache.sirona.store.counter.CounterDataStore;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 
 // exponential decay sampling implementation
 // inspired from http://dimacs.rutgers.edu/~graham/pubs/papers/fwddecay.pdf
 //
-// @Experimental, likely needs some more love for m2 computation
+// the reservoir is a min-heap on priorities stored in primitive arrays so adding a value never allocates.
+// Once the reservoir is full most values have a priority lower than the heap head and are rejected
+// without taking any lock (volatile read of the head priority).
 public class ExponentialDecayCounter extends LockableCounter {
     public static final double ACCEPTABLE_DEFAULT_ALPHA = 0.015;
     public static final int ACCEPTABLE_DEFAULT_SIZE = 512;
     public static final long ACCEPTABLE_STATISTICS_REFRESH_SECONDS = 5;
 
+    private static final long RESCALE_SECONDS = TimeUnit.HOURS.toSeconds(1);
+
+    private static final ThreadLocal<XorShift> RANDOM = new ThreadLocal<XorShift>() {
+        @Override
+        protected XorShift initialValue() {
+            return new XorShift(System.nanoTime() ^ Thread.currentThread().getId());
+        }
+    };
+
     private final double alpha;
-    private final double samplingSize;
+    private final int samplingSize;
     private final long refreshStatInterval;
 
-    private final AtomicInteger currentCount = new AtomicInteger();
+    // heap ordered on priorities, weights are the decay factor of the value times its sampling rate
+    // (priority without the random part), rates are the number of invocations a value stands for
+    private final double[] priorities;
+    private final double[] weights;
+    private final double[] values;
+    private final int[] rates;
+    private int size;
+
+    private volatile double threshold; // head priority when the reservoir is full, 0 otherwise
     private volatile long recomputeAt;
     private volatile long becameAt;
     private volatile long computedStatsAt;
-    private final ConcurrentSkipListMap<Double, Double> values = new ConcurrentSkipListMap<Double, Double>();
     private volatile OptimizedStatistics currentStats;
 
     public ExponentialDecayCounter(final Key key, final CounterDataStore store,
@@ -53,7 +66,11 @@ public class ExponentialDecayCounter extends LockableCounter {
         super(key, store);
         this.alpha = alpha;
         this.samplingSize = samplingSize;
-        this.refreshStatInterval = refreshStatInterval;
+        this.refreshStatInterval = TimeUnit.SECONDS.toMillis(refreshStatInterval);
+        this.priorities = new double[samplingSize];
+        this.weights = new double[samplingSize];
+        this.values = new double[samplingSize];
+        this.rates = new int[samplingSize];
         reset();
     }
 
@@ -62,45 +79,73 @@ public class ExponentialDecayCounter extends LockableCounter {
     }
 
     @Override
-    public void addInternal(final double delta) {
+    public void addInternal(final double delta, final int samplingRate) {
         final long now = seconds();
+        if (now >= recomputeAt) {
+            rescale(now);
+        }
+
+        // a concurrent rescale can only move the landmark forward so this priority is too big, never too small:
+        // the fast path doesn't reject a value it should keep and the priority is fixed once the lock is held
+        final long landmark = becameAt;
+        double weight = Math.exp(alpha * (now - landmark)) * samplingRate;
+        double priority = weight / RANDOM.get().nextDouble();
+        if (priority <= threshold) { // lock free fast path, would be evicted immediately
+            return;
+        }
 
-        final Lock rl = getLock().readLock();
-        rl.lock();
+        final Lock lock = getLock().writeLock();
+        lock.lock();
         try {
-            final double priority = Math.exp(alpha * (now - becameAt)) / Math.random();
-            if (currentCount.incrementAndGet() > samplingSize) { // we need to remove 1 sample to respect samplingSize
-                double head = values.firstKey();
-                if (priority > head && values.putIfAbsent(priority, delta) == null) {
-                    while (values.remove(values.firstKey()) == null) {
-                        // no-op
-                    }
+            if (becameAt != landmark) { // rescaled or reset meanwhile, use the current landmark as the reservoir does
+                final double factor = Math.exp(-alpha * (becameAt - landmark));
+                weight *= factor;
+                priority *= factor;
+            }
+
+            if (size < samplingSize) {
+                priorities[size] = priority;
+                weights[size] = weight;
+                values[size] = delta;
+                rates[size] = samplingRate;
+                siftUp(size++);
+                if (size == samplingSize) {
+                    threshold = priorities[0];
                 }
-            } else {
-                values.put(priority, delta);
+            } else if (priority > priorities[0]) { // replace the head
+                priorities[0] = priority;
+                weights[0] = weight;
+                values[0] = delta;
+                rates[0] = samplingRate;
+                siftDown(0);
+                threshold = priorities[0];
             }
         } finally {
-            rl.unlock();
+            lock.unlock();
         }
+    }
 
-        if (now >= recomputeAt) {
-            if (recomputeAt == now) {
+    // move the landmark to now every hour to keep priorities in the double range
+    private void rescale(final long now) {
+        final Lock lock = getLock().writeLock();
+        lock.lock();
+        try {
+            if (now < recomputeAt) { // already done by another thread
                 return;
             }
-            final Lock lock = getLock().writeLock();
-            lock.lock();
-            try {
-                final long currentLoopBecame = becameAt;
-                becameAt = now;
-                recomputeAt = nextComputation();
-                final long timeDiff = becameAt - currentLoopBecame;
 
-                for (final Double priority : new ArrayList<Double>(values.keySet())) {
-                    values.put(priority * Math.exp(-alpha * timeDiff), values.remove(priority));
-                }
-            } finally {
-                lock.unlock();
+            final double factor = Math.exp(-alpha * (now - becameAt));
+            for (int i = 0; i < size; i++) { // same factor for all priorities so heap order is kept
+                priorities[i] *= factor;
+                weights[i] *= factor;
+            }
+            if (size == samplingSize) {
+                threshold = priorities[0];
             }
+            becameAt = now;
+            recomputeAt = nextComputation();
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -110,41 +155,108 @@ public class ExponentialDecayCounter extends LockableCounter {
         final Lock lock = getLock().writeLock();
         lock.lock();
         try {
-            values.clear();
-            this.currentCount.set(0);
-            this.becameAt = now;
-            this.recomputeAt = nextComputation();
+            clearStatistics();
+            becameAt = now;
+            recomputeAt = nextComputation();
             super.reset();
         } finally {
             lock.unlock();
         }
     }
 
+    @Override
+    protected OptimizedStatistics swapStatistics() {
+        currentStats = null; // don't return a cached value of the previous interval
+        return super.swapStatistics();
+    }
+
+    @Override
+    protected void clearStatistics() {
+        size = 0;
+        threshold = 0;
+        computedStatsAt = 0;
+        currentStats = null;
+    }
+
     private long nextComputation() {
-        return this.becameAt + TimeUnit.MILLISECONDS.toSeconds(TimeUnit.HOURS.toMillis(1));
+        return this.becameAt + RESCALE_SECONDS;
     }
 
     @Override
     public OptimizedStatistics getStatistics() {
-        if (computedStatsAt != 0 && System.currentTimeMillis() - computedStatsAt < refreshStatInterval) {
-            return currentStats;
+        final OptimizedStatistics cached = currentStats;
+        if (cached != null && System.currentTimeMillis() - computedStatsAt < refreshStatInterval) {
+            return cached;
         }
 
-        final LazyOptimizedStatistics stat;
+        final int n;
+        final double[] sampleValues;
+        final double[] sampleWeights;
+        final int[] sampleRates;
         final Lock lock = getLock().readLock();
         lock.lock();
         try {
-            stat = new LazyOptimizedStatistics(new HashMap<Double, Double>(values));
-            computedStatsAt = seconds();
+            n = size;
+            sampleValues = new double[n];
+            sampleWeights = new double[n];
+            sampleRates = new int[n];
+            System.arraycopy(values, 0, sampleValues, 0, n);
+            System.arraycopy(weights, 0, sampleWeights, 0, n);
+            System.arraycopy(rates, 0, sampleRates, 0, n);
         } finally {
             lock.unlock();
         }
 
-        stat.init(); // out of lock
-
+        final ReservoirStatistics stat = new ReservoirStatistics(sampleValues, sampleWeights, sampleRates); // out of lock
+        computedStatsAt = System.currentTimeMillis();
         return (currentStats = stat);
     }
 
+    private void siftUp(final int idx) {
+        int i = idx;
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (priorities[parent] <= priorities[i]) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(final int idx) {
+        int i = idx;
+        while (true) {
+            final int left = 2 * i + 1;
+            if (left >= size) {
+                return;
+            }
+            final int right = left + 1;
+            final int smallest = right < size && priorities[right] < priorities[left] ? right : left;
+            if (priorities[i] <= priorities[smallest]) {
+                return;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(final int i, final int j) {
+        swap(priorities, i, j);
+        swap(weights, i, j);
+        swap(values, i, j);
+
+        final int rate = rates[i];
+        rates[i] = rates[j];
+        rates[j] = rate;
+    }
+
+    private static void swap(final double[] array, final int i, final int j) {
+        final double tmp = array[i];
+        array[i] = array[j];
+        array[j] = tmp;
+    }
+
     @Override
     public String toString() {
         return "ExponentialDecayCounter{" +
@@ -153,11 +265,18 @@ public class ExponentialDecayCounter extends LockableCounter {
                 '}';
     }
 
-    private static class LazyOptimizedStatistics extends OptimizedStatistics {
-        private final Map<Double, Double> values;
+    // weighted statistics of the reservoir, values are sorted to compute percentiles.
+    // Immutable (cached and shared by readers) so all mutators throw and copy() can return this instance.
+    private static class ReservoirStatistics extends OptimizedStatistics {
+        private final double[] sortedValues;
+        private final double[] normalizedWeights;
+        private final int[] rates;
 
-        private LazyOptimizedStatistics(final Map<Double, Double> values) {
-            this.values = values;
+        private ReservoirStatistics(final double[] values, final double[] weights, final int[] rates) {
+            this.sortedValues = values;
+            this.normalizedWeights = weights;
+            this.rates = rates;
+            init();
         }
 
         @Override
@@ -165,62 +284,117 @@ public class ExponentialDecayCounter extends LockableCounter {
             throw new UnsupportedOperationException();
         }
 
+        @Override
+        public OptimizedStatistics addValue(final double value, final long weight) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public OptimizedStatistics merge(final OptimizedStatistics other) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void clear() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public OptimizedStatistics copy() {
+            return this;
+        }
+
+        @Override
+        public double getPercentile(final double percentile) {
+            if (n == 0) {
+                return Double.NaN;
+            }
+
+            final double target = Math.min(Math.max(percentile, 0.), 100.) / 100.;
+            double cumulated = 0;
+            for (int i = 0; i < sortedValues.length; i++) {
+                cumulated += normalizedWeights[i];
+                if (cumulated >= target) {
+                    return sortedValues[i];
+                }
+            }
+            return max; // rounding
+        }
+
         private void init() {
-            if (values.isEmpty()) {
+            if (sortedValues.length == 0) {
                 return;
             }
 
-            // computed stats init
-            n = values.size();
-            min = Double.NaN;
-            max = Double.NaN;
+            sort(sortedValues, normalizedWeights, rates);
+
+            n = 0;
+            for (final int rate : rates) { // hits of the sampled invocations
+                n += rate;
+            }
+            min = sortedValues[0];
+            max = sortedValues[sortedValues.length - 1];
             m1 = 0;
             m2 = 0;
             sum = 0;
 
-            // sum priorities
-            double prioritySum = 0;
-            for (final Double priority : values.keySet()) {
-                prioritySum += priority;
+            double weightSum = 0;
+            for (final double weight : normalizedWeights) {
+                weightSum += weight;
             }
-
-            { // normalise priorities
-                for (final Double priority : new ArrayList<Double>(values.keySet())) {
-                    values.put(priority / prioritySum, values.remove(priority));
-                }
-            }
-            { // min/max
-                for (final Double val : new ArrayList<Double>(values.values())) {
-                    if (Double.isNaN(min)) { // init
-                        max = min = val;
-                    } else {
-                        if (min > val) {
-                            min = val;
-                        }
-                        if (max < val) {
-                            max = val;
-                        }
-                    }
-                }
+            for (int i = 0; i < normalizedWeights.length; i++) {
+                normalizedWeights[i] /= weightSum;
             }
-            { // mean
-                for (final Map.Entry<Double, Double> priority : values.entrySet()) {
-                    m1 += priority.getValue() * priority.getKey();
-                }
+
+            for (int i = 0; i < sortedValues.length; i++) {
+                m1 += sortedValues[i] * normalizedWeights[i];
+                sum += sortedValues[i] * rates[i]; // doesn't represent much - mathematically wrong - but gives an idea
             }
-            if (values.size() > 1) { // variance
-                for (final Map.Entry<Double, Double> priority : values.entrySet()) {
-                    m2 += Math.pow(priority.getValue() - m1, 2) * priority.getKey();
+            if (n > 1) { // variance
+                for (int i = 0; i < sortedValues.length; i++) {
+                    final double dev = sortedValues[i] - m1;
+                    m2 += dev * dev * normalizedWeights[i];
                 }
                 m2 *= (n - 1);
             }
-            { // sum (doesn't represent much - mathematically wrong - but gives an idea)
-                for (final Double v : values.values()) {
-                    sum += v;
+        }
+
+        // shell sort on values keeping weights and rates aligned, reservoir is small
+        private static void sort(final double[] values, final double[] weights, final int[] rates) {
+            for (int gap = values.length / 2; gap > 0; gap /= 2) {
+                for (int i = gap; i < values.length; i++) {
+                    final double value = values[i];
+                    final double weight = weights[i];
+                    final int rate = rates[i];
+                    int j = i;
+                    while (j >= gap && values[j - gap] > value) {
+                        values[j] = values[j - gap];
+                        weights[j] = weights[j - gap];
+                        rates[j] = rates[j - gap];
+                        j -= gap;
+                    }
+                    values[j] = value;
+                    weights[j] = weight;
+                    rates[j] = rate;
                 }
             }
+        }
+    }
+
+    // per thread generator to avoid the contended shared seed of Math.random()
+    private static final class XorShift {
+        private long seed;
+
+        private XorShift(final long seed) {
+            this.seed = seed == 0 ? 0x9E3779B97F4A7C15L : seed;
+        }
 
-            values.clear();
+        // in ]0, 1] since it is used as a divisor
+        private double nextDouble() {
+            seed ^= seed << 13;
+            seed ^= seed >>> 7;
+            seed ^= seed << 17;
+            return ((seed >>> 11) + 1) * 0x1.0p-53;
         }
     }
 }
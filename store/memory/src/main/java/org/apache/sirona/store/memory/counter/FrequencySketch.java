@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.store.memory.counter;
+
+// count-min sketch (4 rows of saturating 4 bits counters) estimating how often a key is used (TinyLFU).
+// Counters are halved every sampleSize increments so old popularity fades, the caller decides when through ageIfNeeded()
+// so it is never paid by a hit. Updates are not atomic on purpose: losing an increment under contention
+// only makes the estimation a bit lower or delays the aging.
+class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_FREQUENCY = 15;
+    private static final int[] SEEDS = { 0x97cb3127, 0xb3a9c5e1, 0x5e2d58d9, 0xc2b2ae35 };
+
+    private final byte[] table;
+    private final int width;
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    FrequencySketch(final int capacity) {
+        // a sample sees up to 10 * capacity distinct keys, keep rows wide enough to limit collisions
+        int size = 128;
+        while (size < capacity * 8) {
+            size <<= 1;
+        }
+        this.width = size;
+        this.mask = size - 1;
+        this.table = new byte[DEPTH * size];
+        this.sampleSize = 10 * Math.max(16, capacity);
+    }
+
+    public void increment(final Object key) {
+        increment(key, 1);
+    }
+
+    // count > 1 lets a sampling caller weight the increments it records
+    public void increment(final Object key, final int count) {
+        final int hash = spread(key.hashCode());
+        for (int i = 0; i < DEPTH; i++) {
+            final int index = indexOf(hash, i);
+            table[index] = (byte) Math.min(MAX_FREQUENCY, table[index] + count);
+        }
+        additions += count;
+    }
+
+    public void ageIfNeeded() {
+        if (additions >= sampleSize) {
+            additions = 0;
+            age();
+        }
+    }
+
+    public int frequency(final Object key) {
+        final int hash = spread(key.hashCode());
+        int frequency = MAX_FREQUENCY;
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, table[indexOf(hash, i)]);
+        }
+        return frequency;
+    }
+
+    public void clear() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = 0;
+        }
+        additions = 0;
+    }
+
+    private void age() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (byte) (table[i] >>> 1);
+        }
+    }
+
+    private int indexOf(final int hash, final int row) {
+        int h = (hash + SEEDS[row]) * SEEDS[row];
+        h ^= h >>> 16;
+        return row * width + (h & mask);
+    }
+
+    private static int spread(final int hashCode) {
+        final int h = hashCode * 0x9e3779b9;
+        return h ^ (h >>> 15);
+    }
+}
@@ -97,4 +97,9 @@ public class InMemoryCollectorCounterStore extends InMemoryCounterDataStore impl
     public void addToCounter(final Counter defaultCounter, final double delta) {
         throw new UnsupportedOperationException("shouldn't be used");
     }
+
+    @Override
+    public void addToCounter(final Counter defaultCounter, final double delta, final int samplingRate) {
+        throw new UnsupportedOperationException("shouldn't be used");
+    }
 }
@@ -16,18 +16,24 @@
  */
 package org.apache.sirona.store.memory.counter;
 
+import org.apache.sirona.Role;
 import org.apache.sirona.configuration.Configuration;
 import org.apache.sirona.configuration.ioc.Destroying;
 import org.apache.sirona.counters.Counter;
 import org.apache.sirona.counters.DefaultCounter;
+import org.apache.sirona.counters.Histogram;
+import org.apache.sirona.counters.KeyRegistry;
 import org.apache.sirona.counters.LockableCounter;
 import org.apache.sirona.counters.MetricData;
 import org.apache.sirona.counters.OptimizedStatistics;
+import org.apache.sirona.counters.SlidingWindow;
 import org.apache.sirona.counters.jmx.CounterJMX;
 import org.apache.sirona.gauges.Gauge;
 import org.apache.sirona.gauges.counter.CounterGauge;
 import org.apache.sirona.repositories.Repository;
-import org.apache.sirona.store.counter.CounterDataStore;
+import org.apache.sirona.store.counter.IndexedCounterDataStore;
+import org.apache.sirona.store.counter.SampledCounterDataStore;
+import org.apache.sirona.store.counter.WindowedCounterDataStore;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
@@ -36,11 +42,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-public class InMemoryCounterDataStore implements CounterDataStore {
+public class InMemoryCounterDataStore implements WindowedCounterDataStore, IndexedCounterDataStore, SampledCounterDataStore {
     protected final boolean gauged = Configuration.is(Configuration.CONFIG_PROPERTY_PREFIX + "counter.with-gauge", false);
     protected final boolean jmx = Configuration.is(Configuration.CONFIG_PROPERTY_PREFIX + "counter.with-jmx", false);
 
@@ -54,32 +62,100 @@ public class InMemoryCounterDataStore implements CounterDataStore {
             (long) Configuration.getInteger(Configuration.CONFIG_PROPERTY_PREFIX + "counter.exponential-decay.refresh-seconds",
                     (int) ExponentialDecayCounter.ACCEPTABLE_STATISTICS_REFRESH_SECONDS);
 
+    protected final boolean useHistogram = Configuration.is(Configuration.CONFIG_PROPERTY_PREFIX + "counter.histogram", false);
+    protected final int histogramPrecision =
+            Configuration.getInteger(Configuration.CONFIG_PROPERTY_PREFIX + "counter.histogram.precision", Histogram.DEFAULT_PRECISION);
+    protected final int histogramMaxBits =
+            Configuration.getInteger(Configuration.CONFIG_PROPERTY_PREFIX + "counter.histogram.max-bits", Histogram.DEFAULT_MAX_BITS);
+
+    protected final boolean useStriped = Configuration.is(Configuration.CONFIG_PROPERTY_PREFIX + "counter.striped", false);
+    protected final int stripes =
+            Configuration.getInteger(Configuration.CONFIG_PROPERTY_PREFIX + "counter.striped.stripes", StripedCounter.ACCEPTABLE_DEFAULT_STRIPES);
+
+    protected final boolean useWindows = Configuration.is(Configuration.CONFIG_PROPERTY_PREFIX + "counter.windows", false);
+    protected final long windowSlotDuration = TimeUnit.SECONDS.toMillis(
+            Configuration.getInteger(Configuration.CONFIG_PROPERTY_PREFIX + "counter.windows.slot-seconds",
+                    (int) TimeUnit.MILLISECONDS.toSeconds(SlidingWindow.DEFAULT_SLOT_DURATION)));
+    protected final int windowSlots =
+            Configuration.getInteger(Configuration.CONFIG_PROPERTY_PREFIX + "counter.windows.slots", SlidingWindow.DEFAULT_SLOTS);
+
+    // per role max number of counters, others are folded in an overflow counter, 0 means unbounded
+    protected final int defaultCardinality =
+            Configuration.getInteger(Configuration.CONFIG_PROPERTY_PREFIX + "counter.cardinality.default", 0);
+    protected final ConcurrentMap<String, CardinalityGuard> cardinalityGuards = new ConcurrentHashMap<String, CardinalityGuard>();
+
     protected final ConcurrentMap<Counter.Key, Counter> counters = newCounterMap();
     protected final ConcurrentMap<Counter.Key, Collection<Gauge>> gauges = new ConcurrentHashMap<Counter.Key, Collection<Gauge>>();
     protected final ReadWriteLock stateLock = new ReentrantReadWriteLock(); // this lock ensures consistency between createcounter and clearcounters
+    protected volatile AtomicReferenceArray<Counter> countersBySlot = new AtomicReferenceArray<Counter>(64); // KeyRegistry slot -> counter
 
     protected ConcurrentMap<Counter.Key, Counter> newCounterMap() {
         return new ConcurrentHashMap<Counter.Key, Counter>(50);
     }
 
     protected Counter newCounter(final Counter.Key key) {
-        return useExponentialDecay ?
-                new ExponentialDecayCounter(key, this, exponentialDecayAlpha, exponentialDecaySamplingSize, exponentialDecayRefresh) :
-                new DefaultCounter(key, this);
+        if (useExponentialDecay) {
+            return new ExponentialDecayCounter(key, this, exponentialDecayAlpha, exponentialDecaySamplingSize, exponentialDecayRefresh);
+        }
+        if (useStriped) {
+            return new StripedCounter(key, this, stripes, newHistogram());
+        }
+        return new DefaultCounter(key, this, new OptimizedStatistics(newHistogram()));
+    }
+
+    protected SlidingWindow newWindow() { // a DefaultCounter already serializes its writers, no need to stripe its window
+        return new SlidingWindow(windowSlotDuration, windowSlots, useStriped ? stripes : 1, newHistogram());
+    }
+
+    protected Histogram newHistogram() {
+        return useHistogram ? new Histogram(histogramPrecision, histogramMaxBits) : null;
     }
 
     @Override
     public Counter getOrCreateCounter(final Counter.Key key) {
         Counter counter = counters.get(key);
         if (counter == null) {
+            final CardinalityGuard guard = findCardinalityGuard(key.getRole());
+            if (guard != null) { // fold decisions are cached, avoids the lock for each hit of a folded key
+                final Counter overflow = guard.foldedCounter(key);
+                if (overflow != null) {
+                    return overflow;
+                }
+            }
+
             final Lock lock = stateLock.readLock();
             lock.lock();
             try {
+                if (guard != null && !guard.acquire(key)) {
+                    final Counter.Key demoted = guard.fold(key, counters);
+                    if (demoted == null) {
+                        KeyRegistry.INSTANCE.remove(key); // folded keys don't keep an id, the registry would grow with them
+                        final Counter overflow = getOrCreateOverflowCounter(guard);
+                        guard.cacheFold(key, overflow);
+                        return overflow;
+                    }
+
+                    final Counter removed = counters.remove(demoted);
+                    if (removed != null) {
+                        onCounterRemoved(demoted, removed);
+                    }
+                }
+
                 counter = newCounter(key);
                 final Counter previous = counters.putIfAbsent(key, counter);
                 if (previous != null) {
+                    if (previous == counter) { // not kept by the map (see LimitedInMemoryCounterDataStore)
+                        KeyRegistry.INSTANCE.remove(key);
+                        if (guard != null) {
+                            guard.release(key);
+                        }
+                        return onCounterRejected(key, counter);
+                    }
                     counter = previous;
                 } else { // new
+                    if (useWindows) {
+                        LockableCounter.class.cast(counter).setWindow(newWindow());
+                    }
                     if (gauged) {
                         final Values values = new Values(counter);
 
@@ -118,6 +194,145 @@ public class InMemoryCounterDataStore implements CounterDataStore {
         return counter;
     }
 
+    // called when the counter map refused to store a new counter, by default it is used without being registered
+    protected Counter onCounterRejected(final Counter.Key key, final Counter counter) {
+        return counter;
+    }
+
+    private Counter getOrCreateOverflowCounter(final CardinalityGuard guard) {
+        final Gauge gauge = guard.newGaugeOnce();
+        if (gauge != null) {
+            Repository.INSTANCE.addGauge(gauge);
+        }
+        return getOrCreateCounter(guard.getOverflowKey());
+    }
+
+    protected CardinalityGuard findCardinalityGuard(final Role role) {
+        CardinalityGuard guard = cardinalityGuards.get(role.getName());
+        if (guard == null) {
+            final int capacity = Configuration.getInteger(
+                    Configuration.CONFIG_PROPERTY_PREFIX + "counter.cardinality." + role.getName(), defaultCardinality);
+            if (capacity <= 0) {
+                return null;
+            }
+
+            guard = new CardinalityGuard(role, capacity);
+            final CardinalityGuard existing = cardinalityGuards.putIfAbsent(role.getName(), guard);
+            if (existing != null) {
+                guard = existing;
+            }
+        }
+        return guard;
+    }
+
+    // @return the estimated number of distinct keys folded in the overflow counter of this role
+    public long getFoldedKeys(final Role role) {
+        final CardinalityGuard guard = findCardinalityGuard(role);
+        if (guard == null) {
+            return 0;
+        }
+        return guard.getFoldedKeys();
+    }
+
+    // to call when a counter was removed from the map outside clearCounters()
+    protected void onCounterRemoved(final Counter.Key key, final Counter counter) {
+        unindexCounter(key);
+        KeyRegistry.INSTANCE.remove(key); // removed keys are mainly unbounded ones (web), don't leak them
+
+        final CardinalityGuard guard = cardinalityGuards.get(key.getRole().getName());
+        if (guard != null) {
+            guard.release(key);
+        }
+        if (gauged) {
+            final Collection<Gauge> g = gauges.remove(key);
+            if (g != null) {
+                for (final Gauge gauge : g) {
+                    Repository.INSTANCE.stopGauge(gauge);
+                }
+            }
+        }
+        if (jmx) {
+            try {
+                final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                final ObjectName objectName = LockableCounter.class.cast(counter).getJmx();
+                if (objectName != null && server.isRegistered(objectName)) {
+                    server.unregisterMBean(objectName);
+                }
+            } catch (final Exception e) {
+                // no-op
+            }
+        }
+    }
+
+    @Override
+    public Counter getOrCreateCounter(final int keyId) {
+        final Counter.Key key = KeyRegistry.INSTANCE.get(keyId);
+        if (key == null) { // removed, the caller registers its key again
+            return null;
+        }
+
+        final int slot = KeyRegistry.slot(keyId);
+        final AtomicReferenceArray<Counter> bySlot = countersBySlot;
+        if (slot < bySlot.length()) {
+            final Counter counter = bySlot.get(slot);
+            if (counter != null && isCounterOf(counter, key)) { // the slot can have been reused by another key
+                return counter;
+            }
+        }
+
+        final Counter counter = getOrCreateCounter(key);
+        indexCounter(slot, key, counter);
+        return counter;
+    }
+
+    private void indexCounter(final int slot, final Counter.Key key, final Counter counter) {
+        final Lock lock = stateLock.readLock();
+        lock.lock();
+        try {
+            if (counters.get(key) != counter) { // cleared/evicted/folded, don't cache a counter owned by another key
+                return;
+            }
+
+            synchronized (this) {
+                AtomicReferenceArray<Counter> bySlot = countersBySlot;
+                if (slot >= bySlot.length()) {
+                    final AtomicReferenceArray<Counter> newBySlot = new AtomicReferenceArray<Counter>(Math.max(slot + 1, bySlot.length() * 2));
+                    for (int i = 0; i < bySlot.length(); i++) {
+                        newBySlot.set(i, bySlot.get(i));
+                    }
+                    countersBySlot = newBySlot;
+                    bySlot = newBySlot;
+                }
+                bySlot.set(slot, counter);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // to call when a counter is removed from the store, it is then recreated on next usage
+    protected void unindexCounter(final Counter.Key key) {
+        final int id = KeyRegistry.INSTANCE.find(key.getRole(), key.getName());
+        if (id < 0) {
+            return;
+        }
+        synchronized (this) {
+            final AtomicReferenceArray<Counter> bySlot = countersBySlot;
+            final int slot = KeyRegistry.slot(id);
+            if (slot < bySlot.length()) {
+                final Counter counter = bySlot.get(slot);
+                if (counter != null && isCounterOf(counter, key)) {
+                    bySlot.set(slot, null);
+                }
+            }
+        }
+    }
+
+    private static boolean isCounterOf(final Counter counter, final Counter.Key key) {
+        final Counter.Key counterKey = counter.getKey();
+        return counterKey == key || counterKey.equals(key);
+    }
+
     private static String escapeJmx(final String name) {
         return name.replace('=', '_').replace(',', '_');
     }
@@ -143,6 +358,12 @@ public class InMemoryCounterDataStore implements CounterDataStore {
                 }
             }
             counters.clear();
+            synchronized (this) {
+                countersBySlot = new AtomicReferenceArray<Counter>(64);
+            }
+            for (final CardinalityGuard guard : cardinalityGuards.values()) {
+                guard.clear();
+            }
 
             synchronized (gauges) {
                 for (final Collection<Gauge> list : gauges.values()) {
@@ -165,10 +386,29 @@ public class InMemoryCounterDataStore implements CounterDataStore {
 
     @Override
     public void addToCounter(final Counter counter, final double delta) {
+        addToCounter(counter, delta, 1);
+    }
+
+    @Override
+    public void addToCounter(final Counter counter, final double delta, final int samplingRate) {
         if (!LockableCounter.class.isInstance(counter)) {
             throw new IllegalArgumentException(getClass().getName() + " only supports " + LockableCounter.class.getName());
         }
-        LockableCounter.class.cast(counter).addInternal(delta);
+        final LockableCounter lockableCounter = LockableCounter.class.cast(counter);
+        lockableCounter.addInternal(delta, samplingRate);
+
+        final SlidingWindow window = lockableCounter.getWindow();
+        if (window != null) {
+            window.record(delta, System.currentTimeMillis(), samplingRate);
+        }
+    }
+
+    @Override
+    public OptimizedStatistics getWindowStatistics(final Counter counter, final long duration, final TimeUnit unit) {
+        if (!LockableCounter.class.isInstance(counter)) {
+            return null;
+        }
+        return LockableCounter.class.cast(counter).getWindowStatistics(duration, unit);
     }
 
     private static class SyncCounterGauge extends CounterGauge {
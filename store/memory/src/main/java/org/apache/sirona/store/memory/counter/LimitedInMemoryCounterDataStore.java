@@ -21,30 +21,53 @@ import org.apache.sirona.configuration.Configuration;
 import org.apache.sirona.counters.Counter;
 import org.apache.sirona.counters.LockableCounter;
 import org.apache.sirona.counters.OptimizedStatistics;
+import org.apache.sirona.counters.SlidingWindow;
 import org.apache.sirona.counters.Unit;
-import org.apache.sirona.gauges.Gauge;
-import org.apache.sirona.repositories.Repository;
 
-import javax.management.MBeanServer;
 import javax.management.ObjectName;
-import java.lang.management.ManagementFactory;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 
 // ensure we don't explode memory cause of web counters, this class will be integrated in sirona > 0.2
+//
+// evictable counters are kept in a clock (second chance) ring: a hit sets the referenced flag of the counter,
+// the hand clears flags until it finds an unreferenced victim so finding it is O(1) amortized.
+// A new key only replaces the victim if it was looked up more often (TinyLFU admission),
+// otherwise its hits go to the "[other]" counter of its role: one-off keys (random urls...) can't flush frequently hit counters.
+// Hits only feed the sketch one time out of HIT_SAMPLING (with that weight) to avoid a shared write per hit,
+// lookups of missing keys always do.
 public class LimitedInMemoryCounterDataStore extends InMemoryCounterDataStore
 {
-    private static final int MAX_SIZE = Configuration.getInteger(Configuration.CONFIG_PROPERTY_PREFIX + "counter.max-size", 1000);
-    private static final boolean ONLY_EVICT_WEB_COUNTERS = Boolean.parseBoolean(Configuration.getProperty(Configuration.CONFIG_PROPERTY_PREFIX + "counter.evict-web-only", "true"));
-    private static final double EVITION_RATIO = Double.parseDouble(Configuration.getProperty(Configuration.CONFIG_PROPERTY_PREFIX
-            + "counter.evition.ratio", "0.25"));
+    private static final int HIT_SAMPLING = 16; // power of 2
+
+    private final int maxSize;
+    private final boolean onlyEvictWebCounters;
+
+    private final Counter[] ring; // evictable counters, guarded by itself
+    private int ringSize = 0;
+    private int hand = 0;
+    private final FrequencySketch sketch;
+    private final AtomicLong rejections = new AtomicLong();
+
+    public LimitedInMemoryCounterDataStore() {
+        this(Configuration.getInteger(Configuration.CONFIG_PROPERTY_PREFIX + "counter.max-size", 1000),
+            Boolean.parseBoolean(Configuration.getProperty(Configuration.CONFIG_PROPERTY_PREFIX + "counter.evict-web-only", "true")));
+    }
+
+    public LimitedInMemoryCounterDataStore(final int maxSize, final boolean onlyEvictWebCounters) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("max size should be > 0: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.onlyEvictWebCounters = onlyEvictWebCounters;
+        this.ring = new Counter[maxSize];
+        this.sketch = new FrequencySketch(maxSize);
+    }
 
     @Override
     protected ConcurrentMap<Counter.Key, Counter> newCounterMap() {
@@ -53,127 +76,150 @@ public class LimitedInMemoryCounterDataStore extends InMemoryCounterDataStore
 
     @Override
     protected Counter newCounter(final Counter.Key key) {
-        if (ONLY_EVICT_WEB_COUNTERS) {
+        if (CardinalityGuard.OVERFLOW_NAME.equals(key.getName())) { // receives rejected keys so it is never evicted
+            return super.newCounter(key);
+        }
+        if (onlyEvictWebCounters) {
             if (Role.WEB.equals(key.getRole())) {
-                return new DefaultCounterTimestamped(LockableCounter.class.cast(super.newCounter(key)));
+                return new DefaultCounterTimestamped(LockableCounter.class.cast(super.newCounter(key)), sketch);
             }
             return super.newCounter(key);
         }
-        return new DefaultCounterTimestamped(LockableCounter.class.cast(super.newCounter(key)));
+        return new DefaultCounterTimestamped(LockableCounter.class.cast(super.newCounter(key)), sketch);
     }
 
-    protected class FixedSizedMap extends ConcurrentSkipListMap<Counter.Key, Counter> {
-        protected FixedSizedMap() {
-            super(new Comparator<Counter.Key>() {
-                @Override
-                public int compare(final Counter.Key o1, final Counter.Key o2) {
-                    final int role = o1.getRole().compareTo(o2.getRole());
-                    if (role == 0) {
-                        return o1.getName().compareTo(o2.getName());
-                    }
-                    return role;
+    @Override
+    protected Counter onCounterRejected(final Counter.Key key, final Counter counter) {
+        rejections.incrementAndGet();
+        return getOrCreateCounter(new Counter.Key(key.getRole(), CardinalityGuard.OVERFLOW_NAME));
+    }
+
+    @Override
+    public void clearCounters() {
+        final Lock lock = stateLock.writeLock();
+        lock.lock();
+        try {
+            super.clearCounters();
+            synchronized (ring) {
+                for (int i = 0; i < ring.length; i++) {
+                    ring[i] = null;
                 }
-            });
+                ringSize = 0;
+                hand = 0;
+            }
+            sketch.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    // number of lookups of keys which were not admitted and got counted in their role overflow counter
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    protected class FixedSizedMap extends ConcurrentHashMap<Counter.Key, Counter> {
+        protected FixedSizedMap() {
+            super(50);
         }
 
         @Override // shouldn't be called
         public Counter put(final Counter.Key key, final Counter value) {
-            if (size() >= MAX_SIZE) {
-                evict();
-            }
-            return super.put(key, value);
+            final Counter previous = remove(key);
+            putIfAbsent(key, value);
+            return previous;
         }
 
+        // when the new counter is not admitted it is returned as "previous" value:
+        // InMemoryCounterDataStore then doesn't register it (no gauge, no jmx, no id cache) and calls onCounterRejected()
         @Override
         public Counter putIfAbsent(final Counter.Key key, final Counter value) {
-            if (size() >= MAX_SIZE) {
-                evict();
+            if (!DefaultCounterTimestamped.class.isInstance(value)) {
+                return super.putIfAbsent(key, value);
             }
-            return super.putIfAbsent(key, value);
-        }
 
-        private synchronized void evict() {
-            if (size() < MAX_SIZE) {
-                return;
-            }
+            final Counter.Key evictedKey;
+            final Counter evicted;
+            synchronized (ring) {
+                final Counter existing = get(key);
+                if (existing != null) {
+                    return existing;
+                }
+                sketch.increment(key);
+                sketch.ageIfNeeded();
 
-            final int size = size();
-            int toEvict = (int) (size * EVITION_RATIO);
-            final List<Entry<Counter.Key, Counter>> entries = new ArrayList<Entry<Counter.Key, Counter>>(size);
-            for (final Entry<Counter.Key, Counter> entry : entrySet()) {
-                entries.add(entry);
-                if (entries.size() >= size) { // size can increase while eviting so ensure we don't force the arraylist to be resized
-                    break;
+                if (ringSize < ring.length) {
+                    ring[ringSize++] = value;
+                    super.put(key, value);
+                    return null;
                 }
-            }
 
-            Collections.sort(entries, new Comparator<Entry<Counter.Key, Counter>>() {
-                @Override
-                public int compare(final Entry<Counter.Key, Counter> o1, final Entry<Counter.Key, Counter> o2) {
-                    final boolean o1HasTimestamp = DefaultCounterTimestamped.class.isInstance(o1);
-                    final boolean o2hasTimestamp = DefaultCounterTimestamped.class.isInstance(o2);
-                    if (!o1HasTimestamp && !o2hasTimestamp) { // we don't care
-                        return o1.getKey().getName().compareTo(o2.getKey().getName());
-                    }
-                    if (o1HasTimestamp && !o2hasTimestamp) {
-                        return -1;
+                final int slot = nextVictim();
+                final Counter victim = ring[slot];
+                if (isLive(victim)) {
+                    if (sketch.frequency(key) <= sketch.frequency(victim.getKey())) {
+                        return value; // rejected
                     }
-                    if (!o1HasTimestamp) {
-                        return 1;
-                    }
-                    final long hitDiff = DefaultCounterTimestamped.class.cast(o1.getValue()).timestamp - DefaultCounterTimestamped.class.cast(o2.getValue()).timestamp;
-                    return (int) hitDiff;
+                    evictedKey = victim.getKey();
+                    evicted = victim;
+                    remove(evictedKey, victim);
+                } else { // cleared or replaced through put(), slot is free
+                    evictedKey = null;
+                    evicted = null;
                 }
-            });
 
-            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
-            for (final Entry<Counter.Key, Counter> entry : entries) {
-                final Counter.Key key = entry.getKey();
-                if (!DefaultCounterTimestamped.class.isInstance(entry.getValue())) {
-                    continue;
-                }
+                ring[slot] = value;
+                hand = (slot + 1) % ring.length;
+                super.put(key, value);
+            }
 
-                final boolean removed = remove(key) != null;
-                if (removed) {
-					if (gauged) {
-                        final Collection<Gauge> g = gauges.remove(key);
-						if (g != null) {
-							for (final Gauge gauge : g) {
-								Repository.INSTANCE.stopGauge(gauge);
-							}
-						}
-					}
-                    if (jmx) {
-                        try {
-                            final ObjectName objectName = LockableCounter.class.cast(entry.getValue()).getJmx();
-                            if (server.isRegistered(objectName)) {
-                                server.unregisterMBean(objectName);
-                            }
-                        } catch (final Exception e) {
-                            // no-op
-                        }
-                    }
+            if (evicted != null) {
+                onCounterRemoved(evictedKey, evicted);
+            }
+            return null;
+        }
 
-                    if (toEvict-- <= 0) {
-                        break;
-                    }
+        // each skipped counter loses its flag so a full turn is enough, cost is paid by the hits which set the flags
+        private int nextVictim() {
+            while (true) {
+                final Counter counter = ring[hand];
+                if (!isLive(counter)) {
+                    return hand;
+                }
+
+                final DefaultCounterTimestamped timestamped = DefaultCounterTimestamped.class.cast(counter);
+                if (!timestamped.referenced) {
+                    return hand;
                 }
+                timestamped.referenced = false;
+                hand = (hand + 1) % ring.length;
             }
         }
+
+        private boolean isLive(final Counter counter) {
+            return counter != null && get(counter.getKey()) == counter;
+        }
     }
 
     private static class DefaultCounterTimestamped extends LockableCounter {
         private final LockableCounter delegate;
-        private volatile long timestamp = System.currentTimeMillis();
+        private final FrequencySketch sketch;
+        private volatile boolean referenced = true; // clock flag, a new counter gets a second chance
+        private int hits = 0; // not thread safe on purpose, only used to sample the sketch increments
 
-        public DefaultCounterTimestamped(final LockableCounter delegate) {
+        public DefaultCounterTimestamped(final LockableCounter delegate, final FrequencySketch sketch) {
             super(null, null);
             this.delegate = delegate;
+            this.sketch = sketch;
         }
 
         @Override
-        public void addInternal(final double delta) {
-            this.delegate.add(delta);
+        public void addInternal(final double delta, final int samplingRate) {
+            this.delegate.add(delta, samplingRate);
         }
 
         @Override
@@ -191,6 +237,21 @@ public class LimitedInMemoryCounterDataStore extends InMemoryCounterDataStore
             return this.delegate.getJmx();
         }
 
+        @Override
+        public void setWindow(final SlidingWindow window) {
+            this.delegate.setWindow(window);
+        }
+
+        @Override
+        public SlidingWindow getWindow() {
+            return this.delegate.getWindow();
+        }
+
+        @Override
+        public OptimizedStatistics getWindowStatistics(final long duration, final TimeUnit unit) {
+            return this.delegate.getWindowStatistics(duration, unit);
+        }
+
         @Override
         public ReadWriteLock getLock() {
             return this.delegate.getLock();
@@ -201,15 +262,36 @@ public class LimitedInMemoryCounterDataStore extends InMemoryCounterDataStore
             this.delegate.reset();
         }
 
+        @Override
+        public OptimizedStatistics snapshotAndReset() {
+            return this.delegate.snapshotAndReset();
+        }
+
         @Override
         public void add(final double delta) {
             delegate.add(delta);
-            timestamp = System.currentTimeMillis();
+            touch();
         }
 
         @Override
         public void add(final double delta, final Unit unit) {
             this.delegate.add(delta, unit);
+            touch();
+        }
+
+        @Override
+        public void add(final double delta, final int samplingRate) {
+            this.delegate.add(delta, samplingRate);
+            touch();
+        }
+
+        private void touch() {
+            if (!referenced) {
+                referenced = true;
+            }
+            if ((++hits & (HIT_SAMPLING - 1)) == 0) {
+                sketch.increment(getKey(), HIT_SAMPLING);
+            }
         }
 
         @Override
@@ -267,6 +349,11 @@ public class LimitedInMemoryCounterDataStore extends InMemoryCounterDataStore
             return delegate.getSecondMoment();
         }
 
+        @Override
+        public double getPercentile(final double percentile) {
+            return delegate.getPercentile(percentile);
+        }
+
         @Override
         public Key getKey() {
             return delegate.getKey();
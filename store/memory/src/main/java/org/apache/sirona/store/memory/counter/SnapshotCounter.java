@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.store.memory.counter;
+
+import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.LockableCounter;
+import org.apache.sirona.counters.OptimizedStatistics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// read only view of one interval of a counter, see LockableCounter#snapshotAndReset()
+public class SnapshotCounter extends LockableCounter {
+    private final OptimizedStatistics statistics;
+    private final AtomicInteger concurrency;
+    private final int maxConcurrency;
+
+    public SnapshotCounter(final Key key, final OptimizedStatistics statistics, final int concurrency, final int maxConcurrency) {
+        super(key, null);
+        this.statistics = statistics;
+        this.concurrency = new AtomicInteger(concurrency);
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * @return a snapshot of each counter which got hits since the previous call, the counters are reset.
+     */
+    public static Collection<Counter> snapshotAndReset(final Collection<Counter> counters) {
+        final Collection<Counter> snapshots = new ArrayList<Counter>(counters.size());
+        for (final Counter counter : counters) {
+            if (!LockableCounter.class.isInstance(counter)) { // can't be reset atomically, push it as before
+                snapshots.add(counter);
+                continue;
+            }
+
+            final LockableCounter lockableCounter = LockableCounter.class.cast(counter);
+            final int maxConcurrency = lockableCounter.getMaxConcurrency(); // before the reset
+            final OptimizedStatistics statistics = lockableCounter.snapshotAndReset();
+            if (statistics.getN() > 0) {
+                snapshots.add(new SnapshotCounter(counter.getKey(), statistics, counter.currentConcurrency().get(), maxConcurrency));
+            }
+        }
+        return snapshots;
+    }
+
+    @Override
+    public void addInternal(final double delta, final int samplingRate) {
+        throw new UnsupportedOperationException("snapshots are read only");
+    }
+
+    @Override
+    public void add(final double delta) {
+        throw new UnsupportedOperationException("snapshots are read only");
+    }
+
+    @Override
+    public void add(final double delta, final int samplingRate) {
+        throw new UnsupportedOperationException("snapshots are read only");
+    }
+
+    @Override
+    public OptimizedStatistics getStatistics() {
+        return statistics;
+    }
+
+    @Override
+    public OptimizedStatistics snapshotAndReset() {
+        return statistics;
+    }
+
+    @Override
+    public void reset() {
+        // no-op
+    }
+
+    @Override
+    public AtomicInteger currentConcurrency() {
+        return concurrency;
+    }
+
+    @Override
+    public void updateConcurrency(final int concurrency) {
+        // no-op
+    }
+
+    @Override
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    @Override
+    public String toString() {
+        return "SnapshotCounter{" +
+            "key=" + getKey() +
+            ", maxConcurrency=" + maxConcurrency +
+            ", statistics=" + statistics +
+            '}';
+    }
+}
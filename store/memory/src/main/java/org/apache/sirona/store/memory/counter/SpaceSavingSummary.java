@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.store.memory.counter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Space-Saving top-K summary (Metwally et al.): k monitored keys with a count and an overestimation error.
+// An unknown key replaces the key with the lowest count and inherits it as error so count - error is a
+// guaranteed lower bound of its real frequency. Entries are kept in a min-heap: updates are O(log k).
+// Not thread safe, guarded by its CardinalityGuard.
+class SpaceSavingSummary {
+    private final Object[] keys;
+    private final long[] counts;
+    private final long[] errors;
+    private final Map<Object, Integer> positions;
+    private int size = 0;
+
+    SpaceSavingSummary(final int capacity) {
+        this.keys = new Object[capacity];
+        this.counts = new long[capacity];
+        this.errors = new long[capacity];
+        this.positions = new HashMap<Object, Integer>(capacity * 2);
+    }
+
+    // @return the guaranteed count of the key after this occurrence
+    public long offer(final Object key) {
+        return offer(key, 1);
+    }
+
+    // @param weight number of occurrences offered at once
+    public long offer(final Object key, final long weight) {
+        final Integer position = positions.get(key);
+        if (position != null) {
+            counts[position] += weight;
+            final int i = siftDown(position);
+            return counts[i] - errors[i];
+        }
+
+        if (size < keys.length) {
+            final int i = size++;
+            keys[i] = key;
+            counts[i] = weight;
+            errors[i] = 0;
+            positions.put(key, i);
+            siftUp(i);
+            return weight;
+        }
+
+        // replace the minimum (heap root)
+        positions.remove(keys[0]);
+        keys[0] = key;
+        errors[0] = counts[0];
+        counts[0] += weight;
+        positions.put(key, 0);
+        siftDown(0);
+        return weight;
+    }
+
+    public long guaranteed(final Object key) {
+        final Integer position = positions.get(key);
+        if (position == null) {
+            return 0;
+        }
+        return counts[position] - errors[position];
+    }
+
+    public void remove(final Object key) {
+        final Integer position = positions.remove(key);
+        if (position == null) {
+            return;
+        }
+
+        final int i = position;
+        final int last = --size;
+        if (i != last) {
+            move(last, i);
+            siftDown(siftUp(i));
+        }
+        keys[last] = null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            keys[i] = null;
+        }
+        positions.clear();
+        size = 0;
+    }
+
+    private int siftUp(final int index) {
+        int i = index;
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (counts[parent] <= counts[i]) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+        return i;
+    }
+
+    private int siftDown(final int index) {
+        int i = index;
+        while (true) {
+            final int left = 2 * i + 1;
+            if (left >= size) {
+                return i;
+            }
+            final int right = left + 1;
+            final int smallest = right < size && counts[right] < counts[left] ? right : left;
+            if (counts[i] <= counts[smallest]) {
+                return i;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void move(final int from, final int to) {
+        keys[to] = keys[from];
+        counts[to] = counts[from];
+        errors[to] = errors[from];
+        positions.put(keys[to], to);
+    }
+
+    private void swap(final int i, final int j) {
+        final Object key = keys[i];
+        final long count = counts[i];
+        final long error = errors[i];
+        keys[i] = keys[j];
+        counts[i] = counts[j];
+        errors[i] = errors[j];
+        keys[j] = key;
+        counts[j] = count;
+        errors[j] = error;
+        positions.put(keys[i], i);
+        positions.put(keys[j], j);
+    }
+}
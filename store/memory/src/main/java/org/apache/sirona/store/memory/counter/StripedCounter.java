@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.store.memory.counter;
+
+import org.apache.sirona.counters.Histogram;
+import org.apache.sirona.counters.LockableCounter;
+import org.apache.sirona.counters.OptimizedStatistics;
+import org.apache.sirona.store.counter.CounterDataStore;
+
+// counter spreading its statistics over several cells selected by thread
+// to avoid the global write lock of DefaultCounter on hot counters.
+// Cells are only merged (parallel Welford formula) when the counter is read.
+public class StripedCounter extends LockableCounter {
+    public static final int ACCEPTABLE_DEFAULT_STRIPES = defaultStripes();
+
+    private final Cell[] cells;
+    private final int mask;
+
+    public StripedCounter(final Key key, final CounterDataStore store) {
+        this(key, store, ACCEPTABLE_DEFAULT_STRIPES, null);
+    }
+
+    // histogram (nullable) is only used as a layout, each cell gets its own one
+    public StripedCounter(final Key key, final CounterDataStore store, final int stripes, final Histogram histogram) {
+        super(key, store);
+
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.cells = new Cell[size];
+        for (int i = 0; i < size; i++) {
+            cells[i] = new Cell(histogram != null ? histogram.newEmptyCopy() : null);
+        }
+    }
+
+    @Override
+    public void addInternal(final double delta, final int samplingRate) {
+        final Cell cell = cells[index()];
+        synchronized (cell) {
+            cell.addValue(delta, samplingRate);
+        }
+    }
+
+    @Override
+    public void reset() {
+        clearStatistics();
+        super.reset();
+    }
+
+    // cells are swapped one by one: a value is either in this snapshot or in the next one, never lost
+    @Override
+    protected OptimizedStatistics swapStatistics() {
+        final OptimizedStatistics statistics = new OptimizedStatistics();
+        for (final Cell cell : cells) {
+            final OptimizedStatistics copy;
+            synchronized (cell) {
+                copy = cell.copy();
+                cell.clear();
+            }
+            statistics.merge(copy);
+        }
+        return statistics;
+    }
+
+    @Override
+    protected void clearStatistics() {
+        for (final Cell cell : cells) {
+            synchronized (cell) {
+                cell.clear();
+            }
+        }
+    }
+
+    @Override
+    public long getHits() {
+        long hits = 0;
+        for (final Cell cell : cells) {
+            synchronized (cell) {
+                hits += cell.getN();
+            }
+        }
+        return hits;
+    }
+
+    @Override
+    public double getSum() {
+        double sum = 0;
+        for (final Cell cell : cells) {
+            synchronized (cell) {
+                sum += cell.getSum();
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public OptimizedStatistics getStatistics() {
+        final OptimizedStatistics statistics = new OptimizedStatistics();
+        for (final Cell cell : cells) {
+            final OptimizedStatistics copy;
+            synchronized (cell) {
+                copy = cell.copy();
+            }
+            statistics.merge(copy);
+        }
+        return statistics;
+    }
+
+    private int index() {
+        // thread ids are sequential so a light mix is enough to spread them
+        final long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 16)) & mask;
+    }
+
+    private static int defaultStripes() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    @Override
+    public String toString() {
+        return "StripedCounter{" +
+            "concurrency=" + currentConcurrency().get() +
+            ", key=" + getKey() +
+            ", maxConcurrency=" + getMaxConcurrency() +
+            ", statistics=" + getStatistics() +
+            '}';
+    }
+
+    // padded to limit false sharing between cells allocated next to each other
+    private static final class Cell extends OptimizedStatistics {
+        @SuppressWarnings("unused")
+        private long p0, p1, p2, p3, p4, p5, p6;
+
+        private Cell(final Histogram histogram) {
+            super(histogram);
+        }
+    }
+}
@@ -18,11 +18,12 @@ package org.apache.sirona.store.memory.tracking;
 
 import org.apache.sirona.pathtracking.PathCallInformation;
 import org.apache.sirona.pathtracking.PathTrackingEntry;
+import org.apache.sirona.pathtracking.PathTrackingEntryCodec;
 import org.apache.sirona.pathtracking.PathTrackingEntryComparator;
 import org.apache.sirona.store.tracking.AbstractPathTrackingDataStore;
 import org.apache.sirona.store.tracking.CollectorPathTrackingDataStore;
+import org.apache.sirona.store.tracking.EncodedPathTrackingDataStore;
 import org.apache.sirona.store.tracking.PathTrackingDataStore;
-import org.apache.sirona.util.SerializeUtils;
 import org.codehaus.mojo.animal_sniffer.IgnoreJRERequirement;
 
 import java.util.ArrayList;
@@ -45,13 +46,13 @@ import java.util.concurrent.CopyOnWriteArrayList;
  */
 public class InMemoryPathTrackingDataStore
     extends AbstractPathTrackingDataStore
-    implements PathTrackingDataStore, CollectorPathTrackingDataStore
+    implements PathTrackingDataStore, CollectorPathTrackingDataStore, EncodedPathTrackingDataStore
 {
 
 
     /**
      * store path track tracking entries list per path tracking id
-     * the value is the memory address
+     * the value is the memory address of the entries of a store() call encoded with {@link PathTrackingEntryCodec}
      */
     private ConcurrentMap<String, List<Pointer>> pathTrackingEntries =
         new ConcurrentHashMap<String, List<Pointer>>( 50 );
@@ -86,18 +87,44 @@ public class InMemoryPathTrackingDataStore
 
         for ( Map.Entry<String, Set<PathTrackingEntry>> entry : entries.entrySet() )
         {
-            List<Pointer> entriesList = this.pathTrackingEntries.get( entry.getKey() );
-
-            if ( entriesList == null )
+            final Pointer pointer = serialize( entry.getValue() );
+            if ( pointer != null )
             {
-                entriesList = new CopyOnWriteArrayList<Pointer>();
+                pointers( entry.getKey() ).add( pointer );
             }
-            entriesList.addAll( serialize( entry.getValue() ) );
-            this.pathTrackingEntries.put( entry.getKey(), entriesList );
         }
 
     }
 
+    /**
+     * The bytes are copied as they are, entries are only decoded when the path is read.
+     */
+    @Override
+    public void store( String trackingId, byte[] entries )
+    {
+        if ( entries == null || entries.length == 0 )
+        {
+            return;
+        }
+        pointers( trackingId ).add( allocate( entries ) );
+    }
+
+    private List<Pointer> pointers( String trackingId )
+    {
+        List<Pointer> entriesList = this.pathTrackingEntries.get( trackingId );
+        if ( entriesList == null )
+        {
+            // path tracking propagation stores the entries of a path from several threads
+            entriesList = new CopyOnWriteArrayList<Pointer>();
+            final List<Pointer> existing = this.pathTrackingEntries.putIfAbsent( trackingId, entriesList );
+            if ( existing != null )
+            {
+                entriesList = existing;
+            }
+        }
+        return entriesList;
+    }
+
     @Override
     public Collection<PathTrackingEntry> retrieve( String trackingId )
     {
@@ -118,7 +145,7 @@ public class InMemoryPathTrackingDataStore
             }
 
             PathTrackingEntry first =
-                SerializeUtils.deserialize( readBytes( buffers.iterator().next() ), PathTrackingEntry.class );
+                PathTrackingEntryCodec.decode( readBytes( buffers.iterator().next() ) ).iterator().next();
 
             if ( first.getStartTime() / 1000000 > startTime.getTime() //
                 && first.getStartTime() / 1000000 < endTime.getTime() )
@@ -136,13 +163,7 @@ public class InMemoryPathTrackingDataStore
 
         for ( Pointer pointer : buffers )
         {
-            byte[] bytes = readBytes( pointer );
-
-            PathTrackingEntry entry = SerializeUtils.deserialize( bytes, PathTrackingEntry.class );
-            if ( entry != null )
-            {
-                entries.add( entry );
-            }
+            entries.addAll( PathTrackingEntryCodec.decode( readBytes( pointer ) ) );
         }
 
         return entries;
@@ -195,30 +216,29 @@ public class InMemoryPathTrackingDataStore
         }
     }
 
-    @IgnoreJRERequirement
-    private List<Pointer> serialize( Collection<PathTrackingEntry> entries )
+    // entries of a trace share a pointer so the strings are written once
+    private Pointer serialize( Collection<PathTrackingEntry> entries )
     {
-        List<Pointer> buffers = new ArrayList<Pointer>( entries.size() );
-
-        for ( PathTrackingEntry entry : entries )
+        if ( entries.isEmpty() )
         {
-            byte[] bytes = SerializeUtils.serialize( entry );
-            if ( bytes != null )
-            {
-                long offheapPointer = UnsafeUtils.getUnsafe().allocateMemory( bytes.length );
-                Pointer pointer = new Pointer();
-                pointer.offheapPointer = offheapPointer;
-                pointer.size = bytes.length;
-                for ( int i = 0, size = bytes.length; i < size; i++ )
-                {
-                    UnsafeUtils.getUnsafe().putByte( offheapPointer + i, bytes[i] );
-                }
-                buffers.add( pointer );
-
-            }
+            return null;
         }
 
-        return buffers;
+        return allocate( PathTrackingEntryCodec.encode( entries ) );
+    }
+
+    @IgnoreJRERequirement
+    private Pointer allocate( byte[] bytes )
+    {
+        long offheapPointer = UnsafeUtils.getUnsafe().allocateMemory( bytes.length );
+        Pointer pointer = new Pointer();
+        pointer.offheapPointer = offheapPointer;
+        pointer.size = bytes.length;
+        for ( int i = 0, size = bytes.length; i < size; i++ )
+        {
+            UnsafeUtils.getUnsafe().putByte( offheapPointer + i, bytes[i] );
+        }
+        return pointer;
     }
 
     @Override
@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.store.memory.counter;
+
+import org.apache.sirona.Role;
+import org.apache.sirona.configuration.Configuration;
+import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.KeyRegistry;
+import org.apache.sirona.counters.Unit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CardinalityGuardTest {
+    private static final Role GUARDED = new Role("cardinality-test", Unit.Time.NANOSECOND);
+    private static final String PROPERTY = Configuration.CONFIG_PROPERTY_PREFIX + "counter.cardinality." + GUARDED.getName();
+
+    @Before
+    public void limit() {
+        Configuration.properties().setProperty(PROPERTY, "10");
+    }
+
+    @After
+    public void reset() {
+        Configuration.properties().remove(PROPERTY);
+    }
+
+    @Test
+    public void foldsIntoOverflowCounter() {
+        final InMemoryCounterDataStore store = new InMemoryCounterDataStore();
+        for (int i = 0; i < 10; i++) {
+            store.getOrCreateCounter(new Counter.Key(GUARDED, "key" + i)).add(1);
+        }
+
+        final Counter folded = store.getOrCreateCounter(new Counter.Key(GUARDED, "key10"));
+        assertEquals(CardinalityGuard.OVERFLOW_NAME, folded.getKey().getName());
+        assertSame(folded, store.getOrCreateCounter(new Counter.Key(GUARDED, "key11")));
+        assertEquals(11, store.getCounters().size());
+
+        // other roles are not bounded
+        for (int i = 0; i < 50; i++) {
+            assertEquals("m" + i, store.getOrCreateCounter(new Counter.Key(Role.PERFORMANCES, "m" + i)).getKey().getName());
+        }
+    }
+
+    @Test
+    public void foldedKeysAreNotCachedById() {
+        final InMemoryCounterDataStore store = new InMemoryCounterDataStore();
+        for (int i = 0; i < 10; i++) {
+            store.getOrCreateCounter(new Counter.Key(GUARDED, "key" + i)).add(1);
+        }
+
+        final Counter.Key key = new Counter.Key(GUARDED, "byid");
+        final int id = KeyRegistry.INSTANCE.register(key);
+        try {
+            assertEquals(CardinalityGuard.OVERFLOW_NAME, store.getOrCreateCounter(id).getKey().getName());
+            assertFalse(KeyRegistry.INSTANCE.isRegistered(id)); // folded keys don't keep their id
+            // not cached by id so the next lookup goes through the guard again which promotes the key
+            // since it was looked up more often than exact keys were hit
+            assertEquals("byid", store.getOrCreateCounter(KeyRegistry.INSTANCE.register(key)).getKey().getName());
+        } finally {
+            KeyRegistry.INSTANCE.remove(key);
+        }
+    }
+
+    @Test
+    public void heavyHitterIsPromoted() {
+        final InMemoryCounterDataStore store = new InMemoryCounterDataStore();
+        for (int i = 0; i < 10; i++) {
+            final Counter counter = store.getOrCreateCounter(new Counter.Key(GUARDED, "key" + i));
+            for (int h = 0; h < 5; h++) {
+                counter.add(1);
+            }
+        }
+
+        final Counter.Key heavy = new Counter.Key(GUARDED, "heavy");
+        Counter counter = null;
+        for (int i = 0; i < 10; i++) {
+            counter = store.getOrCreateCounter(heavy);
+            counter.add(1);
+            store.getOrCreateCounter(new Counter.Key(GUARDED, "once" + i)).add(1);
+        }
+        assertEquals(heavy, counter.getKey());
+        assertEquals(10, store.cardinalityGuards.get(GUARDED.getName()).getExactKeys());
+
+        // one-off keys stay folded
+        assertEquals(CardinalityGuard.OVERFLOW_NAME, store.getOrCreateCounter(new Counter.Key(GUARDED, "once-more")).getKey().getName());
+    }
+
+    @Test
+    public void foldDecisionsAreCached() {
+        final InMemoryCounterDataStore store = new InMemoryCounterDataStore();
+        for (int i = 0; i < 10; i++) {
+            final Counter counter = store.getOrCreateCounter(new Counter.Key(GUARDED, "key" + i));
+            for (int h = 0; h < 20; h++) {
+                counter.add(1);
+            }
+        }
+
+        final Counter.Key key = new Counter.Key(GUARDED, "cached");
+        final Counter overflow = store.getOrCreateCounter(key);
+        assertEquals(CardinalityGuard.OVERFLOW_NAME, overflow.getKey().getName());
+        assertSame(overflow, store.cardinalityGuards.get(GUARDED.getName()).foldedCounter(key)); // no lock
+
+        // cached lookups are offered later, the key is still promoted once it outweighs the lightest exact counter
+        int lookups = 2;
+        Counter counter;
+        do {
+            counter = store.getOrCreateCounter(key);
+            lookups++;
+        } while (CardinalityGuard.OVERFLOW_NAME.equals(counter.getKey().getName()));
+        assertEquals(21, lookups);
+        assertNull(store.cardinalityGuards.get(GUARDED.getName()).foldedCounter(key));
+    }
+
+    @Test
+    public void distinctFoldedKeys() {
+        final InMemoryCounterDataStore store = new InMemoryCounterDataStore();
+        for (int i = 0; i < 10010; i++) {
+            store.getOrCreateCounter(new Counter.Key(GUARDED, "/page/" + i)).add(1);
+        }
+        final long folded = store.getFoldedKeys(GUARDED);
+        assertTrue(String.valueOf(folded), Math.abs(folded - 10000) < 10000 * 0.1);
+        assertEquals(0, store.getFoldedKeys(Role.PERFORMANCES));
+
+        store.clearCounters();
+        assertEquals(0, store.getFoldedKeys(GUARDED));
+        assertEquals("/page/0", store.getOrCreateCounter(new Counter.Key(GUARDED, "/page/0")).getKey().getName());
+    }
+
+    @Test
+    public void spaceSavingSummary() {
+        final SpaceSavingSummary summary = new SpaceSavingSummary(3);
+        for (int i = 0; i < 5; i++) {
+            summary.offer("a");
+        }
+        summary.offer("b");
+        summary.offer("c");
+        assertEquals(1, summary.offer("d")); // replaces b or c
+        assertEquals(6, summary.offer("a"));
+        assertEquals(10, summary.offer("a", 4));
+        assertEquals(3, summary.size());
+
+        summary.remove("a");
+        assertEquals(0, summary.guaranteed("a"));
+        assertEquals(2, summary.size());
+    }
+
+    @Test
+    public void guardReleasesKeys() {
+        final CardinalityGuard guard = new CardinalityGuard(GUARDED, 1);
+        final Counter.Key first = new Counter.Key(GUARDED, "first");
+        final Counter.Key second = new Counter.Key(GUARDED, "second");
+        assertTrue(guard.acquire(first));
+        assertTrue(!guard.acquire(second));
+        assertTrue(guard.acquire(guard.getOverflowKey()));
+
+        guard.release(first);
+        assertTrue(guard.acquire(second));
+        assertEquals(second, guard.fold(first, new ConcurrentHashMap<Counter.Key, Counter>())); // second has no hit
+        assertNull(guard.fold(second, new ConcurrentHashMap<Counter.Key, Counter>()));
+    }
+
+    @Test
+    public void limitedStoreReleasesRejectedKeys() {
+        final LimitedInMemoryCounterDataStore store = new LimitedInMemoryCounterDataStore(2, false);
+        store.getOrCreateCounter(new Counter.Key(GUARDED, "a")).add(1);
+        store.getOrCreateCounter(new Counter.Key(GUARDED, "b")).add(1);
+        final Counter rejected = store.getOrCreateCounter(new Counter.Key(GUARDED, "c"));
+        assertEquals(CardinalityGuard.OVERFLOW_NAME, rejected.getKey().getName()); // not admitted by the limited store
+        assertEquals(1, store.getRejections());
+        assertEquals(2, store.cardinalityGuards.get(GUARDED.getName()).getExactKeys());
+    }
+}
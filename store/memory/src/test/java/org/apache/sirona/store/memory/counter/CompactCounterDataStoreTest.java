@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.store.memory.counter;
+
+import org.apache.sirona.Role;
+import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.Histogram;
+import org.apache.sirona.counters.OptimizedStatistics;
+import org.apache.sirona.counters.Unit;
+import org.apache.sirona.store.counter.CounterDataStore;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompactCounterDataStoreTest {
+    @Test
+    public void statistics() {
+        final CompactCounterDataStore store = new CompactCounterDataStore();
+        final Counter counter = store.getOrCreateCounter(new Counter.Key(new Role("doctor", Unit.KILO), "weight"));
+        final OptimizedStatistics accurate = new OptimizedStatistics();
+        for (final double v : new double[] { 80, 75, 90, 62, 101 }) {
+            counter.add(v, Unit.KILO);
+            accurate.addValue(v);
+        }
+
+        final Counter view = store.getOrCreateCounter(counter.getKey());
+        assertEquals(counter, view);
+        assertEquals(accurate.getN(), view.getHits());
+        assertEquals(accurate.getSum(), view.getSum(), 0.);
+        assertEquals(accurate.getMin(), view.getMin(), 0.);
+        assertEquals(accurate.getMax(), view.getMax(), 0.);
+        assertEquals(accurate.getMean(), view.getMean(), 0.);
+        assertEquals(accurate.getVariance(), view.getVariance(), 0.);
+        assertTrue(Double.isNaN(view.getPercentile(50)));
+
+        view.currentConcurrency().incrementAndGet();
+        view.updateConcurrency(store.getOrCreateCounter(counter.getKey()).currentConcurrency().get());
+        assertEquals(1, counter.getMaxConcurrency());
+
+        counter.reset();
+        assertEquals(0, view.getHits());
+        assertTrue(Double.isNaN(view.getMax()));
+    }
+
+    @Test
+    public void manyCounters() {
+        final CompactCounterDataStore store = new CompactCounterDataStore();
+        for (int i = 0; i < 10000; i++) { // several pages
+            store.getOrCreateCounter(new Counter.Key(Role.JDBC, "select " + i)).add(i);
+        }
+        assertEquals(10000, store.size());
+
+        final Set<String> names = new HashSet<String>();
+        for (final Counter counter : store.getCounters()) {
+            assertEquals(1, counter.getHits());
+            assertEquals(Double.parseDouble(counter.getKey().getName().substring("select ".length())), counter.getSum(), 0.);
+            names.add(counter.getKey().getName());
+        }
+        assertEquals(10000, names.size());
+
+        store.clearCounters();
+        assertEquals(0, store.getCounters().size());
+        assertEquals(0, store.getOrCreateCounter(new Counter.Key(Role.JDBC, "select 1")).getHits());
+    }
+
+    @Test
+    public void concurrentAdds() throws InterruptedException {
+        final CompactCounterDataStore store = new CompactCounterDataStore();
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        store.getOrCreateCounter(new Counter.Key(Role.PERFORMANCES, "c" + (i % 100))).add(1);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(100, store.size());
+        for (final Counter counter : store.getCounters()) {
+            assertEquals(800, counter.getHits());
+        }
+    }
+
+    @Test
+    public void footprint() {
+        final int counters = 10000;
+        final long compact = footprint(new CompactCounterDataStore(), counters);
+        final long defaultStore = footprint(new InMemoryCounterDataStore() {
+            @Override
+            protected Histogram newHistogram() { // the fair comparison, compact store doesn't track percentiles
+                return null;
+            }
+        }, counters);
+
+        assertTrue("compact=" + compact + ", default=" + defaultStore, compact * 2 < defaultStore);
+    }
+
+    // key objects are created before the first measure, only the store cost is measured
+    static long footprint(final CounterDataStore store, final int counters) {
+        final Counter.Key[] keys = new Counter.Key[counters];
+        for (int i = 0; i < counters; i++) {
+            keys[i] = new Counter.Key(Role.JDBC, "select * from t" + i);
+        }
+
+        final long before = usedHeap();
+        for (final Counter.Key key : keys) {
+            store.getOrCreateCounter(key).add(1);
+        }
+        final long used = usedHeap() - before;
+
+        assertEquals(counters, store.getCounters().size()); // keeps the store alive until the measure
+        return used;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
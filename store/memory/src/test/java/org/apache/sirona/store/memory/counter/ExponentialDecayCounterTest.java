@@ -21,33 +21,25 @@ import org.apache.sirona.counters.Counter;
 import org.apache.sirona.counters.LockableCounter;
 import org.apache.sirona.counters.OptimizedStatistics;
 import org.apache.sirona.counters.Unit;
-import org.apache.sirona.store.counter.CounterDataStore;
+import org.apache.sirona.store.counter.SampledCounterDataStore;
 import org.junit.Test;
 
 import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ExponentialDecayCounterTest {
     @Test
     public void run() {
-        final ExponentialDecayCounter counter = new ExponentialDecayCounter(new Counter.Key(new Role("doctor", Unit.KILO), "weight"), new CounterDataStore() {
-            public Counter getOrCreateCounter(final Counter.Key key) {
-                throw new UnsupportedOperationException();
-            }
-
-            public void clearCounters() {
-                throw new UnsupportedOperationException();
-            }
-
-            public Collection<Counter> getCounters() {
-                throw new UnsupportedOperationException();
-            }
-
-            public void addToCounter(final Counter defaultCounter, final double delta) {
-                LockableCounter.class.cast(defaultCounter).addInternal(delta);
-            }
-        }, ExponentialDecayCounter.ACCEPTABLE_DEFAULT_ALPHA, 3, 60);
+        final ExponentialDecayCounter counter = new ExponentialDecayCounter(new Counter.Key(new Role("doctor", Unit.KILO), "weight"), new DirectStore(), ExponentialDecayCounter.ACCEPTABLE_DEFAULT_ALPHA, 3, 60);
 
         counter.add(80.0, Unit.KILO);
         counter.add(75.0, Unit.KILO);
@@ -77,6 +69,207 @@ public class ExponentialDecayCounterTest {
             assertEquals(accurate.getMean(), statistics.getMean(), 10);
             assertEquals(accurate.getStandardDeviation(), statistics.getStandardDeviation(), 3);
             // assertEquals(accurate.getVariance(), statistics.getVariance(), 15); // not perfect yet
+
+            assertEquals(80., counter.getPercentile(50), 0.);
+            assertEquals(90., counter.getPercentile(100), 0.);
+        }
+    }
+
+    @Test
+    public void boundedReservoir() {
+        final ExponentialDecayCounter counter = new ExponentialDecayCounter(new Counter.Key(Role.PERFORMANCES, "bounded"), new DirectStore(), ExponentialDecayCounter.ACCEPTABLE_DEFAULT_ALPHA, 100, 0);
+        for (int i = 1; i <= 100000; i++) {
+            counter.add(i % 1000);
+        }
+
+        final OptimizedStatistics statistics = counter.getStatistics();
+        assertEquals(100, statistics.getN());
+        // uniform input in the same second, the sample should be uniform too
+        assertEquals(500., statistics.getPercentile(50), 150.);
+        assertEquals(500., statistics.getMean(), 150.);
+
+        counter.reset();
+        assertEquals(0, counter.getHits());
+        assertTrue(Double.isNaN(counter.getPercentile(50)));
+    }
+
+    @Test
+    public void recentValuesWin() {
+        final AtomicLong clock = new AtomicLong(1000);
+        final ExponentialDecayCounter counter = new ExponentialDecayCounter(new Counter.Key(Role.PERFORMANCES, "decay"), new DirectStore(), 0.1, 50, 0) {
+            @Override
+            protected long seconds() {
+                return clock.get();
+            }
+        };
+        for (int i = 0; i < 1000; i++) {
+            counter.add(1);
+        }
+        clock.addAndGet(200); // old values now weight e^-20
+        for (int i = 0; i < 1000; i++) {
+            counter.add(100);
+        }
+
+        assertEquals(50, counter.getHits());
+        assertEquals(100., counter.getMin(), 0.);
+        assertEquals(100., counter.getMean(), 1e-9);
+    }
+
+    @Test
+    public void rescaleKeepsSample() {
+        final AtomicLong clock = new AtomicLong(1000);
+        final ExponentialDecayCounter counter = new ExponentialDecayCounter(new Counter.Key(Role.PERFORMANCES, "rescale"), new DirectStore(), ExponentialDecayCounter.ACCEPTABLE_DEFAULT_ALPHA, 10, 0) {
+            @Override
+            protected long seconds() {
+                return clock.get();
+            }
+        };
+        for (int i = 0; i < 10; i++) {
+            counter.add(5);
+        }
+        clock.addAndGet(TimeUnit.HOURS.toSeconds(1) + 1);
+        counter.add(7); // triggers the rescale, priorities stay comparable so the new value enters the reservoir
+
+        final OptimizedStatistics statistics = counter.getStatistics();
+        assertEquals(10, statistics.getN());
+        assertEquals(7., statistics.getMax(), 0.);
+        assertEquals(5., statistics.getMin(), 0.);
+    }
+
+    @Test
+    public void rescaleWhileAdding() {
+        final AtomicLong clock = new AtomicLong(1000);
+        final AtomicBoolean race = new AtomicBoolean(false);
+        final AtomicReference<Counter> self = new AtomicReference<Counter>();
+        final ReentrantReadWriteLock racingLock = new ReentrantReadWriteLock() { // rescales between the priority computation and the insertion
+            private final WriteLock writeLock = new WriteLock(this) {
+                @Override
+                public void lock() {
+                    if (race.compareAndSet(true, false)) {
+                        clock.set(4800);
+                        self.get().add(100);
+                    }
+                    super.lock();
+                }
+            };
+
+            @Override
+            public WriteLock writeLock() {
+                return writeLock;
+            }
+        };
+        final ExponentialDecayCounter counter = new ExponentialDecayCounter(new Counter.Key(Role.PERFORMANCES, "race"), new DirectStore(), 0.1, 10, 0) {
+            @Override
+            protected long seconds() {
+                return clock.get();
+            }
+
+            @Override
+            public ReadWriteLock getLock() {
+                return racingLock;
+            }
+        };
+        self.set(counter);
+
+        clock.set(4599); // just before the rescale
+        race.set(true);
+        counter.add(1); // its weight is e^-20 relative to the values added after the rescale
+        for (int i = 0; i < 1000; i++) {
+            counter.add(100);
+        }
+
+        assertEquals(10, counter.getHits());
+        assertEquals(100., counter.getMin(), 0.);
+    }
+
+    @Test
+    public void sampledValues() {
+        final ExponentialDecayCounter counter = new ExponentialDecayCounter(new Counter.Key(Role.PERFORMANCES, "sampled"), new DirectStore(), ExponentialDecayCounter.ACCEPTABLE_DEFAULT_ALPHA, 100, 0);
+        counter.add(10);
+        counter.add(100, 9); // stands for 9 invocations
+
+        final OptimizedStatistics statistics = counter.getStatistics();
+        assertEquals(10, statistics.getN());
+        assertEquals(910., statistics.getSum(), 0.);
+        assertEquals(91., statistics.getMean(), 1e-9);
+        assertEquals(100., statistics.getPercentile(50), 0.);
+        assertEquals(10., statistics.getMin(), 0.);
+    }
+
+    @Test
+    public void statisticsAreImmutable() {
+        final ExponentialDecayCounter counter = new ExponentialDecayCounter(new Counter.Key(Role.PERFORMANCES, "immutable"), new DirectStore(), ExponentialDecayCounter.ACCEPTABLE_DEFAULT_ALPHA, 10, 60);
+        counter.add(5);
+
+        final OptimizedStatistics statistics = counter.getStatistics().copy();
+        try {
+            statistics.addValue(1, 2);
+            fail();
+        } catch (final UnsupportedOperationException uoe) {
+            // ok
+        }
+        try {
+            statistics.merge(new OptimizedStatistics().addValue(1));
+            fail();
+        } catch (final UnsupportedOperationException uoe) {
+            // ok
+        }
+        try {
+            statistics.clear();
+            fail();
+        } catch (final UnsupportedOperationException uoe) {
+            // ok
+        }
+        assertEquals(1, counter.getHits());
+        assertEquals(5., counter.getSum(), 0.);
+
+        final OptimizedStatistics merged = new OptimizedStatistics().addValue(1).merge(statistics); // as a source it is fine
+        assertEquals(2, merged.getN());
+    }
+
+    @Test
+    public void concurrentAdds() throws InterruptedException {
+        final ExponentialDecayCounter counter = new ExponentialDecayCounter(new Counter.Key(Role.PERFORMANCES, "concurrent"), new DirectStore(), ExponentialDecayCounter.ACCEPTABLE_DEFAULT_ALPHA, 64, 0);
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        counter.add(i % 10);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        final OptimizedStatistics statistics = counter.getStatistics();
+        assertEquals(64, statistics.getN());
+        assertTrue(statistics.getMin() >= 0 && statistics.getMax() <= 9);
+    }
+
+    private static class DirectStore implements SampledCounterDataStore {
+        public Counter getOrCreateCounter(final Counter.Key key) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void clearCounters() {
+            throw new UnsupportedOperationException();
+        }
+
+        public Collection<Counter> getCounters() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void addToCounter(final Counter defaultCounter, final double delta) {
+            LockableCounter.class.cast(defaultCounter).addInternal(delta);
+        }
+
+        public void addToCounter(final Counter counter, final double delta, final int samplingRate) {
+            LockableCounter.class.cast(counter).addInternal(delta, samplingRate);
         }
     }
 }
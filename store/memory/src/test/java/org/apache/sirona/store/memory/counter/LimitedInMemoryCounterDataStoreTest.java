@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.store.memory.counter;
+
+import org.apache.sirona.Role;
+import org.apache.sirona.counters.Counter;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LimitedInMemoryCounterDataStoreTest {
+    @Test
+    public void sizeIsBounded() {
+        final LimitedInMemoryCounterDataStore store = new LimitedInMemoryCounterDataStore(10, true);
+        for (int i = 0; i < 1000; i++) {
+            store.getOrCreateCounter(new Counter.Key(Role.WEB, "/page/" + i)).add(1);
+            assertTrue(evictableCounters(store) <= 10);
+        }
+        assertEquals(10, evictableCounters(store));
+        assertEquals(11, store.getCounters().size()); // + the overflow counter
+    }
+
+    @Test
+    public void frequentlyHitCountersSurviveOneOffKeys() {
+        final LimitedInMemoryCounterDataStore store = new LimitedInMemoryCounterDataStore(10, true);
+
+        final Set<Counter> hot = new HashSet<Counter>();
+        for (int i = 0; i < 5; i++) {
+            final Counter counter = store.getOrCreateCounter(new Counter.Key(Role.WEB, "/hot/" + i));
+            for (int h = 0; h < 20; h++) {
+                counter.add(1);
+            }
+            hot.add(counter);
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            store.getOrCreateCounter(new Counter.Key(Role.WEB, "/random/" + i)).add(1);
+            if (i % 10 == 0) { // hot counters keep being used
+                for (final Counter counter : hot) {
+                    counter.add(1);
+                }
+            }
+        }
+
+        for (final Counter counter : hot) {
+            assertSame(counter, store.getOrCreateCounter(counter.getKey()));
+            assertEquals(120, counter.getHits());
+        }
+        assertEquals(10, evictableCounters(store));
+    }
+
+    @Test
+    public void repeatedKeyReplacesOneOffKey() {
+        final LimitedInMemoryCounterDataStore store = new LimitedInMemoryCounterDataStore(4, true);
+        for (int i = 0; i < 4; i++) {
+            store.getOrCreateCounter(new Counter.Key(Role.WEB, "/once/" + i)).add(1);
+        }
+
+        final Counter.Key key = new Counter.Key(Role.WEB, "/again");
+        final Counter rejected = store.getOrCreateCounter(key);
+        rejected.add(1);
+        // first time seen: not admitted, its hits go to the overflow counter
+        assertEquals(new Counter.Key(Role.WEB, CardinalityGuard.OVERFLOW_NAME), rejected.getKey());
+        assertSame(rejected, store.getOrCreateCounter(new Counter.Key(Role.WEB, CardinalityGuard.OVERFLOW_NAME)));
+        assertEquals(1, rejected.getHits());
+        assertEquals(1, store.getRejections());
+
+        final Counter admitted = store.getOrCreateCounter(key);
+        assertNotSame(rejected, admitted);
+        assertSame(admitted, store.getOrCreateCounter(key));
+        assertEquals(4, evictableCounters(store));
+        assertEquals(1, store.getRejections());
+    }
+
+    @Test
+    public void onlyWebCountersAreEvicted() {
+        final LimitedInMemoryCounterDataStore store = new LimitedInMemoryCounterDataStore(5, true);
+        for (int i = 0; i < 20; i++) {
+            store.getOrCreateCounter(new Counter.Key(Role.PERFORMANCES, "method" + i)).add(1);
+        }
+        for (int i = 0; i < 100; i++) {
+            store.getOrCreateCounter(new Counter.Key(Role.WEB, "/page/" + i)).add(1);
+        }
+
+        int performances = 0;
+        for (final Counter counter : store.getCounters()) {
+            if (Role.PERFORMANCES.equals(counter.getKey().getRole())) {
+                performances++;
+            }
+        }
+        assertEquals(20, performances);
+        assertEquals(26, store.getCounters().size()); // + the web overflow counter
+    }
+
+    @Test
+    public void clearResetsTheRing() {
+        final LimitedInMemoryCounterDataStore store = new LimitedInMemoryCounterDataStore(3, false);
+        for (int i = 0; i < 10; i++) {
+            store.getOrCreateCounter(new Counter.Key(Role.PERFORMANCES, "m" + i));
+        }
+        store.clearCounters();
+        assertEquals(0, store.getCounters().size());
+
+        for (int i = 0; i < 3; i++) {
+            final Counter.Key key = new Counter.Key(Role.PERFORMANCES, "n" + i);
+            assertSame(store.getOrCreateCounter(key), store.getOrCreateCounter(key));
+        }
+        assertEquals(3, store.getCounters().size());
+    }
+
+    @Test
+    public void throughputAtCap() throws InterruptedException {
+        final int threads = 8;
+        final int keys = 20000;
+
+        final LimitedInMemoryCounterDataStore store = new LimitedInMemoryCounterDataStore(256, true);
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(threads);
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < keys; i++) {
+                            store.getOrCreateCounter(new Counter.Key(Role.WEB, "/t" + thread + "/" + i)).add(1);
+                            if (evictableCounters(store) > 256) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    } catch (final RuntimeException e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        assertTrue(latch.await(1, TimeUnit.MINUTES));
+        pool.shutdown();
+
+        // the old sort based eviction was O(n log n) per eviction, here each insertion is O(1) amortized
+        assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 30);
+        assertEquals(0, errors.get());
+        assertEquals(256, evictableCounters(store));
+    }
+
+    // size() and not an iteration which can see a counter and its victim while they are swapped
+    private static int evictableCounters(final LimitedInMemoryCounterDataStore store) {
+        final boolean overflow = store.counters.containsKey(new Counter.Key(Role.WEB, CardinalityGuard.OVERFLOW_NAME));
+        return store.getCounters().size() - (overflow ? 1 : 0);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.store.memory.counter;
+
+import org.apache.sirona.Role;
+import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.DefaultCounter;
+import org.apache.sirona.counters.Histogram;
+import org.apache.sirona.counters.LockableCounter;
+import org.apache.sirona.counters.OptimizedStatistics;
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotCounterTest {
+    @Test
+    public void snapshot() {
+        final InMemoryCounterDataStore store = new InMemoryCounterDataStore();
+        final Counter counter = store.getOrCreateCounter(new Counter.Key(Role.PERFORMANCES, "snapshot"));
+        counter.add(2);
+        counter.add(4);
+        counter.updateConcurrency(3);
+
+        final Collection<Counter> snapshots = SnapshotCounter.snapshotAndReset(store.getCounters());
+        assertEquals(1, snapshots.size());
+
+        final Counter snapshot = snapshots.iterator().next();
+        assertEquals(counter.getKey(), snapshot.getKey());
+        assertEquals(2, snapshot.getHits());
+        assertEquals(6., snapshot.getSum(), 0.);
+        assertEquals(4., snapshot.getMax(), 0.);
+        assertEquals(3, snapshot.getMaxConcurrency());
+
+        // counter is kept but starts a new interval
+        assertSame(counter, store.getOrCreateCounter(counter.getKey()));
+        assertEquals(0, counter.getHits());
+        assertEquals(0, counter.getMaxConcurrency());
+
+        // idle counters are not pushed
+        assertTrue(SnapshotCounter.snapshotAndReset(store.getCounters()).isEmpty());
+    }
+
+    @Test
+    public void noLostHitsDefaultCounter() throws InterruptedException {
+        final DefaultCounter counter = new DefaultCounter(new Counter.Key(Role.PERFORMANCES, "default"), new InMemoryCounterDataStore(), new OptimizedStatistics(new Histogram()));
+        checkNoLostHits(counter);
+    }
+
+    @Test
+    public void noLostHitsStripedCounter() throws InterruptedException {
+        final StripedCounter counter = new StripedCounter(new Counter.Key(Role.PERFORMANCES, "striped"), new InMemoryCounterDataStore(), 4, new Histogram());
+        checkNoLostHits(counter);
+    }
+
+    private static void checkNoLostHits(final LockableCounter counter) throws InterruptedException {
+        final int threads = 4;
+        final int loops = 50000;
+        final AtomicBoolean done = new AtomicBoolean(false);
+
+        final Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            writers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < loops; i++) {
+                        counter.add(1);
+                    }
+                }
+            };
+            writers[t].start();
+        }
+
+        long hits = 0;
+        double sum = 0;
+        long histogramCount = 0;
+        while (!done.get()) {
+            done.set(true);
+            for (final Thread writer : writers) {
+                if (writer.isAlive()) {
+                    done.set(false);
+                }
+            }
+
+            for (final Counter snapshot : SnapshotCounter.snapshotAndReset(Collections.<Counter>singletonList(counter))) {
+                final OptimizedStatistics statistics = LockableCounter.class.cast(snapshot).getStatistics();
+                assertEquals(statistics.getN(), statistics.getSum(), 0.); // consistent: all values are 1
+                assertEquals(statistics.getN(), statistics.getHistogram().getTotalCount());
+                hits += statistics.getN();
+                sum += statistics.getSum();
+                histogramCount += statistics.getHistogram().getTotalCount();
+            }
+        }
+        for (final Thread writer : writers) {
+            writer.join();
+        }
+
+        assertEquals(threads * loops, hits);
+        assertEquals(threads * loops, sum, 0.);
+        assertEquals(threads * loops, histogramCount);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sirona.store.memory.counter;
+
+import org.apache.sirona.Role;
+import org.apache.sirona.counters.Counter;
+import org.apache.sirona.counters.Histogram;
+import org.apache.sirona.counters.LockableCounter;
+import org.apache.sirona.counters.OptimizedStatistics;
+import org.apache.sirona.counters.Unit;
+import org.apache.sirona.store.counter.CounterDataStore;
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StripedCounterTest {
+    @Test
+    public void sameStatisticsAsSequential() {
+        final StripedCounter counter = new StripedCounter(new Counter.Key(new Role("doctor", Unit.KILO), "weight"), new DirectStore(), 4, new Histogram());
+        final OptimizedStatistics accurate = new OptimizedStatistics();
+        for (final double v : new double[] { 80, 75, 90, 62, 101 }) {
+            counter.add(v, Unit.KILO);
+            accurate.addValue(v);
+        }
+
+        final OptimizedStatistics statistics = counter.getStatistics();
+        assertEquals(accurate.getN(), statistics.getN());
+        assertEquals(accurate.getN(), counter.getHits());
+        assertEquals(accurate.getSum(), counter.getSum(), 0.);
+        assertEquals(accurate.getMin(), counter.getMin(), 0.);
+        assertEquals(accurate.getMax(), counter.getMax(), 0.);
+        assertEquals(accurate.getMean(), counter.getMean(), 1e-9);
+        assertEquals(accurate.getVariance(), counter.getVariance(), 1e-9);
+        assertEquals(80., counter.getPercentile(50), 80. / 16);
+        assertEquals(101., counter.getPercentile(99), 0.);
+
+        counter.reset();
+        assertEquals(0, counter.getHits());
+        assertTrue(Double.isNaN(counter.getMax()));
+    }
+
+    @Test
+    public void concurrentAdds() throws InterruptedException {
+        final int threads = 16;
+        final int loops = 10000;
+
+        final StripedCounter counter = new StripedCounter(new Counter.Key(Role.PERFORMANCES, "striped"), new DirectStore(), 8, null);
+        final CountDownLatch latch = new CountDownLatch(threads);
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 1; i <= loops; i++) {
+                            counter.add(i);
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        latch.await(1, TimeUnit.MINUTES);
+        pool.shutdown();
+
+        final OptimizedStatistics accurate = new OptimizedStatistics();
+        for (int t = 0; t < threads; t++) {
+            for (int i = 1; i <= loops; i++) {
+                accurate.addValue(i);
+            }
+        }
+
+        assertEquals(accurate.getN(), counter.getHits());
+        assertEquals(accurate.getSum(), counter.getSum(), 0.);
+        assertEquals(1., counter.getMin(), 0.);
+        assertEquals(loops, counter.getMax(), 0.);
+        assertEquals(accurate.getMean(), counter.getMean(), 1e-6);
+        assertEquals(accurate.getVariance(), counter.getVariance(), 1e-3);
+    }
+
+    private static class DirectStore implements CounterDataStore {
+        public Counter getOrCreateCounter(final Counter.Key key) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void clearCounters() {
+            throw new UnsupportedOperationException();
+        }
+
+        public Collection<Counter> getCounters() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void addToCounter(final Counter defaultCounter, final double delta) {
+            LockableCounter.class.cast(defaultCounter).addInternal(delta);
+        }
+    }
+}